@@ -21,6 +21,8 @@ public class AlarmController {
     private final ScheduledExecutorService scheduler;
     private Clip clip;
     private final ConcurrentHashMap<Long, LocalDateTime> recentlyTriggeredAlarms = new ConcurrentHashMap<>();
+    // Alarm không lặp đã kích hoạt nhưng EDT chưa xóa khỏi note; note đọc ở luồng kiểm tra là ảnh chụp, không được sửa
+    private final Set<Long> firedAlarmIds = ConcurrentHashMap.newKeySet();
     private static final int RE_TRIGGER_DELAY_SECONDS = 5;
 
     public AlarmController(NoteController noteController, MainFrame mainFrame) {
@@ -69,7 +71,7 @@ public class AlarmController {
                 continue;
             }
 
-            if (recentlyTriggeredAlarms.containsKey(alarm.getId())) {
+            if (recentlyTriggeredAlarms.containsKey(alarm.getId()) || firedAlarmIds.contains(alarm.getId())) {
                 continue;
             }
 
@@ -79,26 +81,36 @@ public class AlarmController {
                 System.out.println("    >>>> SUCCESS: TRIGGERING ALARM FOR NOTE: \"" + note.getTitle() + "\" (AlarmID: " + alarm.getId() + ") at " + now.format(DateTimeFormatter.ISO_LOCAL_TIME) +
                         " (Alarm time was: " + alarm.getAlarmTime().format(DateTimeFormatter.ISO_LOCAL_TIME) + ")");
 
-                final Note noteToProcess = note;
+                final long noteId = note.getId();
                 final Alarm alarmSnapshot = new Alarm(alarm.getId(), alarm.getAlarmTime(), alarm.isRecurring(), alarm.getRecurrencePattern());
 
                 if (!alarmSnapshot.isRecurring()) {
-                    // System.out.println("    INFO: Modifying in-memory original Alarm time for \"" + note.getTitle() + "\" (AlarmID: " + alarm.getId() + ") to prevent immediate re-trigger.");
-                    alarm.setAlarmTime(LocalDateTime.MIN);
+                    firedAlarmIds.add(alarmSnapshot.getId()); // Chặn kích hoạt lại tới khi EDT xóa alarm
                 }
 
+                // Note đọc ở đây là ảnh chụp của luồng kiểm tra: hiển thị và sửa instance được quản lý, trên EDT
                 SwingUtilities.invokeLater(() -> {
+                    Note noteToProcess = noteController.getNoteById(noteId);
+                    if (noteToProcess == null || noteToProcess.getAlarm() == null || noteToProcess.getAlarm().getId() != alarmSnapshot.getId()) {
+                        System.out.println("    INFO: (InvokeLater) Note or alarm changed before trigger (AlarmID: " + alarmSnapshot.getId() + "), skipping.");
+                        firedAlarmIds.remove(alarmSnapshot.getId());
+                        return;
+                    }
+
+                    if (alarmSnapshot.isRecurring()) {
+                        updateAlarmTimeAndSave(noteToProcess, alarmSnapshot);
+                    } else {
+                        noteToProcess.getAlarm().setAlarmTime(LocalDateTime.MIN);
+                    }
+
                     triggerAlarm(noteToProcess);
 
                     if (!alarmSnapshot.isRecurring()) {
                         System.out.println("    INFO: (InvokeLater) Requesting DB clear for non-recurring alarm: \"" + noteToProcess.getTitle() + "\" (Original AlarmID: " + alarmSnapshot.getId() + ")");
                         noteController.setAlarm(noteToProcess, null);
+                        firedAlarmIds.remove(alarmSnapshot.getId());
                     }
                 });
-
-                if (alarmSnapshot.isRecurring()) {
-                    updateAlarmTimeAndSave(noteToProcess, alarmSnapshot);
-                }
             }
         }
     }
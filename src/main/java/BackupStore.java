@@ -0,0 +1,793 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import javax.swing.Timer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Sao lưu có phiên bản, khử trùng lặp theo nội dung, đặt cạnh DataStorage:
+ * <pre>
+ * backups/chunks/ab/abcdef...             chunk nén gzip, tên là SHA-256 của nội dung chưa nén
+ * backups/snapshots/20261018-101500-123   manifest (gzip): dòng tóm tắt JSON, sau đó mỗi dòng một tham chiếu chunk
+ * </pre>
+ * Mỗi folder, tag, metadata note, nội dung note và bản vẽ là một chunk riêng, nên một bản sao lưu chỉ ghi
+ * những chunk chưa có. Tham chiếu tới note được gom thành trang theo khoảng ID (cũng là chunk), nên note và
+ * bản vẽ không đổi không tốn thêm gì; manifest chỉ liệt kê folder, tag và các trang. Bản vẽ dùng chung hash với
+ * DrawingBlobStore nên bản vẽ đã sao lưu không cần đọc lại.
+ * <p>
+ * Dữ liệu được chụp trên EDT bằng bản sao nông (xem {@link Note#snapshotCopy()}), việc băm, nén và ghi chạy
+ * trên luồng nền. Nội dung nằm trong NoteBodyStore được chốt lúc chụp: nội dung đã sao lưu ở bản trước (cùng updatedAt)
+ * được tham chiếu theo hash, nội dung còn lại được đọc ngay trên EDT, nên kho bị sửa hay xóa sau đó không ảnh hưởng. Khôi phục đọc manifest, kiểm tra hash từng chunk và ghi ra một snapshot độc lập
+ * (nội dung và bản vẽ inline), xem {@link #main(String[])}.
+ */
+public class BackupStore {
+    static final int VERSION = 1;
+    private static final DateTimeFormatter ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final String NO_PAYLOAD = "-";
+    private static final int PAGE_BITS = 7; // 128 ID liên tiếp mỗi trang
+
+    private final File directory;
+    private final File chunkDirectory;
+    private final File snapshotDirectory;
+    private final int keep;
+
+    // Chỉ dùng bên trong backup()/prune() (synchronized)
+    private Set<String> knownChunks; // Nạp lười từ thư mục chunks
+    // Hash nội dung đã sao lưu theo note; ghi trong backup(), đọc cả lúc chụp trên EDT
+    private final Map<Long, StoredBody> storedBodies = new ConcurrentHashMap<>();
+    private BackupInfo lastBackup;
+
+    private final Object lock = new Object();
+    // Các phần dưới đây được bảo vệ bởi lock
+    private Capture pendingCapture; // Chỉ giữ ảnh chụp mới nhất
+    private List<CompletableFuture<BackupInfo>> pendingWaiters = new ArrayList<>();
+    private Thread worker;
+
+    public BackupStore(File directory) {
+        this(directory, StorageConfig.getBackupKeep());
+    }
+
+    public BackupStore(File directory, int keep) {
+        this.directory = directory;
+        this.chunkDirectory = new File(directory, "chunks");
+        this.snapshotDirectory = new File(directory, "snapshots");
+        this.keep = Math.max(1, keep);
+    }
+
+    /** Thư mục backups cạnh notes.json. */
+    public static File defaultDirectory() {
+        return new File(new File(StorageConfig.DATA_FILE).getAbsoluteFile().getParentFile(), "backups");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Bật sao lưu định kỳ theo {@link StorageConfig#getBackupIntervalMinutes()}. Timer chạy trên EDT nên ảnh chụp
+     * nhất quán với những gì người dùng đang thấy; bản đầu tiên được tạo sau tối đa một phút.
+     * @return BackupStore đang dùng, hoặc null nếu sao lưu bị tắt.
+     */
+    public static BackupStore startPeriodicBackups(NoteManager noteManager) {
+        long minutes = StorageConfig.getBackupIntervalMinutes();
+        if (minutes <= 0 || StorageConfig.getBackendType() == StorageConfig.BackendType.MEMORY) {
+            return null;
+        }
+        BackupStore store = new BackupStore(defaultDirectory());
+        int delay = (int) Math.min(Integer.MAX_VALUE, TimeUnit.MINUTES.toMillis(minutes));
+        Timer timer = new Timer(delay, e -> store.backupAsync(noteManager));
+        timer.setInitialDelay(Math.min(delay, 60_000));
+        timer.start();
+        System.out.println("[BackupStore] Sao lưu tự động mỗi " + minutes + " phút vào " + store.getDirectory() +
+                " (giữ " + store.keep + " bản).");
+        return store;
+    }
+
+    /**
+     * Chụp dữ liệu hiện tại (gọi trên EDT) và sao lưu trên luồng nền. Nếu luồng nền đang bận, các yêu cầu
+     * đến sau được gộp lại thành một bản sao lưu từ ảnh chụp mới nhất.
+     * @return Future hoàn tất với thông tin bản sao lưu (bản trước đó nếu dữ liệu không thay đổi).
+     */
+    public CompletableFuture<BackupInfo> backupAsync(NoteManager noteManager) {
+        Capture capture = Capture.of(noteManager, storedBodies);
+        CompletableFuture<BackupInfo> future = new CompletableFuture<>();
+        synchronized (lock) {
+            pendingCapture = capture;
+            pendingWaiters.add(future);
+            if (worker == null) {
+                worker = new Thread(this::runWorker, "xinoclo-backup");
+                worker.setDaemon(true);
+                worker.setPriority(Thread.MIN_PRIORITY); // Nhường CPU cho EDT và luồng ghi
+                worker.start();
+            }
+            lock.notifyAll();
+        }
+        return future;
+    }
+
+    private void runWorker() {
+        while (true) {
+            Capture capture;
+            List<CompletableFuture<BackupInfo>> waiters;
+            synchronized (lock) {
+                while (pendingCapture == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                capture = pendingCapture;
+                waiters = pendingWaiters;
+                pendingCapture = null;
+                pendingWaiters = new ArrayList<>();
+            }
+            try {
+                BackupInfo info = backup(capture);
+                if (listIds().size() > keep) {
+                    prune(keep);
+                }
+                waiters.forEach(waiter -> waiter.complete(info));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[BackupStore] Sao lưu thất bại: " + e.getMessage());
+                e.printStackTrace();
+                waiters.forEach(waiter -> waiter.completeExceptionally(e));
+            }
+        }
+    }
+
+    /** Ảnh chụp nhất quán của dữ liệu trong bộ nhớ; chỉ gồm bản sao nên có thể đọc trên luồng khác. */
+    static final class Capture {
+        final List<Note> notes;
+        final List<Folder> folders;
+        final List<Tag> tags;
+        final LocalDateTime capturedAt = LocalDateTime.now();
+
+        private Capture(List<Note> notes, List<Folder> folders, List<Tag> tags) {
+            this.notes = notes;
+            this.folders = folders;
+            this.tags = tags;
+        }
+
+        /**
+         * @param storedBodies Nội dung đã sao lưu: note có cùng updatedAt giữ tham chiếu tới kho và dùng lại hash,
+         *                     nội dung của các note còn lại được đọc ngay để khớp với metadata vừa chụp.
+         */
+        static Capture of(NoteManager noteManager, Map<Long, StoredBody> storedBodies) {
+            List<Note> notes = new ArrayList<>();
+            for (Note note : noteManager.getAllNotes()) {
+                StoredBody stored = note.isContentStored() ? storedBodies.get(note.getId()) : null;
+                boolean backedUp = stored != null && stored.updatedAt.equals(note.getUpdatedAt());
+                notes.add(note.isContentStored() && !backedUp ? note.snapshotCopyWithContent() : note.snapshotCopy());
+            }
+            List<Folder> folders = new ArrayList<>();
+            for (Folder folder : noteManager.getAllFolders()) {
+                Folder copy = new Folder(folder.getId(), folder.getName());
+                copy.setFavorite(folder.isFavorite());
+                copy.setSubFolderNames(new ArrayList<>(folder.getSubFolderNames()));
+                folders.add(copy);
+            }
+            List<Tag> tags = new ArrayList<>();
+            for (Tag tag : new HashSet<>(noteManager.getAllTags())) {
+                tags.add(new Tag(tag.getId(), tag.getName()));
+            }
+            return new Capture(notes, folders, tags);
+        }
+    }
+
+    /** Hash nội dung của một note đã nằm trong NoteBodyStore, để lần sau không phải đọc lại nội dung không đổi. */
+    private static final class StoredBody {
+        final LocalDateTime updatedAt;
+        final String hash;
+
+        StoredBody(LocalDateTime updatedAt, String hash) {
+            this.updatedAt = updatedAt;
+            this.hash = hash;
+        }
+    }
+
+    /** Tóm tắt một bản sao lưu, đọc từ dòng đầu của manifest. */
+    public static final class BackupInfo {
+        private final String id;
+        private final LocalDateTime createdAt;
+        private final int noteCount;
+        private final int folderCount;
+        private final int tagCount;
+        private final int newChunks;
+        private final long newBytes;
+        private final String root;
+
+        BackupInfo(String id, LocalDateTime createdAt, int noteCount, int folderCount, int tagCount,
+                   int newChunks, long newBytes, String root) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.noteCount = noteCount;
+            this.folderCount = folderCount;
+            this.tagCount = tagCount;
+            this.newChunks = newChunks;
+            this.newBytes = newBytes;
+            this.root = root;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public LocalDateTime getCreatedAt() {
+            return createdAt;
+        }
+
+        public int getNoteCount() {
+            return noteCount;
+        }
+
+        public int getFolderCount() {
+            return folderCount;
+        }
+
+        public int getTagCount() {
+            return tagCount;
+        }
+
+        /** Số chunk mới mà bản sao lưu này phải ghi (phần còn lại dùng chung với các bản trước). */
+        public int getNewChunks() {
+            return newChunks;
+        }
+
+        /** Dung lượng (đã nén) của các chunk mới. */
+        public long getNewBytes() {
+            return newBytes;
+        }
+
+        @Override
+        public String toString() {
+            return id + "  " + createdAt.withNano(0) + "  " + noteCount + " notes, " + folderCount + " folders, " +
+                    tagCount + " tags  (+" + newChunks + " chunk, " + (newBytes + 1023) / 1024 + " KB)";
+        }
+    }
+
+    /**
+     * Ghi một bản sao lưu từ ảnh chụp. Chunk mới được ghi ra file tạm, fsync rồi đổi tên trước khi manifest
+     * tham chiếu tới chúng được ghi, nên crash giữa chừng chỉ để lại chunk thừa, không để lại manifest hỏng.
+     */
+    synchronized BackupInfo backup(Capture capture) throws IOException {
+        long startNanos = System.nanoTime();
+        loadKnownChunks();
+        ChunkBatch batch = new ChunkBatch();
+        try {
+            StringBuilder body = new StringBuilder();
+            for (Folder folder : capture.folders) {
+                body.append("F ").append(batch.put(recordBytes(json -> NoteJsonCodec.writeFolder(json, folder)))).append('\n');
+            }
+            for (Tag tag : capture.tags) {
+                body.append("T ").append(batch.put(recordBytes(json -> NoteJsonCodec.writeTag(json, tag)))).append('\n');
+            }
+            // Note được gom thành trang theo khoảng ID: trang không có note nào đổi cũng là chunk đã có,
+            // nên manifest chỉ tăng theo số trang chứ không theo số note
+            Map<Long, StringBuilder> pages = new LinkedHashMap<>();
+            for (Note note : capture.notes) {
+                String payload = putPayload(note, batch); // Sau bước này bản sao chỉ còn metadata
+                String meta = batch.put(recordBytes(json -> NoteJsonCodec.writeNote(json, note)));
+                pages.computeIfAbsent(note.getId() >>> PAGE_BITS, page -> new StringBuilder())
+                        .append("N ").append(meta).append(' ').append(payload).append('\n');
+            }
+            for (StringBuilder page : pages.values()) {
+                body.append("P ").append(batch.put(page.toString().getBytes(StandardCharsets.UTF_8))).append('\n');
+            }
+            String root = DrawingBlobStore.hash(body.toString().getBytes(StandardCharsets.UTF_8));
+            batch.commit();
+            BackupInfo previous = latest();
+            if (previous != null && root.equals(previous.root)) {
+                System.out.println("[BackupStore] Dữ liệu không thay đổi kể từ bản sao lưu " + previous.id + ", bỏ qua.");
+                return previous;
+            }
+            BackupInfo info = new BackupInfo(newId(capture.capturedAt), capture.capturedAt, capture.notes.size(),
+                    capture.folders.size(), capture.tags.size(), batch.hashes.size(), batch.bytes, root);
+            writeManifest(info, body);
+            lastBackup = info;
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            System.out.println("[BackupStore] Đã sao lưu " + info + " trong " + elapsedMillis + " ms.");
+            return info;
+        } catch (IOException | RuntimeException e) {
+            batch.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Lưu nội dung (TEXT) hoặc bản vẽ (DRAWING) của note thành chunk riêng và chuyển bản sao về dạng chỉ có metadata.
+     * Bản sao còn tham chiếu tới NoteBodyStore chỉ khi nội dung đã được sao lưu (xem {@link Capture#of}), nên không
+     * đọc kho ở đây: kho chỉ giữ phiên bản mới nhất, có thể đã mới hơn metadata hoặc đã bị xóa sau lúc chụp.
+     * Bản vẽ được đọc theo hash nên luôn đúng phiên bản.
+     * @return Hash của chunk, hoặc "-" nếu note không có dữ liệu tách riêng.
+     */
+    private String putPayload(Note note, ChunkBatch batch) throws IOException {
+        if (note.getNoteType() == Note.NoteType.DRAWING) {
+            String hash = note.getDrawingHash();
+            if (hash == null || !knownChunks.contains(hash)) {
+                String data = note.getDrawingData(); // Với bản vẽ đã lưu blob, đọc lười qua DrawingBlobStore
+                if (data == null || data.isEmpty()) {
+                    if (hash != null) {
+                        System.err.println("[BackupStore putPayload] Không đọc được bản vẽ của note ID " + note.getId() + ", chỉ sao lưu metadata.");
+                    }
+                    return NO_PAYLOAD;
+                }
+                try {
+                    hash = batch.put(Base64.getDecoder().decode(data));
+                } catch (IllegalArgumentException e) {
+                    return NO_PAYLOAD; // Không phải Base64 hợp lệ: giữ nguyên inline trong metadata, như DrawingBlobStore
+                }
+            }
+            note.setDrawingBlob(hash, null);
+            return hash;
+        }
+        if (note.isContentStored()) {
+            StoredBody stored = storedBodies.get(note.getId());
+            if (stored != null && !stored.updatedAt.equals(note.getUpdatedAt())) {
+                stored = null;
+            }
+            if (stored != null && knownChunks.contains(stored.hash)) {
+                return stored.hash; // Nội dung không đổi kể từ bản sao lưu trước
+            }
+            // Chunk cũ đã bị dọn: chỉ dùng nội dung trong kho nếu nó vẫn đúng là phiên bản đã sao lưu
+            storedBodies.remove(note.getId());
+            String current = note.getContent();
+            if (stored != null && stored.hash.equals(DrawingBlobStore.hash(current.getBytes(StandardCharsets.UTF_8)))) {
+                return batch.put(current.getBytes(StandardCharsets.UTF_8));
+            }
+            System.err.println("[BackupStore putPayload] Nội dung của note ID " + note.getId() + " đã đổi sau lúc chụp, chỉ sao lưu metadata.");
+            return NO_PAYLOAD;
+        }
+        String content = note.getContent();
+        if (content == null) {
+            return NO_PAYLOAD;
+        }
+        String hash = batch.put(content.getBytes(StandardCharsets.UTF_8));
+        batch.bodies.put(note.getId(), new StoredBody(note.getUpdatedAt(), hash)); // Lần chụp sau không phải đọc lại
+        note.setStoredContent(null); // Metadata ghi contentStored thay cho nội dung
+        return hash;
+    }
+
+    /** Các chunk mới của một bản sao lưu, được ghi ra file tạm cho tới khi commit(). */
+    private final class ChunkBatch {
+        private final List<String> hashes = new ArrayList<>();
+        private final Map<Long, StoredBody> bodies = new HashMap<>(); // Chỉ ghi vào storedBodies khi chunk đã nằm trên đĩa
+        private long bytes;
+
+        String put(byte[] data) throws IOException {
+            String hash = DrawingBlobStore.hash(data);
+            if (!knownChunks.add(hash)) {
+                return hash; // Đã có trong kho (hoặc trong chính bản sao lưu này)
+            }
+            hashes.add(hash);
+            File temp = tempFile(hash);
+            File parent = temp.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Không thể tạo thư mục chunk: " + parent);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(seal(gzip(data), hash));
+            }
+            bytes += temp.length();
+            return hash;
+        }
+
+        /** fsync tất cả rồi mới đổi tên: hệ điều hành có thể ghi các chunk cùng lúc thay vì từng cái một. */
+        void commit() throws IOException {
+            for (String hash : hashes) {
+                try (FileChannel channel = FileChannel.open(tempFile(hash).toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            for (String hash : hashes) {
+                moveAtomically(tempFile(hash), chunkFile(hash));
+            }
+            storedBodies.putAll(bodies);
+        }
+
+        void abandon() {
+            for (String hash : hashes) {
+                tempFile(hash).delete();
+            }
+            knownChunks = null; // Nạp lại từ đĩa ở lần sau thay vì đoán chunk nào đã được đổi tên
+        }
+    }
+
+    private void writeManifest(BackupInfo info, CharSequence body) throws IOException {
+        if (!snapshotDirectory.isDirectory() && !snapshotDirectory.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục: " + snapshotDirectory);
+        }
+        File target = manifestFile(info.id);
+        File temp = new File(snapshotDirectory, info.id + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(64 * 1024);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024);
+            Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+            JsonWriter header = new JsonWriter(writer);
+            header.beginObject();
+            header.name("version").value(VERSION);
+            NoteJsonCodec.writeDateTime(header.name("createdAt"), info.createdAt);
+            header.name("notes").value(info.noteCount);
+            header.name("folders").value(info.folderCount);
+            header.name("tags").value(info.tagCount);
+            header.name("newChunks").value(info.newChunks);
+            header.name("newBytes").value(info.newBytes);
+            header.name("root").value(info.root);
+            header.endObject();
+            header.flush();
+            writer.write('\n');
+            writer.append(body);
+            writer.flush();
+            gzip.finish();
+            file.write(seal(compressed.toByteArray(), "manifest:" + info.id));
+            file.getFD().sync();
+        }
+        moveAtomically(temp, target);
+    }
+
+    /** Danh sách các bản sao lưu, cũ nhất trước. */
+    public List<BackupInfo> list() throws IOException {
+        List<BackupInfo> backups = new ArrayList<>();
+        for (String id : listIds()) {
+            backups.add(readInfo(id));
+        }
+        return backups;
+    }
+
+    private BackupInfo latest() throws IOException {
+        if (lastBackup == null) {
+            List<String> ids = listIds();
+            if (!ids.isEmpty()) {
+                lastBackup = readInfo(ids.get(ids.size() - 1));
+            }
+        }
+        return lastBackup;
+    }
+
+    private List<String> listIds() {
+        String[] names = snapshotDirectory.list((dir, name) -> !name.endsWith(".tmp"));
+        if (names == null) {
+            return new ArrayList<>();
+        }
+        List<String> ids = new ArrayList<>(List.of(names));
+        Collections.sort(ids); // Tên theo thời gian nên thứ tự chữ cũng là thứ tự thời gian
+        return ids;
+    }
+
+    private BackupInfo readInfo(String id) throws IOException {
+        try (BufferedReader reader = openManifest(id)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Manifest rỗng: " + id);
+            }
+            JsonReader json = new JsonReader(new StringReader(header));
+            int version = 0;
+            LocalDateTime createdAt = null;
+            int notes = 0, folders = 0, tags = 0, newChunks = 0;
+            long newBytes = 0;
+            String root = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "version": version = json.nextInt(); break;
+                    case "createdAt": createdAt = NoteJsonCodec.readDateTime(json); break;
+                    case "notes": notes = json.nextInt(); break;
+                    case "folders": folders = json.nextInt(); break;
+                    case "tags": tags = json.nextInt(); break;
+                    case "newChunks": newChunks = json.nextInt(); break;
+                    case "newBytes": newBytes = json.nextLong(); break;
+                    case "root": root = json.peek() == JsonToken.NULL ? null : json.nextString(); break;
+                    default: json.skipValue();
+                }
+            }
+            json.endObject();
+            if (version > VERSION) {
+                throw new IOException("Bản sao lưu " + id + " có phiên bản " + version + " mới hơn phiên bản được hỗ trợ (" + VERSION + ").");
+            }
+            return new BackupInfo(id, createdAt, notes, folders, tags, newChunks, newBytes, root);
+        }
+    }
+
+    /**
+     * Dựng lại toàn bộ dữ liệu của một bản sao lưu. Nội dung và bản vẽ nằm inline trong các note trả về,
+     * không phụ thuộc NoteBodyStore hay DrawingBlobStore.
+     * @throws IOException nếu thiếu chunk hoặc chunk không khớp hash.
+     */
+    public StorageSnapshot read(String id) throws IOException {
+        StorageSnapshot data = new StorageSnapshot(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        try (BufferedReader reader = openManifest(id)) {
+            reader.readLine(); // Dòng tóm tắt
+            readLines(id, reader, data);
+        }
+        return data;
+    }
+
+    private void readLines(String id, BufferedReader reader, StorageSnapshot data) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Dòng manifest không hợp lệ trong " + id + ": " + line);
+            }
+            switch (parts[0]) {
+                case "P":
+                    readLines(id, new BufferedReader(new StringReader(new String(readChunk(parts[1]), StandardCharsets.UTF_8))), data);
+                    break;
+                case "F":
+                    data.folders.add(NoteJsonCodec.readFolder(recordReader(parts[1])));
+                    break;
+                case "T":
+                    data.tags.add(NoteJsonCodec.readTag(recordReader(parts[1])));
+                    break;
+                case "N":
+                    Note note = NoteJsonCodec.readNote(recordReader(parts[1]));
+                    if (parts.length > 2 && !NO_PAYLOAD.equals(parts[2])) {
+                        byte[] payload = readChunk(parts[2]);
+                        LocalDateTime updatedAt = note.getUpdatedAt();
+                        if (note.getNoteType() == Note.NoteType.DRAWING) {
+                            note.setDrawingData(Base64.getEncoder().encodeToString(payload));
+                        } else {
+                            note.setContent(new String(payload, StandardCharsets.UTF_8));
+                        }
+                        note.setUpdatedAt(updatedAt); // Các setter cập nhật updatedAt, khôi phục lại giá trị đã lưu
+                    }
+                    data.notes.add(note);
+                    break;
+                default:
+                    throw new IOException("Dòng manifest không hợp lệ trong " + id + ": " + line);
+            }
+        }
+    }
+
+    /** Ghi bản sao lưu ra một snapshot độc lập (.json hoặc .bin), có thể dùng thay cho notes.json. */
+    public void restoreTo(String id, File target) throws IOException {
+        StorageSnapshot data = read(id);
+        StorageConfig.SnapshotFormat format = DataStorage.writeStandalone(data, target);
+        System.out.println("[BackupStore restoreTo] Đã khôi phục bản sao lưu " + id + " (" + data.notes.size() +
+                " notes) ra " + target.getName() + " (" + format + ").");
+    }
+
+    /**
+     * Chỉ giữ {@code keep} bản sao lưu mới nhất và xóa các chunk không còn bản nào tham chiếu (mark and sweep).
+     * Chunk mới hơn manifest mới nhất không bị xóa vì có thể thuộc một bản sao lưu đang được ghi.
+     * @return Số chunk đã xóa.
+     */
+    synchronized int prune(int keep) throws IOException {
+        List<String> ids = listIds();
+        if (ids.size() <= keep) {
+            return 0;
+        }
+        List<String> expired = ids.subList(0, ids.size() - keep);
+        List<String> kept = ids.subList(ids.size() - keep, ids.size());
+        for (String id : expired) {
+            Files.deleteIfExists(manifestFile(id).toPath());
+        }
+        Set<String> live = new HashSet<>();
+        for (String id : kept) {
+            try (BufferedReader reader = openManifest(id)) {
+                reader.readLine();
+                markLive(reader, live);
+            }
+        }
+        long newestManifestMillis = manifestFile(kept.get(kept.size() - 1)).lastModified();
+        int removed = 0;
+        File[] prefixes = chunkDirectory.listFiles(File::isDirectory);
+        if (prefixes != null) {
+            for (File prefix : prefixes) {
+                File[] chunks = prefix.listFiles((dir, name) -> !name.endsWith(".tmp"));
+                if (chunks == null) {
+                    continue;
+                }
+                for (File chunk : chunks) {
+                    if (!live.contains(chunk.getName()) && chunk.lastModified() < newestManifestMillis && chunk.delete()) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        knownChunks = null;
+        System.out.println("[BackupStore prune] Đã xóa " + expired.size() + " bản sao lưu cũ và " + removed + " chunk không còn dùng.");
+        return removed;
+    }
+
+    private void markLive(BufferedReader reader, Set<String> live) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ");
+            for (int i = 1; i < parts.length; i++) {
+                if (live.add(parts[i]) && parts[0].equals("P")) {
+                    // Trang đã đánh dấu trước đó (dùng chung giữa các bản sao lưu) không cần đọc lại
+                    markLive(new BufferedReader(new StringReader(new String(readChunk(parts[i]), StandardCharsets.UTF_8))), live);
+                }
+            }
+        }
+    }
+
+    private void loadKnownChunks() {
+        if (knownChunks != null) {
+            return;
+        }
+        knownChunks = new HashSet<>();
+        File[] prefixes = chunkDirectory.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return;
+        }
+        for (File prefix : prefixes) {
+            File[] chunks = prefix.listFiles();
+            if (chunks == null) {
+                continue;
+            }
+            for (File chunk : chunks) {
+                if (chunk.getName().endsWith(".tmp")) {
+                    chunk.delete(); // Sót lại từ lần sao lưu bị ngắt, chưa manifest nào tham chiếu
+                } else {
+                    knownChunks.add(chunk.getName());
+                }
+            }
+        }
+    }
+
+    private byte[] readChunk(String hash) throws IOException {
+        File source = chunkFile(hash);
+        if (!source.exists()) {
+            throw new FileNotFoundException("Thiếu chunk " + hash + " trong " + chunkDirectory);
+        }
+        byte[] data;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(open(Files.readAllBytes(source.toPath()), hash)), 8192)) {
+            data = in.readAllBytes();
+        } catch (ZipException | EOFException e) {
+            throw new IOException("Chunk " + hash + " bị hỏng: " + e.getMessage(), e);
+        }
+        if (!DrawingBlobStore.hash(data).equals(hash)) {
+            throw new IOException("Chunk " + hash + " bị hỏng (nội dung không khớp hash).");
+        }
+        return data;
+    }
+
+    private JsonReader recordReader(String hash) throws IOException {
+        return new JsonReader(new StringReader(new String(readChunk(hash), StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] recordBytes(JsonRecordLines.Body body) throws IOException {
+        StringWriter chars = new StringWriter();
+        JsonWriter writer = new JsonWriter(chars);
+        writer.setSerializeNulls(false);
+        body.write(writer);
+        writer.flush();
+        return chars.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private BufferedReader openManifest(String id) throws IOException {
+        File manifest = manifestFile(id);
+        if (!manifest.exists()) {
+            throw new FileNotFoundException("Không có bản sao lưu " + id + " trong " + snapshotDirectory);
+        }
+        byte[] stored = Files.readAllBytes(manifest.toPath());
+        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(open(stored, "manifest:" + id)), 64 * 1024), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream out = new GZIPOutputStream(compressed, 8192)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Chunk và manifest được mã hóa sau khi nén khi dữ liệu được mã hóa ({@link RecordCipher}); tên chunk vẫn là
+     * hash của nội dung gốc để khử trùng lặp. Bản sao lưu tạo trước khi bật mã hóa vẫn đọc được.
+     */
+    private static byte[] seal(byte[] compressed, String context) {
+        RecordCipher cipher = RecordCipher.current();
+        return cipher != null ? cipher.encrypt(compressed, context) : compressed;
+    }
+
+    private static byte[] open(byte[] stored, String context) throws IOException {
+        return RecordCipher.isEncrypted(stored) ? RecordCipher.require().decrypt(stored, context) : stored;
+    }
+
+    private String newId(LocalDateTime createdAt) {
+        String base = createdAt.format(ID_FORMAT);
+        String id = base;
+        for (int i = 1; manifestFile(id).exists(); i++) {
+            id = base + "-" + i;
+        }
+        return id;
+    }
+
+    private File manifestFile(String id) {
+        if (id.isEmpty() || id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+            throw new IllegalArgumentException("Mã bản sao lưu không hợp lệ: " + id);
+        }
+        return new File(snapshotDirectory, id);
+    }
+
+    private File chunkFile(String hash) {
+        if (hash.length() < 3 || !hash.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+            throw new IllegalArgumentException("Hash chunk không hợp lệ: " + hash);
+        }
+        return new File(new File(chunkDirectory, hash.substring(0, 2)), hash);
+    }
+
+    private File tempFile(String hash) {
+        return new File(chunkFile(hash).getParentFile(), hash + ".tmp");
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Xem và khôi phục bản sao lưu từ dòng lệnh, ví dụ:
+     * <pre>
+     * java -cp XiNoClo.jar BackupStore list
+     * java -cp XiNoClo.jar BackupStore restore 20261018-101500-123 restored.json
+     * java -cp XiNoClo.jar BackupStore prune 10
+     * </pre>
+     * File khôi phục có thể dùng thay cho notes.json (khi ứng dụng đã tắt) hoặc chuyển định dạng qua BinarySnapshotFormat.
+     */
+    public static void main(String[] args) throws IOException {
+        RecordCipher.unlockDefaultFromConfig();
+        BackupStore store = new BackupStore(defaultDirectory());
+        if (args.length == 1 && args[0].equals("list")) {
+            List<BackupInfo> backups = store.list();
+            if (backups.isEmpty()) {
+                System.out.println("Chưa có bản sao lưu nào trong " + store.getDirectory() + ".");
+            }
+            backups.forEach(System.out::println);
+        } else if (args.length == 3 && args[0].equals("restore")) {
+            store.restoreTo(args[1], new File(args[2]));
+        } else if (args.length == 2 && args[0].equals("prune")) {
+            store.prune(Math.max(1, Integer.parseInt(args[1])));
+        } else {
+            System.err.println("Cách dùng: BackupStore list | restore <mã> <đích .json|.bin> | prune <số bản giữ lại>");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,555 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Định dạng snapshot nhị phân (có phiên bản) dùng song song với notes.json.
+ * <pre>
+ * header : magic "XNCB" | version (int)
+ * ids    : một bản ghi: count (varint) | các mốc ID (long) theo thứ tự {@link IdMarks.Kind}, 0 là chưa biết
+ * strings: một bản ghi: count (varint) | các chuỗi (tên tag, tên folder, recurrence pattern)
+ * folders: count (varint) | các bản ghi
+ * tags   : count (varint) | các bản ghi
+ * notes  : count (varint) | các bản ghi
+ * </pre>
+ * Mỗi bản ghi có dạng [độ dài (int)][CRC32C của độ dài và nội dung (int)][nội dung], nên có thể bỏ qua bản ghi
+ * không cần đọc, và khi file hỏng chỉ mất những bản ghi hỏng (xem {@link #read}).
+ * Phiên bản 1 (không có checksum, bảng chuỗi nằm ngoài bản ghi) và 2 (chưa có mốc ID) vẫn đọc được.
+ * Thời gian lưu dưới dạng epoch second (UTC) + nano, không cần parse chuỗi ISO.
+ * Tên tag/folder được tham chiếu qua chỉ số trong bảng chuỗi thay vì lặp lại ở từng note.
+ * Chuyển đổi qua lại với JSON không mất dữ liệu (xem {@link #main(String[])}).
+ */
+public final class BinarySnapshotFormat {
+    static final byte[] MAGIC = {'X', 'N', 'C', 'B'};
+    static final int VERSION = 3;
+    private static final int MAX_RECORD_LENGTH = 512 * 1024 * 1024; // Lớn hơn thế chắc chắn là độ dài bị hỏng
+
+    private static final int FLAG_FAVORITE = 1;
+    private static final int FLAG_MISSION = 1 << 1;
+    private static final int FLAG_MISSION_COMPLETED = 1 << 2;
+    private static final int FLAG_HAS_CONTENT = 1 << 3;
+    private static final int FLAG_HAS_ALARM = 1 << 4;
+    private static final int FLAG_HAS_DRAWING_DATA = 1 << 5;
+    private static final int FLAG_HAS_DRAWING_HASH = 1 << 6;
+    private static final int FLAG_CONTENT_STORED = 1 << 7; // Nội dung nằm trong NoteBodyStore
+
+    private BinarySnapshotFormat() {
+    }
+
+    /** Kiểm tra file có bắt đầu bằng magic của định dạng nhị phân hay không. */
+    static boolean isBinarySnapshot(File file) {
+        if (file.length() < MAGIC.length) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[MAGIC.length];
+            return in.read(head) == MAGIC.length && java.util.Arrays.equals(head, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // --- Ghi ---
+
+    /**
+     * @param idMarks      Mốc ID lưu cùng snapshot, null nếu không biết.
+     * @param fingerprints Nhận checksum của từng bản ghi folder/tag/note đã ghi (null nếu không cần).
+     */
+    static void write(OutputStream rawOut, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks,
+                      RecordFingerprints fingerprints) throws IOException {
+        DataOutputStream out = new DataOutputStream(rawOut);
+        StringTable strings = new StringTable();
+        for (Folder folder : folders) {
+            strings.indexOf(folder.getName());
+            folder.getSubFolderNames().forEach(strings::indexOf);
+        }
+        for (Tag tag : tags) {
+            strings.indexOf(tag.getName());
+        }
+        for (Note note : notes) {
+            for (Tag tag : note.getTags()) {
+                strings.indexOf(tag.getName());
+            }
+            if (note.getAlarm() != null && note.getAlarm().getRecurrencePattern() != null) {
+                strings.indexOf(note.getAlarm().getRecurrencePattern());
+            }
+        }
+
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        RecordBuffer record = new RecordBuffer();
+        writeVarInt(record.out, IdMarks.Kind.values().length);
+        for (IdMarks.Kind kind : IdMarks.Kind.values()) {
+            record.out.writeLong(idMarks != null ? idMarks.get(kind) : 0);
+        }
+        record.writeTo(out);
+
+        record.reset();
+        writeVarInt(record.out, strings.values.size());
+        for (String value : strings.values) {
+            writeString(record.out, value);
+        }
+        record.writeTo(out);
+
+        writeVarInt(out, folders.size());
+        for (Folder folder : folders) {
+            record.reset();
+            record.out.writeLong(folder.getId());
+            writeVarInt(record.out, strings.indexOf(folder.getName()));
+            record.out.writeBoolean(folder.isFavorite());
+            List<String> subFolderNames = folder.getSubFolderNames();
+            writeVarInt(record.out, subFolderNames.size());
+            for (String subFolderName : subFolderNames) {
+                writeVarInt(record.out, strings.indexOf(subFolderName));
+            }
+            int crc = record.writeTo(out);
+            if (fingerprints != null) {
+                fingerprints.put(RecordFingerprints.FOLDERS, folder.getId(), crc);
+            }
+        }
+
+        writeVarInt(out, tags.size());
+        for (Tag tag : tags) {
+            record.reset();
+            record.out.writeLong(tag.getId());
+            writeVarInt(record.out, strings.indexOf(tag.getName()));
+            int crc = record.writeTo(out);
+            if (fingerprints != null) {
+                fingerprints.put(RecordFingerprints.TAGS, tag.getId(), crc);
+            }
+        }
+
+        writeVarInt(out, notes.size());
+        for (Note note : notes) {
+            record.reset();
+            writeNote(record.out, note, strings);
+            int crc = record.writeTo(out);
+            if (fingerprints != null) {
+                fingerprints.put(RecordFingerprints.NOTES, note.getId(), crc);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeNote(DataOutputStream out, Note note, StringTable strings) throws IOException {
+        boolean isText = note.getNoteType() == Note.NoteType.TEXT;
+        boolean isDrawing = note.getNoteType() == Note.NoteType.DRAWING;
+        boolean contentStored = isText && note.isContentStored();
+        String content = (isText && !contentStored) ? note.getContent() : null;
+        String drawingHash = isDrawing ? note.getDrawingHash() : null;
+        String drawingData = (isDrawing && drawingHash == null) ? note.getDrawingData() : null;
+        Alarm alarm = note.getAlarm();
+
+        int flags = 0;
+        if (note.isFavorite()) flags |= FLAG_FAVORITE;
+        if (note.isMission()) flags |= FLAG_MISSION;
+        if (note.isMissionCompleted()) flags |= FLAG_MISSION_COMPLETED;
+        if (content != null) flags |= FLAG_HAS_CONTENT;
+        if (alarm != null) flags |= FLAG_HAS_ALARM;
+        if (drawingData != null) flags |= FLAG_HAS_DRAWING_DATA;
+        if (drawingHash != null) flags |= FLAG_HAS_DRAWING_HASH;
+        if (contentStored) flags |= FLAG_CONTENT_STORED;
+
+        out.writeLong(note.getId());
+        out.writeByte(flags);
+        out.writeByte(note.getNoteType().ordinal());
+        writeString(out, note.getTitle());
+        writeDateTime(out, note.getCreatedAt());
+        writeDateTime(out, note.getUpdatedAt());
+        writeString(out, note.getMissionContent());
+        out.writeLong(note.getFolderId());
+        writeVarInt(out, note.getTags().size());
+        for (Tag tag : note.getTags()) {
+            out.writeLong(tag.getId());
+            writeVarInt(out, strings.indexOf(tag.getName()));
+        }
+        if (alarm != null) {
+            out.writeLong(alarm.getId());
+            writeDateTime(out, alarm.getAlarmTime());
+            out.writeBoolean(alarm.isRecurring());
+            String pattern = alarm.getRecurrencePattern();
+            writeVarInt(out, pattern == null ? 0 : strings.indexOf(pattern) + 1); // 0 = không có pattern
+        }
+        if (content != null) writeString(out, content);
+        if (drawingData != null) writeString(out, drawingData);
+        if (drawingHash != null) writeString(out, drawingHash);
+    }
+
+    // --- Đọc ---
+
+    /**
+     * Đọc snapshot nhị phân và thêm thẳng các đối tượng vào danh sách truyền vào.
+     * @param report null để đọc nghiêm ngặt. Khác null (cứu dữ liệu): bản ghi sai checksum hoặc không giải mã được
+     *               bị bỏ qua; nếu độ dài bản ghi hỏng (không còn biết bản ghi kế tiếp bắt đầu ở đâu) hoặc file cụt
+     *               thì phần còn lại bị bỏ. Header và bảng chuỗi hỏng thì luôn ném IOException.
+     * @param filter Chỉ giải mã các bản ghi folder/tag/note được chấp nhận (null: mọi bản ghi); nhận ID (8 byte đầu
+     *               của bản ghi) và checksum của bản ghi nhị phân, xem {@link RecordFingerprints}.
+     * @return Mốc ID lưu trong snapshot, null với phiên bản 1 và 2.
+     */
+    static IdMarks read(InputStream rawIn, List<Note> notes, List<Folder> folders, List<Tag> tags,
+                        File source, JsonRecordLines.Filter filter, SalvageReport report) throws IOException {
+        DataInputStream in = new DataInputStream(rawIn);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!java.util.Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Không phải snapshot nhị phân XiNoClo");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Phiên bản snapshot nhị phân không được hỗ trợ: " + version);
+        }
+        RecordCursor cursor = new RecordCursor(in, version >= 2, source, null); // Mốc ID và bảng chuỗi luôn đọc nghiêm ngặt
+        IdMarks idMarks = null;
+        if (version >= 3) {
+            DataInputStream record = cursor.next("ids", 0);
+            int count = readVarInt(record);
+            idMarks = new IdMarks();
+            for (int i = 0; i < count; i++) {
+                long mark = record.readLong();
+                if (i < IdMarks.Kind.values().length) { // Loại mới hơn từ phiên bản sau được bỏ qua
+                    idMarks.set(IdMarks.Kind.values()[i], mark);
+                }
+            }
+        }
+        DataInputStream stringTable = cursor.checksummed ? cursor.next("strings", 0) : in;
+        int stringCount = readVarInt(stringTable);
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = readString(stringTable);
+        }
+        cursor = new RecordCursor(in, cursor.checksummed, source, report);
+
+        int folderCount = cursor.count("folders");
+        for (int i = 0; i < folderCount && !cursor.truncated; i++) {
+            DataInputStream record = cursor.next("folders", i);
+            if (record == null || filter != null && !filter.accept("folders", cursor.recordId(), cursor.crc)) {
+                continue;
+            }
+            try {
+                long id = record.readLong();
+                Folder folder = new Folder(strings[readVarInt(record)]);
+                folder.setId(id);
+                folder.setFavorite(record.readBoolean());
+                int subCount = readVarInt(record);
+                List<String> subFolderNames = new ArrayList<>(subCount);
+                for (int j = 0; j < subCount; j++) {
+                    subFolderNames.add(strings[readVarInt(record)]);
+                }
+                folder.setSubFolderNames(subFolderNames);
+                folders.add(folder);
+            } catch (IOException | RuntimeException e) {
+                cursor.damaged("folders", i, e);
+            }
+        }
+
+        int tagCount = cursor.count("tags");
+        for (int i = 0; i < tagCount && !cursor.truncated; i++) {
+            DataInputStream record = cursor.next("tags", i);
+            if (record == null || filter != null && !filter.accept("tags", cursor.recordId(), cursor.crc)) {
+                continue;
+            }
+            try {
+                long id = record.readLong();
+                Tag tag = new Tag(strings[readVarInt(record)]);
+                tag.setId(id);
+                tags.add(tag);
+            } catch (IOException | RuntimeException e) {
+                cursor.damaged("tags", i, e);
+            }
+        }
+
+        int noteCount = cursor.count("notes");
+        for (int i = 0; i < noteCount && !cursor.truncated; i++) {
+            DataInputStream record = cursor.next("notes", i);
+            if (record == null || filter != null && !filter.accept("notes", cursor.recordId(), cursor.crc)) {
+                continue;
+            }
+            try {
+                notes.add(readNote(record, strings));
+            } catch (IOException | RuntimeException e) {
+                cursor.damaged("notes", i, e);
+            }
+        }
+        return idMarks;
+    }
+
+    private static Note readNote(DataInputStream in, String[] strings) throws IOException {
+        long id = in.readLong();
+        int flags = in.readUnsignedByte();
+        int typeOrdinal = in.readUnsignedByte();
+        Note.NoteType[] types = Note.NoteType.values();
+        if (typeOrdinal >= types.length) {
+            throw new IOException("noteType không hợp lệ trong bản ghi note " + id + ": " + typeOrdinal);
+        }
+        Note.NoteType noteType = types[typeOrdinal];
+        String title = readString(in);
+        LocalDateTime createdAt = readDateTime(in);
+        LocalDateTime updatedAt = readDateTime(in);
+        String missionContent = readString(in);
+        long folderId = in.readLong();
+        int tagCount = readVarInt(in);
+        List<Tag> tags = new ArrayList<>(tagCount);
+        for (int j = 0; j < tagCount; j++) {
+            long tagId = in.readLong();
+            Tag tag = new Tag(strings[readVarInt(in)]);
+            tag.setId(tagId);
+            tags.add(tag);
+        }
+        Alarm alarm = null;
+        if ((flags & FLAG_HAS_ALARM) != 0) {
+            long alarmId = in.readLong();
+            LocalDateTime alarmTime = readDateTime(in);
+            boolean recurring = in.readBoolean();
+            int patternIndex = readVarInt(in);
+            alarm = new Alarm(alarmId, alarmTime, recurring, patternIndex == 0 ? null : strings[patternIndex - 1]);
+        }
+        String content = (flags & FLAG_HAS_CONTENT) != 0 ? readString(in) : null;
+        String drawingData = (flags & FLAG_HAS_DRAWING_DATA) != 0 ? readString(in) : null;
+        String drawingHash = (flags & FLAG_HAS_DRAWING_HASH) != 0 ? readString(in) : null;
+        boolean contentStored = noteType == Note.NoteType.TEXT && (flags & FLAG_CONTENT_STORED) != 0;
+        if (noteType == Note.NoteType.TEXT && content == null && !contentStored) {
+            content = "";
+        }
+
+        Note note = new Note(id, title, content, createdAt, updatedAt, folderId,
+                (flags & FLAG_FAVORITE) != 0, (flags & FLAG_MISSION) != 0, (flags & FLAG_MISSION_COMPLETED) != 0,
+                missionContent, alarm != null ? alarm.getId() : null, tags, noteType, drawingData);
+        if (alarm != null) {
+            note.setAlarm(alarm);
+            note.setUpdatedAt(updatedAt);
+        }
+        if (drawingHash != null) {
+            note.setDrawingBlob(drawingHash, null);
+        }
+        if (contentStored) {
+            note.setStoredContent(null);
+        }
+        return note;
+    }
+
+    /**
+     * Đọc lần lượt các bản ghi [độ dài][crc][nội dung] vào bộ đệm dùng chung.
+     * Ở chế độ cứu dữ liệu, lỗi được ghi vào báo cáo thay vì ném ra; hai bản ghi hỏng liên tiếp hoặc độ dài vô lý
+     * được coi là mất dấu ranh giới bản ghi ({@code truncated}), phần còn lại của file bị bỏ.
+     */
+    private static final class RecordCursor {
+        private final DataInputStream in;
+        private final boolean checksummed;
+        private final File source;
+        private final SalvageReport report;
+        private byte[] buffer = new byte[4096];
+        private int length;
+        private boolean previousDamaged;
+        boolean truncated;
+        int crc; // Checksum của bản ghi vừa đọc (tính cả với phiên bản 1, vốn không lưu checksum)
+
+        RecordCursor(DataInputStream in, boolean checksummed, File source, SalvageReport report) {
+            this.in = in;
+            this.checksummed = checksummed;
+            this.source = source;
+            this.report = report;
+        }
+
+        int count(String section) throws IOException {
+            if (truncated) {
+                return 0;
+            }
+            try {
+                return readVarInt(in);
+            } catch (IOException e) {
+                if (report == null) {
+                    throw e;
+                }
+                truncate(section, 0, e);
+                return 0;
+            }
+        }
+
+        /** @return Luồng đọc nội dung bản ghi, hoặc null nếu bản ghi hỏng đã bị bỏ qua. */
+        DataInputStream next(String section, int index) throws IOException {
+            try {
+                length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("Độ dài bản ghi không hợp lệ: " + length);
+                }
+                int expectedCrc = checksummed ? in.readInt() : 0;
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                crc = checksum(length, buffer);
+                if (checksummed && crc != expectedCrc) {
+                    if (report == null) {
+                        throw new IOException("Sai checksum ở bản ghi " + section + " #" + index);
+                    }
+                    damaged(section, index, new IOException("sai checksum"));
+                    return null;
+                }
+            } catch (IOException e) {
+                if (report == null) {
+                    throw e;
+                }
+                truncate(section, index, e);
+                return null;
+            }
+            previousDamaged = false;
+            return new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+        }
+
+        void damaged(String section, int index, Exception e) throws IOException {
+            if (report == null) {
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+            }
+            report.recordLost(source, section, "#" + index, probableId(), e.getMessage());
+            if (previousDamaged) {
+                truncate(section, index + 1, new IOException("nhiều bản ghi hỏng liên tiếp, không còn tin được ranh giới bản ghi"));
+            }
+            previousDamaged = true;
+        }
+
+        private void truncate(String section, int index, IOException e) {
+            truncated = true;
+            report.recordTruncated(source, section, "bản ghi #" + index, e instanceof EOFException ? "file bị cắt cụt" : e.getMessage());
+        }
+
+        /** 8 byte đầu của mọi bản ghi là ID; chỉ dùng để báo cáo, có thể sai nếu chính phần đó bị hỏng. */
+        private Long probableId() {
+            Long id = recordId();
+            return id != null && id > 0 && id < 1_000_000_000_000L ? id : null;
+        }
+
+        /** ID của bản ghi vừa đọc (đã qua kiểm tra checksum), null nếu bản ghi ngắn hơn 8 byte. */
+        Long recordId() {
+            if (length < 8) {
+                return null;
+            }
+            long id = 0;
+            for (int i = 0; i < 8; i++) {
+                id = (id << 8) | (buffer[i] & 0xFF);
+            }
+            return id;
+        }
+    }
+
+    /** CRC32C của độ dài (4 byte big-endian) và nội dung, để độ dài hỏng cũng bị phát hiện. */
+    private static int checksum(int length, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // --- Kiểu dữ liệu cơ bản ---
+
+    static void writeDateTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(value.getNano());
+    }
+
+    static LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        long epochSecond = in.readLong();
+        int nano = in.readInt();
+        return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+    }
+
+    /** Chuỗi UTF-8 với độ dài varint (writeUTF của DataOutputStream giới hạn 64KB, không đủ cho content). */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint quá dài");
+    }
+
+    private static final class StringTable {
+        private final Map<String, Integer> index = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int indexOf(String value) {
+            Integer existing = index.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            index.put(value, values.size());
+            values.add(value);
+            return values.size() - 1;
+        }
+    }
+
+    /** Bộ đệm dùng lại cho từng bản ghi để ghi được tiền tố độ dài và checksum. */
+    private static final class RecordBuffer {
+        private final RecordBytes bytes = new RecordBytes();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void reset() {
+            bytes.reset();
+        }
+
+        /** @return Checksum đã ghi. */
+        int writeTo(DataOutputStream target) throws IOException {
+            int crc = checksum(bytes.size(), bytes.buffer());
+            target.writeInt(bytes.size());
+            target.writeInt(crc);
+            bytes.writeTo(target);
+            return crc;
+        }
+    }
+
+    private static final class RecordBytes extends ByteArrayOutputStream {
+        RecordBytes() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Chuyển đổi giữa hai định dạng, ví dụ:
+     * <pre>java -cp XiNoClo.jar BinarySnapshotFormat notes.json notes.bin</pre>
+     * Định dạng nguồn được nhận diện theo nội dung, định dạng đích theo đuôi file (.bin hoặc .json).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Cách dùng: BinarySnapshotFormat <nguồn> <đích .json|.bin>");
+            System.exit(2);
+        }
+        RecordCipher.unlockDefaultFromConfig();
+        DataStorage.convertSnapshot(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Đặt bộ đệm LRU có giới hạn ({@link NoteBodyCache}) trước một NoteBodyStore,
+ * để mở lại các note vừa xem không phải đọc đĩa mà heap vẫn không phình theo số lượng note.
+ * Nội dung có thể được nhận trước ({@link #stage}) và ghi xuống sau trên luồng ghi ({@link #writeStaged}).
+ */
+public class CachedNoteBodyStore implements NoteBodyStore {
+    private final NoteBodyStore delegate;
+    private final NoteBodyCache<Long> cache;
+    private final Map<Long, String> staged = new ConcurrentHashMap<>(); // Nội dung chưa ghi xuống delegate, không bị đẩy khỏi bộ đệm
+
+    public CachedNoteBodyStore(NoteBodyStore delegate, long maxCachedChars) {
+        this.delegate = delegate;
+        this.cache = new NoteBodyCache<>(maxCachedChars);
+    }
+
+    public NoteBodyStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String read(long noteId) throws IOException {
+        String body = staged.get(noteId);
+        if (body != null) {
+            return body;
+        }
+        body = cache.get(noteId);
+        if (body == null) {
+            body = delegate.read(noteId);
+            cache.put(noteId, body);
+        }
+        return body;
+    }
+
+    @Override
+    public void write(long noteId, String body) throws IOException {
+        delegate.write(noteId, body);
+        cache.put(noteId, body);
+    }
+
+    /**
+     * Nhận nội dung mới mà chưa ghi gì xuống đĩa (gọi trên luồng đang sửa dữ liệu): {@link #read} trả về nó ngay,
+     * còn {@link #writeStaged()} ghi nó sau đó. Nội dung mới hơn của cùng note thay bản đang chờ.
+     */
+    public void stage(long noteId, String body) {
+        staged.put(noteId, body);
+    }
+
+    /**
+     * Ghi các nội dung đang chờ rồi ép xuống đĩa. Nội dung chỉ rời hàng chờ sau khi sync thành công, nên lần ghi lỗi
+     * được thử lại ở lần gọi sau; nội dung được nhận lại trong lúc ghi vẫn nằm chờ.
+     * @return true nếu có nội dung được ghi.
+     */
+    public synchronized boolean writeStaged() throws IOException {
+        if (staged.isEmpty()) {
+            return false;
+        }
+        Map<Long, String> written = new HashMap<>(staged);
+        for (Map.Entry<Long, String> entry : written.entrySet()) {
+            delegate.write(entry.getKey(), entry.getValue());
+            cache.put(entry.getKey(), entry.getValue());
+        }
+        delegate.sync();
+        written.forEach(staged::remove);
+        return true;
+    }
+
+    @Override
+    public void delete(long noteId) throws IOException {
+        staged.remove(noteId);
+        cache.remove(noteId);
+        delegate.delete(noteId);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void refresh(Set<Long> noteIds) throws IOException {
+        for (long noteId : noteIds) {
+            cache.remove(noteId);
+        }
+        delegate.refresh(noteIds);
+    }
+
+    @Override
+    public void retainOnly(Set<Long> liveNoteIds, long writtenBeforeMillis) throws IOException {
+        delegate.retainOnly(liveNoteIds, writtenBeforeMillis);
+    }
+}
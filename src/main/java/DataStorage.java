@@ -1,300 +1,1403 @@
-import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
 
+/**
+ * Backend lưu trữ mặc định: một snapshot (notes.json hoặc notes.bin, xem {@link StorageConfig.SnapshotFormat})
+ * cộng journal ghi thêm, hoặc layout shard theo folder; bản vẽ và nội dung note có thể nằm trong kho riêng.
+ */
+public class DataStorage implements StorageBackend {
+    private final File file; // Snapshot theo định dạng đang dùng (notes.json hoặc notes.bin)
+    private final File alternateFile; // Snapshot theo định dạng còn lại, chỉ dùng khi tải lần đầu sau khi đổi định dạng
+    private final StorageConfig.SnapshotFormat format;
+    private final NoteJournal journal; // null nếu không bật chế độ journal
+    private final DrawingBlobStore drawingStore;
+    private final ShardedNoteStore shardStore; // null nếu không bật chế độ lưu theo shard
+    private CachedNoteBodyStore bodyStore; // Nội dung TEXT note được lưu riêng (chế độ tải lười), tạo khi cần lần đầu
+    private EncryptedNoteBodyStore encryptedBodyStore; // Lớp mã hóa bên trong bodyStore, null nếu không mã hóa
+    private final boolean lazyBodies;
+    // Dữ liệu cần được ghi lại toàn bộ từ bộ nhớ: chuyển sang shard, shard mồ côi, dữ liệu vừa được cứu
+    // từ file hỏng, hoặc bộ kiểm tra nền vừa phát hiện bản ghi hỏng trên đĩa
+    private volatile boolean fullSaveRequired;
+    private IdMarks loadedIdMarks; // Mốc ID đọc được ở lần load() gần nhất (snapshot/manifest cộng journal)
+    private StorageVerifier verifier;
 
-public class DataStorage {
-    private final Gson gson;
-    private final File file;
+    // Checkpoint nền ở chế độ journal
+    private final Object snapshotLock = new Object(); // Bảo vệ việc thay file snapshot và làm rỗng journal
+    private long snapshotEpoch; // Tăng mỗi khi snapshot được thay, checkpoint cũ hơn sẽ bị bỏ
+    private volatile boolean checkpointRunning;
+    private volatile double replayBytesPerMilli = 4096; // Ước lượng dè dặt, được đo lại mỗi lần khởi động
+
+    // Nhiều phiên bản ứng dụng trên cùng thư mục dữ liệu: chỉ phiên bản giữ khóa được ghi, các phiên bản khác chỉ đọc
+    // và cập nhật theo thay đổi của nó (xem ExternalChangeTracker)
+    private static final Set<String> LOCKED_PATHS = ConcurrentHashMap.newKeySet(); // Khóa file không phân biệt các kênh trong cùng JVM
+    private final File lockFile;
+    private FileChannel lockChannel; // Giữ khóa notes.json.lock tới khi close()
+    private volatile boolean readOnly;
+    // Thứ tự khóa: snapshotLock -> changeLock -> khóa của journal/shardStore
+    private final Object changeLock = new Object(); // Ghi file dữ liệu và cập nhật changeTracker là một bước với lần quét
+    private ExternalChangeTracker changeTracker; // null nếu tắt xinoclo.storage.watch
+    private StorageWatcher watcher;
+
+    // Mã hóa dữ liệu trên đĩa (xem RecordCipher): bật bằng xinoclo.storage.encrypt, hoặc vì đã có file khóa
+    private final File keyFile;
+    private final boolean encrypted;
 
     public DataStorage(String filePath) {
-        this.file = new File(filePath);
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter());
-        builder.registerTypeAdapter(Note.class, new NoteAdapter()); // NoteAdapter sẽ được cập nhật
-        builder.registerTypeAdapter(Folder.class, new FolderAdapter());
-        builder.registerTypeAdapter(Tag.class, new TagAdapter());
-        this.gson = builder.setPrettyPrinting().create();
+        this(filePath, false);
+    }
+
+    public DataStorage(String filePath, boolean journaled) {
+        this(filePath, journaled, StorageConfig.getSnapshotFormat(), StorageConfig.isShardedStorageEnabled());
+    }
+
+    public DataStorage(String filePath, boolean journaled, StorageConfig.SnapshotFormat format) {
+        this(filePath, journaled, format, StorageConfig.isShardedStorageEnabled());
+    }
+
+    /**
+     * @param sharded Lưu mỗi folder một file (xem {@link ShardedNoteStore}). Khi đó journal không được dùng,
+     *                vì mỗi thay đổi chỉ ghi lại shard nhỏ của folder liên quan.
+     */
+    public DataStorage(String filePath, boolean journaled, StorageConfig.SnapshotFormat format, boolean sharded) {
+        File jsonFile = new File(filePath);
+        File binaryFile = new File(binaryPathFor(filePath));
+        this.keyFile = RecordCipher.keyFileFor(filePath);
+        this.encrypted = StorageConfig.isEncryptionEnabled() || keyFile.exists();
+        if (encrypted && format == StorageConfig.SnapshotFormat.BINARY) {
+            // Bản ghi được mã hóa từng cái trong layout mỗi bản ghi một dòng; snapshot nhị phân cũ vẫn được đọc khi chuyển đổi
+            System.out.println("[DataStorage] Dữ liệu được mã hóa: snapshot được ghi theo định dạng JSON thay vì nhị phân.");
+            format = StorageConfig.SnapshotFormat.JSON;
+        }
+        this.format = format;
+        this.file = format == StorageConfig.SnapshotFormat.BINARY ? binaryFile : jsonFile;
+        this.alternateFile = format == StorageConfig.SnapshotFormat.BINARY ? jsonFile : binaryFile;
+        // Journal và kho blob không phụ thuộc định dạng snapshot
+        this.journal = (journaled && !sharded) ? new NoteJournal(new File(filePath + ".journal")) : null;
+        this.drawingStore = new DrawingBlobStore(new File(file.getAbsoluteFile().getParentFile(), "blobs"));
+        this.shardStore = sharded ? new ShardedNoteStore(new File(shardDirectoryFor(filePath))) : null;
+        this.lazyBodies = StorageConfig.isLazyBodiesEnabled();
+        this.lockFile = new File(filePath + ".lock");
+    }
+
+    private static String binaryPathFor(String jsonPath) {
+        return jsonPath.endsWith(".json") ? jsonPath.substring(0, jsonPath.length() - ".json".length()) + ".bin" : jsonPath + ".bin";
+    }
+
+    private static String shardDirectoryFor(String jsonPath) {
+        return jsonPath.endsWith(".json") ? jsonPath.substring(0, jsonPath.length() - ".json".length()) + ".shards" : jsonPath + ".shards";
+    }
+
+    public DrawingBlobStore getDrawingStore() {
+        return drawingStore;
+    }
+
+    public boolean isJournaled() {
+        return journal != null;
+    }
+
+    /** Một phiên bản khác của ứng dụng đang giữ khóa thư mục dữ liệu: mọi lần ghi đều bị từ chối. */
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** Ở chế độ journal, mỗi thay đổi chỉ ghi thêm một bản ghi vào notes.json.journal. */
+    @Override
+    public boolean isIncremental() {
+        return isJournaled();
+    }
+
+    @Override
+    public boolean isSharded() {
+        return shardStore != null;
+    }
+
+    /**
+     * Dữ liệu trên đĩa không còn khớp với bộ nhớ và cần một snapshot đầy đủ: dữ liệu vừa tải chưa nằm đầy đủ
+     * trong layout shard (lần đầu bật chế độ shard, hoặc gặp shard mồ côi), vừa được cứu từ file hỏng,
+     * hoặc {@link StorageVerifier} phát hiện bản ghi hỏng. NoteManager gọi saveData() khi thấy cờ này;
+     * cờ được xóa khi snapshot đầy đủ được chụp và bật lại nếu ghi snapshot đó thất bại.
+     */
+    @Override
+    public boolean isFullSaveRequired() {
+        return fullSaveRequired;
+    }
+
+    /** Yêu cầu ghi lại toàn bộ dữ liệu từ bộ nhớ ở lần lưu kế tiếp (dữ liệu trên đĩa đã bị hỏng). */
+    void requestRepair() {
+        fullSaveRequired = true;
+    }
+
+    /** Nhật ký các lần cứu dữ liệu và kiểm tra phát hiện lỗi, cạnh file snapshot. */
+    File getIntegrityLogFile() {
+        return new File(file.getPath() + ".integrity.log");
+    }
+
+    // --- Journal: ghi từng thay đổi nhỏ thay vì ghi lại toàn bộ file ---
+    // Các bản ghi được mã hóa ngay trên luồng thay đổi dữ liệu, còn việc ghi xuống đĩa
+    // có thể được gom nhóm bởi PersistenceService.
+    @Override
+    public String encodeNoteUpsert(Note note) {
+        storeDrawing(note);
+        storeBody(note); // Nội dung được ghi trong applyChanges, trước bản ghi này
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_NOTE, note);
+    }
+
+    @Override
+    public String encodeNoteDelete(long noteId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_NOTE, noteId);
+    }
+
+    @Override
+    public String encodeFolderUpsert(Folder folder) {
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_FOLDER, folder);
+    }
+
+    @Override
+    public String encodeFolderDelete(long folderId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_FOLDER, folderId);
+    }
+
+    @Override
+    public String encodeTagUpsert(Tag tag) {
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_TAG, tag);
+    }
+
+    @Override
+    public String encodeTagDelete(long tagId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_TAG, tagId);
+    }
+
+    @Override
+    public String encodeIdReservation(IdMarks idMarks) {
+        return NoteJournal.encodeIdReservation(idMarks);
+    }
+
+    @Override
+    public IdMarks getLoadedIdMarks() {
+        return loadedIdMarks;
+    }
+
+    @Override
+    public void applyChanges(List<String> records) throws IOException {
+        ensureWritable();
+        writeStagedBodies();
+        synchronized (changeLock) {
+            journal.appendRecords(records);
+            if (changeTracker != null) {
+                changeTracker.journalAppended(records);
+            }
+        }
+        checkpointIfNeeded();
+    }
+
+    private void ensureWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("Dữ liệu đang được một phiên bản khác của ứng dụng sử dụng (" + lockFile.getName() + "), chỉ đọc.");
+        }
+    }
+
+    // --- Checkpoint nền: giữ journal (và thời gian phát lại khi khởi động) trong giới hạn ---
+
+    /**
+     * Ngưỡng kích thước journal kích hoạt checkpoint: nhỏ hơn giữa cấu hình và lượng dữ liệu phát lại được
+     * trong nửa giới hạn thời gian (nửa còn lại dành cho đoạn đang chờ checkpoint).
+     */
+    long getCheckpointThresholdBytes() {
+        long replayBudgetBytes = (long) (replayBytesPerMilli * StorageConfig.getMaxReplayMillis() / 2);
+        return Math.max(64 * 1024, Math.min(StorageConfig.getCheckpointBytes(), replayBudgetBytes));
+    }
+
+    /**
+     * Nếu journal vượt ngưỡng (hoặc còn đoạn đã niêm phong từ lần chạy trước), niêm phong file đang ghi
+     * rồi dựng snapshot mới trên luồng nền. Người ghi không phải chờ: bản ghi mới đi vào file journal mới.
+     * Mỗi lúc chỉ có một checkpoint chạy; khi nó đang chạy, journal tiếp tục lớn và sẽ được niêm phong ở lần sau.
+     */
+    private void checkpointIfNeeded() {
+        if (checkpointRunning || readOnly) {
+            return;
+        }
+        boolean due = journal.getRecordCount() >= StorageConfig.getCheckpointRecords()
+                || journal.getSizeBytes() >= getCheckpointThresholdBytes();
+        if (!due && !journal.hasSealedSegments()) {
+            return;
+        }
+        long sealedSequence;
+        long epoch;
+        synchronized (snapshotLock) {
+            try {
+                synchronized (changeLock) {
+                    sealedSequence = due ? journal.seal() : -1;
+                    if (sealedSequence >= 0 && changeTracker != null) {
+                        changeTracker.journalSealed(journal.sealedFile(sealedSequence));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[DataStorage checkpoint] Không thể niêm phong journal: " + e.getMessage());
+                return;
+            }
+            if (sealedSequence < 0) {
+                sealedSequence = journal.getLastSealedSequence();
+            }
+            epoch = snapshotEpoch;
+        }
+        if (sealedSequence < 0) {
+            return;
+        }
+        checkpointRunning = true;
+        final long upToSequence = sealedSequence;
+        Thread thread = new Thread(() -> {
+            try {
+                checkpoint(upToSequence, epoch);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[DataStorage checkpoint] Lỗi khi checkpoint, journal được giữ nguyên: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                checkpointRunning = false;
+            }
+        }, "xinoclo-checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Dựng snapshot mới = snapshot trên đĩa + các đoạn journal đã niêm phong (tới {@code upToSequence}),
+     * hoàn toàn từ dữ liệu trên đĩa nên không cần đụng tới NoteManager đang được EDT sửa.
+     * Snapshot chỉ được thay nếu trong lúc đó không có snapshot đầy đủ nào khác được ghi (epoch không đổi).
+     */
+    private void checkpoint(long upToSequence, long epoch) throws IOException {
+        long startNanos = System.nanoTime();
+        List<Note> notes = new ArrayList<>();
+        List<Folder> folders = new ArrayList<>();
+        List<Tag> tags = new ArrayList<>();
+        // Đọc nghiêm ngặt: nếu snapshot hay journal trên đĩa có bản ghi hỏng, checkpoint sẽ làm mất hẳn chúng,
+        // nên thay vào đó yêu cầu ghi lại toàn bộ từ bộ nhớ (vẫn còn nguyên vẹn)
+        IdMarks idMarks = new IdMarks();
+        if (!loadSnapshot(notes, folders, tags, idMarks, null, null)) {
+            requestRepair();
+            throw new IOException("Không đọc được snapshot hiện tại, sẽ ghi lại toàn bộ từ bộ nhớ");
+        }
+        SalvageReport journalReport = new SalvageReport();
+        int replayed = journal.replaySealed(upToSequence, notes, folders, tags, idMarks, journalReport);
+        if (!journalReport.isClean()) {
+            journalReport.publish("Checkpoint gặp bản ghi journal hỏng", getIntegrityLogFile());
+            requestRepair();
+            throw new IOException("Journal có bản ghi hỏng, sẽ ghi lại toàn bộ từ bộ nhớ");
+        }
+
+        File tempFile = new File(file.getPath() + ".checkpoint.tmp");
+        RecordFingerprints fingerprints = new RecordFingerprints();
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                StorageSnapshot snapshot = new StorageSnapshot(notes, folders, tags);
+                snapshot.idMarks = idMarks.isEmpty() ? null : idMarks; // RESERVE_IDS đã gộp vào snapshot cùng các bản ghi khác
+                writeData(snapshot, out, format, fingerprints);
+                out.getFD().sync();
+            }
+            synchronized (snapshotLock) {
+                if (epoch != snapshotEpoch) {
+                    System.out.println("[DataStorage checkpoint] Bỏ checkpoint vì đã có snapshot mới hơn.");
+                    tempFile.delete();
+                    return;
+                }
+                synchronized (changeLock) {
+                    rotateGenerations();
+                    moveAtomically(tempFile.toPath(), file.toPath());
+                    snapshotEpoch++;
+                    List<File> sealedBefore = journal.sealedFiles();
+                    journal.deleteSealed(upToSequence); // Chỉ xóa sau khi snapshot chứa chúng đã nằm trên đĩa
+                    if (changeTracker != null) {
+                        sealedBefore.removeAll(journal.sealedFiles());
+                        changeTracker.recordFileWritten(file, fingerprints);
+                        changeTracker.journalSegmentsRemoved(sealedBefore);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        System.out.println("[DataStorage checkpoint] Đã gộp " + replayed + " bản ghi journal vào " + file.getName() + " (" +
+                notes.size() + " notes) trong " + (System.nanoTime() - startNanos) / 1_000_000 + " ms.");
     }
 
-    // ... (các phương thức save, load, handleCorruptedFile, Data class, LocalDateTimeAdapter, FolderAdapter, TagAdapter giữ nguyên như phiên bản trước) ...
+    /**
+     * Ghi snapshot đầy đủ theo kiểu an toàn khi crash: ghi ra file tạm, ép xuống đĩa (fsync),
+     * xoay vòng các thế hệ cũ (notes.json.1 ... notes.json.N) rồi đổi tên nguyên tử file tạm thành notes.json.
+     * Ở chế độ journal, journal được làm rỗng sau khi snapshot ghi thành công
+     * vì mọi thay đổi trong đó đã nằm trong snapshot.
+     */
     public void save(NoteManager noteManager) {
-        try (Writer writer = new FileWriter(file)) {
-            Data data = new Data();
-            data.notes = new ArrayList<>(noteManager.getAllNotes());
-            data.folders = new ArrayList<>(noteManager.getAllFolders());
-            data.tags = new ArrayList<>(new HashSet<>(noteManager.getAllTags()));
-
-            System.out.println("Đang lưu dữ liệu vào " + file.getName() + ": " +
-                    data.notes.size() + " notes, " +
-                    data.folders.size() + " folders, " +
-                    data.tags.size() + " tags.");
-            gson.toJson(data, writer);
-            System.out.println("Lưu dữ liệu thành công.");
+        try {
+            writeSnapshot(captureSnapshot(noteManager));
         } catch (IOException e) {
             System.err.println("Lỗi nghiêm trọng: Không thể lưu dữ liệu vào file " + file.getName() + ": " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    public void load(NoteManager noteManager) {
-        if (!file.exists() || file.length() == 0) {
-            System.out.println("File " + file.getName() + " không tồn tại hoặc rỗng. Bỏ qua việc tải, NoteManager sẽ dùng dữ liệu mặc định.");
-            return;
+    /**
+     * Chụp lại notes/folders/tags hiện tại dưới dạng bản sao giá trị (xem {@link StorageSnapshot#copyNotes})
+     * để có thể serialize sau đó trên một luồng khác trong khi EDT tiếp tục sửa các đối tượng gốc.
+     */
+    @Override
+    public StorageSnapshot captureSnapshot(NoteManager noteManager) {
+        fullSaveRequired = false; // Snapshot này chứa toàn bộ dữ liệu trong bộ nhớ
+        return snapshotOf(noteManager);
+    }
+
+    private StorageSnapshot snapshotOf(NoteManager noteManager) {
+        List<Note> live = noteManager.getAllNotes();
+        for (Note note : live) {
+            storeDrawing(note); // Chỉ những bản vẽ mới/đã sửa mới được ghi ra blob
+            storeBody(note); // Tương tự với nội dung note ở chế độ tải lười (ghi trong writeSnapshot)
+        }
+        List<Note> notes = StorageSnapshot.copyNotes(live); // Sau storeBody/storeDrawing để bản sao chỉ mang tham chiếu kho
+        List<Folder> folders = StorageSnapshot.copyFolders(noteManager.getAllFolders());
+        List<Tag> tags = StorageSnapshot.copyTags(noteManager.getAllTags());
+        StorageSnapshot snapshot;
+        if (shardStore == null) {
+            snapshot = new StorageSnapshot(notes, folders, tags);
+        } else {
+            Map<Long, List<Note>> shards = new LinkedHashMap<>();
+            for (Folder folder : folders) {
+                shards.put(folder.getId(), new ArrayList<>());
+            }
+            for (Note note : notes) {
+                shards.computeIfAbsent(note.getFolderId(), id -> new ArrayList<>()).add(note);
+            }
+            snapshot = new StorageSnapshot(notes, folders, tags, shards, true);
         }
+        snapshot.idMarks = noteManager.getIdMarks();
+        return snapshot;
+    }
 
-        try (Reader reader = new FileReader(file)) {
-            JsonElement jsonElement = JsonParser.parseReader(reader);
-            if (!jsonElement.isJsonObject()) {
-                System.err.println("Lỗi: Định dạng JSON trong " + file.getName() + " không hợp lệ. Sử dụng dữ liệu mặc định.");
-                handleCorruptedFile();
-                return;
+    /**
+     * Chụp lại chỉ các shard (folder) đã thay đổi, cùng manifest nếu folders/tags thay đổi.
+     * Chỉ dùng ở chế độ shard.
+     */
+    @Override
+    public StorageSnapshot captureShardSnapshot(NoteManager noteManager, Set<Long> dirtyFolderIds, boolean includeManifest) {
+        Map<Long, List<Note>> shards = new LinkedHashMap<>();
+        for (Long folderId : dirtyFolderIds) {
+            // Folder đã bị xóa: giá trị null để xóa luôn file shard
+            shards.put(folderId, noteManager.getFolderById(folderId) != null ? new ArrayList<>() : null);
+        }
+        for (Note note : noteManager.getModifiableNotesList()) {
+            List<Note> shard = shards.get(note.getFolderId());
+            if (shard != null) {
+                storeDrawing(note);
+                storeBody(note);
+                shard.add(note.snapshotCopy());
             }
+        }
+        StorageSnapshot snapshot = new StorageSnapshot(null,
+                includeManifest ? StorageSnapshot.copyFolders(noteManager.getAllFolders()) : null,
+                includeManifest ? StorageSnapshot.copyTags(noteManager.getAllTags()) : null,
+                shards, false);
+        snapshot.idMarks = includeManifest ? noteManager.getIdMarks() : null;
+        return snapshot;
+    }
 
-            Data data = gson.fromJson(jsonElement, Data.class);
+    @Override
+    public void writeSnapshot(StorageSnapshot snapshot) throws IOException {
+        ensureWritable();
+        writeStagedBodies();
+        try {
+            writeSnapshotFiles(snapshot);
+        } catch (IOException e) {
+            if (snapshot.complete) {
+                requestRepair(); // Có thể snapshot này đang thay cho dữ liệu hỏng trên đĩa
+            }
+            throw e;
+        }
+    }
 
-            if (data != null) {
-                noteManager.getModifiableNotesList().clear();
-                noteManager.getModifiableFoldersList().clear();
-                noteManager.getModifiableTagsList().clear();
+    private void writeSnapshotFiles(StorageSnapshot snapshot) throws IOException {
+        if (shardStore != null) {
+            synchronized (changeLock) {
+                Map<File, RecordFingerprints> written = new HashMap<>();
+                shardStore.write(snapshot.shards, snapshot.folders, snapshot.tags, snapshot.idMarks, snapshot.complete, written);
+                if (changeTracker != null) {
+                    written.forEach(changeTracker::recordFileWritten);
+                }
+            }
+            if (snapshot.complete) {
+                removeUnusedBodies(snapshot);
+            }
+            return;
+        }
+        System.out.println("Đang lưu dữ liệu vào " + file.getName() + ": " +
+                snapshot.notes.size() + " notes, " +
+                snapshot.folders.size() + " folders, " +
+                snapshot.tags.size() + " tags.");
 
-                if (data.folders != null) {
-                    noteManager.getModifiableFoldersList().addAll(data.folders);
+        File tempFile = new File(file.getPath() + ".tmp");
+        RecordFingerprints fingerprints = new RecordFingerprints();
+        synchronized (snapshotLock) {
+            synchronized (changeLock) {
+                try {
+                    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                        writeData(snapshot, out, format, fingerprints);
+                        out.getFD().sync(); // Đảm bảo dữ liệu đã nằm trên đĩa trước khi đổi tên
+                    }
+                    rotateGenerations();
+                    moveAtomically(tempFile.toPath(), file.toPath());
+                    System.out.println("Lưu dữ liệu thành công.");
+                } catch (IOException e) {
+                    tempFile.delete(); // notes.json hiện tại vẫn còn nguyên vẹn
+                    throw e;
                 }
-                if (data.tags != null) {
-                    noteManager.getModifiableTagsList().addAll(data.tags);
+                snapshotEpoch++; // Checkpoint nền đang chạy (nếu có) dựa trên snapshot cũ, sẽ bị bỏ
+                if (journal != null) {
+                    journal.reset();
                 }
-                if (data.notes != null) {
-                    noteManager.getModifiableNotesList().addAll(data.notes);
+                if (changeTracker != null) {
+                    changeTracker.recordFileWritten(file, fingerprints);
+                    changeTracker.journalReset();
                 }
-
-                System.out.println("Đã tải dữ liệu từ " + file.getName() + ": " +
-                        (data.notes != null ? data.notes.size() : 0) + " notes, " +
-                        (data.folders != null ? data.folders.size() : 0) + " folders, " +
-                        (data.tags != null ? data.tags.size() : 0) + " tags.");
-            } else {
-                System.err.println("Lỗi: Không thể deserialize dữ liệu từ " + file.getName() + ". File có thể bị hỏng. Sử dụng dữ liệu mặc định.");
-                handleCorruptedFile();
             }
+        }
+        removeUnusedBodies(snapshot);
+    }
 
+    /** Dọn nội dung của các note đã bị xóa, sau khi một snapshot đầy đủ đã nằm trên đĩa. */
+    private void removeUnusedBodies(StorageSnapshot snapshot) {
+        if (!lazyBodies) {
+            return;
+        }
+        Set<Long> liveNoteIds = new HashSet<>();
+        for (Note note : snapshot.notes) {
+            liveNoteIds.add(note.getId());
+        }
+        try {
+            // Trừ hao độ phân giải thời gian sửa file của hệ thống file
+            bodyStore().retainOnly(liveNoteIds, snapshot.capturedAtMillis - 2000);
         } catch (IOException e) {
-            System.err.println("Lỗi I/O khi tải dữ liệu từ " + file.getName() + ": " + e.getMessage());
-            e.printStackTrace();
-            handleCorruptedFile();
-        } catch (JsonSyntaxException e) {
-            System.err.println("Lỗi cú pháp JSON khi tải dữ liệu từ " + file.getName() + ": " + e.getMessage());
-            e.printStackTrace();
-            handleCorruptedFile();
-        } catch (Exception e) {
-            System.err.println("Lỗi không xác định khi tải dữ liệu từ " + file.getName() + ": " + e.getMessage());
-            e.printStackTrace();
-            handleCorruptedFile();
+            System.err.println("[DataStorage] Không thể dọn nội dung note cũ: " + e.getMessage());
         }
     }
 
-    private void handleCorruptedFile() {
-        System.out.println("Đang cố gắng tạo file dữ liệu mới do file cũ bị lỗi hoặc không tồn tại.");
+    @Override
+    public void close() {
+        if (verifier != null) {
+            verifier.stop();
+        }
+        stopWatching();
+        if (journal != null) {
+            journal.close();
+        }
+        releaseLock();
     }
 
-    private static class Data {
-        List<Note> notes = new ArrayList<>();
-        List<Folder> folders = new ArrayList<>();
-        List<Tag> tags = new ArrayList<>();
+    /**
+     * Xuất toàn bộ dữ liệu ra một file JSON dễ đọc (pretty printing), đọc lại được như notes.json.
+     * Snapshot thường ngày ghi mỗi bản ghi một dòng kèm checksum (xem {@link JsonRecordLines}).
+     */
+    public void exportTo(File target, NoteManager noteManager) throws IOException {
+        StorageSnapshot snapshot = snapshotOf(noteManager);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target), StandardCharsets.UTF_8), 64 * 1024)) {
+            writePrettyData(snapshot, writer);
+        }
+        System.out.println("[DataStorage] Đã xuất " + snapshot.notes.size() + " notes ra " + target.getName() + ".");
+    }
+
+    /** @param fingerprints Nhận checksum của từng bản ghi đã ghi (null nếu không cần). */
+    private static void writeData(StorageSnapshot data, OutputStream out, StorageConfig.SnapshotFormat format, RecordFingerprints fingerprints) throws IOException {
+        if (format == StorageConfig.SnapshotFormat.BINARY) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+            BinarySnapshotFormat.write(buffered, data.notes, data.folders, data.tags, data.idMarks, fingerprints);
+            buffered.flush();
+        } else {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+            writeRecordLines(data, buffered, fingerprints != null ? fingerprints : new RecordFingerprints());
+            buffered.flush();
+        }
+    }
+
+    /**
+     * Snapshot JSON: mỗi folder/tag/note một dòng kèm CRC32C. Folders và tags đứng trước notes,
+     * nên nếu phần cuối file bị hỏng thì chỉ mất một số note, cấu trúc folder vẫn còn.
+     */
+    private static void writeRecordLines(StorageSnapshot data, OutputStream out, RecordFingerprints fingerprints) throws IOException {
+        String headerFields = data.idMarks != null ? NoteJsonCodec.idMarksHeaderField(data.idMarks) : "";
+        JsonRecordLines.Writer writer = new JsonRecordLines.Writer(out, headerFields, "folders");
+        for (Folder folder : data.folders) {
+            fingerprints.put(RecordFingerprints.FOLDERS, folder.getId(), writer.record(json -> NoteJsonCodec.writeFolder(json, folder)));
+        }
+        writer.section("tags");
+        for (Tag tag : data.tags) {
+            fingerprints.put(RecordFingerprints.TAGS, tag.getId(), writer.record(json -> NoteJsonCodec.writeTag(json, tag)));
+        }
+        writer.section("notes");
+        for (Note note : data.notes) {
+            fingerprints.put(RecordFingerprints.NOTES, note.getId(), writer.record(json -> NoteJsonCodec.writeNote(json, note)));
+        }
+        writer.finish();
     }
 
-    private static class LocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
-        private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    /**
+     * Chuyển một snapshot sang định dạng khác (định dạng nguồn nhận diện theo nội dung,
+     * định dạng đích theo đuôi file: .bin là nhị phân, còn lại là JSON).
+     */
+    public static void convertSnapshot(File source, File target) throws IOException {
+        StorageSnapshot data = new StorageSnapshot(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        IdMarks idMarks = readSnapshot(source, data.notes, data.folders, data.tags, null);
+        data.idMarks = idMarks.isEmpty() ? null : idMarks;
+        StorageConfig.SnapshotFormat targetFormat = writeStandalone(data, target);
+        System.out.println("[DataStorage convertSnapshot] Đã chuyển " + data.notes.size() + " notes từ " +
+                source.getName() + " sang " + target.getName() + " (" + targetFormat + ").");
+    }
 
-        @Override
-        public JsonElement serialize(LocalDateTime src, Type typeOfSrc, JsonSerializationContext context) {
-            return src == null ? null : new JsonPrimitive(src.format(FORMATTER));
+    /**
+     * Ghi một snapshot đầy đủ ra file độc lập (định dạng theo đuôi file: .bin là nhị phân, còn lại là JSON),
+     * dùng khi chuyển định dạng hoặc khôi phục từ bản sao lưu. Nội dung và bản vẽ phải nằm inline trong các note.
+     */
+    static StorageConfig.SnapshotFormat writeStandalone(StorageSnapshot data, File target) throws IOException {
+        StorageConfig.SnapshotFormat targetFormat = target.getName().endsWith(".bin")
+                ? StorageConfig.SnapshotFormat.BINARY : StorageConfig.SnapshotFormat.JSON;
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            writeData(data, out, targetFormat, null);
+            out.getFD().sync();
         }
+        return targetFormat;
+    }
 
-        @Override
-        public LocalDateTime deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            return json == null ? null : LocalDateTime.parse(json.getAsString(), FORMATTER);
+    /** Ghi từng note/folder/tag thẳng ra JsonWriter, không dựng cây JsonObject cho toàn bộ dữ liệu. */
+    private static void writePrettyData(StorageSnapshot data, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setSerializeNulls(false);
+        writer.setIndent("  ");
+        writer.beginObject();
+        if (data.idMarks != null) {
+            NoteJsonCodec.writeIdMarks(writer.name("ids"), data.idMarks);
+        }
+        writer.name("notes").beginArray();
+        for (Note note : data.notes) {
+            NoteJsonCodec.writeNote(writer, note);
+        }
+        writer.endArray();
+        writer.name("folders").beginArray();
+        for (Folder folder : data.folders) {
+            NoteJsonCodec.writeFolder(writer, folder);
         }
+        writer.endArray();
+        writer.name("tags").beginArray();
+        for (Tag tag : data.tags) {
+            NoteJsonCodec.writeTag(writer, tag);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
     }
 
-    private static class NoteAdapter implements JsonSerializer<Note>, JsonDeserializer<Note> {
-        @Override
-        public JsonElement serialize(Note src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject json = new JsonObject();
-            json.addProperty("id", src.getId());
-            json.addProperty("title", src.getTitle());
-            // Chỉ serialize content nếu là TEXT note và content không null
-            if (src.getNoteType() == Note.NoteType.TEXT && src.getContent() != null) {
-                json.addProperty("content", src.getContent());
-            } else if (src.getNoteType() == Note.NoteType.TEXT) { // TEXT note nhưng content là null
-                json.add("content", JsonNull.INSTANCE);
+    /** notes.json -> notes.json.1 -> notes.json.2 ... ; thế hệ cũ nhất (N) bị ghi đè. */
+    private void rotateGenerations() throws IOException {
+        int generations = StorageConfig.getSnapshotGenerations();
+        if (!file.exists()) {
+            return;
+        }
+        if (generations <= 0) {
+            return; // Không giữ thế hệ cũ, file tạm sẽ ghi đè trực tiếp
+        }
+        for (int i = generations - 1; i >= 1; i--) {
+            Path older = generationFile(i).toPath();
+            if (Files.exists(older)) {
+                Files.move(older, generationFile(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
-            // Không serialize content cho DRAWING note
+        }
+        // Nếu crash ngay sau bước này, notes.json tạm thời vắng mặt: load() sẽ dùng notes.json.1
+        // và journal (chưa bị làm rỗng) vẫn phát lại đầy đủ các thay đổi.
+        Files.move(file.toPath(), generationFile(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
 
-            json.add("createdAt", context.serialize(src.getCreatedAt()));
-            json.add("updatedAt", context.serialize(src.getUpdatedAt()));
-            json.addProperty("isFavorite", src.isFavorite());
-            json.addProperty("isMission", src.isMission());
-            json.addProperty("isMissionCompleted", src.isMissionCompleted());
-            json.addProperty("missionContent", src.getMissionContent());
-            json.addProperty("folderId", src.getFolderId());
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-            if (src.getTags() != null) {
-                json.add("tags", context.serialize(src.getTags()));
-            }
+    private File generationFile(int generation) {
+        return generationFile(file, generation);
+    }
+
+    private static File generationFile(File base, int generation) {
+        return new File(base.getPath() + "." + generation);
+    }
 
-            if (src.getAlarm() != null) {
-                json.add("alarm", context.serialize(src.getAlarm()));
-            } else {
-                json.add("alarm", JsonNull.INSTANCE);
+    @Override
+    public void load(NoteManager noteManager) {
+        unlockIfEncrypted();
+        acquireLock();
+        List<Note> notes = noteManager.getModifiableNotesList();
+        List<Folder> folders = noteManager.getModifiableFoldersList();
+        List<Tag> tags = noteManager.getModifiableTagsList();
+        SalvageReport report = new SalvageReport();
+        int migratedBefore = SchemaMigrations.migratedOnCurrentThread();
+        int plaintextBefore = RecordCipher.plaintextReadOnCurrentThread();
+        IdMarks idMarks = new IdMarks();
+        synchronized (changeLock) {
+            for (int attempt = 1; ; attempt++) {
+                if (loadTracked(noteManager, idMarks, report) || attempt == 3) {
+                    break;
+                }
+                // Phiên bản đang giữ khóa vừa thay snapshot hoặc checkpoint giữa lúc đọc snapshot và journal
+                System.out.println("[DataStorage] Dữ liệu vừa được phiên bản khác ghi lại trong lúc tải, tải lại.");
+                notes.clear();
+                folders.clear();
+                tags.clear();
+                idMarks = new IdMarks();
+                report = new SalvageReport();
+            }
+        }
+        loadedIdMarks = idMarks;
+        if (readOnly) {
+            // Không ghi gì: phiên bản đang giữ khóa tự cứu dữ liệu, nâng cấp lược đồ và checkpoint
+            if (!report.isClean()) {
+                System.err.println("[DataStorage] Cảnh báo: Dữ liệu có bản ghi hỏng, phiên bản đang giữ khóa sẽ ghi lại.");
             }
+        } else if (!report.isClean()) {
+            // Bộ nhớ giờ chứa mọi thứ cứu được; ghi lại toàn bộ để thay các file hỏng (bản sao .corrupt vẫn được giữ)
+            report.publish("Đã cứu dữ liệu từ file hỏng", getIntegrityLogFile());
+            fullSaveRequired = true;
+        } else if (SchemaMigrations.migratedOnCurrentThread() > migratedBefore) {
+            // Ghi lại một lần theo lược đồ mới, các lần tải sau chỉ còn đường giải mã nhanh
+            System.out.println("[DataStorage] Đã nâng cấp " + (SchemaMigrations.migratedOnCurrentThread() - migratedBefore) +
+                    " bản ghi lên lược đồ phiên bản " + SchemaMigrations.CURRENT + ", dữ liệu sẽ được ghi lại toàn bộ.");
+            fullSaveRequired = true;
+        } else if (RecordCipher.plaintextReadOnCurrentThread() > plaintextBefore) {
+            // Dữ liệu ghi trước khi bật mã hóa: ghi lại toàn bộ một lần dưới dạng mã hóa
+            System.out.println("[DataStorage] Đã đọc " + (RecordCipher.plaintextReadOnCurrentThread() - plaintextBefore) +
+                    " bản ghi chưa mã hóa, dữ liệu sẽ được ghi lại toàn bộ dưới dạng mã hóa.");
+            fullSaveRequired = true;
+            encryptStoredFiles(notes);
+        } else if (journal != null) {
+            checkpointIfNeeded(); // Gộp phần journal còn lại từ lần chạy trước (nếu vượt ngưỡng hoặc còn đoạn niêm phong)
+        }
+        for (Note note : noteManager.getModifiableNotesList()) {
+            attachStores(note);
+        }
+        if (!readOnly) {
+            startVerifier();
+        }
+    }
 
-            // Serialize các trường mới
-            json.addProperty("noteType", src.getNoteType().name()); // Lưu tên của enum
-            if (src.getNoteType() == Note.NoteType.DRAWING && src.getDrawingData() != null) {
-                json.addProperty("drawingData", src.getDrawingData());
-            } else if (src.getNoteType() == Note.NoteType.DRAWING) { // DRAWING note nhưng drawingData là null
-                json.add("drawingData", JsonNull.INSTANCE);
+    /**
+     * Đọc snapshot (hoặc shard) rồi phát lại journal, ghi nhận dấu vân tay cho {@link ExternalChangeTracker}.
+     * @return false nếu file dữ liệu đã bị thay trong lúc đọc và cần đọc lại.
+     */
+    private boolean loadTracked(NoteManager noteManager, IdMarks idMarks, SalvageReport report) {
+        List<Note> notes = noteManager.getModifiableNotesList();
+        List<Folder> folders = noteManager.getModifiableFoldersList();
+        List<Tag> tags = noteManager.getModifiableTagsList();
+        // Trạng thái file được ghi nhận trước khi đọc: thay đổi chen vào giữa sẽ được lần quét đầu tiên đọc lại
+        Map<File, RecordFingerprints> fingerprints = startTracking();
+        if (shardStore != null) {
+            loadShards(noteManager, idMarks, report, fingerprints);
+        } else {
+            RecordFingerprints snapshotFingerprints = fingerprints != null ? new RecordFingerprints() : null;
+            loadSnapshot(notes, folders, tags, idMarks, report, snapshotFingerprints);
+            if (fingerprints != null && file.exists()) {
+                fingerprints.put(file, snapshotFingerprints);
             }
-            // Không serialize drawingData cho TEXT note
+        }
+        if (journal != null) {
+            long journalBytes = journal.getTotalSizeBytes();
+            long startNanos = System.nanoTime();
+            journal.replay(notes, folders, tags, idMarks, report);
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            if (journalBytes >= 1024 * 1024) {
+                // Đủ dữ liệu để đo tốc độ phát lại thực tế của máy này
+                replayBytesPerMilli = (double) journalBytes / Math.max(1, elapsedMillis);
+            }
+            if (elapsedMillis > StorageConfig.getMaxReplayMillis()) {
+                System.err.println("[DataStorage] Cảnh báo: Phát lại journal mất " + elapsedMillis + " ms, vượt giới hạn " +
+                        StorageConfig.getMaxReplayMillis() + " ms; checkpoint sẽ chạy sớm hơn.");
+            }
+        }
+        if (changeTracker != null) {
+            changeTracker.endLoad(fingerprints);
+        }
+        return changeTracker == null || !changeTracker.changedSinceBeginLoad();
+    }
 
-            return json;
+    /** Gắn kho bản vẽ và kho nội dung cho note vừa đọc từ đĩa. */
+    private void attachStores(Note note) {
+        if (note.getDrawingHash() != null) {
+            note.setDrawingBlob(note.getDrawingHash(), drawingStore);
         }
+        if (note.isContentStored()) {
+            // Luôn gắn kho để đọc được nội dung đã lưu kể cả khi đã tắt chế độ tải lười
+            note.setStoredContent(bodyStore());
+        }
+    }
 
-        @Override
-        public Note deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            JsonObject obj = json.getAsJsonObject();
+    // --- Mã hóa dữ liệu trên đĩa ---
 
-            long id = obj.has("id") ? obj.get("id").getAsLong() : 0;
-            String title = obj.has("title") ? obj.get("title").getAsString() : "Untitled";
+    /**
+     * Dữ liệu được mã hóa mà tiến trình chưa có khóa: mở khóa bằng mật khẩu trong cấu hình, nếu không được thì dừng tải
+     * (ném {@link RecordCipher.LockedException}) thay vì coi các bản ghi mã hóa là hỏng và bắt đầu từ dữ liệu trống.
+     * Ứng dụng hỏi mật khẩu trước khi tạo NoteManager nên thường đã có khóa ở đây.
+     */
+    private void unlockIfEncrypted() {
+        if (!encrypted) {
+            return;
+        }
+        RecordCipher cipher;
+        try {
+            cipher = RecordCipher.unlockFromConfig(keyFile);
+        } catch (IOException e) {
+            throw new RecordCipher.LockedException("Không mở được khóa " + keyFile.getName() + ": " + e.getMessage());
+        }
+        if (cipher == null) {
+            throw new RecordCipher.LockedException("Dữ liệu trong " + file.getAbsoluteFile().getParent() + " được mã hóa (" +
+                    keyFile.getName() + "), cần mật khẩu: nhập khi khởi động hoặc đặt biến môi trường XINOCLO_PASSPHRASE.");
+        }
+    }
 
-            LocalDateTime createdAt = obj.has("createdAt") && !obj.get("createdAt").isJsonNull() ?
-                    context.deserialize(obj.get("createdAt"), LocalDateTime.class) : LocalDateTime.now();
-            LocalDateTime updatedAt = obj.has("updatedAt") && !obj.get("updatedAt").isJsonNull() ?
-                    context.deserialize(obj.get("updatedAt"), LocalDateTime.class) : createdAt;
+    /**
+     * Lần tải đầu tiên sau khi bật mã hóa: mã hóa các bản vẽ và nội dung note đã lưu từ trước (snapshot, journal
+     * và shard được ghi lại bởi lần lưu đầy đủ kế tiếp). Các thế hệ snapshot cũ và bản sao lưu cũ giữ nguyên;
+     * bản rõ cũ trong segment chỉ mất đi khi segment đó được dọn.
+     */
+    private void encryptStoredFiles(List<Note> notes) {
+        RecordCipher cipher = RecordCipher.current();
+        long startNanos = System.nanoTime();
+        int blobs = 0;
+        int bodies = 0;
+        try {
+            blobs = drawingStore.encryptExisting(cipher);
+            for (Note note : notes) {
+                if (note.isContentStored()) {
+                    bodyStore(); // Tạo encryptedBodyStore
+                    if (encryptedBodyStore.isPlaintext(note.getId())) {
+                        encryptedBodyStore.write(note.getId(), encryptedBodyStore.read(note.getId()));
+                        bodies++;
+                    }
+                }
+            }
+            if (bodies > 0) {
+                bodyStore().sync();
+            }
+        } catch (IOException e) {
+            System.err.println("[DataStorage] Cảnh báo: Không thể mã hóa hết bản vẽ/nội dung note đã lưu: " + e.getMessage());
+        }
+        System.out.println("[DataStorage] Đã mã hóa " + blobs + " bản vẽ và " + bodies + " nội dung note đã lưu trong " +
+                (System.nanoTime() - startNanos) / 1_000_000 + " ms.");
+    }
 
-            boolean isFavorite = obj.has("isFavorite") && !obj.get("isFavorite").isJsonNull() && obj.get("isFavorite").getAsBoolean();
-            boolean isMission = obj.has("isMission") && !obj.get("isMission").isJsonNull() && obj.get("isMission").getAsBoolean();
-            boolean isMissionCompleted = obj.has("isMissionCompleted") && !obj.get("isMissionCompleted").isJsonNull() && obj.get("isMissionCompleted").getAsBoolean();
-            String missionContent = obj.has("missionContent") && !obj.get("missionContent").isJsonNull() ?
-                    obj.get("missionContent").getAsString() : "";
-            long folderId = obj.has("folderId") && !obj.get("folderId").isJsonNull() ?
-                    obj.get("folderId").getAsLong() : 0;
+    // --- Nhiều phiên bản ứng dụng trên cùng dữ liệu ---
 
-            List<Tag> tags = new ArrayList<>();
-            if (obj.has("tags") && !obj.get("tags").isJsonNull()) {
-                Type listType = new TypeToken<ArrayList<Tag>>() {}.getType();
-                tags = context.deserialize(obj.get("tags"), listType);
+    /**
+     * Giữ khóa độc quyền notes.json.lock trong suốt phiên làm việc. Nếu một tiến trình khác (hoặc một DataStorage
+     * khác trong cùng JVM) đang giữ khóa, DataStorage này chỉ đọc: mọi lần ghi bị từ chối, còn thay đổi của phiên bản
+     * kia được đọc dần qua {@link #pollExternalChanges()}. Hệ thống file không hỗ trợ khóa thì vẫn cho ghi như trước.
+     */
+    private synchronized void acquireLock() {
+        if (lockChannel != null || readOnly) {
+            return;
+        }
+        String key = lockFile.getAbsolutePath();
+        if (!LOCKED_PATHS.add(key)) {
+            becomeReadOnly("một DataStorage khác trong tiến trình này");
+            return;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                String owner = readLockOwner(channel);
+                channel.close();
+                LOCKED_PATHS.remove(key);
+                becomeReadOnly(owner);
+                return;
             }
+            lockChannel = channel;
+            // Thông tin để người dùng biết phiên bản nào đang giữ dữ liệu
+            byte[] owner = ("pid " + ProcessHandle.current().pid() + ", " + System.getProperty("user.name") + ", từ " +
+                    LocalDateTime.now().withNano(0) + "\n").getBytes(StandardCharsets.UTF_8);
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(owner), 0);
+        } catch (OverlappingFileLockException e) {
+            closeQuietly(channel);
+            LOCKED_PATHS.remove(key);
+            becomeReadOnly("một DataStorage khác trong tiến trình này");
+        } catch (IOException e) {
+            if (lockChannel == null) {
+                closeQuietly(channel);
+                LOCKED_PATHS.remove(key);
+            }
+            System.err.println("[DataStorage acquireLock] Cảnh báo: Không thể khóa " + lockFile.getName() + ", không bảo vệ được dữ liệu " +
+                    "khi mở nhiều phiên bản ứng dụng: " + e.getMessage());
+        }
+    }
 
-            Alarm alarm = null;
-            if (obj.has("alarm") && !obj.get("alarm").isJsonNull()) {
-                alarm = context.deserialize(obj.get("alarm"), Alarm.class);
+    private static String readLockOwner(FileChannel channel) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            channel.read(buffer, 0);
+            String owner = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim();
+            return owner.isEmpty() ? "tiến trình khác" : owner;
+        } catch (IOException e) {
+            return "tiến trình khác"; // Windows không cho đọc vùng đang bị khóa
+        }
+    }
+
+    private void becomeReadOnly(String owner) {
+        readOnly = true;
+        if (journal != null) {
+            journal.setReadOnly();
+        }
+        System.err.println("[DataStorage acquireLock] Cảnh báo: Dữ liệu đang được dùng bởi " + owner + ". Mở ở chế độ chỉ đọc.");
+    }
+
+    private synchronized void releaseLock() {
+        if (lockChannel == null) {
+            return;
+        }
+        closeQuietly(lockChannel); // Đóng kênh cũng nhả khóa
+        lockChannel = null;
+        LOCKED_PATHS.remove(lockFile.getAbsolutePath());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("[DataStorage] Không thể đóng file: " + e.getMessage());
+        }
+    }
+
+    /** Tạo bộ theo dõi thay đổi (nếu bật) và ghi nhận trạng thái file trước khi tải; trả về map nhận dấu vân tay khi tải. */
+    private Map<File, RecordFingerprints> startTracking() {
+        changeTracker = null;
+        if (!StorageConfig.isWatchEnabled()) {
+            return null;
+        }
+        ExternalChangeTracker tracker = new ExternalChangeTracker(this);
+        try {
+            tracker.beginLoad();
+        } catch (IOException e) {
+            System.err.println("[DataStorage] Cảnh báo: Không thể theo dõi thay đổi từ bên ngoài: " + e.getMessage());
+            return null;
+        }
+        changeTracker = tracker;
+        return new HashMap<>();
+    }
+
+    /**
+     * Đọc các bản ghi do tiến trình khác thay đổi kể từ lần tải hoặc lần gọi trước (xem {@link ExternalChangeTracker}).
+     * Note trong kết quả đã được gắn kho bản vẽ và kho nội dung như khi tải.
+     * @return null nếu không có gì đổi hoặc không theo dõi thay đổi.
+     * @throws IOException Nếu một file đang bị ghi dở; trạng thái cũ được giữ để lần sau đọc lại.
+     */
+    @Override
+    public ExternalChanges pollExternalChanges() throws IOException {
+        ExternalChanges changes;
+        synchronized (changeLock) {
+            if (changeTracker == null) {
+                return null;
+            }
+            changes = changeTracker.scan();
+        }
+        if (changes == null) {
+            return null;
+        }
+        Set<Long> storedBodies = new HashSet<>();
+        for (Note note : changes.notes) {
+            if (note.isContentStored()) {
+                storedBodies.add(note.getId());
             }
-            Long alarmId = (alarm != null) ? alarm.getId() : null;
+            attachStores(note);
+        }
+        if (!storedBodies.isEmpty()) {
+            bodyStore().refresh(storedBodies); // Nội dung mới đã được tiến trình kia ghi trước bản ghi tham chiếu tới nó
+        }
+        return changes;
+    }
 
+    /**
+     * Theo dõi thư mục dữ liệu trên luồng nền và gọi {@code listener} (trên luồng đó) với mỗi nhóm thay đổi
+     * từ bên ngoài. Một lần cho mỗi DataStorage; false nếu không theo dõi được (tắt bằng xinoclo.storage.watch).
+     */
+    @Override
+    public synchronized boolean startWatching(Consumer<ExternalChanges> listener) {
+        if (watcher != null) {
+            return true;
+        }
+        if (changeTracker == null) {
+            return false;
+        }
+        watcher = new StorageWatcher(this, listener, StorageConfig.getWatchPollMillis());
+        watcher.start();
+        return true;
+    }
 
-            // Deserialize các trường mới
-            Note.NoteType noteType = Note.NoteType.TEXT; // Mặc định
-            if (obj.has("noteType") && !obj.get("noteType").isJsonNull()) {
-                try {
-                    noteType = Note.NoteType.valueOf(obj.get("noteType").getAsString());
-                } catch (IllegalArgumentException e) {
-                    System.err.println("Cảnh báo: Giá trị noteType không hợp lệ trong JSON: " + obj.get("noteType").getAsString() + ". Sử dụng TEXT mặc định.");
-                    noteType = Note.NoteType.TEXT;
+    private synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+    }
+
+    /** Các thư mục chứa file dữ liệu, để {@link StorageWatcher} đăng ký nhận sự kiện. */
+    List<File> watchedDirectories() {
+        List<File> directories = new ArrayList<>();
+        directories.add(file.getAbsoluteFile().getParentFile());
+        if (shardStore != null) {
+            directories.add(shardStore.getDirectory().getAbsoluteFile());
+        }
+        return directories;
+    }
+
+    /** File có tên này (trong một thư mục của {@link #watchedDirectories()}) là dữ liệu mà tiến trình khác có thể ghi. */
+    boolean isWatchedFile(String name) {
+        if (name.endsWith(".tmp") || name.endsWith(".lock") || name.endsWith(".key") || name.endsWith(".integrity.log") || name.endsWith(".corrupt")) {
+            return false;
+        }
+        return shardStore != null || name.startsWith(file.getName()) || journal != null && name.startsWith(journal.getFile().getName());
+    }
+
+    /** File dữ liệu chứa bản ghi: snapshot đang dùng, hoặc manifest và các shard. */
+    List<File> recordFiles() {
+        return shardStore != null ? shardStore.listFiles() : List.of(file);
+    }
+
+    /** File journal đang ghi, null nếu không dùng journal. */
+    File activeJournalFile() {
+        return journal != null ? journal.getFile() : null;
+    }
+
+    /** Các đoạn journal đã niêm phong, theo thứ tự phát lại. */
+    List<File> sealedJournalFiles() {
+        return journal != null ? journal.sealedFiles() : List.of();
+    }
+
+    /** Đọc nghiêm ngặt một file của {@link #recordFiles()}, chỉ giải mã các bản ghi được {@code filter} chấp nhận. */
+    IdMarks readRecordFile(File source, JsonRecordLines.Filter filter, List<Note> notes, List<Folder> folders, List<Tag> tags) throws IOException {
+        if (shardStore != null) {
+            return shardStore.readFile(source, filter, notes, folders, tags);
+        }
+        return readSnapshot(source, notes, folders, tags, filter, null);
+    }
+
+    /**
+     * Đọc lại dữ liệu đã lưu để kiểm tra checksum, ghi mọi bản ghi hỏng vào {@code report} (luồng của {@link StorageVerifier}).
+     * Chỉ kiểm tra snapshot mới nhất: các thế hệ cũ chỉ được dùng khi nó hỏng. Snapshot được đọc trong khóa
+     * snapshotLock để không trùng lúc nó đang bị thay (trên Windows, file đang mở không đổi tên đè lên được).
+     */
+    void verifyStoredData(SalvageReport report) {
+        if (shardStore != null) {
+            shardStore.verify(report);
+        } else {
+            synchronized (snapshotLock) {
+                if (file.exists() && file.length() > 0) {
+                    try {
+                        readSnapshot(file, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), report);
+                    } catch (IOException | RuntimeException e) {
+                        report.recordTruncated(file, null, "đầu file", e.getMessage());
+                    }
                 }
             }
-
-            String content = null;
-            if (noteType == Note.NoteType.TEXT) {
-                content = obj.has("content") && !obj.get("content").isJsonNull() ? obj.get("content").getAsString() : "";
+            if (journal != null) {
+                journal.verify(report);
             }
+        }
+        drawingStore.verify(report);
+    }
 
-            String drawingData = null;
-            if (noteType == Note.NoteType.DRAWING) {
-                drawingData = obj.has("drawingData") && !obj.get("drawingData").isJsonNull() ?
-                        obj.get("drawingData").getAsString() : null; // Cho phép drawingData là null
+    /** Khởi động bộ kiểm tra nền (một lần cho mỗi DataStorage), nếu {@code xinoclo.storage.verifyIntervalMs} > 0. */
+    private synchronized void startVerifier() {
+        long intervalMillis = StorageConfig.getVerifyIntervalMillis();
+        if (verifier == null && intervalMillis > 0) {
+            verifier = new StorageVerifier(this, intervalMillis);
+            verifier.start();
+        }
+    }
+
+    /**
+     * Kho nội dung note theo cấu hình, đặt sau bộ đệm LRU. Ở kiểu SEGMENTS, nội dung cũ
+     * trong thư mục bodies (kiểu FILES) được chép sang một lần rồi thư mục được đổi tên thành bodies.migrated.
+     */
+    private synchronized CachedNoteBodyStore bodyStore() {
+        if (bodyStore != null) {
+            return bodyStore;
+        }
+        File baseDirectory = file.getAbsoluteFile().getParentFile();
+        FileNoteBodyStore fileStore = new FileNoteBodyStore(new File(baseDirectory, "bodies"));
+        NoteBodyStore store = fileStore;
+        if (StorageConfig.getBodyStoreType() == StorageConfig.BodyStoreType.SEGMENTS) {
+            try {
+                SegmentNoteBodyStore segmentStore = new SegmentNoteBodyStore(new File(baseDirectory, "segments"), readOnly);
+                if (!readOnly && fileStore.getDirectory().isDirectory()) {
+                    int copied = fileStore.copyTo(segmentStore);
+                    File migrated = new File(baseDirectory, "bodies.migrated");
+                    if (fileStore.getDirectory().renameTo(migrated)) {
+                        System.out.println("[DataStorage] Đã chuyển " + copied + " nội dung note sang segment, thư mục cũ: " + migrated.getName() + ".");
+                    }
+                }
+                store = segmentStore;
+            } catch (IOException e) {
+                System.err.println("[DataStorage] Không thể mở kho segment, dùng kho theo file: " + e.getMessage());
             }
+        }
+        RecordCipher cipher = RecordCipher.current();
+        if (cipher != null) {
+            encryptedBodyStore = new EncryptedNoteBodyStore(store, cipher); // Dưới bộ đệm: bộ đệm giữ nội dung đã giải mã
+            store = encryptedBodyStore;
+        }
+        bodyStore = new CachedNoteBodyStore(store, StorageConfig.getBodyCacheChars());
+        return bodyStore;
+    }
+
+    /**
+     * Ghi và ép xuống đĩa các nội dung do {@link #storeBody} đưa vào hàng chờ, trên luồng ghi (PersistenceService),
+     * trước snapshot/bản ghi journal tham chiếu tới chúng. Lỗi được ném ra để cả nhóm ghi được thử lại.
+     */
+    private void writeStagedBodies() throws IOException {
+        if (lazyBodies) {
+            bodyStore().writeStaged();
+        }
+    }
 
-            // Sử dụng constructor đầy đủ của Note
-            Note note = new Note(id, title, content, createdAt, updatedAt, folderId, isFavorite,
-                    isMission, isMissionCompleted, missionContent, alarmId, tags,
-                    noteType, drawingData);
-            // Gán lại đối tượng alarm đã deserialize (nếu có) vào note
-            if (alarm != null) {
-                note.setAlarm(alarm);
+    /**
+     * Ở chế độ tải lười, chuyển nội dung chưa lưu của note vào hàng chờ của NoteBodyStore và bỏ bản trên note;
+     * snapshot/journal khi đó chỉ ghi cờ contentStored. Việc ghi đĩa (và sync) nằm ở {@link #writeStagedBodies()},
+     * nên luồng đang sửa dữ liệu (thường là EDT) không phải chờ đĩa.
+     * Lần lưu đầu tiên sau khi bật chế độ này sẽ chuyển toàn bộ nội dung ra kho.
+     */
+    private void storeBody(Note note) {
+        if (!lazyBodies || note.getId() == 0 || !note.hasUnstoredContent()) {
+            return;
+        }
+        String content = note.getContent();
+        bodyStore().stage(note.getId(), content != null ? content : "");
+        note.setStoredContent(bodyStore());
+    }
+
+    /**
+     * Tải từ layout shard; nếu chưa có (lần đầu bật chế độ shard) hoặc manifest hỏng thì tải snapshot
+     * notes.json như bình thường và yêu cầu ghi lại toàn bộ sang layout shard.
+     */
+    private void loadShards(NoteManager noteManager, IdMarks idMarks, SalvageReport report, Map<File, RecordFingerprints> fingerprints) {
+        if (shardStore.exists()) {
+            try {
+                // Shard không có thế hệ cũ, nên luôn đọc ở chế độ cứu dữ liệu: shard hỏng chỉ mất các bản ghi hỏng
+                idMarks.raise(shardStore.load(noteManager.getModifiableNotesList(), noteManager.getModifiableFoldersList(), noteManager.getModifiableTagsList(), report, fingerprints));
+                fullSaveRequired = shardStore.hasOrphanShards();
+                return;
+            } catch (RecordCipher.LockedException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[DataStorage] Lỗi khi tải dữ liệu shard từ " + shardStore.getDirectory().getName() + ": " + e.getMessage() + ". Thử tải " + file.getName() + ".");
+                e.printStackTrace();
+                noteManager.getModifiableNotesList().clear();
+                noteManager.getModifiableFoldersList().clear();
+                noteManager.getModifiableTagsList().clear();
+                if (fingerprints != null) {
+                    fingerprints.clear(); // Lần quét đầu tiên sẽ đọc lại các shard
+                }
             }
+        } else {
+            System.out.println("[DataStorage] Chưa có dữ liệu shard, chuyển đổi từ " + file.getName() + ".");
+        }
+        loadSnapshot(noteManager.getModifiableNotesList(), noteManager.getModifiableFoldersList(), noteManager.getModifiableTagsList(), idMarks, report, null);
+        fullSaveRequired = true;
+    }
 
-            return note;
+    /**
+     * Đưa dữ liệu bản vẽ chưa lưu của note ra kho blob để snapshot/journal chỉ cần ghi hash.
+     * Các note cũ có drawingData inline cũng được chuyển dần sang blob theo cách này.
+     */
+    private void storeDrawing(Note note) {
+        if (note.getNoteType() != Note.NoteType.DRAWING || !note.hasUnstoredDrawing()) {
+            return;
+        }
+        try {
+            String hash = drawingStore.putBase64(note.getDrawingData());
+            if (hash != null) {
+                note.setDrawingBlob(hash, drawingStore);
+            }
+        } catch (IOException e) {
+            // Giữ dữ liệu inline trong bản ghi, lần lưu sau sẽ thử lại
+            System.err.println("[DataStorage] Không thể lưu bản vẽ của note '" + note.getTitle() + "' ra blob: " + e.getMessage());
         }
     }
 
-    private static class FolderAdapter implements JsonSerializer<Folder>, JsonDeserializer<Folder> {
-        @Override
-        public JsonElement serialize(Folder src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject json = new JsonObject();
-            json.addProperty("id", src.getId());
-            json.addProperty("name", src.getName());
-            json.addProperty("isFavorite", src.isFavorite());
+    /**
+     * Tải snapshot mới nhất còn hợp lệ: thử notes.json trước, sau đó lần lượt notes.json.1 ... notes.json.N.
+     * Nếu chưa có snapshot nào theo định dạng đang dùng (vừa đổi định dạng), thử snapshot của định dạng còn lại;
+     * lần lưu kế tiếp sẽ ghi theo định dạng mới.
+     * @param report null: chỉ nhận snapshot đọc được trọn vẹn. Khác null: snapshot mới nhất bị hỏng một phần được
+     *               cứu (bỏ các bản ghi hỏng) thay vì bỏ cả file, phần bị mất được ghi vào {@code report}.
+     * @param idMarks Được nâng lên theo mốc ID lưu trong snapshot đã tải (nếu có).
+     * @param fingerprints Nhận dấu vân tay các bản ghi của snapshot đã tải (null nếu không cần).
+     * @return false nếu có snapshot nhưng không đọc được cái nào (danh sách khi đó rỗng).
+     */
+    private boolean loadSnapshot(List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport report,
+                                 RecordFingerprints fingerprints) {
+        if (!hasSnapshot(file) && hasSnapshot(alternateFile)) {
+            System.out.println("[DataStorage] Chưa có " + file.getName() + ", chuyển đổi từ " + alternateFile.getName() + ".");
+            return loadSnapshot(alternateFile, notes, folders, tags, idMarks, report, fingerprints);
+        }
+        return loadSnapshot(file, notes, folders, tags, idMarks, report, fingerprints);
+    }
 
-            if (src.getSubFolderNames() != null && !src.getSubFolderNames().isEmpty()) {
-                json.add("subFolderNames", context.serialize(src.getSubFolderNames()));
+    private static boolean hasSnapshot(File base) {
+        for (int generation = 0; generation <= StorageConfig.getSnapshotGenerations(); generation++) {
+            File candidate = generation == 0 ? base : generationFile(base, generation);
+            if (candidate.exists() && candidate.length() > 0) {
+                return true;
             }
-            return json;
         }
+        return false;
+    }
 
-        @Override
-        public Folder deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            JsonObject obj = json.getAsJsonObject();
-            long id = obj.has("id") ? obj.get("id").getAsLong() : 0;
-            String name = obj.has("name") ? obj.get("name").getAsString() : "Unnamed Folder";
+    private boolean loadSnapshot(File base, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport report,
+                                 RecordFingerprints fingerprints) {
+        boolean anyCandidate = false;
+        for (int generation = 0; generation <= StorageConfig.getSnapshotGenerations(); generation++) {
+            File candidate = generation == 0 ? base : generationFile(base, generation);
+            if (!candidate.exists() || candidate.length() == 0) {
+                continue;
+            }
+            anyCandidate = true;
+            if (loadSnapshotFrom(candidate, notes, folders, tags, idMarks, null, fingerprints)) {
+                if (generation > 0) {
+                    System.err.println("[DataStorage] Cảnh báo: " + base.getName() + " bị hỏng hoặc thiếu. Đã khôi phục từ thế hệ cũ " + candidate.getName() + ".");
+                }
+                return true;
+            }
+            handleCorruptedFile(candidate);
+            // File mới nhất còn đọc được cấu trúc thì giữ mọi bản ghi lành trong đó,
+            // thay vì lùi về thế hệ cũ và mất mọi thay đổi kể từ đó
+            if (report != null && loadSnapshotFrom(candidate, notes, folders, tags, idMarks, report, fingerprints)) {
+                System.err.println("[DataStorage] Cảnh báo: " + candidate.getName() + " bị hỏng. Đã cứu " +
+                        (notes.size() + folders.size() + tags.size()) + " bản ghi còn nguyên vẹn.");
+                return true;
+            }
+        }
+        if (!anyCandidate) {
+            System.out.println("File " + base.getName() + " không tồn tại hoặc rỗng. Bỏ qua việc tải, NoteManager sẽ dùng dữ liệu mặc định.");
+            return true;
+        }
+        System.err.println("Lỗi: Không có snapshot hợp lệ nào cho " + base.getName() + ". Sử dụng dữ liệu mặc định.");
+        return false;
+    }
 
-            Folder folder = new Folder(name);
-            folder.setId(id);
+    /**
+     * Đọc snapshot vào thẳng các danh sách (của NoteManager, hoặc của checkpoint nền); định dạng (JSON hay nhị phân) nhận diện theo nội dung file.
+     * @param salvage null để đọc nghiêm ngặt; khác null để cứu dữ liệu (thành công nếu cứu được ít nhất một bản ghi).
+     */
+    private boolean loadSnapshotFrom(File source, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport salvage,
+                                     RecordFingerprints fingerprints) {
+        notes.clear();
+        folders.clear();
+        tags.clear();
+        if (fingerprints != null) {
+            fingerprints.clear();
+        }
 
-            if (obj.has("isFavorite") && !obj.get("isFavorite").isJsonNull()) {
-                folder.setFavorite(obj.get("isFavorite").getAsBoolean());
-            } else {
-                folder.setFavorite(false);
+        try {
+            SalvageReport attempt = salvage != null ? new SalvageReport() : null;
+            IdMarks storedMarks = readSnapshot(source, notes, folders, tags, fingerprints != null ? fingerprints.recorder(true) : null, attempt);
+            if (attempt != null) {
+                if (notes.isEmpty() && folders.isEmpty() && tags.isEmpty()) {
+                    throw new IOException("Không cứu được bản ghi nào");
+                }
+                salvage.merge(attempt);
             }
+            idMarks.raise(storedMarks);
+            System.out.println("Đã tải dữ liệu từ " + source.getName() + ": " +
+                    notes.size() + " notes, " +
+                    folders.size() + " folders, " +
+                    tags.size() + " tags.");
+            return true;
+        } catch (RecordCipher.LockedException e) {
+            throw e; // Không được coi là file hỏng và lùi về dữ liệu mặc định
+        } catch (IOException e) {
+            System.err.println("Lỗi I/O khi tải dữ liệu từ " + source.getName() + ": " + e.getMessage());
+            e.printStackTrace();
+        } catch (IllegalStateException | NumberFormatException e) {
+            System.err.println("Lỗi cú pháp JSON khi tải dữ liệu từ " + source.getName() + ": " + e.getMessage());
+            e.printStackTrace();
+        } catch (Exception e) {
+            System.err.println("Lỗi không xác định khi tải dữ liệu từ " + source.getName() + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        // Bỏ phần đã đọc dở để thế hệ tiếp theo bắt đầu từ danh sách rỗng
+        notes.clear();
+        folders.clear();
+        tags.clear();
+        return false;
+    }
+
+    /**
+     * @param report null để đọc nghiêm ngặt (mọi lỗi đều ném ngoại lệ); khác null để cứu dữ liệu,
+     *               xem {@link JsonRecordLines#read} và {@link BinarySnapshotFormat#read}.
+     * @return Mốc ID lưu trong snapshot; rỗng nếu snapshot được ghi trước khi có mốc.
+     */
+    static IdMarks readSnapshot(File source, List<Note> notes, List<Folder> folders, List<Tag> tags, SalvageReport report) throws IOException {
+        return readSnapshot(source, notes, folders, tags, null, report);
+    }
 
-            if (obj.has("subFolderNames") && !obj.get("subFolderNames").isJsonNull()) {
-                Type listType = new TypeToken<ArrayList<String>>() {}.getType();
-                List<String> subFolderNames = context.deserialize(obj.get("subFolderNames"), listType);
-                folder.setSubFolderNames(subFolderNames);
-            } else {
-                folder.setSubFolderNames(new ArrayList<>());
+    /**
+     * @param filter Chỉ giải mã các bản ghi được chấp nhận (null: mọi bản ghi). Snapshot JSON kiểu cũ không có checksum
+     *               nên được giải mã hết, filter nhận dấu vân tay tính lại theo {@link RecordFingerprints#of}.
+     */
+    static IdMarks readSnapshot(File source, List<Note> notes, List<Folder> folders, List<Tag> tags, JsonRecordLines.Filter filter,
+                                SalvageReport report) throws IOException {
+        IdMarks idMarks = new IdMarks();
+        if (BinarySnapshotFormat.isBinarySnapshot(source)) {
+            int before = notes.size() + folders.size() + tags.size();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(source), 64 * 1024)) {
+                idMarks.raise(BinarySnapshotFormat.read(in, notes, folders, tags, source, filter, report));
+            }
+            RecordCipher.notePlaintextRead(notes.size() + folders.size() + tags.size() - before);
+        } else if (JsonRecordLines.isRecordLines(source)) {
+            JsonRecordLines.read(source, (field, reader) -> {
+                if (field.equals("ids")) {
+                    idMarks.raise(NoteJsonCodec.readIdMarks(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }, filter, (section, reader) -> {
+                switch (section) {
+                    case "notes":
+                        notes.add(NoteJsonCodec.readNote(reader));
+                        break;
+                    case "folders":
+                        folders.add(NoteJsonCodec.readFolder(reader));
+                        break;
+                    case "tags":
+                        tags.add(NoteJsonCodec.readTag(reader));
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }, report);
+        } else {
+            int[] before = {notes.size(), folders.size(), tags.size()};
+            readJsonSnapshot(source, notes, folders, tags, idMarks, report);
+            RecordCipher.notePlaintextRead(notes.size() + folders.size() + tags.size() - before[0] - before[1] - before[2]);
+            if (filter != null) {
+                retainAccepted(filter, RecordFingerprints.NOTES, notes.subList(before[0], notes.size()), Note::getId);
+                retainAccepted(filter, RecordFingerprints.FOLDERS, folders.subList(before[1], folders.size()), Folder::getId);
+                retainAccepted(filter, RecordFingerprints.TAGS, tags.subList(before[2], tags.size()), Tag::getId);
             }
-            return folder;
         }
+        return idMarks;
+    }
+
+    private static <T> void retainAccepted(JsonRecordLines.Filter filter, String section, List<T> decoded, ToLongFunction<T> idOf) {
+        decoded.removeIf(entity -> !filter.accept(section, idOf.applyAsLong(entity), RecordFingerprints.of(entity)));
     }
 
-    private static class TagAdapter implements JsonSerializer<Tag>, JsonDeserializer<Tag> {
-        @Override
-        public JsonElement serialize(Tag src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject json = new JsonObject();
-            json.addProperty("id", src.getId());
-            json.addProperty("name", src.getName());
-            return json;
+    /**
+     * Đọc snapshot JSON kiểu cũ (một khối, không có checksum, hoặc file xuất bằng {@link #exportTo}) theo luồng token:
+     * từng note/folder/tag được giải mã và thêm thẳng vào danh sách đích, không dựng cây JSON trung gian.
+     * Ở chế độ cứu dữ liệu, mọi bản ghi đọc được trước chỗ hỏng được giữ lại, phần sau đó bị mất.
+     */
+    private static void readJsonSnapshot(File source, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport report) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 64 * 1024))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new IOException("Định dạng JSON trong " + source.getName() + " không hợp lệ.");
+            }
+            try {
+                readJsonSnapshotBody(reader, notes, folders, tags, idMarks);
+            } catch (IOException | RuntimeException e) {
+                if (report == null || notes.isEmpty() && folders.isEmpty() && tags.isEmpty()) {
+                    throw e;
+                }
+                report.recordTruncated(source, null, reader.getPath(), e.getMessage());
+            }
         }
+    }
 
-        @Override
-        public Tag deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            JsonObject obj = json.getAsJsonObject();
-            long id = obj.has("id") ? obj.get("id").getAsLong() : 0;
-            String name = obj.has("name") ? obj.get("name").getAsString() : "Unnamed Tag";
+    private static void readJsonSnapshotBody(JsonReader reader, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "notes":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        notes.add(NoteJsonCodec.readNote(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "folders":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        folders.add(NoteJsonCodec.readFolder(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "tags":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tags.add(NoteJsonCodec.readTag(reader));
+                    }
+                    reader.endArray();
+                    break;
+                case "ids":
+                    idMarks.raise(NoteJsonCodec.readIdMarks(reader));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
 
-            Tag tag = new Tag(name);
-            tag.setId(id);
-            return tag;
+    /**
+     * Giữ lại một bản sao của file hỏng (notes.json.corrupt) để có thể cứu dữ liệu thủ công,
+     * vì vòng xoay thế hệ sẽ dần đẩy file hỏng ra khỏi danh sách.
+     */
+    private void handleCorruptedFile(File corrupted) {
+        File preserved = new File(corrupted.getPath() + ".corrupt");
+        try {
+            Files.copy(corrupted.toPath(), preserved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("[DataStorage] Đã giữ lại bản sao file hỏng tại " + preserved.getName() + ".");
+        } catch (IOException e) {
+            System.err.println("[DataStorage] Không thể sao lưu file hỏng " + corrupted.getName() + ": " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Kho lưu dữ liệu bản vẽ theo địa chỉ nội dung (content-addressed).
+ * Mỗi bản vẽ được lưu một lần dưới dạng file PNG thô trong thư mục blobs, tên file là SHA-256 của nội dung:
+ * <pre>blobs/ab/abcdef....png</pre>
+ * Note chỉ giữ mã hash; dữ liệu được đọc lười khi DrawScreen cần đến.
+ * Hai bản vẽ giống hệt nhau dùng chung một file, và file đã tồn tại thì không bao giờ bị ghi lại.
+ * Dữ liệu đã đọc được giữ trong bộ đệm LRU có giới hạn thay vì trên từng Note.
+ * Khi dữ liệu được mã hóa ({@link RecordCipher}), file chứa ảnh đã mã hóa gắn với hash của nó; tên file vẫn là hash
+ * của ảnh gốc để việc khử trùng lặp không đổi.
+ */
+public class DrawingBlobStore {
+    private final File directory;
+    private final NoteBodyCache<String> cache = new NoteBodyCache<>(StorageConfig.getBodyCacheChars()); // hash -> Base64
+
+    public DrawingBlobStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Lưu dữ liệu bản vẽ (Base64 của ảnh PNG) nếu chưa có trong kho.
+     * @return Hash nội dung, hoặc null nếu dữ liệu không phải Base64 hợp lệ (khi đó note giữ dữ liệu inline).
+     */
+    public String putBase64(String base64Data) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(base64Data);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[DrawingBlobStore] Dữ liệu bản vẽ không phải Base64 hợp lệ, giữ nguyên inline: " + e.getMessage());
+            return null;
+        }
+        return put(bytes);
+    }
+
+    public String put(byte[] bytes) throws IOException {
+        String hash = hash(bytes);
+        File target = blobFile(hash);
+        RecordCipher cipher = RecordCipher.current();
+        if (target.exists() && target.length() == bytes.length + (cipher != null ? RecordCipher.OVERHEAD : 0)) {
+            return hash; // Nội dung giống hệt đã có, không ghi lại
+        }
+        write(target, hash, cipher != null ? cipher.encrypt(bytes, hash) : bytes);
+        return hash;
+    }
+
+    private void write(File target, String hash, byte[] stored) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục blob: " + parent);
+        }
+        File temp = new File(parent, hash + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(stored);
+            out.getFD().sync(); // Blob phải nằm trên đĩa trước bản ghi tham chiếu tới nó
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public byte[] get(String hash) throws IOException {
+        File source = blobFile(hash);
+        if (!source.exists()) {
+            return null;
+        }
+        return open(Files.readAllBytes(source.toPath()), hash);
+    }
+
+    /** Dữ liệu đọc từ file blob: giải mã nếu đã mã hóa (blob ghi trước khi bật mã hóa thì giữ nguyên). */
+    private static byte[] open(byte[] stored, String hash) throws IOException {
+        return RecordCipher.isEncrypted(stored) ? RecordCipher.require().decrypt(stored, hash) : stored;
+    }
+
+    /**
+     * Mã hóa các blob ghi trước khi bật mã hóa (gọi một lần khi DataStorage gặp dữ liệu chưa mã hóa).
+     * @return Số blob đã mã hóa.
+     */
+    int encryptExisting(RecordCipher cipher) throws IOException {
+        File[] prefixes = directory.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return 0;
+        }
+        int encrypted = 0;
+        for (File prefix : prefixes) {
+            File[] blobs = prefix.listFiles((dir, name) -> name.endsWith(".png"));
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                byte[] stored = Files.readAllBytes(blob.toPath());
+                String hash = blob.getName().substring(0, blob.getName().length() - ".png".length());
+                if (!RecordCipher.isEncrypted(stored) && hash(stored).equals(hash)) {
+                    write(blob, hash, cipher.encrypt(stored, hash));
+                    encrypted++;
+                }
+            }
+        }
+        return encrypted;
+    }
+
+    /** Đọc bản vẽ và trả về dưới dạng Base64 như Note.getDrawingData() mong đợi. */
+    public String getBase64(String hash) {
+        String cached = cache.get(hash);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            byte[] bytes = get(hash);
+            if (bytes == null) {
+                System.err.println("[DrawingBlobStore] Không tìm thấy blob " + hash + " trong " + directory + ".");
+                return null;
+            }
+            String base64 = Base64.getEncoder().encodeToString(bytes);
+            cache.put(hash, base64);
+            return base64;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Không thể đọc blob " + hash, e);
+        }
+    }
+
+    public boolean contains(String hash) {
+        return blobFile(hash).exists();
+    }
+
+    /**
+     * Kiểm tra lại mọi blob: tên file chính là SHA-256 của nội dung, nên blob hỏng bị phát hiện mà không cần checksum riêng.
+     * Blob hỏng được ghi lại từ bộ đệm nếu bộ đệm còn bản đúng; nếu không, nó được đổi tên thành .corrupt
+     * (lần lưu bản vẽ giống hệt sau đó sẽ ghi lại blob, thay vì bỏ qua vì tưởng đã có).
+     * @return Số blob đã kiểm tra.
+     */
+    int verify(SalvageReport report) {
+        File[] prefixes = directory.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return 0;
+        }
+        int checked = 0;
+        for (File prefix : prefixes) {
+            File[] blobs = prefix.listFiles((dir, name) -> name.endsWith(".png"));
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                String expected = blob.getName().substring(0, blob.getName().length() - ".png".length());
+                byte[] stored;
+                try {
+                    stored = Files.readAllBytes(blob.toPath());
+                } catch (IOException e) {
+                    continue; // Có thể vừa bị thay, lần kiểm tra sau sẽ đọc lại
+                }
+                checked++;
+                byte[] bytes;
+                try {
+                    bytes = open(stored, expected);
+                } catch (IOException e) {
+                    bytes = null; // Sai tag xác thực: blob mã hóa bị hỏng
+                }
+                if (bytes != null && hash(bytes).equals(expected)) {
+                    continue;
+                }
+                String cached = cache.get(expected);
+                byte[] original = cached != null ? Base64.getDecoder().decode(cached) : null;
+                try {
+                    if (original != null && hash(original).equals(expected)) {
+                        blob.delete();
+                        put(original);
+                        System.err.println("[DrawingBlobStore verify] Blob " + blob.getName() + " bị hỏng, đã ghi lại từ bộ đệm.");
+                        continue;
+                    }
+                    Files.move(blob.toPath(), new File(prefix, blob.getName() + ".corrupt").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("[DrawingBlobStore verify] Không thể xử lý blob hỏng " + blob.getName() + ": " + e.getMessage());
+                }
+                cache.remove(expected);
+                report.recordLost(blob, "blobs", blob.getName(), null, "nội dung không khớp hash, bản vẽ bị mất");
+            }
+        }
+        return checked;
+    }
+
+    private File blobFile(String hash) {
+        if (hash.length() < 3 || !hash.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+            throw new IllegalArgumentException("Hash blob không hợp lệ: " + hash);
+        }
+        return new File(new File(directory, hash.substring(0, 2)), hash + ".png");
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM không hỗ trợ SHA-256", e); // Không xảy ra: SHA-256 là bắt buộc
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * Mã hóa nội dung note trước khi giao cho NoteBodyStore bên dưới (segment hoặc file), mỗi nội dung một khối
+ * AES-GCM riêng gắn với ID của note (xem {@link RecordCipher#encrypt}), nên sửa một note chỉ mã hóa lại note đó.
+ * Nội dung được lưu dưới dạng Base64 sau một tiền tố mà người dùng không gõ được;
+ * nội dung ghi trước khi bật mã hóa (không có tiền tố) vẫn đọc được như cũ.
+ */
+public class EncryptedNoteBodyStore implements NoteBodyStore {
+    private static final String PREFIX = "\u0000enc:";
+
+    private final NoteBodyStore delegate;
+    private final RecordCipher cipher;
+
+    EncryptedNoteBodyStore(NoteBodyStore delegate, RecordCipher cipher) {
+        this.delegate = delegate;
+        this.cipher = cipher;
+    }
+
+    public NoteBodyStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String read(long noteId) throws IOException {
+        String stored = delegate.read(noteId);
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return stored;
+        }
+        byte[] sealed;
+        try {
+            sealed = Base64.getDecoder().decode(stored.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Nội dung mã hóa của note " + noteId + " bị hỏng: " + e.getMessage(), e);
+        }
+        return new String(cipher.decrypt(sealed, context(noteId)), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(long noteId, String body) throws IOException {
+        byte[] sealed = cipher.encrypt(body.getBytes(StandardCharsets.UTF_8), context(noteId));
+        delegate.write(noteId, PREFIX + Base64.getEncoder().encodeToString(sealed));
+    }
+
+    /** Nội dung đã lưu của note có chưa được mã hóa không (ghi trước khi bật mã hóa). */
+    boolean isPlaintext(long noteId) throws IOException {
+        String stored = delegate.read(noteId);
+        return stored != null && !stored.startsWith(PREFIX);
+    }
+
+    @Override
+    public void delete(long noteId) throws IOException {
+        delegate.delete(noteId);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void refresh(Set<Long> noteIds) throws IOException {
+        delegate.refresh(noteIds);
+    }
+
+    @Override
+    public void retainOnly(Set<Long> liveNoteIds, long writtenBeforeMillis) throws IOException {
+        delegate.retainOnly(liveNoteIds, writtenBeforeMillis);
+    }
+
+    private static String context(long noteId) {
+        return "body:" + noteId;
+    }
+}
@@ -0,0 +1,616 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Tìm những bản ghi trên đĩa đã bị tiến trình khác thay đổi, mà không tải lại toàn bộ dữ liệu.
+ * <p>
+ * Bộ theo dõi giữ dấu vân tay ({@link RecordFingerprints}) của mọi bản ghi theo từng file dữ liệu của DataStorage
+ * (snapshot, hoặc manifest và các shard) cùng các bản ghi của journal, cộng trạng thái (kích thước, thời điểm sửa,
+ * inode) của từng file. Dữ liệu do chính DataStorage ghi được cập nhật ngay khi ghi, nên chỉ thay đổi từ bên ngoài
+ * mới làm lệch trạng thái. Khi đó {@link #scan()}:
+ * <ul>
+ *     <li>đọc lại chỉ các file đã đổi, và chỉ lấy checksum đã lưu của từng bản ghi; bản ghi có checksum khác trước
+ *     mới được giải mã;</li>
+ *     <li>nếu journal đang ghi chỉ dài thêm, đọc tiếp từ chỗ đã đọc lần trước; journal bị ghi lại từ đầu
+ *     (sau snapshot mới hoặc checkpoint của tiến trình kia) thì đọc lại toàn bộ journal (vốn nhỏ);</li>
+ *     <li>so toàn cảnh trước và sau (file dữ liệu phủ bởi journal) để ra đúng các bản ghi thêm/sửa/xóa.</li>
+ * </ul>
+ * Mọi phương thức được gọi trong khóa {@code changeLock} của DataStorage, nên lần quét không chen vào giữa
+ * một lần ghi và lần cập nhật trạng thái tương ứng.
+ */
+final class ExternalChangeTracker {
+    private static final int JOURNAL_HEAD_BYTES = 4096;
+
+    private final DataStorage storage;
+    private Map<File, RecordFingerprints> recordFiles = new HashMap<>();
+    // Bản ghi journal theo từng file, theo thứ tự phát lại: các đoạn đã niêm phong rồi file đang ghi
+    private LinkedHashMap<File, List<JournalEntry>> journalEntries = new LinkedHashMap<>();
+    private Map<File, FileStamp> stamps = new HashMap<>();
+    private long journalOffset; // Số byte của journal đang ghi đã đọc (tới hết dòng đầy đủ cuối cùng)
+    private int journalHead; // Checksum của tối đa 4 KB đầu journal đang ghi; khác đi nghĩa là file đã bị ghi lại từ đầu
+
+    ExternalChangeTracker(DataStorage storage) {
+        this.storage = storage;
+    }
+
+    /** Một bản ghi journal, không kèm đối tượng: đủ để dựng toàn cảnh dấu vân tay. */
+    private static final class JournalEntry {
+        final String section;
+        final long id;
+        final int fingerprint;
+        final boolean deleted;
+
+        JournalEntry(String section, long id, int fingerprint, boolean deleted) {
+            this.section = section;
+            this.id = id;
+            this.fingerprint = fingerprint;
+            this.deleted = deleted;
+        }
+    }
+
+    /** Nơi bản ghi có giá trị cuối cùng trong toàn cảnh: file dữ liệu, hoặc null nếu là journal. */
+    private static final class Origin {
+        final int fingerprint;
+        final File file;
+
+        Origin(int fingerprint, File file) {
+            this.fingerprint = fingerprint;
+            this.file = file;
+        }
+    }
+
+    private static final class FileStamp {
+        final long size;
+        final FileTime modified;
+        final Object fileKey; // inode (null trên hệ thống không hỗ trợ): đổi khi file bị thay bằng cách đổi tên
+
+        private FileStamp(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+        }
+
+        static FileStamp of(File file) {
+            try {
+                return new FileStamp(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+            } catch (IOException e) {
+                return null; // File không tồn tại
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp stamp = (FileStamp) other;
+            return size == stamp.size && modified.equals(stamp.modified) && Objects.equals(fileKey, stamp.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+    }
+
+    /** Note/folder/tag đã giải mã từ một file trong lần quét. */
+    private static final class Decoded {
+        final List<Note> notes = new ArrayList<>();
+        final List<Folder> folders = new ArrayList<>();
+        final List<Tag> tags = new ArrayList<>();
+        private Map<String, Map<Long, Object>> index;
+
+        Object find(String section, long id) {
+            if (index == null) {
+                index = new HashMap<>();
+                notes.forEach(note -> index.computeIfAbsent(RecordFingerprints.NOTES, s -> new HashMap<>()).put(note.getId(), note));
+                folders.forEach(folder -> index.computeIfAbsent(RecordFingerprints.FOLDERS, s -> new HashMap<>()).put(folder.getId(), folder));
+                tags.forEach(tag -> index.computeIfAbsent(RecordFingerprints.TAGS, s -> new HashMap<>()).put(tag.getId(), tag));
+            }
+            return index.getOrDefault(section, Map.of()).get(id);
+        }
+    }
+
+    // --- Trạng thái sau khi tải và sau mỗi lần ghi của chính tiến trình này ---
+
+    /** Gọi trước khi DataStorage đọc dữ liệu: ghi nhận trạng thái các file và đọc journal (trước khi phát lại). */
+    void beginLoad() throws IOException {
+        stamps = new HashMap<>();
+        for (File file : storage.recordFiles()) {
+            stamp(file);
+        }
+        journalEntries = new LinkedHashMap<>();
+        journalOffset = readWholeJournal(journalEntries, new HashMap<>(), new IdMarks());
+        File active = storage.activeJournalFile();
+        journalHead = active != null ? readHead(active, journalOffset) : 0;
+        journalEntries.keySet().forEach(this::stamp);
+    }
+
+    /**
+     * Có file dữ liệu hay đoạn journal đã niêm phong nào đổi kể từ {@link #beginLoad()} không: tiến trình kia vừa
+     * ghi snapshot hoặc checkpoint trong lúc đang tải, nên dữ liệu vừa đọc có thể thiếu phần đã chuyển từ journal
+     * sang snapshot. Journal đang ghi chỉ dài thêm thì không sao, lần quét đầu tiên sẽ đọc tiếp.
+     */
+    boolean changedSinceBeginLoad() {
+        File active = storage.activeJournalFile();
+        Set<File> current = new HashSet<>(storage.recordFiles());
+        for (File file : current) {
+            if (!Objects.equals(FileStamp.of(file), stamps.get(file))) {
+                return true;
+            }
+        }
+        for (File file : stamps.keySet()) {
+            if (!current.contains(file) && !journalEntries.containsKey(file)) {
+                return true; // File dữ liệu (shard) đã bị xóa
+            }
+        }
+        List<File> knownSealed = new ArrayList<>(journalEntries.keySet());
+        knownSealed.remove(active);
+        List<File> sealed = storage.sealedJournalFiles();
+        if (!knownSealed.equals(sealed)) {
+            return true;
+        }
+        for (File file : sealed) {
+            if (!Objects.equals(FileStamp.of(file), stamps.get(file))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Gọi sau khi DataStorage đọc xong: dấu vân tay của dữ liệu đã nằm trong bộ nhớ. */
+    void endLoad(Map<File, RecordFingerprints> fingerprints) {
+        recordFiles = new HashMap<>(fingerprints);
+    }
+
+    /** File dữ liệu vừa được ghi (hoặc xóa, nếu {@code fingerprints} là null) bởi chính tiến trình này. */
+    void recordFileWritten(File file, RecordFingerprints fingerprints) {
+        if (fingerprints == null) {
+            recordFiles.remove(file);
+            stamps.remove(file);
+        } else {
+            recordFiles.put(file, fingerprints);
+            stamp(file);
+        }
+    }
+
+    /** Các bản ghi vừa được ghi thêm vào journal đang ghi bởi chính tiến trình này. */
+    void journalAppended(List<String> records) {
+        File active = storage.activeJournalFile();
+        List<JournalEntry> entries = journalEntries.computeIfAbsent(active, file -> new ArrayList<>());
+        for (String record : records) {
+            byte[] line = record.getBytes(StandardCharsets.UTF_8);
+            JournalEntry entry = entryOf(line, line.length);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        boolean headGrew = journalOffset < JOURNAL_HEAD_BYTES;
+        journalOffset = active.length();
+        if (headGrew) {
+            journalHead = readHead(active, journalOffset);
+        }
+        stamp(active);
+    }
+
+    /** File journal đang ghi vừa được niêm phong thành {@code sealed}. */
+    void journalSealed(File sealed) {
+        File active = storage.activeJournalFile();
+        LinkedHashMap<File, List<JournalEntry>> reordered = new LinkedHashMap<>();
+        for (Map.Entry<File, List<JournalEntry>> entry : journalEntries.entrySet()) {
+            if (!entry.getKey().equals(active)) {
+                reordered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<JournalEntry> sealedEntries = journalEntries.get(active);
+        reordered.put(sealed, sealedEntries != null ? sealedEntries : new ArrayList<>());
+        journalEntries = reordered;
+        journalOffset = 0;
+        journalHead = readHead(active, 0);
+        stamps.remove(active);
+        stamp(sealed);
+    }
+
+    /** Các đoạn journal đã niêm phong vừa bị xóa (đã gộp vào snapshot, hoặc journal được làm rỗng). */
+    void journalSegmentsRemoved(List<File> removed) {
+        for (File file : removed) {
+            journalEntries.remove(file);
+            stamps.remove(file);
+        }
+    }
+
+    /** Journal vừa được làm rỗng sau một snapshot đầy đủ. */
+    void journalReset() {
+        journalSegmentsRemoved(new ArrayList<>(journalEntries.keySet()));
+        File active = storage.activeJournalFile();
+        if (active != null) {
+            journalEntries.put(active, new ArrayList<>());
+            journalOffset = 0;
+            journalHead = readHead(active, 0);
+            stamp(active);
+        }
+    }
+
+    private void stamp(File file) {
+        FileStamp stamp = FileStamp.of(file);
+        if (stamp != null) {
+            stamps.put(file, stamp);
+        } else {
+            stamps.remove(file);
+        }
+    }
+
+    // --- Quét ---
+
+    /**
+     * So trạng thái trên đĩa với lần trước và đọc lại chỉ những gì đã đổi.
+     * Nếu một file đang bị ghi dở (đọc nghiêm ngặt thất bại), ném IOException và giữ nguyên trạng thái cũ,
+     * để lần quét sau (khi file đã ghi xong) đọc lại.
+     * @return Các bản ghi đã đổi, hoặc null nếu không có gì đổi.
+     */
+    ExternalChanges scan() throws IOException {
+        Map<File, FileStamp> newStamps = new HashMap<>();
+        List<File> changedFiles = new ArrayList<>();
+        for (File file : storage.recordFiles()) {
+            FileStamp stamp = FileStamp.of(file);
+            if (stamp == null) {
+                continue;
+            }
+            newStamps.put(file, stamp);
+            if (!stamp.equals(stamps.get(file)) || !recordFiles.containsKey(file)) {
+                changedFiles.add(file);
+            }
+        }
+        List<File> removedFiles = new ArrayList<>();
+        for (File file : recordFiles.keySet()) {
+            if (!newStamps.containsKey(file)) {
+                removedFiles.add(file);
+            }
+        }
+
+        // Snapshot mới của tiến trình kia luôn đi kèm journal được làm rỗng rồi ghi tiếp,
+        // nên không thể chỉ đọc tiếp journal từ chỗ cũ
+        boolean journalRewritten = !changedFiles.isEmpty() || !removedFiles.isEmpty();
+        File active = storage.activeJournalFile();
+        List<File> sealed = storage.sealedJournalFiles();
+        List<File> knownSealed = new ArrayList<>(journalEntries.keySet());
+        knownSealed.remove(active);
+        if (!knownSealed.equals(sealed)) {
+            journalRewritten = true;
+        }
+        for (File file : sealed) {
+            FileStamp stamp = FileStamp.of(file);
+            if (stamp != null) {
+                newStamps.put(file, stamp);
+            }
+            if (stamp == null || !stamp.equals(stamps.get(file))) {
+                journalRewritten = true;
+            }
+        }
+        boolean activeChanged = false;
+        if (active != null) {
+            FileStamp stamp = FileStamp.of(active);
+            FileStamp previous = stamps.get(active);
+            if (stamp != null) {
+                newStamps.put(active, stamp);
+            }
+            activeChanged = !Objects.equals(stamp, previous);
+            if (activeChanged && !journalRewritten) {
+                long length = stamp != null ? stamp.size : 0;
+                journalRewritten = length < journalOffset
+                        || stamp != null && previous != null && !Objects.equals(stamp.fileKey, previous.fileKey)
+                        || readHead(active, journalOffset) != journalHead;
+            }
+        }
+        if (!journalRewritten && !activeChanged && changedFiles.isEmpty()) {
+            stamps = newStamps; // Có thể chỉ thời điểm sửa thay đổi
+            return null;
+        }
+
+        long startNanos = System.nanoTime();
+        ExternalChanges changes = new ExternalChanges();
+        Map<String, Map<Long, Integer>> before = fingerprints(combine(recordFiles, journalEntries));
+
+        // File dữ liệu đã đổi: đọc checksum của mọi bản ghi, chỉ giải mã bản ghi có checksum khác trước
+        Map<File, RecordFingerprints> newRecordFiles = new HashMap<>(recordFiles);
+        removedFiles.forEach(newRecordFiles::remove);
+        Map<File, Decoded> decoded = new HashMap<>();
+        int decodedCount = 0;
+        for (File file : changedFiles) {
+            RecordFingerprints fingerprints = new RecordFingerprints();
+            Decoded records = new Decoded();
+            changes.idMarks.raise(storage.readRecordFile(file, (section, id, crc) -> {
+                if (id == null) {
+                    return false;
+                }
+                fingerprints.put(section, id, crc);
+                Integer previous = before.getOrDefault(section, Map.of()).get(id);
+                return previous == null || previous != crc;
+            }, records.notes, records.folders, records.tags));
+            newRecordFiles.put(file, fingerprints);
+            decoded.put(file, records);
+            decodedCount += records.notes.size() + records.folders.size() + records.tags.size();
+        }
+
+        // Journal: đọc tiếp từ chỗ cũ, hoặc đọc lại toàn bộ
+        Map<String, Map<Long, String>> journalLines = new HashMap<>();
+        LinkedHashMap<File, List<JournalEntry>> newJournal;
+        long newOffset = journalOffset;
+        if (journalRewritten) {
+            newJournal = new LinkedHashMap<>();
+            newOffset = readWholeJournal(newJournal, journalLines, changes.idMarks);
+        } else if (activeChanged) {
+            newJournal = new LinkedHashMap<>(journalEntries);
+            List<JournalEntry> entries = new ArrayList<>(journalEntries.getOrDefault(active, List.of()));
+            newOffset = readJournal(active, journalOffset, entries, journalLines, changes.idMarks);
+            newJournal.put(active, entries);
+        } else {
+            newJournal = journalEntries;
+        }
+
+        // So toàn cảnh trước và sau
+        Map<String, Map<Long, Origin>> after = combine(newRecordFiles, newJournal);
+        Map<File, Map<String, Set<Long>>> missing = new HashMap<>();
+        for (String section : List.of(RecordFingerprints.FOLDERS, RecordFingerprints.TAGS, RecordFingerprints.NOTES)) {
+            Map<Long, Integer> old = before.getOrDefault(section, Map.of());
+            Map<Long, Origin> current = after.getOrDefault(section, Map.of());
+            for (Map.Entry<Long, Origin> entry : current.entrySet()) {
+                Integer previous = old.get(entry.getKey());
+                if (previous != null && previous == entry.getValue().fingerprint) {
+                    continue;
+                }
+                Object entity = null;
+                File file = entry.getValue().file;
+                if (file == null) {
+                    String line = journalLines.getOrDefault(section, Map.of()).get(entry.getKey());
+                    if (line != null) {
+                        entity = NoteJournal.decodeRecord(line).entity;
+                        decodedCount++;
+                    }
+                } else if (decoded.containsKey(file)) {
+                    entity = decoded.get(file).find(section, entry.getKey());
+                }
+                if (entity != null) {
+                    addChanged(changes, entity);
+                } else if (file != null) {
+                    missing.computeIfAbsent(file, f -> new HashMap<>()).computeIfAbsent(section, s -> new HashSet<>()).add(entry.getKey());
+                } else {
+                    System.err.println("[ExternalChangeTracker] Cảnh báo: Không tìm thấy bản ghi journal của " + section + " " + entry.getKey() + ".");
+                }
+            }
+            Set<Long> deleted = section.equals(RecordFingerprints.NOTES) ? changes.deletedNoteIds
+                    : section.equals(RecordFingerprints.FOLDERS) ? changes.deletedFolderIds : changes.deletedTagIds;
+            for (Long id : old.keySet()) {
+                if (!current.containsKey(id)) {
+                    deleted.add(id);
+                }
+            }
+        }
+        // Hiếm: bản ghi đổi nằm trong file không đổi (ví dụ bản ghi journal phủ lên nó vừa biến mất)
+        for (Map.Entry<File, Map<String, Set<Long>>> entry : missing.entrySet()) {
+            Decoded records = new Decoded();
+            Map<String, Set<Long>> wanted = entry.getValue();
+            storage.readRecordFile(entry.getKey(), (section, id, crc) -> id != null && wanted.getOrDefault(section, Set.of()).contains(id),
+                    records.notes, records.folders, records.tags);
+            records.folders.forEach(folder -> addChanged(changes, folder));
+            records.tags.forEach(tag -> addChanged(changes, tag));
+            records.notes.forEach(note -> addChanged(changes, note));
+            decodedCount += records.notes.size() + records.folders.size() + records.tags.size();
+        }
+
+        recordFiles = newRecordFiles;
+        journalEntries = newJournal;
+        stamps = newStamps;
+        journalOffset = newOffset;
+        journalHead = active != null ? readHead(active, newOffset) : 0;
+        String journalScope = active == null ? "" : journalRewritten ? " và toàn bộ journal" : activeChanged ? " và phần mới của journal" : "";
+        System.out.println("[ExternalChangeTracker] Đã quét " + changedFiles.size() + " file dữ liệu" + journalScope +
+                ", giải mã " + decodedCount + " bản ghi trong " + (System.nanoTime() - startNanos) / 1_000_000 + " ms: " + changes + ".");
+        return changes.isEmpty() ? null : changes;
+    }
+
+    private static void addChanged(ExternalChanges changes, Object entity) {
+        if (entity instanceof Note) {
+            changes.notes.add((Note) entity);
+        } else if (entity instanceof Folder) {
+            changes.folders.add((Folder) entity);
+        } else if (entity instanceof Tag) {
+            changes.tags.add((Tag) entity);
+        }
+    }
+
+    /** Toàn cảnh: bản ghi của các file dữ liệu, phủ lên bởi các bản ghi journal theo thứ tự. */
+    private static Map<String, Map<Long, Origin>> combine(Map<File, RecordFingerprints> files, LinkedHashMap<File, List<JournalEntry>> journal) {
+        Map<String, Map<Long, Origin>> combined = new HashMap<>();
+        for (Map.Entry<File, RecordFingerprints> file : files.entrySet()) {
+            for (String section : List.of(RecordFingerprints.FOLDERS, RecordFingerprints.TAGS, RecordFingerprints.NOTES)) {
+                Map<Long, Origin> records = combined.computeIfAbsent(section, s -> new HashMap<>());
+                for (Map.Entry<Long, Integer> record : file.getValue().section(section).entrySet()) {
+                    records.put(record.getKey(), new Origin(record.getValue(), file.getKey()));
+                }
+            }
+        }
+        for (List<JournalEntry> entries : journal.values()) {
+            for (JournalEntry entry : entries) {
+                Map<Long, Origin> records = combined.computeIfAbsent(entry.section, s -> new HashMap<>());
+                if (entry.deleted) {
+                    records.remove(entry.id);
+                } else {
+                    records.put(entry.id, new Origin(entry.fingerprint, null));
+                }
+            }
+        }
+        return combined;
+    }
+
+    private static Map<String, Map<Long, Integer>> fingerprints(Map<String, Map<Long, Origin>> combined) {
+        Map<String, Map<Long, Integer>> fingerprints = new HashMap<>();
+        for (Map.Entry<String, Map<Long, Origin>> section : combined.entrySet()) {
+            Map<Long, Integer> records = new HashMap<>();
+            section.getValue().forEach((id, origin) -> records.put(id, origin.fingerprint));
+            fingerprints.put(section.getKey(), records);
+        }
+        return fingerprints;
+    }
+
+    // --- Đọc journal ---
+
+    /** @return Vị trí đã đọc tới trong journal đang ghi. */
+    private long readWholeJournal(LinkedHashMap<File, List<JournalEntry>> entries, Map<String, Map<Long, String>> lines, IdMarks idMarks) throws IOException {
+        for (File sealed : storage.sealedJournalFiles()) {
+            List<JournalEntry> sealedEntries = new ArrayList<>();
+            readJournal(sealed, 0, sealedEntries, lines, idMarks);
+            entries.put(sealed, sealedEntries);
+        }
+        File active = storage.activeJournalFile();
+        if (active == null) {
+            return 0;
+        }
+        List<JournalEntry> activeEntries = new ArrayList<>();
+        long offset = readJournal(active, 0, activeEntries, lines, idMarks);
+        entries.put(active, activeEntries);
+        return offset;
+    }
+
+    /**
+     * Đọc các dòng đầy đủ của {@code source} từ vị trí {@code from}; dòng cuối chưa có ký tự xuống dòng
+     * (tiến trình kia đang ghi dở) được để lại cho lần sau. Dòng sai checksum bị bỏ qua.
+     * @param lines Nhận dòng upsert mới nhất của từng bản ghi, để chỉ giải mã những bản ghi thực sự đổi.
+     * @return Vị trí ngay sau dòng đầy đủ cuối cùng.
+     */
+    private static long readJournal(File source, long from, List<JournalEntry> entries, Map<String, Map<Long, String>> lines, IdMarks idMarks) throws IOException {
+        if (!source.exists()) {
+            return 0;
+        }
+        long position = from;
+        try (FileInputStream in = new FileInputStream(source)) {
+            in.getChannel().position(from);
+            byte[] chunk = new byte[64 * 1024];
+            ByteArrayOutputStream pending = new ByteArrayOutputStream(1024); // Phần dòng còn dở từ chunk trước
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] != '\n') {
+                        continue;
+                    }
+                    pending.write(chunk, start, i - start);
+                    start = i + 1;
+                    byte[] bytes = pending.toByteArray();
+                    pending.reset();
+                    position += bytes.length + 1;
+                    readJournalLine(source, bytes, entries, lines, idMarks);
+                }
+                pending.write(chunk, start, read - start);
+            }
+        }
+        return position;
+    }
+
+    private static void readJournalLine(File source, byte[] bytes, List<JournalEntry> entries, Map<String, Map<Long, String>> lines, IdMarks idMarks) {
+        if (bytes.length == 0 || RecordChecksum.check(bytes, bytes.length) == RecordChecksum.Status.MISMATCH) {
+            return;
+        }
+        JournalEntry entry = entryOf(bytes, bytes.length);
+        if (entry == null) {
+            // RESERVE_IDS, hoặc dòng kiểu cũ không theo dạng chuẩn: giải mã hẳn
+            NoteJournal.Record record;
+            try {
+                record = NoteJournal.decodeRecord(new String(bytes, StandardCharsets.UTF_8));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[ExternalChangeTracker] Cảnh báo: Bỏ qua bản ghi hỏng trong " + source.getName() + ": " + e.getMessage());
+                return;
+            }
+            if (record.op == NoteJournal.Op.RESERVE_IDS) {
+                idMarks.raise((IdMarks) record.entity);
+                return;
+            }
+            entry = new JournalEntry(NoteJournal.sectionOf(record.op), record.id, RecordChecksum.of(bytes, 0, bytes.length), record.entity == null);
+        }
+        entries.add(entry);
+        Map<Long, String> sectionLines = lines.computeIfAbsent(entry.section, s -> new HashMap<>());
+        if (entry.deleted) {
+            sectionLines.remove(entry.id);
+        } else {
+            sectionLines.put(entry.id, new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Đọc phần, ID và dấu vân tay của một dòng journal mà không giải mã đối tượng:
+     * {@code {"op":"UPSERT_NOTE","data":{"id":5,...}...} } cho dấu vân tay là checksum của object "data",
+     * bằng đúng checksum của bản ghi đó trong snapshot. Null với RESERVE_IDS hoặc dòng không theo dạng này.
+     */
+    private static JournalEntry entryOf(byte[] line, int length) {
+        String head = new String(line, 0, Math.min(length, 96), StandardCharsets.ISO_8859_1);
+        if (!head.startsWith("{\"op\":\"")) {
+            return null;
+        }
+        int opEnd = head.indexOf('"', 7);
+        if (opEnd < 0) {
+            return null;
+        }
+        NoteJournal.Op op;
+        try {
+            op = NoteJournal.Op.valueOf(head.substring(7, opEnd));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (op == NoteJournal.Op.RESERVE_IDS) {
+            return null;
+        }
+        boolean upsert = op.name().startsWith("UPSERT_");
+        String idPrefix = upsert ? ",\"data\":{\"id\":" : ",\"id\":";
+        if (!head.startsWith(idPrefix, opEnd + 1)) {
+            return null;
+        }
+        int idStart = opEnd + 1 + idPrefix.length();
+        int idEnd = idStart;
+        while (idEnd < head.length() && Character.isDigit(head.charAt(idEnd))) {
+            idEnd++;
+        }
+        if (idEnd == idStart || idEnd - idStart > 18 || idEnd == head.length()) {
+            return null;
+        }
+        long id = Long.parseLong(head.substring(idStart, idEnd));
+        if (!upsert) {
+            return new JournalEntry(NoteJournal.sectionOf(op), id, 0, true);
+        }
+        int dataStart = opEnd + 1 + ",\"data\":".length();
+        // Dòng đã niêm phong kết thúc bằng ...}<đuôi checksum>; dòng kiểu cũ kết thúc bằng ...}}
+        int dataEnd = RecordChecksum.check(line, length) == RecordChecksum.Status.VALID ? length - RecordChecksum.SUFFIX_LENGTH : length - 1;
+        if (dataEnd - 1 <= dataStart || line[dataEnd - 1] != '}') {
+            return null;
+        }
+        return new JournalEntry(NoteJournal.sectionOf(op), id, RecordChecksum.of(line, dataStart, dataEnd - 1 - dataStart), false);
+    }
+
+    /** Checksum của tối đa 4 KB đầu trong {@code length} byte đầu của file. */
+    private static int readHead(File file, long length) {
+        int count = (int) Math.min(length, JOURNAL_HEAD_BYTES);
+        byte[] head = new byte[count];
+        if (count > 0) {
+            try (InputStream in = new FileInputStream(file)) {
+                count = in.readNBytes(head, 0, count);
+            } catch (IOException e) {
+                count = 0;
+            }
+        }
+        return RecordChecksum.of(head, 0, count);
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Các bản ghi đã thay đổi trên đĩa mà không do tiến trình này ghi (một phiên bản khác của ứng dụng,
+ * công cụ đồng bộ file...), do {@link ExternalChangeTracker} tìm ra. Chỉ chứa những bản ghi thực sự khác
+ * với lần đọc trước, để NoteManager gộp vào dữ liệu đang có thay vì tải lại toàn bộ
+ * (xem {@link NoteManager#applyExternalChanges}).
+ */
+final class ExternalChanges {
+    final List<Note> notes = new ArrayList<>(); // Note mới hoặc đã sửa, dạng vừa giải mã (folder/tag chưa liên kết)
+    final List<Folder> folders = new ArrayList<>();
+    final List<Tag> tags = new ArrayList<>();
+    final Set<Long> deletedNoteIds = new HashSet<>();
+    final Set<Long> deletedFolderIds = new HashSet<>();
+    final Set<Long> deletedTagIds = new HashSet<>();
+    final IdMarks idMarks = new IdMarks(); // Mốc ID tiến trình kia đã dành trước
+
+    boolean isEmpty() {
+        return notes.isEmpty() && folders.isEmpty() && tags.isEmpty()
+                && deletedNoteIds.isEmpty() && deletedFolderIds.isEmpty() && deletedTagIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return notes.size() + " notes, " + folders.size() + " folders, " + tags.size() + " tags thay đổi; xóa " +
+                deletedNoteIds.size() + " notes, " + deletedFolderIds.size() + " folders, " + deletedTagIds.size() + " tags";
+    }
+}
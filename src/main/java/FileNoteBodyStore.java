@@ -0,0 +1,121 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+/**
+ * Lưu nội dung mỗi note trong một file UTF-8 riêng, chia thư mục con theo id để tránh thư mục quá lớn:
+ * <pre>bodies/2a/12842.txt</pre>
+ * File được ghi ra file tạm, fsync rồi đổi tên nguyên tử như snapshot.
+ */
+public class FileNoteBodyStore implements NoteBodyStore {
+    private static final String SUFFIX = ".txt";
+
+    private final File directory;
+
+    public FileNoteBodyStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String read(long noteId) throws IOException {
+        File source = bodyFile(noteId);
+        if (!source.exists()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(long noteId, String body) throws IOException {
+        File target = bodyFile(noteId);
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục nội dung note: " + parent);
+        }
+        File temp = new File(parent, noteId + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync(); // Nội dung phải nằm trên đĩa trước bản ghi tham chiếu tới nó
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void delete(long noteId) throws IOException {
+        Files.deleteIfExists(bodyFile(noteId).toPath());
+    }
+
+    @Override
+    public void retainOnly(Set<Long> liveNoteIds, long writtenBeforeMillis) throws IOException {
+        File[] buckets = directory.listFiles(File::isDirectory);
+        if (buckets == null) {
+            return;
+        }
+        int removed = 0;
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                long noteId;
+                try {
+                    noteId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!liveNoteIds.contains(noteId) && file.lastModified() < writtenBeforeMillis && file.delete()) {
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            System.out.println("[FileNoteBodyStore] Đã xóa nội dung của " + removed + " note không còn tồn tại.");
+        }
+    }
+
+    /** Chép toàn bộ nội dung sang kho khác (dùng khi chuyển sang {@link SegmentNoteBodyStore}). */
+    public int copyTo(NoteBodyStore target) throws IOException {
+        File[] buckets = directory.listFiles(File::isDirectory);
+        int copied = 0;
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] files = bucket.listFiles((dir, name) -> name.endsWith(SUFFIX));
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    try {
+                        long noteId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                        target.write(noteId, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                        copied++;
+                    } catch (NumberFormatException ignored) {
+                        // Không phải file nội dung note
+                    }
+                }
+            }
+        }
+        target.sync();
+        return copied;
+    }
+
+    private File bodyFile(long noteId) {
+        String bucket = String.format("%02x", noteId & 0xFF);
+        return new File(new File(directory, bucket), noteId + SUFFIX);
+    }
+}
@@ -1,11 +1,17 @@
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class Folder {
     private long id; // ID của folder trong cơ sở dữ liệu
     private String name;
-    private transient List<Note> notes; // 'transient' vì sẽ không lưu trực tiếp vào JSON theo cách này nếu dùng GSON default
+    // Note trong folder theo ID, giữ thứ tự thêm vào: thêm/xóa/kiểm tra O(1) thay vì quét List.
+    // 'transient' vì sẽ không lưu trực tiếp vào JSON theo cách này nếu dùng GSON default
+    private transient Map<Long, Note> notes;
     private transient List<Folder> subFolders; // Tương tự, 'transient'
     List<String> subFolderNames; // Dùng để lưu/tải tên subfolder (phục vụ DataStorage hiện tại)
     private boolean favorite;
@@ -21,7 +27,7 @@ public class Folder {
         }
         this.id = 0; // Giá trị mặc định cho folder chưa được lưu
         this.name = name;
-        this.notes = new ArrayList<>();
+        this.notes = new LinkedHashMap<>();
         this.subFolders = new ArrayList<>();
         this.subFolderNames = new ArrayList<>();
         this.favorite = false;
@@ -39,7 +45,7 @@ public class Folder {
         }
         this.id = id;
         this.name = name;
-        this.notes = new ArrayList<>(); // Khởi tạo rỗng, sẽ được populate sau nếu cần
+        this.notes = new LinkedHashMap<>(); // Khởi tạo rỗng, sẽ được populate sau nếu cần
         this.subFolders = new ArrayList<>(); // Khởi tạo rỗng
         this.subFolderNames = new ArrayList<>(); // Khởi tạo rỗng
         this.favorite = false; // Có thể cần thêm trường 'favorite' vào CSDL và constructor này
@@ -64,27 +70,73 @@ public class Folder {
         this.name = name;
     }
 
-    public List<Note> getNotes() {
-        // Giữ nguyên logic khởi tạo lười nếu notes là null
-        return notes != null ? notes : (notes = new ArrayList<>());
+    /** Các note trong folder theo thứ tự được thêm vào (chỉ đọc; thêm/xóa qua addNote/removeNote). */
+    public Collection<Note> getNotes() {
+        return Collections.unmodifiableCollection(notes().values());
+    }
+
+    public int getNoteCount() {
+        return notes().size();
+    }
+
+    public boolean containsNote(Note note) {
+        return note != null && notes().containsKey(note.getId());
     }
 
     public void addNote(Note note) {
-        if (note != null && !getNotes().contains(note)) {
-            getNotes().add(note);
+        if (note != null && !containsNote(note)) {
+            attachNote(note);
             note.setFolder(this); // Giả sử Note có setFolder
         }
     }
 
     public void removeNote(Note note) {
         if (note != null) {
-            getNotes().remove(note);
+            detachNote(note);
             if (note.getFolder() == this) {
                 note.setFolder(null); // Giả sử Note có setFolder
             }
         }
     }
 
+    /**
+     * Chỉ ghi nhận note thuộc folder này, không đụng tới folder/updatedAt của note (do nơi gọi gán).
+     * Note cùng ID đã có thì được thay bằng instance này ở đúng vị trí cũ; note đang nằm trong folder khác
+     * (nơi gọi đã đổi folder của note trước khi cập nhật) được bỏ khỏi folder đó, nên mỗi note chỉ thuộc một folder.
+     */
+    void attachNote(Note note) {
+        if (note.listedIn != null && note.listedIn != this) {
+            note.listedIn.detachNote(note);
+        }
+        notes().put(note.getId(), note);
+        note.listedIn = this;
+    }
+
+    /** Bỏ note khỏi folder mà không đụng tới note. */
+    void detachNote(Note note) {
+        notes().remove(note.getId());
+        if (note.listedIn == this) {
+            note.listedIn = null;
+        }
+    }
+
+    /**
+     * Bản sao chỉ gồm các trường được lưu (ID, tên, favorite, tên subfolder) cho luồng đọc không giữ khóa
+     * ({@link NoteManager#getAllFolders()}) và để ghi trên luồng khác ({@link StorageSnapshot#copyFolders}).
+     * Không kèm danh sách note.
+     */
+    Folder snapshotCopy() {
+        Folder copy = new Folder(id, name);
+        copy.subFolderNames = new ArrayList<>(getSubFolderNames());
+        copy.favorite = favorite;
+        return copy;
+    }
+
+    private Map<Long, Note> notes() {
+        // Giữ nguyên logic khởi tạo lười nếu notes là null (Gson không gọi constructor)
+        return notes != null ? notes : (notes = new LinkedHashMap<>());
+    }
+
     public List<Folder> getSubFolders() {
         // Giữ nguyên logic khởi tạo lười
         return subFolders != null ? subFolders : (subFolders = new ArrayList<>());
@@ -125,9 +177,10 @@ public class Folder {
 
     public void deleteFolder(boolean deleteNotes) {
         if (deleteNotes) {
-            getNotes().clear();
+            notes().values().forEach(note -> note.listedIn = null);
+            notes().clear();
         } else {
-            getNotes().forEach(note -> note.setFolder(null)); // Giả sử Note có setFolder(null)
+            notes().values().forEach(note -> note.setFolder(null)); // Giả sử Note có setFolder(null)
         }
         getSubFolders().clear();
         if (this.subFolderNames != null) {
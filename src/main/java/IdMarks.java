@@ -0,0 +1,54 @@
+import java.util.Arrays;
+
+/**
+ * Mốc cao của các bộ cấp ID: mọi ID đã cấp của một loại đều nhỏ hơn mốc của loại đó.
+ * <p>
+ * NoteManager dành trước ID theo khối ({@link NoteManager#ID_BLOCK_SIZE}) và lưu mốc cùng dữ liệu: trường
+ * {@code "ids"} ở dòng đầu notes.json và manifest của shard, bản ghi đầu của notes.bin, bản ghi
+ * {@code RESERVE_IDS} trong journal, bảng {@code meta} của SQL. Khi tải, mốc được dùng thẳng làm ID kế tiếp
+ * thay vì tìm ID lớn nhất trong toàn bộ dữ liệu. Mốc 0 nghĩa là chưa biết (dữ liệu ghi trước khi có mốc).
+ */
+final class IdMarks {
+    enum Kind { NOTE, FOLDER, TAG, ALARM }
+
+    private final long[] marks = new long[Kind.values().length];
+
+    long get(Kind kind) {
+        return marks[kind.ordinal()];
+    }
+
+    void set(Kind kind, long mark) {
+        marks[kind.ordinal()] = mark;
+    }
+
+    /** Nâng từng mốc lên ít nhất bằng mốc tương ứng của {@code other}; mốc không bao giờ giảm. */
+    void raise(IdMarks other) {
+        if (other == null) {
+            return;
+        }
+        for (int i = 0; i < marks.length; i++) {
+            marks[i] = Math.max(marks[i], other.marks[i]);
+        }
+    }
+
+    /** Chưa có mốc nào được lưu. */
+    boolean isEmpty() {
+        for (long mark : marks) {
+            if (mark != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    IdMarks copy() {
+        IdMarks copy = new IdMarks();
+        System.arraycopy(marks, 0, copy.marks, 0, marks.length);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "IdMarks" + Arrays.toString(marks);
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backend chỉ giữ dữ liệu trong bộ nhớ, dùng để kiểm thử NoteManager và PersistenceService mà không đụng tới đĩa.
+ * Dữ liệu được giữ ở dạng đã mã hóa (cùng định dạng bản ghi với {@link NoteJournal}) và được giải mã lại mỗi lần
+ * {@link #load(NoteManager)}, nên các đối tượng đang được sửa không bao giờ bị chia sẻ với dữ liệu "đã lưu".
+ */
+public class InMemoryStorageBackend implements StorageBackend {
+    // ID -> bản ghi upsert mới nhất, giữ thứ tự thêm vào như danh sách của NoteManager
+    private final Map<Long, String> notes = new LinkedHashMap<>();
+    private final Map<Long, String> folders = new LinkedHashMap<>();
+    private final Map<Long, String> tags = new LinkedHashMap<>();
+    private String idReservation; // Bản ghi RESERVE_IDS mới nhất, null nếu chưa có
+    private IdMarks loadedIdMarks;
+    private int appliedRecords;
+    private int snapshotsWritten;
+
+    @Override
+    public synchronized void load(NoteManager noteManager) {
+        List<Note> noteList = noteManager.getModifiableNotesList();
+        List<Folder> folderList = noteManager.getModifiableFoldersList();
+        List<Tag> tagList = noteManager.getModifiableTagsList();
+        try {
+            for (String record : folders.values()) {
+                folderList.add((Folder) NoteJournal.decodeRecord(record).entity);
+            }
+            Set<Long> tagIds = new HashSet<>();
+            for (String record : tags.values()) {
+                Tag tag = (Tag) NoteJournal.decodeRecord(record).entity;
+                tagList.add(tag);
+                tagIds.add(tag.getId());
+            }
+            for (String record : notes.values()) {
+                Note note = (Note) NoteJournal.decodeRecord(record).entity;
+                note.getTags().removeIf(t -> !tagIds.contains(t.getId())); // Tag đã bị xóa sau khi note được lưu
+                noteList.add(note);
+            }
+            loadedIdMarks = idReservation != null ? (IdMarks) NoteJournal.decodeRecord(idReservation).entity : null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Bản ghi trong bộ nhớ bị hỏng", e); // Chỉ xảy ra nếu có lỗi lập trình
+        }
+        System.out.println("[InMemoryStorageBackend load] Đã tải " + noteList.size() + " notes, " +
+                folderList.size() + " folders, " + tagList.size() + " tags.");
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    @Override
+    public IdMarks getLoadedIdMarks() {
+        return loadedIdMarks;
+    }
+
+    @Override
+    public String encodeIdReservation(IdMarks idMarks) {
+        return NoteJournal.encodeIdReservation(idMarks);
+    }
+
+    @Override
+    public String encodeNoteUpsert(Note note) {
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_NOTE, note);
+    }
+
+    @Override
+    public String encodeNoteDelete(long noteId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_NOTE, noteId);
+    }
+
+    @Override
+    public String encodeFolderUpsert(Folder folder) {
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_FOLDER, folder);
+    }
+
+    @Override
+    public String encodeFolderDelete(long folderId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_FOLDER, folderId);
+    }
+
+    @Override
+    public String encodeTagUpsert(Tag tag) {
+        return NoteJournal.encodeUpsert(NoteJournal.Op.UPSERT_TAG, tag);
+    }
+
+    @Override
+    public String encodeTagDelete(long tagId) {
+        return NoteJournal.encodeDelete(NoteJournal.Op.DELETE_TAG, tagId);
+    }
+
+    @Override
+    public synchronized void applyChanges(List<String> records) throws IOException {
+        for (String line : records) {
+            NoteJournal.Record record = NoteJournal.decodeRecord(line);
+            switch (record.op) {
+                case UPSERT_NOTE: notes.put(record.id, line); break;
+                case DELETE_NOTE: notes.remove(record.id); break;
+                case UPSERT_FOLDER: folders.put(record.id, line); break;
+                case DELETE_FOLDER: folders.remove(record.id); break;
+                case UPSERT_TAG: tags.put(record.id, line); break;
+                case DELETE_TAG: tags.remove(record.id); break;
+                case RESERVE_IDS: idReservation = line; break;
+            }
+        }
+        appliedRecords += records.size();
+    }
+
+    @Override
+    public StorageSnapshot captureSnapshot(NoteManager noteManager) {
+        StorageSnapshot snapshot = new StorageSnapshot(StorageSnapshot.copyNotes(noteManager.getAllNotes()),
+                StorageSnapshot.copyFolders(noteManager.getAllFolders()),
+                StorageSnapshot.copyTags(noteManager.getAllTags()));
+        snapshot.idMarks = noteManager.getIdMarks();
+        return snapshot;
+    }
+
+    @Override
+    public synchronized void writeSnapshot(StorageSnapshot snapshot) {
+        notes.clear();
+        folders.clear();
+        tags.clear();
+        for (Note note : snapshot.notes) {
+            notes.put(note.getId(), encodeNoteUpsert(note));
+        }
+        for (Folder folder : snapshot.folders) {
+            folders.put(folder.getId(), encodeFolderUpsert(folder));
+        }
+        for (Tag tag : snapshot.tags) {
+            tags.put(tag.getId(), encodeTagUpsert(tag));
+        }
+        idReservation = snapshot.idMarks != null ? encodeIdReservation(snapshot.idMarks) : null;
+        snapshotsWritten++;
+    }
+
+    /** Số bản ghi đã áp dụng qua {@link #applyChanges(List)}. */
+    public synchronized int getAppliedRecordCount() {
+        return appliedRecords;
+    }
+
+    public synchronized int getSnapshotCount() {
+        return snapshotsWritten;
+    }
+}
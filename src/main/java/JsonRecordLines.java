@@ -0,0 +1,356 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout "mỗi bản ghi một dòng" cho các file JSON của DataStorage (notes.json, shard, manifest):
+ * <pre>
+ * {"version":2,"folders":[
+ * {"id":1,"name":"Root",...,"crc":"89abcdef"},
+ * {"id":2,...,"crc":"01234567"}
+ * ],"tags":[
+ * ],"notes":[
+ * ...
+ * ]}
+ * </pre>
+ * File vẫn là một tài liệu JSON hợp lệ, nhưng mỗi bản ghi nằm trọn trên một dòng và mang checksum riêng
+ * ({@link RecordChecksum}), nên khi file bị hỏng, chế độ cứu dữ liệu chỉ mất đúng những bản ghi hỏng.
+ * Dòng đầu có thể chứa thêm trường của file (ví dụ {@code "folderId":5} hay mốc ID {@code "ids":{...}})
+ * trước tên phần đầu tiên.
+ * <p>
+ * Khi dữ liệu được mã hóa ({@link RecordCipher}), mỗi bản ghi là một phong bì {@code {"id":7,"enc":"..."}}
+ * thay cho object gốc; checksum và dấu vân tay tính trên phong bì, bộ đọc giải mã trước khi giao cho handler.
+ */
+final class JsonRecordLines {
+    static final int VERSION = 2;
+    private static final String HEADER_PREFIX = "{\"version\":";
+
+    interface Body {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    /** Nhận từng bản ghi đã qua kiểm tra checksum; {@code reader} đứng ở đầu object của bản ghi. */
+    interface Handler {
+        void accept(String section, JsonReader reader) throws IOException;
+    }
+
+    /** Nhận từng trường thêm ở dòng đầu; {@code reader} đứng ở giá trị của trường và handler phải đọc hết giá trị đó. */
+    interface HeaderHandler {
+        void accept(String field, JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Chọn bản ghi cần giải mã trước khi parse, dựa trên checksum đã kiểm tra: {@code id} là ID ở đầu bản ghi
+     * (null nếu không đọc được), {@code crc} là checksum lưu trong bản ghi. Bản ghi bị từ chối được bỏ qua
+     * mà không tốn công giải mã, dùng để đọc riêng dấu vân tay hoặc chỉ một vài bản ghi.
+     */
+    interface Filter {
+        boolean accept(String section, Long id, int crc);
+    }
+
+    private JsonRecordLines() {
+    }
+
+    /** Ghi tuần tự: dòng đầu, các bản ghi, chuyển phần bằng {@link #section(String)}, cuối cùng {@link #finish()}. */
+    static final class Writer {
+        private final OutputStream out;
+        private final RecordBytes record = new RecordBytes();
+        private final java.io.Writer recordChars = new OutputStreamWriter(record, StandardCharsets.UTF_8);
+        private final RecordCipher cipher = RecordCipher.current(); // null: ghi bản ghi không mã hóa
+        private String section;
+        private boolean firstInSection = true;
+
+        /** @param headerFields Các trường thêm vào dòng đầu (ví dụ {@code "folderId":5}), hoặc chuỗi rỗng. */
+        Writer(OutputStream out, String headerFields, String firstSection) throws IOException {
+            this.out = out;
+            this.section = firstSection;
+            write(HEADER_PREFIX + VERSION + "," + (headerFields.isEmpty() ? "" : headerFields + ",") +
+                    "\"" + firstSection + "\":[\n");
+        }
+
+        /** @return Checksum của bản ghi vừa ghi (cùng giá trị mà {@link Filter} nhận được khi đọc lại). */
+        int record(Body body) throws IOException {
+            record.reset();
+            JsonWriter writer = new JsonWriter(recordChars); // Không thụt lề: bản ghi nằm trên đúng một dòng
+            writer.setSerializeNulls(false);
+            body.write(writer);
+            writer.flush();
+            if (!firstInSection) {
+                write(",\n");
+            }
+            int crc;
+            if (cipher != null) {
+                byte[] envelope = cipher.sealRecord(section, record.buffer(), record.size());
+                crc = RecordChecksum.writeSealed(out, envelope, envelope.length);
+            } else {
+                crc = RecordChecksum.writeSealed(out, record.buffer(), record.size());
+            }
+            firstInSection = false;
+            return crc;
+        }
+
+        void section(String name) throws IOException {
+            write((firstInSection ? "" : "\n") + "],\"" + name + "\":[\n");
+            section = name;
+            firstInSection = true;
+        }
+
+        void finish() throws IOException {
+            write((firstInSection ? "" : "\n") + "]}\n");
+            out.flush();
+        }
+
+        private void write(String text) throws IOException {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Bộ đệm cho phép đọc thẳng mảng byte bên trong, tránh sao chép mỗi bản ghi. */
+    private static final class RecordBytes extends ByteArrayOutputStream {
+        RecordBytes() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /** File có theo layout này không (dòng đầu dạng {@code {"version":N,...,"ten":[}). */
+    static boolean isRecordLines(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[512];
+            int length = in.readNBytes(head, 0, head.length);
+            String text = new String(head, 0, length, StandardCharsets.UTF_8);
+            int newline = text.indexOf('\n');
+            return newline > 0 && isHeader(text.substring(0, newline));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isHeader(String line) {
+        return line.startsWith(HEADER_PREFIX) && line.endsWith("\":[");
+    }
+
+    /** Tên phần ở cuối dòng đầu hoặc dòng chuyển phần: {@code ...,"notes":[} -> notes. */
+    private static String sectionName(String line) {
+        int end = line.length() - 3;
+        int start = line.lastIndexOf('"', end - 1);
+        return line.substring(start + 1, end);
+    }
+
+    /**
+     * Đọc toàn bộ file, gọi {@code handler} cho từng bản ghi.
+     * @param report null: đọc nghiêm ngặt, bản ghi hỏng hay file cụt đều ném IOException.
+     *               Khác null (cứu dữ liệu): bỏ qua bản ghi hỏng, giữ mọi bản ghi đọc được và ghi nhận phần bị mất.
+     *               Dòng đầu hỏng thì luôn ném IOException vì không còn biết file chứa gì.
+     * @return Số bản ghi đã đọc được.
+     */
+    static int read(File source, Handler handler, SalvageReport report) throws IOException {
+        return read(source, null, handler, report);
+    }
+
+    /** Như {@link #read(File, Handler, SalvageReport)}, và gọi {@code headerHandler} cho các trường thêm ở dòng đầu trước mọi bản ghi. */
+    static int read(File source, HeaderHandler headerHandler, Handler handler, SalvageReport report) throws IOException {
+        return read(source, headerHandler, null, handler, report);
+    }
+
+    /** Như trên, nhưng chỉ giải mã các bản ghi được {@code filter} chấp nhận (null: mọi bản ghi). */
+    static int read(File source, HeaderHandler headerHandler, Filter filter, Handler handler, SalvageReport report) throws IOException {
+        int accepted = 0;
+        try (InputStream in = new FileInputStream(source)) {
+            LineBuffer line = new LineBuffer(in);
+            if (!line.next() || !line.terminated || !isHeader(line.asString())) {
+                throw new IOException("Dòng đầu của " + source.getName() + " không hợp lệ");
+            }
+            String header = line.asString();
+            int version = parseVersion(header);
+            if (version != VERSION) {
+                throw new IOException("Phiên bản " + version + " của " + source.getName() + " không được hỗ trợ");
+            }
+            if (headerHandler != null) {
+                readHeaderFields(source, header, headerHandler);
+            }
+            String section = sectionName(header);
+            int lineNumber = 1;
+            int indexInSection = 0;
+            boolean closed = false;
+            while (line.next()) {
+                lineNumber++;
+                if (line.length > 0 && line.bytes[0] == ']') {
+                    String text = line.asString();
+                    if (text.equals("]}")) {
+                        closed = true;
+                        break;
+                    }
+                    if (text.startsWith("],\"") && text.endsWith("\":[") && line.terminated) {
+                        section = sectionName(text);
+                        indexInSection = 0;
+                        continue;
+                    }
+                }
+                int recordIndex = indexInSection++;
+                int length = line.length;
+                if (line.terminated && length > 0 && line.bytes[length - 1] == ',') {
+                    length--;
+                }
+                String problem;
+                if (!line.terminated) {
+                    problem = "dòng bị ghi dở";
+                } else {
+                    RecordChecksum.Status status = RecordChecksum.check(line.bytes, length);
+                    problem = status == RecordChecksum.Status.VALID ? null
+                            : status == RecordChecksum.Status.MISSING ? "thiếu checksum" : "sai checksum";
+                }
+                if (problem == null && filter != null && !filter.accept(section, leadingId(line.bytes, length), RecordChecksum.stored(line.bytes, length))) {
+                    continue;
+                }
+                if (problem == null) {
+                    try {
+                        String json;
+                        if (RecordCipher.isEnvelope(line.bytes, length)) {
+                            json = new String(RecordCipher.require().openRecord(section, line.bytes, length), StandardCharsets.UTF_8);
+                        } else {
+                            json = new String(line.bytes, 0, length, StandardCharsets.UTF_8);
+                            RecordCipher.notePlaintextRead(1);
+                        }
+                        handler.accept(section, new JsonReader(new StringReader(json)));
+                        accepted++;
+                        continue;
+                    } catch (RecordCipher.LockedException e) {
+                        throw e; // Thiếu khóa không phải là bản ghi hỏng: không được bỏ bản ghi nào
+                    } catch (IOException | RuntimeException e) {
+                        problem = "không giải mã được: " + e.getMessage();
+                    }
+                }
+                if (report == null) {
+                    throw new IOException("Bản ghi hỏng ở dòng " + lineNumber + " của " + source.getName() + " (" + problem + ")");
+                }
+                report.recordLost(source, section, "#" + recordIndex + " (dòng " + lineNumber + ")", leadingId(line.bytes, length), problem);
+            }
+            if (!closed) {
+                if (report == null) {
+                    throw new IOException(source.getName() + " bị cắt cụt sau dòng " + lineNumber);
+                }
+                report.recordTruncated(source, section, "dòng " + (lineNumber + 1), "thiếu phần kết thúc của file");
+            }
+        }
+        return accepted;
+    }
+
+    /** Dòng đầu cộng thêm {@code "]}"} là một object JSON hoàn chỉnh; đọc các trường cho tới mảng của phần đầu tiên. */
+    private static void readHeaderFields(File source, String header, HeaderHandler handler) throws IOException {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(header + "]}"));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    return;
+                }
+                if (field.equals("version")) {
+                    reader.skipValue();
+                } else {
+                    handler.accept(field, reader);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IOException("Dòng đầu của " + source.getName() + " không hợp lệ: " + e.getMessage(), e);
+        }
+    }
+
+    private static int parseVersion(String header) throws IOException {
+        int start = HEADER_PREFIX.length();
+        int end = start;
+        while (end < header.length() && Character.isDigit(header.charAt(end))) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(header.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new IOException("Dòng đầu thiếu phiên bản: " + header);
+        }
+    }
+
+    /** ID của bản ghi hỏng nếu phần đầu còn đọc được: note/folder/tag đều được ghi với trường "id" đứng đầu. */
+    static Long leadingId(byte[] line, int length) {
+        byte[] prefix = "{\"id\":".getBytes(StandardCharsets.US_ASCII);
+        if (length <= prefix.length) {
+            return null;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return null;
+            }
+        }
+        int end = prefix.length;
+        while (end < length && end - prefix.length < 19 && (Character.isDigit(line[end]) || (end == prefix.length && line[end] == '-'))) {
+            end++;
+        }
+        if (end == length || line[end] != ',') {
+            return null;
+        }
+        try {
+            return Long.parseLong(new String(line, prefix.length, end - prefix.length, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Đọc từng dòng dưới dạng byte (checksum được tính trên byte, chỉ giải mã UTF-8 một lần khi parse). */
+    private static final class LineBuffer {
+        private final InputStream in;
+        private final byte[] chunk = new byte[64 * 1024];
+        private int chunkPosition;
+        private int chunkLimit;
+        byte[] bytes = new byte[4096];
+        int length;
+        boolean terminated;
+
+        LineBuffer(InputStream in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            terminated = false;
+            while (true) {
+                if (chunkPosition == chunkLimit) {
+                    chunkLimit = in.read(chunk);
+                    chunkPosition = 0;
+                    if (chunkLimit <= 0) {
+                        chunkLimit = 0;
+                        return length > 0;
+                    }
+                }
+                int end = chunkPosition;
+                while (end < chunkLimit && chunk[end] != '\n') {
+                    end++;
+                }
+                append(end - chunkPosition);
+                if (end < chunkLimit) {
+                    chunkPosition = end + 1;
+                    terminated = true;
+                    return true;
+                }
+                chunkPosition = end;
+            }
+        }
+
+        private void append(int count) {
+            if (length + count > bytes.length) {
+                bytes = java.util.Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(chunk, chunkPosition, bytes, length, count);
+            length += count;
+        }
+
+        String asString() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
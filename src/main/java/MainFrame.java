@@ -4,6 +4,7 @@ import com.formdev.flatlaf.FlatLightLaf;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Objects;
 import java.util.Random;
@@ -292,6 +293,16 @@ public class MainFrame extends JFrame {
         }
     }
 
+    /** Dữ liệu vừa được cập nhật từ phiên bản khác của ứng dụng: làm mới các danh sách mà không đổi màn hình đang xem. */
+    public void refreshAfterExternalChange() {
+        if (mainMenuScreen != null) {
+            mainMenuScreen.refresh();
+        }
+        if (missionScreen != null) {
+            missionScreen.refreshMissions();
+        }
+    }
+
     // ... (Các phương thức còn lại: showMissionsScreen, openCanvasPanel, confirmAndExit, setupShortcuts, triggerThemeUpdate, getMouseEventDispatcher, getAppController giữ nguyên)
     // Đảm bảo các phương thức này cũng kiểm tra this.controller nếu cần
     public void showMissionsScreen() {
@@ -318,6 +329,10 @@ public class MainFrame extends JFrame {
                     if (manager != null) {
                         System.out.println("[MainFrame confirmAndExit] Đang lưu dữ liệu cuối cùng...");
                         manager.saveData();
+                        if (!closeNoteManager(manager)) {
+                            System.out.println("[MainFrame confirmAndExit] Hủy thoát vì dữ liệu chưa được lưu.");
+                            return;
+                        }
                     } else {
                         System.err.println("[MainFrame confirmAndExit] Lỗi: NoteManager là null, không thể lưu dữ liệu khi thoát.");
                     }
@@ -334,6 +349,32 @@ public class MainFrame extends JFrame {
         }
     }
 
+    /**
+     * Chờ luồng ghi nền hoàn tất và nhả khóa dữ liệu. Nếu lần ghi cuối thất bại, hỏi người dùng thử lại,
+     * thoát mà không lưu, hay ở lại ứng dụng (thay đổi vẫn còn trong bộ nhớ).
+     * @return true nếu có thể thoát.
+     */
+    private boolean closeNoteManager(NoteManager manager) {
+        while (true) {
+            try {
+                manager.close();
+                return true;
+            } catch (IOException e) {
+                System.err.println("[MainFrame confirmAndExit] Lỗi: Không thể lưu dữ liệu trước khi thoát: " + e.getMessage());
+                Object[] options = {"Thử lại", "Thoát không lưu", "Hủy"};
+                int choice = JOptionPane.showOptionDialog(this,
+                        "Không thể lưu dữ liệu xuống đĩa:\n" + e.getMessage() + "\n\nNếu thoát bây giờ, các thay đổi chưa lưu sẽ bị mất.",
+                        "Lỗi Lưu Dữ Liệu", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.ERROR_MESSAGE, null, options, options[0]);
+                if (choice == 1) {
+                    return true;
+                }
+                if (choice != 0) {
+                    return false;
+                }
+            }
+        }
+    }
+
     private void setupShortcuts() {
         if (this.controller == null) {
             System.err.println("LỖI: Controller là null trong setupShortcuts. Phím tắt có thể không hoạt động.");
@@ -22,6 +22,8 @@ public class MainMenuScreen extends JPanel {
     private static final String ADD_NOTE_LABEL = "Thêm ghi chú";
     private static final String ADD_DRAW_PANEL_LABEL = "Thêm Bản Vẽ";
     private static final String REFRESH_LABEL = "Làm mới";
+    private static final String IMPORT_LABEL = "Nhập thư mục";
+    private static final String EXPORT_LABEL = "Xuất";
     private static final String TITLE_SEARCH_PLACEHOLDER = "Tìm theo tiêu đề...";
     private static final String TAG_SEARCH_PLACEHOLDER = "Tìm theo tag...";
 
@@ -700,11 +702,46 @@ public class MainMenuScreen extends JPanel {
         gbc.fill = GridBagConstraints.NONE;
 
 
+        // Import Button
+        JButton importButton = new JButton(IMPORT_LABEL);
+        importButton.setToolTipText("Nhập các file Markdown/văn bản (.md, .txt) từ một thư mục, thư mục con thành thư mục ghi chú");
+        importButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            chooser.setDialogTitle("Chọn thư mục cần nhập");
+            if (chooser.showOpenDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
+                controller.importDirectory(chooser.getSelectedFile(), this::refresh);
+            }
+        });
+        gbc.gridx = 7; gbc.gridy = 0;
+        panel.add(importButton, gbc);
+
+        // Export Button
+        JButton exportButton = new JButton(EXPORT_LABEL);
+        exportButton.setToolTipText("Xuất toàn bộ ghi chú ra Markdown/HTML (bản vẽ ra PNG) vào một thư mục hoặc file .zip");
+        exportButton.addActionListener(e -> {
+            NoteExporter.Format[] formats = NoteExporter.Format.values();
+            String[] options = {"Markdown", "HTML"};
+            int choice = JOptionPane.showOptionDialog(mainFrame, "Chọn định dạng xuất:", "Xuất Ghi Chú",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+            if (choice < 0) {
+                return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+            chooser.setDialogTitle("Chọn thư mục đích hoặc đặt tên file .zip");
+            if (chooser.showSaveDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
+                controller.exportNotes(chooser.getSelectedFile(), formats[choice]);
+            }
+        });
+        gbc.gridx = 8; gbc.gridy = 0;
+        panel.add(exportButton, gbc);
+
         // Refresh Button
         JButton refreshButton = new JButton(REFRESH_LABEL);
         refreshButton.setToolTipText("Làm mới danh sách (Ctrl+R)");
         refreshButton.addActionListener(e -> refresh());
-        gbc.gridx = 8; gbc.gridy = 0;
+        gbc.gridx = 9; gbc.gridy = 0;
         panel.add(refreshButton, gbc);
 
         panel.setBorder(BorderFactory.createEmptyBorder(5,0,5,0)); // Add some vertical padding to the panel itself
@@ -1,3 +1,5 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -17,7 +19,9 @@ public class Note {
 
     private long id;
     private String title;
-    private String content; // Sẽ dùng cho TEXT, có thể null cho DRAWING
+    private String content; // Sẽ dùng cho TEXT, có thể null cho DRAWING; null khi nội dung nằm trong NoteBodyStore
+    private boolean contentStored; // Nội dung đã lưu trong NoteBodyStore (chế độ tải lười), không giữ trên heap
+    private transient NoteBodyStore bodyStore; // Dùng để đọc nội dung khi contentStored
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     private boolean isFavorite;
@@ -27,6 +31,7 @@ public class Note {
 
     private long folderId;
     private transient Folder folder;
+    transient Folder listedIn; // Folder đang giữ note trong danh sách của nó, do Folder cập nhật (có thể khác folder khi nơi gọi vừa đổi folder)
 
     private transient List<Tag> tags;
 
@@ -36,6 +41,8 @@ public class Note {
     // Trường mới cho loại Note và dữ liệu bản vẽ
     private NoteType noteType;
     private String drawingData; // Dùng để lưu trữ dữ liệu bản vẽ, ví dụ Base64 của ảnh PNG
+    private String drawingHash; // Hash nội dung của bản vẽ trong DrawingBlobStore (null nếu chưa lưu ra blob)
+    private transient DrawingBlobStore drawingStore; // Dùng để tải lười drawingData từ drawingHash
 
     // Các trường folderName, tagNames không còn được sử dụng trực tiếp bởi DataStorage mới
     // String folderName; // Sẽ được quản lý qua folderId và transient Folder
@@ -122,14 +129,46 @@ public class Note {
     }
 
     public String getContent() {
+        if (content == null && contentStored && bodyStore != null) {
+            try {
+                String stored = bodyStore.read(id); // Qua bộ đệm LRU, không giữ lại trên note
+                if (stored == null) {
+                    System.err.println("[Note getContent] Cảnh báo: Không tìm thấy nội dung đã lưu của note ID " + id + ".");
+                    return "";
+                }
+                return stored;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Không thể đọc nội dung note " + id, e);
+            }
+        }
         return content;
     }
 
     public void setContent(String content) {
         this.content = content; // Cho phép content là null (ví dụ cho drawing note)
+        this.contentStored = false; // Nội dung mới cần được lưu lại vào NoteBodyStore
         updateUpdatedAt();
     }
 
+    public boolean isContentStored() {
+        return contentStored;
+    }
+
+    /**
+     * Đánh dấu nội dung đã nằm trong kho và bỏ bản trên heap; getContent() sẽ đọc lười qua {@code bodyStore}.
+     * {@code bodyStore} có thể null lúc giải mã snapshot, DataStorage gắn kho sau khi tải xong.
+     */
+    public void setStoredContent(NoteBodyStore bodyStore) {
+        this.contentStored = true;
+        this.content = null;
+        this.bodyStore = bodyStore;
+    }
+
+    /** true nếu TEXT note có nội dung chưa được lưu vào NoteBodyStore. */
+    public boolean hasUnstoredContent() {
+        return getNoteType() == NoteType.TEXT && !contentStored;
+    }
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
@@ -234,21 +273,42 @@ public class Note {
         updateUpdatedAt();
     }
 
+    // Thêm/bớt tag thay danh sách bằng bản mới thay vì sửa tại chỗ: luồng khác có thể đang duyệt danh sách cũ
+    // (đọc từ ảnh chụp của NoteManager)
     public void addTag(Tag tag) {
         if (tag != null && !getTags().contains(tag)) {
-            getTags().add(tag);
+            List<Tag> newTags = new ArrayList<>(getTags());
+            newTags.add(tag);
+            tags = newTags;
             updateUpdatedAt();
         }
     }
 
     public boolean removeTag(Tag tag) {
-        if (tag != null && getTags().remove(tag)) {
+        if (tag != null && getTags().contains(tag)) {
+            List<Tag> newTags = new ArrayList<>(getTags());
+            newTags.remove(tag);
+            tags = newTags;
             updateUpdatedAt();
             return true; // Sửa: trả về true nếu xóa thành công
         }
         return false;
     }
 
+    /**
+     * Bỏ tag có ID này khỏi note mà không đổi updatedAt (nơi gọi quyết định, ví dụ tag bị xóa khỏi hệ thống).
+     * @return true nếu note có tag đó.
+     */
+    boolean removeTagById(long tagId) {
+        if (getTags().stream().noneMatch(t -> t.getId() == tagId)) {
+            return false;
+        }
+        List<Tag> newTags = new ArrayList<>(getTags());
+        newTags.removeIf(t -> t.getId() == tagId);
+        tags = newTags;
+        return true;
+    }
+
     public Long getAlarmId() {
         return alarmId;
     }
@@ -287,19 +347,111 @@ public class Note {
     }
 
     public String getDrawingData() {
+        if (drawingData == null && drawingHash != null && drawingStore != null) {
+            return drawingStore.getBase64(drawingHash); // Tải lười từ kho blob (qua bộ đệm) khi DrawScreen mở
+        }
         return drawingData;
     }
 
     public void setDrawingData(String drawingData) {
         this.drawingData = drawingData;
+        this.drawingHash = null; // Bản vẽ đã thay đổi, cần lưu blob mới
         updateUpdatedAt();
     }
 
+    public String getDrawingHash() {
+        return drawingHash;
+    }
+
+    /**
+     * Gắn note với một blob đã lưu. Khi đã có kho, dữ liệu trên heap được bỏ đi và sẽ được tải lười.
+     */
+    public void setDrawingBlob(String drawingHash, DrawingBlobStore drawingStore) {
+        this.drawingHash = drawingHash;
+        this.drawingStore = drawingStore;
+        if (drawingHash != null && drawingStore != null) {
+            this.drawingData = null;
+        }
+    }
+
+    /** true nếu bản vẽ có dữ liệu chưa được lưu ra kho blob. */
+    public boolean hasUnstoredDrawing() {
+        return drawingHash == null && drawingData != null && !drawingData.isEmpty();
+    }
+
+    /**
+     * Bản sao để đọc trên luồng khác (ví dụ sao lưu nền, xem BackupStore) trong khi note gốc tiếp tục được sửa trên EDT.
+     * Chuỗi được dùng chung; danh sách tag, các Tag và Alarm được sao chép. Nội dung/bản vẽ đã nằm trong kho
+     * vẫn được đọc lười qua cùng kho. Không đi qua setter nên updatedAt giữ nguyên.
+     */
+    Note snapshotCopy() {
+        List<Tag> tagCopies = new ArrayList<>(getTags().size());
+        for (Tag tag : getTags()) {
+            tagCopies.add(new Tag(tag.getId(), tag.getName()));
+        }
+        Note copy = new Note(id, title, content, createdAt, updatedAt, folderId, isFavorite,
+                isMission, isMissionCompleted, missionContent, alarmId, tagCopies, noteType, drawingData);
+        copy.title = title;
+        copy.contentStored = contentStored;
+        copy.bodyStore = bodyStore;
+        copy.drawingHash = drawingHash;
+        copy.drawingStore = drawingStore;
+        if (alarm != null) {
+            copy.alarm = new Alarm(alarm.getId(), alarm.getAlarmTime(), alarm.isRecurring(), alarm.getRecurrencePattern());
+        }
+        return copy;
+    }
+
+    /**
+     * Như {@link #snapshotCopy()}, nhưng nội dung đang nằm trong kho được đọc ngay và đặt trực tiếp vào bản sao,
+     * nên bản sao giữ đúng phiên bản khớp với metadata dù kho (chỉ giữ phiên bản mới nhất theo ID) đổi sau đó.
+     */
+    Note snapshotCopyWithContent() {
+        Note copy = snapshotCopy();
+        if (contentStored) {
+            copy.content = getContent();
+            copy.contentStored = false;
+            copy.bodyStore = null;
+        }
+        return copy;
+    }
+
+    /**
+     * Đặt lại mọi trường về bản sao {@code published} (do {@link #snapshotCopy()} tạo) khi hoàn tác batch, xem
+     * {@link NoteManager.Batch}. Folder và các Tag là instance được quản lý do nơi gọi tra theo ID; alarm được chép
+     * để note không dùng chung instance với bản sao. Danh sách note của folder do nơi gọi cập nhật.
+     * Không đi qua setter nên updatedAt giữ nguyên.
+     */
+    void restoreFrom(Note published, Folder folder, List<Tag> tags) {
+        id = published.id;
+        title = published.title;
+        content = published.content;
+        contentStored = published.contentStored;
+        bodyStore = published.bodyStore;
+        createdAt = published.createdAt;
+        updatedAt = published.updatedAt;
+        isFavorite = published.isFavorite;
+        isMission = published.isMission;
+        isMissionCompleted = published.isMissionCompleted;
+        missionContent = published.missionContent;
+        folderId = published.folderId;
+        this.folder = folder;
+        this.tags = new ArrayList<>(tags);
+        alarmId = published.alarmId;
+        Alarm saved = published.alarm;
+        alarm = saved != null ? new Alarm(saved.getId(), saved.getAlarmTime(), saved.isRecurring(), saved.getRecurrencePattern()) : null;
+        noteType = published.noteType;
+        drawingData = published.drawingData;
+        drawingHash = published.drawingHash;
+        drawingStore = published.drawingStore;
+    }
+
     public int getWordCount() {
-        if (noteType == NoteType.DRAWING || content == null || content.trim().isEmpty()) {
+        String text = (noteType == NoteType.DRAWING) ? null : getContent();
+        if (text == null || text.trim().isEmpty()) {
             return 0;
         }
-        String[] words = content.trim().split("\\s+");
+        String[] words = text.trim().split("\\s+");
         return words.length;
     }
 
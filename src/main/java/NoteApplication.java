@@ -43,7 +43,15 @@ public class NoteApplication {
         SwingUtilities.invokeLater(() -> {
             System.out.println("[NoteApplication] EDT: Bắt đầu khởi tạo ứng dụng...");
 
+            if (!unlockStorage()) {
+                System.out.println("[NoteApplication] Người dùng không nhập mật khẩu, thoát.");
+                System.exit(0);
+                return;
+            }
             NoteManager noteManager = new NoteManager();
+            if (!noteManager.isReadOnly()) { // Phiên bản đang giữ dữ liệu tự sao lưu
+                BackupStore.startPeriodicBackups(noteManager); // Sao lưu định kỳ trên luồng nền, xem StorageConfig
+            }
             NoteService noteService = new NoteService(noteManager);
             NoteController controller = new NoteController(null, noteService);
             MainFrame mainFrame = new MainFrame(controller);
@@ -52,6 +60,25 @@ public class NoteApplication {
             System.out.println("[NoteApplication] EDT: Đặt MainFrame thành visible.");
             mainFrame.setVisible(true);
 
+            if (noteManager.getReadOnlyReason() != null) {
+                JOptionPane.showMessageDialog(mainFrame,
+                        noteManager.getReadOnlyReason() + "\n" +
+                                "Cửa sổ này chỉ để xem: thay đổi ở đây sẽ không được lưu, dữ liệu đã lưu được giữ nguyên.",
+                        "Chế độ chỉ đọc", JOptionPane.WARNING_MESSAGE);
+            } else if (noteManager.isReadOnly()) {
+                JOptionPane.showMessageDialog(mainFrame,
+                        "Dữ liệu đang được mở trong một cửa sổ XiNoClo khác.\n" +
+                                "Cửa sổ này chỉ để xem: thay đổi ở đây sẽ không được lưu, còn thay đổi từ cửa sổ kia sẽ tự cập nhật.",
+                        "Chế độ chỉ đọc", JOptionPane.WARNING_MESSAGE);
+            }
+            // Lỗi ghi (đĩa đầy, mất quyền ghi...): báo ngay, thay đổi vẫn được giữ trong bộ nhớ và được ghi lại sau
+            noteManager.setSaveFailureListener(e -> SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(mainFrame,
+                    "Không thể lưu dữ liệu xuống đĩa:\n" + e.getMessage() + "\n\n" +
+                            "Các thay đổi vẫn nằm trong bộ nhớ và sẽ được tự động ghi lại. Đừng tắt ứng dụng cho tới khi lỗi được khắc phục.",
+                    "Lỗi Lưu Dữ Liệu", JOptionPane.ERROR_MESSAGE)));
+            // Gộp thay đổi do phiên bản khác (hoặc công cụ đồng bộ file) ghi, trên EDT
+            noteManager.watchExternalChanges(SwingUtilities::invokeLater, mainFrame::refreshAfterExternalChange);
+
             SwingUtilities.invokeLater(() -> {
                 System.out.println("[NoteApplication] EDT (inner): Đang làm mới MainMenuScreen.");
                 mainFrame.showMainMenuScreen();
@@ -61,4 +88,63 @@ public class NoteApplication {
         });
     }
 
+    /**
+     * Dữ liệu được mã hóa (xem {@link StorageConfig#isEncryptionEnabled()}): hỏi mật khẩu tới khi đúng.
+     * Lần đầu bật mã hóa thì hỏi hai lần rồi tạo khóa mới.
+     * @return false nếu người dùng hủy.
+     */
+    private static boolean unlockStorage() {
+        if (StorageConfig.getBackendType() != StorageConfig.BackendType.JSON) {
+            return true;
+        }
+        File keyFile = RecordCipher.keyFileFor(StorageConfig.DATA_FILE);
+        boolean creating = !keyFile.exists();
+        if (creating && !StorageConfig.isEncryptionEnabled()) {
+            return true;
+        }
+        try {
+            if (RecordCipher.unlockFromConfig(keyFile) != null) {
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("[NoteApplication] Mật khẩu trong cấu hình không mở được dữ liệu: " + e.getMessage());
+        }
+        while (true) {
+            char[] passphrase = askPassphrase(creating ? "Đặt mật khẩu để mã hóa dữ liệu ghi chú:" : "Nhập mật khẩu để mở dữ liệu ghi chú:");
+            if (passphrase == null) {
+                return false;
+            }
+            try {
+                if (creating) {
+                    char[] confirmation = askPassphrase("Nhập lại mật khẩu (không thể khôi phục dữ liệu nếu quên mật khẩu):");
+                    if (confirmation == null) {
+                        return false;
+                    }
+                    boolean same = Arrays.equals(passphrase, confirmation);
+                    Arrays.fill(confirmation, '\0');
+                    if (!same) {
+                        JOptionPane.showMessageDialog(null, "Hai mật khẩu không khớp.", "Mã hóa dữ liệu", JOptionPane.WARNING_MESSAGE);
+                        continue;
+                    }
+                }
+                RecordCipher.unlock(keyFile, passphrase);
+                return true;
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(null, e.getMessage(), "Mở khóa dữ liệu", JOptionPane.ERROR_MESSAGE);
+            } finally {
+                Arrays.fill(passphrase, '\0');
+            }
+        }
+    }
+
+    private static char[] askPassphrase(String message) {
+        JPasswordField field = new JPasswordField(24);
+        JPanel panel = new JPanel(new BorderLayout(0, 6));
+        panel.add(new JLabel(message), BorderLayout.NORTH);
+        panel.add(field, BorderLayout.CENTER);
+        int choice = JOptionPane.showConfirmDialog(null, panel, "XiNoClo - Dữ liệu được mã hóa",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        return choice == JOptionPane.OK_OPTION ? field.getPassword() : null;
+    }
+
 }
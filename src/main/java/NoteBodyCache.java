@@ -0,0 +1,53 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bộ đệm LRU có giới hạn cho nội dung note/bản vẽ được tải lười.
+ * Giới hạn tính theo tổng số ký tự (không phải số mục), nên vài note rất dài không thể chiếm hết heap.
+ */
+final class NoteBodyCache<K> {
+    private final long maxChars;
+    private final LinkedHashMap<K, String> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalChars;
+
+    NoteBodyCache(long maxChars) {
+        this.maxChars = Math.max(0, maxChars);
+    }
+
+    synchronized String get(K key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(K key, String value) {
+        if (value == null || value.length() > maxChars) {
+            remove(key); // Quá lớn để đệm, luôn đọc trực tiếp
+            return;
+        }
+        String previous = entries.put(key, value);
+        if (previous != null) {
+            totalChars -= previous.length();
+        }
+        totalChars += value.length();
+        Iterator<Map.Entry<K, String>> eldest = entries.entrySet().iterator();
+        while (totalChars > maxChars && eldest.hasNext()) {
+            totalChars -= eldest.next().getValue().length();
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(K key) {
+        String previous = entries.remove(key);
+        if (previous != null) {
+            totalChars -= previous.length();
+        }
+    }
+
+    synchronized long getTotalChars() {
+        return totalChars;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
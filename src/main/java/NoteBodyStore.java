@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Nơi lưu nội dung (content) của TEXT note khi bật chế độ tải lười:
+ * snapshot chỉ chứa metadata, còn Note.getContent() đọc nội dung từ đây khi cần.
+ */
+public interface NoteBodyStore {
+
+    /** @return Nội dung đã lưu của note, hoặc null nếu không có. */
+    String read(long noteId) throws IOException;
+
+    void write(long noteId, String body) throws IOException;
+
+    void delete(long noteId) throws IOException;
+
+    /**
+     * Ép các nội dung đã ghi xuống đĩa. DataStorage gọi một lần sau mỗi nhóm write(),
+     * trước khi ghi snapshot/journal tham chiếu tới chúng.
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * Nội dung của các note này vừa được một tiến trình khác ghi (xem {@link ExternalChangeTracker}):
+     * bỏ bản đã đệm và đọc lại những gì store giữ trong bộ nhớ về dữ liệu trên đĩa.
+     */
+    default void refresh(Set<Long> noteIds) throws IOException {
+    }
+
+    /**
+     * Xóa nội dung của các note không còn trong {@code liveNoteIds}. Chỉ những nội dung được ghi trước
+     * {@code writtenBeforeMillis} mới bị xóa, để không đụng tới note vừa được tạo sau khi chụp snapshot.
+     */
+    void retainOnly(Set<Long> liveNoteIds, long writtenBeforeMillis) throws IOException;
+}
@@ -375,7 +375,7 @@ public class NoteController {
             JOptionPane.showMessageDialog(mainFrameInstance, "Ghi chú hoặc tag không hợp lệ để xóa.", "Lỗi", JOptionPane.WARNING_MESSAGE);
             return;
         }
-        boolean removed = note.getTags().removeIf(t -> t.getId() == tagToRemove.getId());
+        boolean removed = note.removeTagById(tagToRemove.getId());
         if (removed) {
             note.updateUpdatedAt();
             try {
@@ -418,6 +418,10 @@ public class NoteController {
         return noteService.getAllNotesForDisplay();
     }
 
+    public Note getNoteById(long id) {
+        return noteService.getNoteById(id);
+    }
+
     public Optional<Folder> getFolderByName(String name) {
         if (name == null || name.trim().isEmpty()) return Optional.empty();
         Folder folder = noteService.getFolderByName(name.trim());
@@ -509,6 +513,30 @@ public class NoteController {
         }
     }
 
+    /**
+     * Nhập mọi file Markdown/văn bản trong một cây thư mục (xem {@link NoteImporter}) với hộp thoại tiến độ.
+     * Việc đọc file chạy nền, toàn bộ note được lưu bằng một lần ghi; {@code onFinished} chạy trên EDT khi xong.
+     */
+    public void importDirectory(java.io.File directory, Runnable onFinished) {
+        if (directory == null || !directory.isDirectory()) {
+            JOptionPane.showMessageDialog(mainFrameInstance, "Vui lòng chọn một thư mục hợp lệ.", "Lỗi Nhập Liệu", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        NoteImporter.importDirectoryAsync(noteService.getNoteManager(), directory, mainFrameInstance, onFinished);
+    }
+
+    /**
+     * Xuất toàn bộ ghi chú ra {@code target} (thư mục, hoặc file .zip nếu tên kết thúc bằng .zip) ở định dạng {@code format}.
+     * Việc mã hóa và ghi chạy nền, không chặn giao diện.
+     */
+    public void exportNotes(java.io.File target, NoteExporter.Format format) {
+        if (target == null || target.isFile() && !target.getName().toLowerCase().endsWith(".zip")) {
+            JOptionPane.showMessageDialog(mainFrameInstance, "Vui lòng chọn một thư mục hoặc file .zip.", "Lỗi Xuất Dữ Liệu", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        NoteExporter.exportAsync(noteService.getNoteManager(), format, target, mainFrameInstance);
+    }
+
     public NoteService getNoteService() {
         return this.noteService;
     }
@@ -0,0 +1,519 @@
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import java.awt.Component;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Xuất toàn bộ note ra file Markdown hoặc HTML (bản vẽ ra file PNG), vào một thư mục hoặc một file .zip.
+ * Cây thư mục theo Folder và subFolderNames: thư mục con nằm trong thư mục của folder cha, note của Root nằm ở gốc.
+ * File Markdown có front matter (title, tags...) mà {@link NoteImporter} đọc lại được.
+ * <p>
+ * Danh sách note được chụp trên EDT bằng bản sao nông; việc đọc nội dung (kể cả nội dung tải lười) và mã hóa
+ * chạy song song trên nhiều luồng, còn việc ghi diễn ra tuần tự theo đúng thứ tự note. Số note đã mã hóa nhưng
+ * chưa ghi được giới hạn (xem {@link #MAX_IN_FLIGHT_PER_THREAD}), nên bộ nhớ dùng không tăng theo kích thước dữ liệu.
+ */
+public class NoteExporter {
+    /** Định dạng file cho TEXT note; DRAWING note luôn được xuất ra PNG. */
+    public enum Format {
+        MARKDOWN("md"), HTML("html");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    static final int MAX_IN_FLIGHT_PER_THREAD = 4;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+    private static final DateTimeFormatter DISPLAY_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+    private static final Set<String> RESERVED_NAMES = Set.of("con", "prn", "aux", "nul",
+            "com1", "com2", "com3", "com4", "com5", "com6", "com7", "com8", "com9",
+            "lpt1", "lpt2", "lpt3", "lpt4", "lpt5", "lpt6", "lpt7", "lpt8", "lpt9");
+
+    private NoteExporter() {
+    }
+
+    public interface ProgressListener {
+        void onProgress(int written, int total, double notesPerSecond);
+    }
+
+    /** Một note cần xuất cùng đường dẫn đích (tương đối, phân cách bằng "/") đã được chọn trên EDT. */
+    static final class ExportItem {
+        final Note note;
+        final String path;
+
+        ExportItem(Note note, String path) {
+            this.note = note;
+            this.path = path;
+        }
+    }
+
+    /** Ảnh chụp để xuất: bản sao các note kèm đường dẫn, theo thứ tự ghi. */
+    static final class ExportPlan {
+        final List<String> directories = new ArrayList<>();
+        final List<ExportItem> items = new ArrayList<>();
+    }
+
+    /** Một note đã mã hóa, chờ được ghi. */
+    private static final class Rendered {
+        final String path;
+        final byte[] data;
+        final LocalDateTime modifiedAt;
+
+        Rendered(String path, byte[] data, LocalDateTime modifiedAt) {
+            this.path = path;
+            this.data = data;
+            this.modifiedAt = modifiedAt;
+        }
+    }
+
+    public static final class ExportResult {
+        private final int noteCount;
+        private final long bytes;
+        private final List<String> failures;
+        private final long elapsedMillis;
+
+        ExportResult(int noteCount, long bytes, List<String> failures, long elapsedMillis) {
+            this.noteCount = noteCount;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getNoteCount() {
+            return noteCount;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getNotesPerSecond() {
+            return rate(noteCount, elapsedMillis * 1_000_000L);
+        }
+
+        @Override
+        public String toString() {
+            return noteCount + " notes, " + (bytes + 1023) / 1024 + " KB, " + failures.size() + " lỗi trong " + elapsedMillis +
+                    " ms (" + String.format(Locale.ROOT, "%.0f", getNotesPerSecond()) + " notes/s)";
+        }
+    }
+
+    /**
+     * Chụp danh sách note và chọn đường dẫn cho từng note (gọi trên EDT). Tên file trùng trong cùng thư mục
+     * được thêm ID note; thư mục của folder con nằm trong thư mục của folder cha.
+     */
+    static ExportPlan plan(NoteManager noteManager, Format format) {
+        Map<Long, String> directoryOfFolder = directoriesOf(noteManager.getAllFolders(), noteManager.getRootFolder());
+        ExportPlan plan = new ExportPlan();
+        Set<String> seenDirectories = new HashSet<>();
+        Map<String, Set<String>> namesInDirectory = new HashMap<>();
+        for (String directory : directoryOfFolder.values()) {
+            if (!directory.isEmpty() && seenDirectories.add(directory)) {
+                plan.directories.add(directory);
+            }
+        }
+        for (Note note : noteManager.getAllNotes()) {
+            String directory = directoryOfFolder.getOrDefault(note.getFolderId(), "");
+            String extension = note.getNoteType() == Note.NoteType.DRAWING ? "png" : format.extension;
+            String base = sanitize(note.getTitle());
+            Set<String> taken = namesInDirectory.computeIfAbsent(directory, d -> new HashSet<>());
+            String name = base + "." + extension;
+            if (!taken.add(name.toLowerCase(Locale.ROOT))) { // Hệ thống file thường không phân biệt hoa thường
+                name = base + " (" + note.getId() + ")." + extension;
+                taken.add(name.toLowerCase(Locale.ROOT));
+            }
+            plan.items.add(new ExportItem(note.snapshotCopy(), directory.isEmpty() ? name : directory + "/" + name));
+        }
+        return plan;
+    }
+
+    /** Đường dẫn thư mục của mỗi folder theo quan hệ subFolderNames; Root (và folder lỗi vòng lặp) ở gốc hoặc cấp một. */
+    private static Map<Long, String> directoriesOf(List<Folder> folders, Folder rootFolder) {
+        Map<String, Folder> byName = new HashMap<>();
+        for (Folder folder : folders) {
+            byName.putIfAbsent(folder.getName(), folder);
+        }
+        Map<Long, Folder> parentOf = new HashMap<>();
+        for (Folder folder : folders) {
+            for (String childName : folder.getSubFolderNames()) {
+                Folder child = byName.get(childName);
+                if (child != null && child != folder && child != rootFolder) {
+                    parentOf.putIfAbsent(child.getId(), folder);
+                }
+            }
+        }
+        Map<Long, String> directories = new HashMap<>();
+        directories.put(rootFolder.getId(), "");
+        for (Folder folder : folders) {
+            directoryOf(folder, rootFolder, parentOf, directories, new HashSet<>());
+        }
+        return directories;
+    }
+
+    private static String directoryOf(Folder folder, Folder rootFolder, Map<Long, Folder> parentOf,
+                                      Map<Long, String> directories, Set<Long> visiting) {
+        String known = directories.get(folder.getId());
+        if (known != null) {
+            return known;
+        }
+        Folder parent = parentOf.get(folder.getId());
+        String parentDirectory = "";
+        String name = folder.getName();
+        if (parent != null && parent != rootFolder && visiting.add(folder.getId())) {
+            parentDirectory = directoryOf(parent, rootFolder, parentOf, directories, visiting);
+            if (name.startsWith(parent.getName() + "/")) {
+                name = name.substring(parent.getName().length() + 1); // Tên kiểu đường dẫn do NoteImporter tạo, ví dụ "a/b" dưới "a"
+            }
+        }
+        StringBuilder path = new StringBuilder(parentDirectory);
+        for (String segment : name.split("/")) {
+            if (segment.trim().isEmpty()) {
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(sanitize(segment));
+        }
+        directories.put(folder.getId(), path.toString());
+        return path.toString();
+    }
+
+    /**
+     * Mã hóa song song trên {@code threads} luồng và ghi tuần tự ra {@code target}: file .zip nếu tên kết thúc bằng .zip,
+     * ngược lại là thư mục. Tối đa {@code threads * MAX_IN_FLIGHT_PER_THREAD} note đã mã hóa nằm trong bộ nhớ cùng lúc.
+     * Note không xuất được (ví dụ bản vẽ hỏng) được ghi vào {@link ExportResult#getFailures()}.
+     * @throws InterruptedIOException nếu luồng gọi bị ngắt (người dùng hủy).
+     */
+    static ExportResult export(ExportPlan plan, Format format, File target, int threads, ProgressListener listener) throws IOException {
+        long startNanos = System.nanoTime();
+        int workerCount = Math.max(1, threads);
+        int maxInFlight = workerCount * MAX_IN_FLIGHT_PER_THREAD;
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "xinoclo-export-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<String> failures = new ArrayList<>();
+        int written = 0;
+        long bytes = 0;
+        long lastReportNanos = startNanos;
+        try (ExportSink sink = target.getName().toLowerCase(Locale.ROOT).endsWith(".zip") ? new ZipSink(target) : new DirectorySink(target)) {
+            for (String directory : plan.directories) {
+                sink.directory(directory);
+            }
+            ArrayDeque<Future<Rendered>> window = new ArrayDeque<>(maxInFlight);
+            ArrayDeque<ExportItem> windowItems = new ArrayDeque<>(maxInFlight);
+            int next = 0;
+            while (next < plan.items.size() || !window.isEmpty()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Đã hủy xuất ghi chú.");
+                }
+                while (next < plan.items.size() && window.size() < maxInFlight) {
+                    ExportItem item = plan.items.get(next++);
+                    window.add(pool.submit(() -> render(item, format)));
+                    windowItems.add(item);
+                }
+                ExportItem item = windowItems.poll();
+                try {
+                    Rendered rendered = window.poll().get();
+                    sink.write(rendered.path, rendered.data, rendered.modifiedAt);
+                    bytes += rendered.data.length;
+                    written++;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    failures.add(item.path + ": " + cause.getMessage());
+                    System.err.println("[NoteExporter] Bỏ qua note ID " + item.note.getId() + ": " + cause.getMessage());
+                }
+                long now = System.nanoTime();
+                if (listener != null && now - lastReportNanos >= PROGRESS_INTERVAL_NANOS) {
+                    lastReportNanos = now;
+                    listener.onProgress(written, plan.items.size(), rate(written, now - startNanos));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Đã hủy xuất ghi chú.");
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (listener != null) {
+            listener.onProgress(written, plan.items.size(), rate(written, elapsedNanos));
+        }
+        ExportResult result = new ExportResult(written, bytes, failures, elapsedNanos / 1_000_000);
+        System.out.println("[NoteExporter] Đã xuất " + result + " ra " + target + ".");
+        return result;
+    }
+
+    private static Rendered render(ExportItem item, Format format) throws IOException {
+        Note note = item.note;
+        byte[] data;
+        if (note.getNoteType() == Note.NoteType.DRAWING) {
+            String drawingData = note.getDrawingData(); // Đọc lười từ kho blob nếu cần
+            if (drawingData == null || drawingData.isEmpty()) {
+                throw new IOException("Bản vẽ không có dữ liệu");
+            }
+            try {
+                data = Base64.getDecoder().decode(drawingData);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Dữ liệu bản vẽ không phải Base64 hợp lệ", e);
+            }
+        } else {
+            String content = note.getContent(); // Đọc lười từ NoteBodyStore nếu cần
+            String text = format == Format.HTML ? renderHtml(note, content == null ? "" : content)
+                    : renderMarkdown(note, content == null ? "" : content);
+            data = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return new Rendered(item.path, data, note.getUpdatedAt());
+    }
+
+    private static String renderMarkdown(Note note, String content) {
+        StringBuilder out = new StringBuilder(content.length() + 256);
+        out.append("---\n");
+        out.append("title: '").append(note.getTitle().replace("'", "''")).append("'\n");
+        if (!note.getTags().isEmpty()) {
+            out.append("tags: [");
+            for (int i = 0; i < note.getTags().size(); i++) {
+                out.append(i > 0 ? ", " : "").append(note.getTags().get(i).getName());
+            }
+            out.append("]\n");
+        }
+        out.append("created: ").append(note.getCreatedAt()).append('\n');
+        out.append("updated: ").append(note.getUpdatedAt()).append('\n');
+        if (note.isFavorite()) {
+            out.append("favorite: true\n");
+        }
+        if (note.isMission()) {
+            out.append("mission: '").append(note.getMissionContent().replace("'", "''").replace('\n', ' ')).append("'\n");
+            out.append("missionCompleted: ").append(note.isMissionCompleted()).append('\n');
+        }
+        out.append("---\n");
+        out.append(content);
+        if (!content.endsWith("\n")) {
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String renderHtml(Note note, String content) {
+        StringBuilder out = new StringBuilder(content.length() + 512);
+        String title = escapeHtml(note.getTitle());
+        out.append("<!DOCTYPE html>\n<html lang=\"vi\">\n<head>\n<meta charset=\"utf-8\">\n<title>").append(title).append("</title>\n</head>\n<body>\n");
+        out.append("<h1>").append(title).append("</h1>\n");
+        out.append("<p><small>Tạo: ").append(note.getCreatedAt().format(DISPLAY_FORMAT))
+                .append(" · Sửa: ").append(note.getUpdatedAt().format(DISPLAY_FORMAT));
+        if (!note.getTags().isEmpty()) {
+            out.append(" · Tags: ");
+            for (int i = 0; i < note.getTags().size(); i++) {
+                out.append(i > 0 ? ", " : "").append(escapeHtml(note.getTags().get(i).getName()));
+            }
+        }
+        out.append("</small></p>\n");
+        if (note.isMission()) {
+            out.append("<p><b>Nhiệm vụ").append(note.isMissionCompleted() ? " (đã hoàn thành)" : "").append(":</b> ")
+                    .append(escapeHtml(note.getMissionContent())).append("</p>\n");
+        }
+        out.append("<div style=\"white-space: pre-wrap\">").append(escapeHtml(content)).append("</div>\n");
+        out.append("</body>\n</html>\n");
+        return out.toString();
+    }
+
+    private static String escapeHtml(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                case '"': out.append("&quot;"); break;
+                default: out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /** Tên file an toàn trên Windows, macOS và Linux. */
+    static String sanitize(String name) {
+        StringBuilder out = new StringBuilder(Math.min(name.length(), MAX_NAME_LENGTH));
+        for (int i = 0; i < name.length() && out.length() < MAX_NAME_LENGTH; i++) {
+            char c = name.charAt(i);
+            out.append(c < 32 || "\\/:*?\"<>|".indexOf(c) >= 0 ? '_' : c);
+        }
+        String result = out.toString().trim();
+        while (result.endsWith(".")) {
+            result = result.substring(0, result.length() - 1).trim(); // Windows bỏ dấu chấm cuối tên
+        }
+        if (result.isEmpty() || result.startsWith(".")) {
+            result = "_" + result; // Tên bắt đầu bằng dấu chấm là file ẩn, NoteImporter sẽ bỏ qua
+        }
+        if (RESERVED_NAMES.contains(result.toLowerCase(Locale.ROOT))) {
+            result = "_" + result;
+        }
+        return result;
+    }
+
+    private static double rate(int count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1_000_000_000.0 / nanos;
+    }
+
+    /** Nơi nhận các file đã mã hóa; chỉ được gọi từ một luồng. */
+    private interface ExportSink extends Closeable {
+        void directory(String path) throws IOException;
+
+        void write(String path, byte[] data, LocalDateTime modifiedAt) throws IOException;
+    }
+
+    private static final class DirectorySink implements ExportSink {
+        private final File root;
+
+        DirectorySink(File root) throws IOException {
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("Không thể tạo thư mục: " + root);
+            }
+            this.root = root;
+        }
+
+        @Override
+        public void directory(String path) throws IOException {
+            File directory = new File(root, path);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Không thể tạo thư mục: " + directory);
+            }
+        }
+
+        @Override
+        public void write(String path, byte[] data, LocalDateTime modifiedAt) throws IOException {
+            File file = new File(root, path);
+            Files.write(file.toPath(), data);
+            // Giữ thời gian sửa để lần nhập lại (NoteImporter) khôi phục đúng updatedAt
+            Files.setLastModifiedTime(file.toPath(), FileTime.from(modifiedAt.atZone(ZoneId.systemDefault()).toInstant()));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class ZipSink implements ExportSink {
+        private final ZipOutputStream zip;
+
+        ZipSink(File target) throws IOException {
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Không thể tạo thư mục: " + parent);
+            }
+            this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target), 64 * 1024), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void directory(String path) throws IOException {
+            zip.putNextEntry(new ZipEntry(path + "/"));
+            zip.closeEntry();
+        }
+
+        @Override
+        public void write(String path, byte[] data, LocalDateTime modifiedAt) throws IOException {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setLastModifiedTime(FileTime.from(modifiedAt.atZone(ZoneId.systemDefault()).toInstant()));
+            zip.putNextEntry(entry);
+            zip.write(data);
+            zip.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Xuất với hộp thoại tiến độ (gọi trên EDT). Chỉ bước chụp danh sách note chạy trên EDT; mã hóa và ghi chạy nền, có thể hủy.
+     */
+    public static void exportAsync(NoteManager noteManager, Format format, File target, Component parent) {
+        ExportPlan plan = plan(noteManager, format);
+        ProgressMonitor monitor = new ProgressMonitor(parent, "Đang xuất " + plan.items.size() + " ghi chú ra " + target.getName(), "", 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        SwingWorker<ExportResult, Void> worker = new SwingWorker<ExportResult, Void>() {
+            @Override
+            protected ExportResult doInBackground() throws Exception {
+                return export(plan, format, target, Runtime.getRuntime().availableProcessors(),
+                        (written, total, notesPerSecond) -> SwingUtilities.invokeLater(() -> {
+                            if (monitor.isCanceled()) {
+                                cancel(true);
+                                return;
+                            }
+                            monitor.setProgress(total == 0 ? 0 : Math.min(99, written * 100 / total));
+                            monitor.setNote(written + "/" + total + " ghi chú, " +
+                                    String.format(Locale.ROOT, "%.0f", notesPerSecond) + " ghi chú/giây");
+                        }));
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                if (isCancelled()) {
+                    System.out.println("[NoteExporter] Người dùng đã hủy xuất ra " + target + ".");
+                    return;
+                }
+                try {
+                    ExportResult result = get();
+                    StringBuilder message = new StringBuilder("Đã xuất " + result.getNoteCount() + " ghi chú ra " + target.getName() +
+                            " trong " + result.getElapsedMillis() + " ms (" + String.format(Locale.ROOT, "%.0f", result.getNotesPerSecond()) + " ghi chú/giây).");
+                    if (!result.getFailures().isEmpty()) {
+                        message.append("\n").append(result.getFailures().size()).append(" ghi chú không xuất được, ví dụ:\n")
+                                .append(result.getFailures().get(0));
+                    }
+                    JOptionPane.showMessageDialog(parent, message.toString(), "Xuất Ghi Chú", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    System.err.println("[NoteExporter] Lỗi khi xuất ra " + target + ": " + cause.getMessage());
+                    JOptionPane.showMessageDialog(parent, "Lỗi khi xuất ghi chú: " + cause.getMessage(), "Lỗi", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.execute();
+    }
+}
@@ -0,0 +1,421 @@
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nhập hàng loạt file Markdown/văn bản (.md, .markdown, .txt) từ một cây thư mục.
+ * Mỗi thư mục con thành một Folder, tên là đường dẫn tương đối (ví dụ "Dự án/2024") vì tên folder là duy nhất;
+ * file nằm ngay trong thư mục gốc được đưa vào Root. Folder cùng tên đã có sẵn được dùng lại.
+ * <p>
+ * Việc đọc và phân tích file chạy song song ngay trong lúc duyệt cây. Kết quả được thêm vào NoteManager
+ * trên EDT bằng {@link NoteManager#importBatch(List, List)} và ghi xuống đĩa bằng một lần lưu duy nhất,
+ * thay vì một lần ghi cho mỗi note như khi gọi NoteService.createNewNote lặp lại.
+ */
+public class NoteImporter {
+    static final Set<String> EXTENSIONS = Set.of("md", "markdown", "txt", "text");
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L; // Báo tiến độ tối đa 10 lần/giây
+
+    private NoteImporter() {
+    }
+
+    /** Tiến độ phân tích; có thể được gọi từ nhiều luồng. */
+    public interface ProgressListener {
+        void onProgress(int parsed, int discovered, boolean walkFinished, double notesPerSecond);
+    }
+
+    /** Một file đã được phân tích, chưa gắn với NoteManager. */
+    static final class ParsedNote {
+        final String folderPath; // "" là thư mục gốc (Root)
+        final String title;
+        final String content;
+        final List<String> tags;
+        final LocalDateTime createdAt;
+        final LocalDateTime updatedAt;
+
+        ParsedNote(String folderPath, String title, String content, List<String> tags,
+                   LocalDateTime createdAt, LocalDateTime updatedAt) {
+            this.folderPath = folderPath;
+            this.title = title;
+            this.content = content;
+            this.tags = tags;
+            this.createdAt = createdAt;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    /** Kết quả phân tích cả cây thư mục, theo đúng thứ tự duyệt (ID được cấp theo thứ tự này). */
+    static final class ImportBatch {
+        final List<String> folderPaths = new ArrayList<>();
+        final List<ParsedNote> notes = new ArrayList<>();
+        final List<String> failures = new ArrayList<>();
+        long parseNanos;
+    }
+
+    /** Tóm tắt một lần nhập. */
+    public static final class ImportResult {
+        private final int noteCount;
+        private final int foldersCreated;
+        private final List<String> failures;
+        private final long parseMillis;
+        private final long commitMillis;
+
+        ImportResult(int noteCount, int foldersCreated, List<String> failures, long parseMillis, long commitMillis) {
+            this.noteCount = noteCount;
+            this.foldersCreated = foldersCreated;
+            this.failures = failures;
+            this.parseMillis = parseMillis;
+            this.commitMillis = commitMillis;
+        }
+
+        public int getNoteCount() {
+            return noteCount;
+        }
+
+        public int getFoldersCreated() {
+            return foldersCreated;
+        }
+
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        public long getParseMillis() {
+            return parseMillis;
+        }
+
+        public long getCommitMillis() {
+            return commitMillis;
+        }
+
+        public double getNotesPerSecond() {
+            return rate(noteCount, (parseMillis + commitMillis) * 1_000_000L);
+        }
+
+        @Override
+        public String toString() {
+            return noteCount + " notes, " + foldersCreated + " folder mới, " + failures.size() + " file lỗi; phân tích " +
+                    parseMillis + " ms, lưu " + commitMillis + " ms (" + String.format(Locale.ROOT, "%.0f", getNotesPerSecond()) + " notes/s)";
+        }
+    }
+
+    /**
+     * Duyệt cây thư mục và phân tích các file trên {@code threads} luồng. File được gửi đi phân tích ngay khi
+     * được tìm thấy, nên việc duyệt và đọc file diễn ra đồng thời. File không đọc được được ghi vào
+     * {@link ImportBatch#failures} thay vì làm hỏng cả lần nhập.
+     * @throws InterruptedIOException nếu luồng gọi bị ngắt (người dùng hủy).
+     */
+    static ImportBatch parseDirectory(Path root, int threads, ProgressListener listener) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Không phải thư mục: " + root);
+        }
+        long startNanos = System.nanoTime();
+        AtomicInteger discovered = new AtomicInteger();
+        AtomicInteger parsed = new AtomicInteger();
+        AtomicLong lastReportNanos = new AtomicLong(startNanos);
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "xinoclo-import-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ImportBatch batch = new ImportBatch();
+        List<Path> files = new ArrayList<>();
+        List<Future<ParsedNote>> futures = new ArrayList<>();
+        try {
+            walk(root, "", batch.folderPaths, file -> {
+                String folderPath = relativeFolder(root, file.getParent());
+                files.add(file);
+                discovered.incrementAndGet();
+                futures.add(pool.submit(() -> {
+                    ParsedNote note = parseFile(file, folderPath);
+                    int done = parsed.incrementAndGet();
+                    long now = System.nanoTime();
+                    long last = lastReportNanos.get();
+                    if (listener != null && now - last >= PROGRESS_INTERVAL_NANOS && lastReportNanos.compareAndSet(last, now)) {
+                        listener.onProgress(done, discovered.get(), false, rate(done, now - startNanos));
+                    }
+                    return note;
+                }));
+            });
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    batch.notes.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    batch.failures.add(root.relativize(files.get(i)) + ": " + cause.getMessage());
+                    System.err.println("[NoteImporter] Bỏ qua " + files.get(i) + ": " + cause.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Đã hủy nhập ghi chú.");
+        } finally {
+            pool.shutdownNow();
+        }
+        batch.parseNanos = System.nanoTime() - startNanos;
+        if (listener != null) {
+            listener.onProgress(parsed.get(), discovered.get(), true, rate(parsed.get(), batch.parseNanos));
+        }
+        return batch;
+    }
+
+    private interface FileVisitor {
+        void visit(Path file) throws InterruptedException;
+    }
+
+    /** Duyệt theo thứ tự tên để ID và thứ tự folder ổn định giữa các lần nhập; bỏ qua file/thư mục ẩn (.git, .obsidian...). */
+    private static void walk(Path directory, String folderPath, List<String> folderPaths, FileVisitor visitor)
+            throws IOException, InterruptedException {
+        File[] children = directory.toFile().listFiles();
+        if (children == null) {
+            throw new IOException("Không thể đọc thư mục: " + directory);
+        }
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        for (File child : children) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                String childPath = folderPath.isEmpty() ? child.getName() : folderPath + "/" + child.getName();
+                folderPaths.add(childPath);
+                walk(child.toPath(), childPath, folderPaths, visitor);
+            } else if (child.isFile() && EXTENSIONS.contains(extensionOf(child.getName()))) {
+                visitor.visit(child.toPath());
+            }
+        }
+    }
+
+    private static String relativeFolder(Path root, Path directory) {
+        return root.relativize(directory).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Đọc một file: bỏ BOM, chuẩn hóa xuống dòng, đọc front matter YAML đơn giản (title, tags) nếu có.
+     * Với Markdown, tiêu đề cấp 1 ở dòng đầu tiên được dùng làm tiêu đề note; còn lại lấy tên file.
+     * Thời gian tạo/sửa lấy từ thuộc tính file.
+     */
+    static ParsedNote parseFile(Path file, String folderPath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8); // Byte không hợp lệ được thay bằng U+FFFD
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        text = text.replace("\r\n", "\n").replace('\r', '\n');
+
+        String title = null;
+        List<String> tags = new ArrayList<>();
+        if (text.startsWith("---\n")) {
+            int end = text.indexOf("\n---", 3);
+            if (end > 0) {
+                title = parseFrontMatter(text.substring(4, end), tags);
+                int bodyStart = text.indexOf('\n', end + 4);
+                text = bodyStart < 0 ? "" : text.substring(bodyStart + 1);
+            }
+        }
+        String extension = extensionOf(file.getFileName().toString());
+        if (title == null && (extension.equals("md") || extension.equals("markdown"))) {
+            String trimmed = text.stripLeading();
+            if (trimmed.startsWith("# ")) {
+                int lineEnd = trimmed.indexOf('\n');
+                title = (lineEnd < 0 ? trimmed.substring(2) : trimmed.substring(2, lineEnd)).trim();
+                text = lineEnd < 0 ? "" : trimmed.substring(lineEnd + 1).stripLeading();
+            }
+        }
+        if (title == null || title.isEmpty()) {
+            String name = file.getFileName().toString();
+            title = name.substring(0, name.length() - extension.length() - 1);
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDateTime updatedAt = LocalDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), zone);
+        LocalDateTime createdAt = LocalDateTime.ofInstant(attributes.creationTime().toInstant(), zone);
+        if (createdAt.isAfter(updatedAt)) {
+            createdAt = updatedAt; // Hệ thống file không lưu thời gian tạo thường trả về thời gian đổi inode
+        }
+        return new ParsedNote(folderPath, title, text, tags, createdAt, updatedAt);
+    }
+
+    /** Chỉ hỗ trợ các dạng thường gặp: {@code title: ...}, {@code tags: [a, b]}, {@code tags: a, b} và danh sách "- a". */
+    private static String parseFrontMatter(String frontMatter, List<String> tags) {
+        String title = null;
+        boolean inTagList = false;
+        for (String line : frontMatter.split("\n")) {
+            String trimmed = line.trim();
+            if (inTagList && trimmed.startsWith("- ")) {
+                addTag(tags, trimmed.substring(2));
+                continue;
+            }
+            inTagList = false;
+            int colon = trimmed.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String key = trimmed.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = trimmed.substring(colon + 1).trim();
+            if (key.equals("title")) {
+                title = unquote(value);
+            } else if (key.equals("tags")) {
+                if (value.isEmpty()) {
+                    inTagList = true;
+                } else {
+                    if (value.startsWith("[") && value.endsWith("]")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    for (String tag : value.split(",")) {
+                        addTag(tags, tag);
+                    }
+                }
+            }
+        }
+        return title;
+    }
+
+    private static void addTag(List<String> tags, String raw) {
+        String tag = unquote(raw.trim());
+        if (tag.startsWith("#")) {
+            tag = tag.substring(1);
+        }
+        if (!tag.isEmpty()) {
+            tags.add(tag);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+            return value.substring(1, value.length() - 1).replace("''", "'"); // Kiểu YAML, như NoteExporter ghi ra
+        }
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String extensionOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static double rate(int count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1_000_000_000.0 / nanos;
+    }
+
+    /**
+     * Thêm kết quả phân tích vào NoteManager (gọi trên EDT). Thư mục con được gắn vào folder cha qua subFolderNames.
+     */
+    static ImportResult commit(NoteManager noteManager, ImportBatch batch) {
+        long startNanos = System.nanoTime();
+        Map<String, Folder> folderByPath = new LinkedHashMap<>();
+        folderByPath.put("", noteManager.getRootFolder());
+        List<Folder> newFolders = new ArrayList<>();
+        for (String path : batch.folderPaths) {
+            Folder folder = noteManager.getFolderByName(path).orElse(null);
+            if (folder == null) {
+                folder = new Folder(path);
+                newFolders.add(folder);
+            }
+            folderByPath.put(path, folder);
+            int slash = path.lastIndexOf('/');
+            Folder parent = slash < 0 ? null : folderByPath.get(path.substring(0, slash));
+            if (parent != null && !parent.getSubFolderNames().contains(path)) {
+                parent.getSubFolderNames().add(path);
+            }
+        }
+        List<Note> newNotes = new ArrayList<>(batch.notes.size());
+        for (ParsedNote parsed : batch.notes) {
+            List<Tag> tags = new ArrayList<>();
+            for (String tagName : parsed.tags) {
+                tags.add(new Tag(tagName));
+            }
+            Note note = new Note(0, parsed.title, parsed.content, parsed.createdAt, parsed.updatedAt, 0, false,
+                    false, false, "", null, tags, Note.NoteType.TEXT, null);
+            note.setFolder(folderByPath.get(parsed.folderPath));
+            note.setUpdatedAt(parsed.updatedAt);
+            newNotes.add(note);
+        }
+        noteManager.importBatch(newFolders, newNotes);
+        long commitNanos = System.nanoTime() - startNanos;
+        ImportResult result = new ImportResult(newNotes.size(), newFolders.size(), batch.failures,
+                batch.parseNanos / 1_000_000, commitNanos / 1_000_000);
+        System.out.println("[NoteImporter] Đã nhập " + result + ".");
+        return result;
+    }
+
+    /**
+     * Nhập một thư mục với hộp thoại tiến độ (gọi trên EDT). Phân tích chạy trên luồng nền, có thể hủy;
+     * khi xong, dữ liệu được thêm vào NoteManager trên EDT, kết quả được hiển thị và {@code onFinished} được gọi.
+     */
+    public static void importDirectoryAsync(NoteManager noteManager, File directory, Component parent, Runnable onFinished) {
+        ProgressMonitor monitor = new ProgressMonitor(parent, "Đang nhập ghi chú từ " + directory.getName(), "Đang tìm file...", 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        SwingWorker<ImportBatch, Void> worker = new SwingWorker<ImportBatch, Void>() {
+            @Override
+            protected ImportBatch doInBackground() throws Exception {
+                return parseDirectory(directory.toPath(), Runtime.getRuntime().availableProcessors(),
+                        (parsed, discovered, walkFinished, notesPerSecond) -> SwingUtilities.invokeLater(() -> {
+                            if (monitor.isCanceled()) {
+                                cancel(true);
+                                return;
+                            }
+                            monitor.setProgress(discovered == 0 ? 0 : Math.min(99, parsed * 100 / discovered));
+                            monitor.setNote(parsed + "/" + discovered + (walkFinished ? "" : "+") + " file, " +
+                                    String.format(Locale.ROOT, "%.0f", notesPerSecond) + " notes/s");
+                        }));
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                if (isCancelled()) {
+                    System.out.println("[NoteImporter] Người dùng đã hủy nhập từ " + directory + ".");
+                    return;
+                }
+                try {
+                    ImportResult result = commit(noteManager, get());
+                    StringBuilder message = new StringBuilder("Đã nhập " + result.getNoteCount() + " ghi chú và " +
+                            result.getFoldersCreated() + " thư mục mới trong " + (result.getParseMillis() + result.getCommitMillis()) +
+                            " ms (" + String.format(Locale.ROOT, "%.0f", result.getNotesPerSecond()) + " ghi chú/giây).");
+                    if (!result.getFailures().isEmpty()) {
+                        message.append("\n").append(result.getFailures().size()).append(" file không đọc được, ví dụ:\n")
+                                .append(result.getFailures().get(0));
+                    }
+                    JOptionPane.showMessageDialog(parent, message.toString(), "Nhập Ghi Chú", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    System.err.println("[NoteImporter] Lỗi khi nhập từ " + directory + ": " + cause.getMessage());
+                    JOptionPane.showMessageDialog(parent, "Lỗi khi nhập ghi chú: " + cause.getMessage(), "Lỗi", JOptionPane.ERROR_MESSAGE);
+                }
+                if (onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        };
+        worker.execute();
+    }
+}
@@ -0,0 +1,629 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Journal ghi thêm (append-only) cho DataStorage.
+ * Mỗi thay đổi (thêm/sửa/xóa note, folder, tag) được ghi thành một dòng JSON nhỏ kèm checksum
+ * (xem {@link RecordChecksum}; dòng không có checksum từ phiên bản cũ vẫn được chấp nhận):
+ * <pre>{"op":"UPSERT_NOTE","data":{...},"crc":"1a2b3c4d"}</pre>
+ * NoteManager còn ghi {@code RESERVE_IDS} (data là {@link IdMarks}) mỗi khi dành trước một khối ID mới,
+ * luôn trước bản ghi đầu tiên dùng ID trong khối đó.
+ * Khi khởi động, DataStorage tải snapshot (notes.json) rồi phát lại (replay) journal lên trên.
+ * Sau mỗi lần ghi snapshot thành công, journal được làm rỗng.
+ * <p>
+ * Khi checkpoint, file đang ghi được niêm phong thành một đoạn chỉ đọc (notes.json.journal.1, .2 ...)
+ * và bản ghi mới đi vào file mới; các đoạn này bị xóa sau khi snapshot chứa chúng đã nằm trên đĩa.
+ */
+public class NoteJournal {
+
+    enum Op {
+        UPSERT_NOTE, DELETE_NOTE,
+        UPSERT_FOLDER, DELETE_FOLDER,
+        UPSERT_TAG, DELETE_TAG,
+        RESERVE_IDS
+    }
+
+    private static final String OP_PREFIX = "{\"op\":\"";
+    private static final String DATA_FIELD = ",\"data\":";
+
+    private final File file;
+    private FileOutputStream output;
+    private Writer writer;
+    private int recordCount;
+    private boolean readOnly; // Tiến trình khác đang giữ khóa dữ liệu: không ghi, không sửa file
+
+    public NoteJournal(File file) {
+        this.file = file;
+    }
+
+    /** Chỉ đọc: replay không cắt dòng ghi dở (có thể tiến trình ghi đang ghi nó), mọi thao tác ghi ném IOException. */
+    synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Số bản ghi đã ghi/phát lại trong file đang ghi (không tính các đoạn đã niêm phong). */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /** Kích thước file đang ghi (không tính các đoạn đã niêm phong). */
+    public synchronized long getSizeBytes() {
+        return file.exists() ? file.length() : 0;
+    }
+
+    /** Tổng kích thước cần phát lại khi khởi động: các đoạn đã niêm phong cộng file đang ghi. */
+    public synchronized long getTotalSizeBytes() {
+        long total = getSizeBytes();
+        for (long sequence : sealedSequences()) {
+            total += sealedFile(sequence).length();
+        }
+        return total;
+    }
+
+    public synchronized boolean hasSealedSegments() {
+        return !sealedSequences().isEmpty();
+    }
+
+    /**
+     * Một bản ghi đã giải mã: {@code entity} là Note/Folder/Tag mới (với upsert), IdMarks (với RESERVE_IDS), null với delete.
+     */
+    static final class Record {
+        final Op op;
+        final long id;
+        final Object entity;
+
+        Record(Op op, long id, Object entity) {
+            this.op = op;
+            this.id = id;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Mã hóa một bản ghi upsert thành một dòng JSON (gọi trên luồng đang thay đổi dữ liệu).
+     * Khi dữ liệu được mã hóa, "data" là phong bì của {@link RecordCipher}, giống hệt bản ghi đó trong snapshot.
+     */
+    public static String encodeUpsert(Op op, Object entity) {
+        StringWriter out = new StringWriter(256);
+        try {
+            StringWriter data = new StringWriter(256);
+            JsonWriter dataWriter = newRecordWriter(data);
+            if (entity instanceof Note) {
+                NoteJsonCodec.writeNote(dataWriter, (Note) entity);
+            } else if (entity instanceof Folder) {
+                NoteJsonCodec.writeFolder(dataWriter, (Folder) entity);
+            } else if (entity instanceof Tag) {
+                NoteJsonCodec.writeTag(dataWriter, (Tag) entity);
+            } else {
+                throw new IllegalArgumentException("Loại đối tượng không được hỗ trợ trong journal: " + entity);
+            }
+            dataWriter.flush();
+            RecordCipher cipher = RecordCipher.current();
+            JsonWriter writer = newRecordWriter(out);
+            writer.beginObject();
+            writer.name("op").value(op.name());
+            writer.name("data").jsonValue(cipher != null ? cipher.sealRecord(sectionOf(op), data.toString()) : data.toString());
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter không ném IOException
+        }
+        return RecordChecksum.seal(out.toString());
+    }
+
+    public static String encodeDelete(Op op, long id) {
+        StringWriter out = new StringWriter(64);
+        try {
+            JsonWriter writer = newRecordWriter(out);
+            writer.beginObject();
+            writer.name("op").value(op.name());
+            writer.name("id").value(id);
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return RecordChecksum.seal(out.toString());
+    }
+
+    public static String encodeIdReservation(IdMarks marks) {
+        StringWriter out = new StringWriter(96);
+        try {
+            JsonWriter writer = newRecordWriter(out);
+            writer.beginObject();
+            writer.name("op").value(Op.RESERVE_IDS.name());
+            writer.name("data");
+            NoteJsonCodec.writeIdMarks(writer, marks);
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return RecordChecksum.seal(out.toString());
+    }
+
+    private static JsonWriter newRecordWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out); // Không thụt lề: mỗi bản ghi nằm trên đúng một dòng
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    /**
+     * Ghi thêm một nhóm bản ghi đã mã hóa rồi ép xuống đĩa một lần (group commit).
+     */
+    public synchronized void appendRecords(List<String> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (readOnly) {
+            throw new IOException("Journal " + file.getName() + " đang ở chế độ chỉ đọc");
+        }
+        try {
+            if (writer == null) {
+                output = new FileOutputStream(file, true);
+                writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+            for (String record : records) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            writer.flush();
+            output.getChannel().force(false);
+            recordCount += records.size();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Phát lại toàn bộ journal (các đoạn đã niêm phong theo thứ tự, rồi file đang ghi) lên các danh sách
+     * đã chứa dữ liệu snapshot. Dòng hỏng (sai checksum, không giải mã được) bị bỏ qua và ghi vào {@code report};
+     * riêng dòng cuối bị ghi dở của file đang ghi là hậu quả bình thường của crash, chỉ được cảnh báo.
+     * @param idMarks Được nâng lên theo các bản ghi RESERVE_IDS đã phát lại.
+     * @return Số bản ghi đã áp dụng.
+     */
+    public synchronized int replay(List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport report) {
+        ReplayTarget target = new ReplayTarget(notes, folders, tags, idMarks);
+        int applied = 0;
+        for (long sequence : sealedSequences()) {
+            applied += replayFile(sealedFile(sequence), target, report);
+        }
+        recordCount = replayFile(file, target, report);
+        target.finish();
+        if (!readOnly) {
+            truncateTornTail();
+        }
+        return applied + recordCount;
+    }
+
+    /**
+     * Cắt bỏ dòng cuối bị ghi dở (crash giữa lúc ghi) của file đang ghi, nếu không bản ghi kế tiếp
+     * sẽ bị nối vào sau nó trên cùng một dòng và hỏng theo.
+     */
+    private void truncateTornTail() {
+        if (!file.exists() || endsWithNewline(file)) {
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long position = out.length() - 1;
+            while (position >= 0) {
+                out.seek(position);
+                if (out.read() == '\n') {
+                    break;
+                }
+                position--;
+            }
+            out.setLength(position + 1);
+            out.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("[NoteJournal] Không thể cắt dòng ghi dở cuối " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Kiểm tra checksum mọi bản ghi (các đoạn đã niêm phong và file đang ghi) mà không áp dụng chúng.
+     * Giữ khóa của journal trong lúc đọc để không có dòng nào đang ghi dở và không đoạn nào bị xóa giữa chừng.
+     * @return Số bản ghi đã kiểm tra.
+     */
+    synchronized int verify(SalvageReport report) {
+        int checked = 0;
+        for (long sequence : sealedSequences()) {
+            checked += verifyFile(sealedFile(sequence), report);
+        }
+        return checked + verifyFile(file, report);
+    }
+
+    private static int verifyFile(File source, SalvageReport report) {
+        if (!source.exists() || source.length() == 0) {
+            return 0;
+        }
+        int checked = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                checked++;
+                RecordChecksum.Status status = RecordChecksum.check(line);
+                String problem = status == RecordChecksum.Status.MISMATCH ? "sai checksum" : null;
+                if (status == RecordChecksum.Status.MISSING) {
+                    try {
+                        decodeRecord(line); // Bản ghi kiểu cũ không có checksum: ít nhất phải giải mã được
+                    } catch (IOException | RuntimeException e) {
+                        problem = "không giải mã được: " + e.getMessage();
+                    }
+                }
+                if (problem != null) {
+                    report.recordLost(source, null, "dòng " + lineNumber, null, problem);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[NoteJournal verify] Không thể đọc " + source.getName() + ": " + e.getMessage());
+        }
+        return checked;
+    }
+
+    /**
+     * Phát lại các đoạn đã niêm phong có số thứ tự không quá {@code upToSequence}.
+     * Các đoạn này không còn thay đổi nên có thể đọc trên luồng checkpoint mà không giữ khóa của journal.
+     */
+    int replaySealed(long upToSequence, List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks, SalvageReport report) {
+        ReplayTarget target = new ReplayTarget(notes, folders, tags, idMarks);
+        int applied = 0;
+        for (long sequence : sealedSequences()) {
+            if (sequence <= upToSequence) {
+                applied += replayFile(sealedFile(sequence), target, report);
+            }
+        }
+        target.finish();
+        return applied;
+    }
+
+    private static int replayFile(File source, ReplayTarget target, SalvageReport report) {
+        if (!source.exists() || source.length() == 0) {
+            return 0;
+        }
+        int applied = 0;
+        int skipped = 0;
+        int lineNumber = 0;
+        boolean endsWithNewline = endsWithNewline(source);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 64 * 1024)) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                lineNumber++;
+                if (!line.trim().isEmpty()) {
+                    try {
+                        if (RecordChecksum.check(line) == RecordChecksum.Status.MISMATCH) {
+                            throw new IOException("sai checksum");
+                        }
+                        target.apply(decodeRecord(line));
+                        applied++;
+                    } catch (RecordCipher.LockedException e) {
+                        throw e; // Thiếu khóa: dừng tải thay vì bỏ qua các bản ghi đã mã hóa
+                    } catch (IOException | RuntimeException e) {
+                        skipped++;
+                        System.err.println("[NoteJournal replay] Cảnh báo: Bỏ qua bản ghi hỏng ở dòng " + lineNumber + " của " + source.getName() + ": " + e.getMessage());
+                        boolean tornTail = next == null && !endsWithNewline; // Crash giữa lúc ghi, chưa từng được xác nhận
+                        if (report != null && !tornTail) {
+                            report.recordLost(source, null, "dòng " + lineNumber, null, e.getMessage());
+                        }
+                    }
+                }
+                line = next;
+            }
+        } catch (IOException e) {
+            System.err.println("Lỗi I/O khi đọc journal " + source.getName() + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        System.out.println("[NoteJournal replay] Đã phát lại " + applied + " bản ghi từ " + source.getName() +
+                (skipped > 0 ? " (bỏ qua " + skipped + " bản ghi hỏng)." : "."));
+        return applied;
+    }
+
+    private static boolean endsWithNewline(File source) {
+        try (RandomAccessFile in = new RandomAccessFile(source, "r")) {
+            long length = in.length();
+            if (length == 0) {
+                return true;
+            }
+            in.seek(length - 1);
+            return in.read() == '\n';
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /** Phần dữ liệu (notes, folders, tags, như trong snapshot) mà bản ghi thuộc về. */
+    static String sectionOf(Op op) {
+        switch (op) {
+            case UPSERT_NOTE:
+            case DELETE_NOTE:
+                return RecordFingerprints.NOTES;
+            case UPSERT_FOLDER:
+            case DELETE_FOLDER:
+                return RecordFingerprints.FOLDERS;
+            default:
+                return RecordFingerprints.TAGS;
+        }
+    }
+
+    /**
+     * Bản ghi luôn có dạng {"op":...,"data":{...}} hoặc {"op":...,"id":...}, trường "op" đứng đầu;
+     * các trường phía sau (checksum) được bỏ qua. Checksum do người gọi kiểm tra.
+     * "data" đã mã hóa được giải mã trước (lỗi xác thực ném IOException như bản ghi hỏng).
+     */
+    static Record decodeRecord(String line) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(openData(line)))) {
+            reader.beginObject();
+            if (!"op".equals(reader.nextName())) {
+                throw new IllegalStateException("Bản ghi journal thiếu trường 'op' ở đầu");
+            }
+            Op op = Op.valueOf(reader.nextString());
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.BEGIN_OBJECT && !"data".equals(field)) {
+                throw new IllegalStateException("Bản ghi journal thiếu trường 'data'");
+            }
+            Record record;
+            switch (op) {
+                case UPSERT_NOTE: {
+                    Note note = NoteJsonCodec.readNote(reader);
+                    record = new Record(op, note.getId(), note);
+                    break;
+                }
+                case UPSERT_FOLDER: {
+                    Folder folder = NoteJsonCodec.readFolder(reader);
+                    record = new Record(op, folder.getId(), folder);
+                    break;
+                }
+                case UPSERT_TAG: {
+                    Tag tag = NoteJsonCodec.readTag(reader);
+                    record = new Record(op, tag.getId(), tag);
+                    break;
+                }
+                case RESERVE_IDS:
+                    record = new Record(op, 0, NoteJsonCodec.readIdMarks(reader));
+                    break;
+                default:
+                    record = new Record(op, reader.nextLong(), null);
+                    break;
+            }
+            while (reader.hasNext()) {
+                reader.nextName();
+                reader.skipValue();
+            }
+            reader.endObject();
+            return record;
+        }
+    }
+
+    /** Thay phong bì mã hóa trong trường "data" (nếu có) bằng object gốc; phong bì không chứa object lồng nhau. */
+    private static String openData(String line) throws IOException {
+        if (!line.startsWith(OP_PREFIX + "UPSERT_")) {
+            return line; // Xóa và RESERVE_IDS không chứa dữ liệu cần mã hóa
+        }
+        int start = line.indexOf(DATA_FIELD); // Trường ngay sau "op", nên lần xuất hiện đầu tiên là trường thật
+        int end = start < 0 ? -1 : line.indexOf('}', start);
+        if (end < 0) {
+            return line;
+        }
+        start += DATA_FIELD.length();
+        byte[] data = line.substring(start, end + 1).getBytes(StandardCharsets.UTF_8);
+        if (!RecordCipher.isEnvelope(data, data.length)) {
+            RecordCipher.notePlaintextRead(1);
+            return line;
+        }
+        Op op;
+        try {
+            op = Op.valueOf(line.substring(OP_PREFIX.length(), line.indexOf('"', OP_PREFIX.length())));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Bản ghi journal có 'op' không hợp lệ", e);
+        }
+        String plain = new String(RecordCipher.require().openRecord(sectionOf(op), data, data.length), StandardCharsets.UTF_8);
+        return line.substring(0, start) + plain + line.substring(end + 1);
+    }
+
+    /**
+     * Danh sách đích của replay kèm chỉ mục ID -> vị trí, để mỗi bản ghi được áp dụng trong O(1)
+     * thay vì duyệt cả danh sách; phần tử bị xóa được đánh dấu null và dọn một lần ở {@link #finish()}.
+     */
+    private static final class ReplayTarget {
+        private final List<Note> notes;
+        private final List<Folder> folders;
+        private final List<Tag> tags;
+        private final Map<Long, Integer> noteIndex = new HashMap<>();
+        private final Map<Long, Integer> folderIndex = new HashMap<>();
+        private final Map<Long, Integer> tagIndex = new HashMap<>();
+        private final IdMarks idMarks;
+        private boolean removed;
+
+        ReplayTarget(List<Note> notes, List<Folder> folders, List<Tag> tags, IdMarks idMarks) {
+            this.notes = notes;
+            this.folders = folders;
+            this.tags = tags;
+            this.idMarks = idMarks;
+            for (int i = 0; i < notes.size(); i++) {
+                noteIndex.putIfAbsent(notes.get(i).getId(), i);
+            }
+            for (int i = 0; i < folders.size(); i++) {
+                folderIndex.putIfAbsent(folders.get(i).getId(), i);
+            }
+            for (int i = 0; i < tags.size(); i++) {
+                tagIndex.putIfAbsent(tags.get(i).getId(), i);
+            }
+        }
+
+        void apply(Record record) {
+            long id = record.id;
+            switch (record.op) {
+                case UPSERT_NOTE:
+                    upsert(notes, noteIndex, (Note) record.entity, id);
+                    break;
+                case DELETE_NOTE:
+                    remove(notes, noteIndex, id);
+                    break;
+                case UPSERT_FOLDER:
+                    upsert(folders, folderIndex, (Folder) record.entity, id);
+                    break;
+                case DELETE_FOLDER:
+                    // Các note còn trỏ tới folder này sẽ được relinkObjects gán về Root
+                    remove(folders, folderIndex, id);
+                    break;
+                case UPSERT_TAG:
+                    upsert(tags, tagIndex, (Tag) record.entity, id);
+                    break;
+                case DELETE_TAG:
+                    remove(tags, tagIndex, id);
+                    for (Note note : notes) {
+                        if (note != null) {
+                            note.getTags().removeIf(t -> t.getId() == id);
+                        }
+                    }
+                    break;
+                case RESERVE_IDS:
+                    idMarks.raise((IdMarks) record.entity);
+                    break;
+            }
+        }
+
+        private static <T> void upsert(List<T> list, Map<Long, Integer> index, T entity, long id) {
+            Integer position = index.get(id);
+            if (position != null) {
+                list.set(position, entity);
+            } else {
+                index.put(id, list.size());
+                list.add(entity);
+            }
+        }
+
+        private <T> void remove(List<T> list, Map<Long, Integer> index, long id) {
+            Integer position = index.remove(id);
+            if (position != null) {
+                list.set(position, null);
+                removed = true;
+            }
+        }
+
+        void finish() {
+            if (removed) {
+                notes.removeIf(Objects::isNull);
+                folders.removeIf(Objects::isNull);
+                tags.removeIf(Objects::isNull);
+            }
+        }
+    }
+
+    /**
+     * Niêm phong file đang ghi thành đoạn notes.json.journal.N; bản ghi kế tiếp sẽ đi vào một file mới.
+     * @return Số thứ tự N của đoạn vừa niêm phong, hoặc -1 nếu file đang ghi rỗng.
+     */
+    public synchronized long seal() throws IOException {
+        if (readOnly) {
+            throw new IOException("Journal " + file.getName() + " đang ở chế độ chỉ đọc");
+        }
+        closeQuietly();
+        if (!file.exists() || file.length() == 0) {
+            return -1;
+        }
+        List<Long> sequences = sealedSequences();
+        long sequence = sequences.isEmpty() ? 1 : sequences.get(sequences.size() - 1) + 1;
+        File sealed = sealedFile(sequence);
+        try {
+            Files.move(file.toPath(), sealed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file.toPath(), sealed.toPath());
+        }
+        recordCount = 0;
+        return sequence;
+    }
+
+    /** Số thứ tự lớn nhất trong các đoạn đã niêm phong, hoặc -1 nếu không có. */
+    public synchronized long getLastSealedSequence() {
+        List<Long> sequences = sealedSequences();
+        return sequences.isEmpty() ? -1 : sequences.get(sequences.size() - 1);
+    }
+
+    /** Xóa các đoạn đã niêm phong có số thứ tự không quá {@code upToSequence} (đã nằm trong snapshot). */
+    public synchronized void deleteSealed(long upToSequence) {
+        for (long sequence : sealedSequences()) {
+            if (sequence <= upToSequence && !sealedFile(sequence).delete()) {
+                System.err.println("[NoteJournal] Không thể xóa đoạn journal " + sealedFile(sequence).getName() + ".");
+            }
+        }
+    }
+
+    private List<Long> sealedSequences() {
+        List<Long> sequences = new ArrayList<>();
+        String prefix = file.getName() + ".";
+        String[] names = file.getAbsoluteFile().getParentFile().list();
+        if (names == null) {
+            return sequences;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    sequences.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException ignored) {
+                    // Không phải đoạn journal (ví dụ file tạm)
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    /** Các đoạn đã niêm phong theo thứ tự phát lại. */
+    synchronized List<File> sealedFiles() {
+        List<File> files = new ArrayList<>();
+        for (long sequence : sealedSequences()) {
+            files.add(sealedFile(sequence));
+        }
+        return files;
+    }
+
+    File sealedFile(long sequence) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + sequence);
+    }
+
+    /** Làm rỗng journal (kể cả các đoạn đã niêm phong) sau khi snapshot đã được ghi thành công. */
+    public synchronized void reset() {
+        closeQuietly();
+        deleteSealed(Long.MAX_VALUE);
+        try {
+            Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).close();
+        } catch (IOException e) {
+            System.err.println("Lỗi khi làm rỗng journal " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+        recordCount = 0;
+    }
+
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+            output = null;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Đọc/ghi Note/Folder/Tag/Alarm trực tiếp trên luồng token JSON (Gson JsonReader/JsonWriter),
+ * không dựng cây JsonElement trung gian cho từng bản ghi.
+ * Mỗi note/folder/tag ghi ra mang phiên bản lược đồ {@code "v"} (xem {@link SchemaMigrations}); khi đọc, chỉ phiên bản
+ * hiện tại được giải mã trực tiếp và mọi trường bắt buộc phải có, bản ghi cũ (kể cả notes.json từ các Gson adapter
+ * trước đây) được nâng cấp qua SchemaMigrations trước.
+ * JsonWriter truyền vào nên tắt serializeNulls để các trường null được bỏ qua như trước.
+ */
+final class NoteJsonCodec {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    // title, createdAt, updatedAt, isFavorite, isMission, isMissionCompleted, missionContent, folderId, tags, noteType
+    private static final int NOTE_REQUIRED_FIELDS = (1 << 10) - 1;
+
+    private NoteJsonCodec() {
+    }
+
+    static void writeNote(JsonWriter writer, Note note) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(note.getId());
+        writer.name("v").value(SchemaMigrations.CURRENT);
+        writer.name("title").value(note.getTitle());
+        // Chỉ ghi content cho TEXT note, drawingData cho DRAWING note
+        if (note.getNoteType() == Note.NoteType.TEXT) {
+            if (note.isContentStored()) {
+                writer.name("contentStored").value(true); // Nội dung nằm trong NoteBodyStore
+            } else {
+                String content = note.getContent();
+                writer.name("content").value(content != null ? content : "");
+            }
+        }
+        // Lược đồ bắt buộc có cả hai mốc thời gian
+        LocalDateTime createdAt = note.getCreatedAt() != null ? note.getCreatedAt() : LocalDateTime.now();
+        writeDateTime(writer.name("createdAt"), createdAt);
+        writeDateTime(writer.name("updatedAt"), note.getUpdatedAt() != null ? note.getUpdatedAt() : createdAt);
+        writer.name("isFavorite").value(note.isFavorite());
+        writer.name("isMission").value(note.isMission());
+        writer.name("isMissionCompleted").value(note.isMissionCompleted());
+        writer.name("missionContent").value(note.getMissionContent());
+        writer.name("folderId").value(note.getFolderId());
+        writer.name("tags").beginArray();
+        for (Tag tag : note.getTags()) {
+            writer.beginObject();
+            writer.name("id").value(tag.getId());
+            writer.name("name").value(tag.getName());
+            writer.endObject();
+        }
+        writer.endArray();
+        if (note.getAlarm() != null) {
+            writeAlarm(writer.name("alarm"), note.getAlarm());
+        }
+        writer.name("noteType").value(note.getNoteType().name());
+        if (note.getNoteType() == Note.NoteType.DRAWING) {
+            if (note.getDrawingHash() != null) {
+                writer.name("drawingHash").value(note.getDrawingHash()); // Dữ liệu nằm trong DrawingBlobStore
+            } else {
+                writer.name("drawingData").value(note.getDrawingData());
+            }
+        }
+        writer.endObject();
+    }
+
+    static void writeFolder(JsonWriter writer, Folder folder) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(folder.getId());
+        writer.name("v").value(SchemaMigrations.CURRENT);
+        writer.name("name").value(folder.getName());
+        writer.name("isFavorite").value(folder.isFavorite());
+        List<String> subFolderNames = folder.getSubFolderNames();
+        if (!subFolderNames.isEmpty()) {
+            writer.name("subFolderNames").beginArray();
+            for (String subFolderName : subFolderNames) {
+                writer.value(subFolderName);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    static void writeTag(JsonWriter writer, Tag tag) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(tag.getId());
+        writer.name("v").value(SchemaMigrations.CURRENT);
+        writer.name("name").value(tag.getName());
+        writer.endObject();
+    }
+
+    static void writeAlarm(JsonWriter writer, Alarm alarm) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(alarm.getId());
+        writeDateTime(writer.name("alarmTime"), alarm.getAlarmTime());
+        writer.name("recurring").value(alarm.isRecurring());
+        writer.name("recurrencePattern").value(alarm.getRecurrencePattern());
+        writer.endObject();
+    }
+
+    /** Mốc ID: {@code {"note":N,"folder":N,"tag":N,"alarm":N}}, xem {@link IdMarks}. */
+    static void writeIdMarks(JsonWriter writer, IdMarks marks) throws IOException {
+        writer.beginObject();
+        for (IdMarks.Kind kind : IdMarks.Kind.values()) {
+            writer.name(kind.name().toLowerCase(Locale.ROOT)).value(marks.get(kind));
+        }
+        writer.endObject();
+    }
+
+    /** Trường {@code "ids":{...}} để đặt vào dòng đầu của file dạng {@link JsonRecordLines}. */
+    static String idMarksHeaderField(IdMarks marks) {
+        StringWriter out = new StringWriter();
+        try {
+            writeIdMarks(new JsonWriter(out), marks);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter không ném IOException
+        }
+        return "\"ids\":" + out;
+    }
+
+    /** Loại không có trong object giữ mốc 0 (chưa biết); trường lạ được bỏ qua để phiên bản sau có thể thêm loại mới. */
+    static IdMarks readIdMarks(JsonReader reader) throws IOException {
+        IdMarks marks = new IdMarks();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            IdMarks.Kind kind = null;
+            for (IdMarks.Kind candidate : IdMarks.Kind.values()) {
+                if (candidate.name().toLowerCase(Locale.ROOT).equals(name)) {
+                    kind = candidate;
+                }
+            }
+            if (kind == null) {
+                reader.skipValue();
+                continue;
+            }
+            long mark = reader.nextLong();
+            if (mark < 0) {
+                throw new IOException("Mốc ID " + name + " âm (" + reader.getPath() + ")");
+            }
+            marks.set(kind, mark);
+        }
+        reader.endObject();
+        return marks;
+    }
+
+    static void writeDateTime(JsonWriter writer, LocalDateTime value) throws IOException {
+        writer.value(value == null ? null : value.format(FORMATTER));
+    }
+
+    static Note readNote(JsonReader reader) throws IOException {
+        long[] id = new long[1];
+        JsonObject upgraded = readVersion(reader, SchemaMigrations.Kind.NOTE, id);
+        if (upgraded != null) {
+            return readNote(treeReader(upgraded));
+        }
+        String title = null;
+        String content = null;
+        boolean contentStored = false;
+        LocalDateTime createdAt = null;
+        LocalDateTime updatedAt = null;
+        boolean isFavorite = false;
+        boolean isMission = false;
+        boolean isMissionCompleted = false;
+        String missionContent = null;
+        long folderId = 0;
+        List<Tag> tags = null;
+        Alarm alarm = null;
+        Note.NoteType noteType = null;
+        String drawingData = null;
+        String drawingHash = null;
+        int seen = 0;
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "title": title = reader.nextString(); seen |= 1; break;
+                case "content": content = reader.nextString(); break;
+                case "contentStored": contentStored = reader.nextBoolean(); break;
+                case "createdAt": createdAt = readDateTime(reader); seen |= 1 << 1; break;
+                case "updatedAt": updatedAt = readDateTime(reader); seen |= 1 << 2; break;
+                case "isFavorite": isFavorite = reader.nextBoolean(); seen |= 1 << 3; break;
+                case "isMission": isMission = reader.nextBoolean(); seen |= 1 << 4; break;
+                case "isMissionCompleted": isMissionCompleted = reader.nextBoolean(); seen |= 1 << 5; break;
+                case "missionContent": missionContent = reader.nextString(); seen |= 1 << 6; break;
+                case "folderId": folderId = reader.nextLong(); seen |= 1 << 7; break;
+                case "tags":
+                    tags = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tags.add(readTagReference(reader));
+                    }
+                    reader.endArray();
+                    seen |= 1 << 8;
+                    break;
+                case "alarm": alarm = readAlarm(reader); break;
+                case "noteType": noteType = readNoteType(reader); seen |= 1 << 9; break;
+                case "drawingData": drawingData = reader.nextString(); break;
+                case "drawingHash": drawingHash = reader.nextString(); break;
+                default: reader.skipValue(); break; // "crc" của JsonRecordLines
+            }
+        }
+        reader.endObject();
+        if (seen != NOTE_REQUIRED_FIELDS || noteType == Note.NoteType.TEXT && content == null && !contentStored) {
+            throw new IOException("Note ID " + id[0] + " thiếu trường bắt buộc của lược đồ " + SchemaMigrations.CURRENT + " (" + reader.getPath() + ")");
+        }
+
+        Long alarmId = (alarm != null) ? alarm.getId() : null;
+        Note note = new Note(id[0], title, noteType == Note.NoteType.TEXT ? content : null, createdAt, updatedAt, folderId, isFavorite,
+                isMission, isMissionCompleted, missionContent, alarmId, tags,
+                noteType, noteType == Note.NoteType.DRAWING && drawingHash == null ? drawingData : null);
+        if (alarm != null) {
+            note.setAlarm(alarm);
+            note.setUpdatedAt(updatedAt); // setAlarm cập nhật updatedAt, khôi phục lại giá trị đã lưu
+        }
+        if (noteType == Note.NoteType.DRAWING && drawingHash != null) {
+            note.setDrawingBlob(drawingHash, null); // Tải lười sau khi DataStorage gắn kho blob
+        }
+        if (noteType == Note.NoteType.TEXT && contentStored) {
+            note.setStoredContent(null); // Tải lười sau khi DataStorage gắn NoteBodyStore
+        }
+        return note;
+    }
+
+    static Folder readFolder(JsonReader reader) throws IOException {
+        long[] id = new long[1];
+        JsonObject upgraded = readVersion(reader, SchemaMigrations.Kind.FOLDER, id);
+        if (upgraded != null) {
+            return readFolder(treeReader(upgraded));
+        }
+        String name = null;
+        boolean favorite = false;
+        boolean hasFavorite = false;
+        List<String> subFolderNames = new ArrayList<>();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name": name = reader.nextString(); break;
+                case "isFavorite": favorite = reader.nextBoolean(); hasFavorite = true; break;
+                case "subFolderNames":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        subFolderNames.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (name == null || !hasFavorite) {
+            throw new IOException("Folder ID " + id[0] + " thiếu trường bắt buộc của lược đồ " + SchemaMigrations.CURRENT + " (" + reader.getPath() + ")");
+        }
+
+        Folder folder = new Folder(name);
+        folder.setId(id[0]);
+        folder.setFavorite(favorite);
+        folder.setSubFolderNames(subFolderNames);
+        return folder;
+    }
+
+    static Tag readTag(JsonReader reader) throws IOException {
+        long[] id = new long[1];
+        JsonObject upgraded = readVersion(reader, SchemaMigrations.Kind.TAG, id);
+        if (upgraded != null) {
+            return readTag(treeReader(upgraded));
+        }
+        return readTagFields(reader, id[0]);
+    }
+
+    /** Tag nằm trong note: thuộc lược đồ của note nên không mang "v" riêng. */
+    private static Tag readTagReference(JsonReader reader) throws IOException {
+        reader.beginObject();
+        if (!reader.hasNext() || !reader.nextName().equals("id")) {
+            throw new IOException("Tag trong note phải bắt đầu bằng id (" + reader.getPath() + ")");
+        }
+        return readTagFields(reader, reader.nextLong());
+    }
+
+    private static Tag readTagFields(JsonReader reader, long id) throws IOException {
+        String name = null;
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("name")) {
+                name = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (name == null) {
+            throw new IOException("Tag ID " + id + " thiếu tên (" + reader.getPath() + ")");
+        }
+
+        Tag tag = new Tag(name);
+        tag.setId(id);
+        return tag;
+    }
+
+    static Alarm readAlarm(JsonReader reader) throws IOException {
+        long id = 0;
+        LocalDateTime alarmTime = null;
+        boolean recurring = false;
+        String recurrencePattern = null;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id": id = reader.nextLong(); seen |= 1; break;
+                case "alarmTime": alarmTime = readDateTime(reader); seen |= 1 << 1; break;
+                case "recurring": recurring = reader.nextBoolean(); seen |= 1 << 2; break;
+                case "recurrencePattern": recurrencePattern = reader.nextString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (seen != 7) {
+            throw new IOException("Alarm thiếu trường bắt buộc của lược đồ " + SchemaMigrations.CURRENT + " (" + reader.getPath() + ")");
+        }
+        return new Alarm(id, alarmTime, recurring, recurrencePattern);
+    }
+
+    private static Note.NoteType readNoteType(JsonReader reader) throws IOException {
+        String value = reader.nextString();
+        try {
+            return Note.NoteType.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Giá trị noteType không hợp lệ: " + value + " (" + reader.getPath() + ")", e);
+        }
+    }
+
+    /**
+     * Đọc phần đầu của một bản ghi. Bản ghi ở phiên bản hiện tại ({@code {"id":N,"v":CURRENT,...}}) trả về null,
+     * {@code id[0]} nhận ID và {@code reader} đứng ngay sau "v" để đọc tiếp các trường còn lại.
+     * Bản ghi khác (thiếu "v" là phiên bản 1) được đọc hết thành cây và trả về sau khi đã nâng cấp qua {@link SchemaMigrations}.
+     */
+    private static JsonObject readVersion(JsonReader reader, SchemaMigrations.Kind kind, long[] id) throws IOException {
+        reader.beginObject();
+        String name = reader.hasNext() ? reader.nextName() : null;
+        boolean hasId = "id".equals(name) && reader.peek() == JsonToken.NUMBER;
+        if (hasId) {
+            id[0] = reader.nextLong();
+            name = reader.hasNext() ? reader.nextName() : null;
+            if ("v".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                int version = reader.nextInt();
+                if (version == SchemaMigrations.CURRENT) {
+                    return null; // Đường nhanh: chỉ tốn hai lần so sánh tên trường
+                }
+                JsonObject record = new JsonObject();
+                record.addProperty("id", id[0]);
+                record.addProperty("v", version);
+                return upgradeRest(reader, kind, record, null);
+            }
+        }
+        JsonObject record = new JsonObject();
+        if (hasId) {
+            record.addProperty("id", id[0]);
+        }
+        return upgradeRest(reader, kind, record, name);
+    }
+
+    /** Đọc nốt các trường còn lại vào cây (bắt đầu bằng {@code pendingName} nếu đã đọc tên mà chưa đọc giá trị) rồi nâng cấp. */
+    private static JsonObject upgradeRest(JsonReader reader, SchemaMigrations.Kind kind, JsonObject record, String pendingName) throws IOException {
+        if (pendingName != null) {
+            record.add(pendingName, JsonParser.parseReader(reader));
+        }
+        while (reader.hasNext()) {
+            record.add(reader.nextName(), JsonParser.parseReader(reader));
+        }
+        reader.endObject();
+        JsonElement version = record.get("v");
+        return SchemaMigrations.upgrade(kind, record, version != null && version.isJsonPrimitive() ? version.getAsInt() : 1);
+    }
+
+    private static JsonReader treeReader(JsonObject record) {
+        return new JsonReader(new StringReader(record.toString()));
+    }
+
+    static LocalDateTime readDateTime(JsonReader reader) throws IOException {
+        String value = reader.nextString();
+        try {
+            return LocalDateTime.parse(value, FORMATTER);
+        } catch (DateTimeParseException e) {
+            throw new IOException("Giá trị thời gian không hợp lệ: " + value + " (" + reader.getPath() + ")", e);
+        }
+    }
+}
@@ -1,30 +1,104 @@
 import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+/**
+ * Mô hình dữ liệu (notes, folders, tags) cùng các chỉ mục và việc ghi xuống backend.
+ * <p>
+ * Đa luồng: mọi thao tác sửa được tuần tự hóa bằng {@code writeLock} (một batch giữ khóa từ lúc mở tới lúc
+ * commit/rollback). Luồng đã tạo NoteManager (EDT trong ứng dụng) và luồng đang giữ khóa đọc các instance được
+ * quản lý, dưới khóa. Mọi luồng khác (kiểm tra alarm, ...) chỉ đọc một {@link ModelView} bất biến được công bố qua
+ * tham chiếu nguyên tử: bản sao giá trị của notes/folders/tags cùng chỉ mục ID/tên/alarm/folder riêng, không bao giờ
+ * chờ khóa. Mỗi lần nhả khóa ngoài cùng (không còn batch mở) công bố bản sao của đúng các đối tượng đã đổi; ảnh chụp
+ * đầy đủ được gộp lại khi có luồng đọc cần tới (hoặc khi đã dồn nhiều thay đổi). Đối tượng trong ảnh chụp không được
+ * quản lý: sửa chúng không có tác dụng gì, muốn sửa thì tra instance được quản lý theo ID trên luồng sở hữu.
+ * Note trong ảnh chụp chỉ mang folderId (getFolder() là null), folder trong ảnh chụp không chứa note
+ * (dùng {@link #getNotesInFolder}).
+ */
 public class NoteManager {
     private final List<Note> notes;
     private final List<Folder> folders;
     private final List<Tag> tags;
-    private final DataStorage dataStorage;
+    private final StorageBackend storage;
+    private final PersistenceService persistenceService; // null nếu ghi đồng bộ
+    // Chế độ shard: các folder có shard cần ghi lại, và manifest (folders/tags) có thay đổi hay không
+    private final Set<Long> dirtyShards = new HashSet<>();
+    private boolean manifestDirty;
+    // noteId -> folderId của shard đang chứa note trên đĩa; phát hiện note đã chuyển folder
+    // kể cả khi nơi gọi đã đổi folder trên chính instance được quản lý trước khi gọi updateNote
+    private final Map<Long, Long> persistedShardOfNote = new HashMap<>();
+    // Chỉ mục tra cứu theo ID (khóa long, không đóng hộp) và theo tên không phân biệt hoa thường.
+    // Được dựng lại sau khi backend điền dữ liệu và cập nhật ở mọi chỗ thêm/sửa/xóa trong lớp này.
+    private final LongObjectMap<Note> notesById = new LongObjectMap<>();
+    private final LongObjectMap<Folder> foldersById = new LongObjectMap<>();
+    private final LongObjectMap<Tag> tagsById = new LongObjectMap<>();
+    private final LongObjectMap<Note> notesByAlarmId = new LongObjectMap<>(); // Có thể còn mục cũ, được kiểm lại khi tra
+    private final NameIndex<Folder> folderNames;
+    private final NameIndex<Tag> tagNames;
+    private Batch activeBatch; // Batch đang mở: các lần ghi được hoãn tới commit, xem beginBatch()
+    private final ReentrantLock writeLock = new ReentrantLock(); // Bảo vệ mọi trường ở trên và các danh sách
+    private final Thread ownerThread = Thread.currentThread(); // Đọc instance được quản lý, xem readsLive()
+    private final AtomicReference<PublishedView> published = new AtomicReference<>(PublishedView.EMPTY);
+    // ID của đối tượng đã đổi kể từ lần công bố trước (giữ thứ tự lần đổi đầu tiên), được writeLock bảo vệ; xem publishChanges()
+    private final Set<Long> changedNoteIds = new LinkedHashSet<>();
+    private final Set<Long> changedFolderIds = new LinkedHashSet<>();
+    private final Set<Long> changedTagIds = new LinkedHashSet<>();
+    private boolean viewRebuildNeeded; // Danh sách bị sửa hàng loạt hoặc đổi thứ tự: công bố lại toàn bộ
 
     private AtomicLong nextNoteId = new AtomicLong(1);
     private AtomicLong nextFolderId = new AtomicLong(1);
     private AtomicLong nextTagId = new AtomicLong(1);
     private AtomicLong nextAlarmId = new AtomicLong(1);
+    // ID được dành trước theo khối: mọi ID đã cấp đều nhỏ hơn mốc đã lưu, nên lần khởi động sau
+    // dùng thẳng mốc làm ID kế tiếp thay vì tìm ID lớn nhất (xem IdMarks)
+    static final long ID_BLOCK_SIZE = 256;
+    private final IdMarks reservedIds = new IdMarks();
+    private boolean idMarksPending; // Mốc mới chưa được ghi (dành khối trong lúc khởi tạo, hoặc sau lần chuẩn hóa ID)
+    private boolean initialized;
+    private boolean readOnlyWarned;
+    // Lần ghi đồng bộ gần nhất thất bại (null nếu thành công): lần ghi sau là snapshot đầy đủ để không mất thay đổi đó
+    private volatile IOException syncSaveFailure;
+    private volatile Consumer<IOException> saveFailureListener;
 
     public NoteManager() {
+        this(StorageBackend.fromConfig());
+    }
+
+    public NoteManager(StorageBackend storage) {
         notes = new ArrayList<>();
         folders = new ArrayList<>();
         tags = new ArrayList<>();
-        dataStorage = new DataStorage("notes.json");
+        folderNames = new NameIndex<>(folders, Folder::getName, Folder::getId);
+        tagNames = new NameIndex<>(tags, Tag::getName, Tag::getId);
+        this.storage = storage;
+        persistenceService = StorageConfig.isAsyncPersistenceEnabled()
+                ? new PersistenceService(storage, StorageConfig.getCommitWindowMillis())
+                : null;
+        if (persistenceService != null) {
+            persistenceService.setFailureListener(this::reportSaveFailure);
+        }
 
-        System.out.println("[NoteManager Constructor] Đang tải dữ liệu từ DataStorage...");
-        dataStorage.load(this); // Điền dữ liệu thô vào notes, folders, tags
+        System.out.println("[NoteManager Constructor] Đang tải dữ liệu từ " + storage.getClass().getSimpleName() + "...");
+        storage.load(this); // Điền dữ liệu thô vào notes, folders, tags
+        rebuildIndexes();
 
-        // Bước 1: Khởi tạo và chuẩn hóa ID cho các đối tượng đã tải
-        initializeAndSanitizeIds();
+        // Bước 1: Thiết lập bộ cấp ID từ mốc đã lưu; chỉ quét và chuẩn hóa toàn bộ khi mốc thiếu hoặc không khớp dữ liệu
+        IdMarks storedIds = storage.getLoadedIdMarks();
+        String idProblem = storedIds == null || storedIds.isEmpty() ? "chưa có mốc ID đã lưu" : findIdBeyondMarks(storedIds);
+        if (idProblem == null) {
+            restoreIdGenerators(storedIds);
+        } else {
+            System.out.println("[NoteManager Constructor] Chuẩn hóa ID toàn bộ: " + idProblem + ".");
+            initializeAndSanitizeIds();
+        }
 
         // Bước 2: Đảm bảo thư mục Root tồn tại và hợp lệ
         ensureRootFolderExists();
@@ -32,6 +106,24 @@ public class NoteManager {
         // Bước 3: Tái liên kết các đối tượng (Note với Folder, Note với Tags, v.v.)
         relinkObjects();
 
+        if (storage.isFullSaveRequired()) {
+            System.out.println("[NoteManager Constructor] Ghi lại toàn bộ dữ liệu vừa chuyển đổi...");
+            saveData();
+        } else if (storage.isSharded()) {
+            notes.forEach(note -> persistedShardOfNote.put(note.getId(), note.getFolderId()));
+        }
+        publishChanges(); // Dữ liệu vừa tải, cho luồng đọc
+        initialized = true;
+        if (idMarksPending) {
+            // Lưu mốc ngay để lần khởi động sau không phải chuẩn hóa lại
+            persistIdMarks();
+            if (storage.isSharded()) {
+                saveDirtyShards();
+            } else if (!storage.isIncremental()) {
+                saveData();
+            }
+        }
+
         System.out.println("[NoteManager Constructor] Khởi tạo hoàn tất. Notes: " + notes.size() +
                 ", Folders: " + folders.size() +
                 ", Tags: " + tags.size());
@@ -99,13 +191,68 @@ public class NoteManager {
             }
         }
 
+        synchronized (reservedIds) {
+            // Mọi ID hiện có đều nhỏ hơn ID kế tiếp; khối mới được dành ở lần cấp ID đầu tiên
+            reservedIds.set(IdMarks.Kind.NOTE, nextNoteId.get());
+            reservedIds.set(IdMarks.Kind.FOLDER, nextFolderId.get());
+            reservedIds.set(IdMarks.Kind.TAG, nextTagId.get());
+            reservedIds.set(IdMarks.Kind.ALARM, nextAlarmId.get());
+        }
+        idMarksPending = true;
+
         if (dataModified) {
+            rebuildIndexes(); // ID vừa được gán lại
             System.out.println("[NoteManager] Dữ liệu đã được sửa đổi trong quá trình chuẩn hóa ID, đang lưu lại...");
             saveData(); // Lưu lại ngay nếu có thay đổi ID
         }
         System.out.println("[NoteManager] Hoàn tất initializeAndSanitizeIds.");
     }
 
+    /**
+     * Kiểm tra rẻ thay cho chuẩn hóa toàn bộ: mọi ID đã tải phải khác 0 và nhỏ hơn mốc đã lưu.
+     * Sai khi dữ liệu bị sửa ngoài ứng dụng, khôi phục từ bản sao lưu/thế hệ cũ, hoặc crash giữa lúc ghi shard và manifest.
+     * @return Mô tả chỗ không khớp đầu tiên, null nếu mốc dùng được.
+     */
+    private String findIdBeyondMarks(IdMarks marks) {
+        long noteMark = marks.get(IdMarks.Kind.NOTE);
+        long alarmMark = marks.get(IdMarks.Kind.ALARM);
+        for (Note note : notes) {
+            if (note.getId() <= 0 || note.getId() >= noteMark) {
+                return "note ID " + note.getId() + " ngoài mốc " + noteMark;
+            }
+            Alarm alarm = note.getAlarm();
+            if (alarm != null && (alarm.getId() <= 0 || alarm.getId() >= alarmMark)) {
+                return "alarm ID " + alarm.getId() + " ngoài mốc " + alarmMark;
+            }
+        }
+        long folderMark = marks.get(IdMarks.Kind.FOLDER);
+        for (Folder folder : folders) {
+            if (folder.getId() <= 0 || folder.getId() >= folderMark) {
+                return "folder ID " + folder.getId() + " ngoài mốc " + folderMark;
+            }
+        }
+        long tagMark = marks.get(IdMarks.Kind.TAG);
+        for (Tag tag : tags) {
+            if (tag.getId() <= 0 || tag.getId() >= tagMark) {
+                return "tag ID " + tag.getId() + " ngoài mốc " + tagMark;
+            }
+        }
+        return null;
+    }
+
+    /** Mốc đã lưu khớp với dữ liệu: ID kế tiếp bắt đầu từ mốc, khối mới được dành ở lần cấp ID đầu tiên. */
+    private void restoreIdGenerators(IdMarks marks) {
+        nextNoteId.set(Math.max(1, marks.get(IdMarks.Kind.NOTE)));
+        nextFolderId.set(Math.max(1, marks.get(IdMarks.Kind.FOLDER)));
+        nextTagId.set(Math.max(1, marks.get(IdMarks.Kind.TAG)));
+        nextAlarmId.set(Math.max(1, marks.get(IdMarks.Kind.ALARM)));
+        synchronized (reservedIds) {
+            reservedIds.raise(marks);
+        }
+        System.out.println("[NoteManager] ID generators được thiết lập từ mốc đã lưu: Note=" + nextNoteId +
+                ", Folder=" + nextFolderId + ", Tag=" + nextTagId + ", Alarm=" + nextAlarmId);
+    }
+
     private void ensureRootFolderExists() {
         System.out.println("[NoteManager] Đang kiểm tra thư mục Root...");
         Folder root = folders.stream()
@@ -117,20 +264,28 @@ public class NoteManager {
             System.out.println("[NoteManager] Thư mục Root không tồn tại, đang tạo mới...");
             root = new Folder("Root");
             root.setId(generateNewFolderId()); // ID mới nếu chưa có
+            listChanging(root);
             folders.add(0, root); // Thêm vào đầu danh sách
+            indexFolder(root);
+            viewRebuildNeeded = true;
             System.out.println("[NoteManager] Đã tạo thư mục Root với ID: " + root.getId());
             rootModifiedOrCreated = true;
         } else {
             if (root.getId() == 0) { // Root tồn tại nhưng ID = 0 (không nên xảy ra nếu sanitizeIds chạy đúng)
                 System.out.println("[NoteManager] Thư mục Root có ID 0, đang gán ID mới: " + root.getName());
+                unindexFolder(root);
                 root.setId(generateNewFolderId());
+                indexFolder(root);
+                viewRebuildNeeded = true;
                 System.out.println("[NoteManager] ID mới cho Root: " + root.getId());
                 rootModifiedOrCreated = true;
             }
             // Đảm bảo Root luôn ở vị trí đầu tiên
             if (folders.indexOf(root) != 0) {
+                listChanging(root);
                 folders.remove(root);
                 folders.add(0, root);
+                viewRebuildNeeded = true;
                 // Không cần đánh dấu dataModified ở đây vì chỉ thay đổi thứ tự trong bộ nhớ
             }
             System.out.println("[NoteManager] Thư mục Root đã tồn tại với ID: " + root.getId());
@@ -140,36 +295,29 @@ public class NoteManager {
         }
     }
 
-    private void relinkObjects() {
+    /**
+     * Gắn note với instance folder/tag được quản lý qua các chỉ mục, nên tốn O(notes + folders + tags)
+     * thay vì quét danh sách tag/folder cho mỗi note (thành viên folder cũng tra theo ID). Liên kết lại không phải một lần sửa note: updatedAt giữ nguyên.
+     * Gọi lại trên dữ liệu đã liên kết không thay đổi gì (kiểm thử đo riêng bước này theo cách đó).
+     */
+    void relinkObjects() {
         System.out.println("[NoteManager] Đang tái liên kết các đối tượng...");
-        Map<Long, Folder> folderMapById = folders.stream()
-                .filter(f -> f.getId() != 0) // Chỉ map các folder có ID hợp lệ
-                .collect(Collectors.toMap(Folder::getId, f -> f, (f1, f2) -> f1)); // Xử lý key trùng (không nên có)
-        Map<Long, Tag> tagMapById = tags.stream()
-                .filter(t -> t.getId() != 0)
-                .collect(Collectors.toMap(Tag::getId, t -> t, (t1, t2) -> t1));
+        long startNanos = System.nanoTime();
         Folder rootFolder = getRootFolder(); // Phải có Root ở đây
 
         for (Note note : notes) {
+            LocalDateTime updatedAt = note.getUpdatedAt();
             // Liên kết Folder cho Note
-            Folder associatedFolder = null;
-            if (note.getFolderId() != 0) {
-                associatedFolder = folderMapById.get(note.getFolderId());
-            }
-
-            if (associatedFolder != null) {
-                note.setFolder(associatedFolder);
-                if (!associatedFolder.getNotes().contains(note)) {
-                    associatedFolder.addNote(note);
-                }
-            } else {
+            Folder associatedFolder = note.getFolderId() != 0 ? foldersById.get(note.getFolderId()) : null;
+            if (associatedFolder == null) {
                 if (note.getFolderId() != 0) { // Có folderId nhưng không tìm thấy folder tương ứng
                     System.err.println("[NoteManager relink] Cảnh báo: Note '" + note.getTitle() + "' có folderId " + note.getFolderId() + " nhưng không tìm thấy folder. Gán vào Root.");
                 }
-                note.setFolder(rootFolder); // Gán vào Root
-                if (rootFolder != null && !rootFolder.getNotes().contains(note)) {
-                    rootFolder.addNote(note);
-                }
+                associatedFolder = rootFolder; // Gán vào Root
+            }
+            note.setFolder(associatedFolder);
+            if (associatedFolder != null && !associatedFolder.containsNote(note)) {
+                associatedFolder.attachNote(note);
             }
 
             // Liên kết Tags cho Note
@@ -178,13 +326,11 @@ public class NoteManager {
                 for (Tag tagStub : note.getTags()) {
                     Tag resolvedTag = null;
                     if (tagStub.getId() != 0) {
-                        resolvedTag = tagMapById.get(tagStub.getId());
+                        resolvedTag = tagsById.get(tagStub.getId());
                     }
                     if (resolvedTag == null && tagStub.getName() != null && !tagStub.getName().isEmpty()) {
                         // Nếu không tìm thấy bằng ID, thử tìm bằng tên trong danh sách tag đã được chuẩn hóa ID
-                        resolvedTag = tags.stream()
-                                .filter(t -> t.getName().equalsIgnoreCase(tagStub.getName()))
-                                .findFirst().orElse(null);
+                        resolvedTag = tagNames.get(tagStub.getName());
                     }
                     if (resolvedTag != null) {
                         resolvedTags.add(resolvedTag);
@@ -194,15 +340,20 @@ public class NoteManager {
                 }
             }
             note.setTags(resolvedTags);
+            note.setUpdatedAt(updatedAt);
         }
-        // Liên kết subFolders cho Folders (nếu dùng subFolderNames)
+        relinkSubFolders();
+        System.out.println("[NoteManager] Hoàn tất tái liên kết " + notes.size() + " notes trong " +
+                (System.nanoTime() - startNanos) / 1_000_000 + " ms.");
+    }
+
+    /** Liên kết subFolders cho Folders (nếu dùng subFolderNames), tra tên qua chỉ mục. */
+    private void relinkSubFolders() {
         for (Folder folder : folders) {
             if (folder.getSubFolderNames() != null && !folder.getSubFolderNames().isEmpty()) {
                 folder.getSubFolders().clear(); // Xóa subfolders cũ trước khi link lại
                 for (String subFolderName : folder.getSubFolderNames()) {
-                    Folder subFolder = folders.stream()
-                            .filter(f -> f.getName().equalsIgnoreCase(subFolderName))
-                            .findFirst().orElse(null);
+                    Folder subFolder = folderNames.get(subFolderName);
                     if (subFolder != null && subFolder.getId() != folder.getId()) { // Đảm bảo không tự làm subfolder của chính nó
                         folder.addSubFolder(subFolder);
                     } else if (subFolder != null && subFolder.getId() == folder.getId()){
@@ -211,15 +362,62 @@ public class NoteManager {
                 }
             }
         }
-        System.out.println("[NoteManager] Hoàn tất tái liên kết đối tượng.");
     }
 
 
     // --- Các phương thức generate ID ---
-    public long generateNewNoteId() { return nextNoteId.getAndIncrement(); }
-    public long generateNewFolderId() { return nextFolderId.getAndIncrement(); }
-    public long generateNewTagId() { return nextTagId.getAndIncrement(); }
-    public long generateNewAlarmId() { return nextAlarmId.getAndIncrement(); }
+    public long generateNewNoteId() { return allocateId(nextNoteId, IdMarks.Kind.NOTE); }
+    public long generateNewFolderId() { return allocateId(nextFolderId, IdMarks.Kind.FOLDER); }
+    public long generateNewTagId() { return allocateId(nextTagId, IdMarks.Kind.TAG); }
+    public long generateNewAlarmId() { return allocateId(nextAlarmId, IdMarks.Kind.ALARM); }
+
+    /**
+     * Cấp ID trong khối đã dành trước; hết khối thì dành khối mới và ghi mốc mới trước khi ID được dùng
+     * (bản ghi mốc đi trước bản ghi của đối tượng mang ID đó trong cùng luồng ghi).
+     */
+    private long allocateId(AtomicLong next, IdMarks.Kind kind) {
+        long id = next.getAndIncrement();
+        synchronized (reservedIds) {
+            if (id < reservedIds.get(kind)) {
+                return id;
+            }
+            reservedIds.set(kind, id + ID_BLOCK_SIZE);
+        }
+        beginWrite(); // Ghi mốc dùng chung trạng thái ghi (batch, shard bẩn) với các thao tác sửa
+        try {
+            if (initialized) {
+                persistIdMarks();
+            } else {
+                idMarksPending = true; // Ghi một lần khi khởi tạo xong
+            }
+        } finally {
+            endWrite();
+        }
+        return id;
+    }
+
+    /** Bản sao mốc ID hiện tại, để backend ghi cùng snapshot. */
+    IdMarks getIdMarks() {
+        synchronized (reservedIds) {
+            return reservedIds.copy();
+        }
+    }
+
+    /**
+     * Ghi mốc ID hiện tại theo cách của backend. Chế độ shard: mốc nằm trong manifest, được ghi cùng lần ghi shard
+     * chứa đối tượng mang ID mới. Ghi toàn bộ: lần saveData ngay sau khi dùng ID đã chứa mốc.
+     */
+    private void persistIdMarks() {
+        idMarksPending = false;
+        if (activeBatch != null) {
+            activeBatch.idMarksAdvanced = true;
+        }
+        if (storage.isSharded()) {
+            manifestDirty = true;
+        } else if (storage.isIncremental()) {
+            persistRecord("ids", () -> storage.encodeIdReservation(getIdMarks()));
+        }
+    }
 
     // --- Các phương thức CRUD và logic khác giữ nguyên như trước ---
     // ... (addNote, updateNote, deleteNote, getNoteById, getAllNotes, etc.)
@@ -229,38 +427,47 @@ public class NoteManager {
 
     // Ví dụ: addFolder cần đảm bảo ID
     public void addFolder(Folder folder) {
-        if (folder == null) {
-            throw new IllegalArgumentException("Folder cannot be null");
-        }
-        if (folder.getId() == 0) { // Gán ID nếu là folder mới
-            // Kiểm tra tên trùng trước khi gán ID mới cho folder mới hoàn toàn
-            Optional<Folder> existingByName = folders.stream()
-                    .filter(f -> f.getName().equalsIgnoreCase(folder.getName()))
-                    .findFirst();
-            if (existingByName.isPresent()) {
-                System.out.println("[NoteManager addFolder] Thư mục '" + folder.getName() + "' đã tồn tại với ID " + existingByName.get().getId() + ". Không thêm mới.");
-                // Cập nhật tham chiếu của folder truyền vào thành folder đã tồn tại
-                // (Điều này có thể không cần thiết nếu UI luôn tạo folder mới và controller xử lý)
-                // folder.setId(existingByName.get().getId()); // Hoặc throw lỗi, hoặc trả về folder đã tồn tại
-                return; // Không thêm nếu tên đã có
-            }
-            folder.setId(generateNewFolderId());
-        }
-
-        // Chỉ thêm nếu folder (với ID đó) chưa có trong danh sách
-        final long folderIdToAdd = folder.getId();
-        boolean alreadyExistsById = folders.stream().anyMatch(f -> f.getId() == folderIdToAdd);
-
-        if (!alreadyExistsById) {
-            folders.add(folder);
-            System.out.println("[NoteManager addFolder] Đã thêm thư mục: " + folder.getName() + " với ID: " + folder.getId());
-            saveData();
-        } else if (!folders.contains(folder)) { // Cùng ID nhưng khác instance (không nên xảy ra nếu quản lý tốt)
-            // Cập nhật instance trong list nếu cần
-            folders.removeIf(f -> f.getId() == folderIdToAdd);
-            folders.add(folder);
-            System.out.println("[NoteManager addFolder] Đã cập nhật instance cho thư mục: " + folder.getName() + " với ID: " + folder.getId());
-            saveData();
+        beginWrite();
+        try {
+            if (folder == null) {
+                throw new IllegalArgumentException("Folder cannot be null");
+            }
+            if (folder.getId() == 0) { // Gán ID nếu là folder mới
+                // Kiểm tra tên trùng trước khi gán ID mới cho folder mới hoàn toàn
+                Optional<Folder> existingByName = Optional.ofNullable(folderNames.get(folder.getName()));
+                if (existingByName.isPresent()) {
+                    System.out.println("[NoteManager addFolder] Thư mục '" + folder.getName() + "' đã tồn tại với ID " + existingByName.get().getId() + ". Không thêm mới.");
+                    // Cập nhật tham chiếu của folder truyền vào thành folder đã tồn tại
+                    // (Điều này có thể không cần thiết nếu UI luôn tạo folder mới và controller xử lý)
+                    // folder.setId(existingByName.get().getId()); // Hoặc throw lỗi, hoặc trả về folder đã tồn tại
+                    return; // Không thêm nếu tên đã có
+                }
+                folder.setId(generateNewFolderId());
+            }
+
+            // Chỉ thêm nếu folder (với ID đó) chưa có trong danh sách
+            final long folderIdToAdd = folder.getId();
+            Folder existingById = foldersById.get(folderIdToAdd);
+
+            if (existingById == null) {
+                listChanging(folder);
+                folders.add(folder);
+                indexFolder(folder);
+                System.out.println("[NoteManager addFolder] Đã thêm thư mục: " + folder.getName() + " với ID: " + folder.getId());
+                persistFolderChange(folder);
+            } else if (!folders.contains(folder)) { // Cùng ID nhưng khác instance (không nên xảy ra nếu quản lý tốt)
+                // Cập nhật instance trong list nếu cần
+                listChanging(existingById);
+                listChanging(folder);
+                folders.removeIf(f -> f.getId() == folderIdToAdd);
+                unindexFolder(existingById);
+                folders.add(folder);
+                indexFolder(folder);
+                System.out.println("[NoteManager addFolder] Đã cập nhật instance cho thư mục: " + folder.getName() + " với ID: " + folder.getId());
+                persistFolderChange(folder);
+            }
+        } finally {
+            endWrite();
         }
     }
 
@@ -272,138 +479,217 @@ public class NoteManager {
 
     // --- Note Management ---
     public void addNote(Note note) {
-        if (note == null) {
-            throw new IllegalArgumentException("Note cannot be null");
-        }
-        if (note.getId() == 0) {
-            note.setId(generateNewNoteId());
-        }
-        if (note.getAlarm() != null && note.getAlarm().getId() == 0) {
-            note.getAlarm().setId(generateNewAlarmId());
-        }
+        beginWrite();
+        try {
+            if (note == null) {
+                throw new IllegalArgumentException("Note cannot be null");
+            }
+            if (note.getId() == 0) {
+                note.setId(generateNewNoteId());
+            }
+            if (note.getAlarm() != null && note.getAlarm().getId() == 0) {
+                note.getAlarm().setId(generateNewAlarmId());
+            }
 
-        List<Tag> resolvedTags = new ArrayList<>();
-        if (note.getTags() != null) {
-            for (Tag tag : note.getTags()) {
-                resolvedTags.add(getOrCreateTag(tag.getName()));
+            List<Tag> resolvedTags = new ArrayList<>();
+            if (note.getTags() != null) {
+                for (Tag tag : note.getTags()) {
+                    resolvedTags.add(getOrCreateTag(tag.getName()));
+                }
             }
-        }
-        note.setTags(resolvedTags);
+            note.setTags(resolvedTags);
 
-        Folder parentFolder = note.getFolder();
-        if (parentFolder == null || parentFolder.getId() == 0) {
-            parentFolder = getRootFolder();
-            note.setFolder(parentFolder);
-        } else { // Đảm bảo parentFolder là instance được quản lý
-            Folder managedParentFolder = getFolderById(parentFolder.getId());
-            if (managedParentFolder != null) {
-                parentFolder = managedParentFolder;
-                note.setFolder(parentFolder);
-            } else { // Folder không tìm thấy, gán vào Root
-                System.err.println("Cảnh báo: Folder ID " + parentFolder.getId() + " cho note '" + note.getTitle() + "' không tìm thấy. Gán vào Root.");
+            Folder parentFolder = note.getFolder();
+            if (parentFolder == null || parentFolder.getId() == 0) {
                 parentFolder = getRootFolder();
                 note.setFolder(parentFolder);
+            } else { // Đảm bảo parentFolder là instance được quản lý
+                Folder managedParentFolder = getFolderById(parentFolder.getId());
+                if (managedParentFolder != null) {
+                    parentFolder = managedParentFolder;
+                    note.setFolder(parentFolder);
+                } else { // Folder không tìm thấy, gán vào Root
+                    System.err.println("Cảnh báo: Folder ID " + parentFolder.getId() + " cho note '" + note.getTitle() + "' không tìm thấy. Gán vào Root.");
+                    parentFolder = getRootFolder();
+                    note.setFolder(parentFolder);
+                }
             }
-        }
-        note.setFolderId(parentFolder.getId());
+            note.setFolderId(parentFolder.getId());
 
 
-        if (!notes.contains(note)) {
-            notes.add(note);
-            if (!parentFolder.getNotes().contains(note)) {
+            if (notesById.get(note.getId()) == null) {
+                listChanging(note);
+                notes.add(note);
+                indexNote(note);
                 parentFolder.addNote(note);
+            } else {
+                updateNote(note); // Gọi update nếu note đã tồn tại (dựa trên ID)
+                return;
             }
-        } else {
-            updateNote(note); // Gọi update nếu note đã tồn tại (dựa trên ID)
-            return;
+            System.out.println("[NoteManager addNote] Đã thêm/cập nhật note: " + note.getTitle() + " với ID: " + note.getId());
+            persistNoteChange(note);
+        } finally {
+            endWrite();
         }
-        System.out.println("[NoteManager addNote] Đã thêm/cập nhật note: " + note.getTitle() + " với ID: " + note.getId());
-        saveData();
     }
 
-    public void updateNote(Note noteToUpdate) {
-        if (noteToUpdate == null || noteToUpdate.getId() == 0) {
-            throw new IllegalArgumentException("Note to update must not be null and must have a valid ID.");
-        }
-        if (noteToUpdate.getAlarm() != null && noteToUpdate.getAlarm().getId() == 0) {
-            noteToUpdate.getAlarm().setId(generateNewAlarmId());
+    /**
+     * Thêm hàng loạt folder và note mới (ví dụ từ {@link NoteImporter}) rồi ghi xuống đĩa bằng một snapshot duy nhất,
+     * thay vì một lần ghi cho mỗi note/tag như addNote() và getOrCreateTag(). Tag được tra theo tên (không phân biệt
+     * hoa thường) qua chỉ mục tên. Folder của note phải là folder đã được quản lý hoặc nằm trong {@code newFolders};
+     * note không có folder được đưa vào Root. Thời gian tạo/sửa của note được giữ nguyên.
+     */
+    public void importBatch(List<Folder> newFolders, List<Note> newNotes) {
+        beginWrite();
+        try {
+            for (Folder folder : newFolders) {
+                if (folder.getId() == 0) {
+                    folder.setId(generateNewFolderId());
+                }
+                listChanging(folder);
+                folders.add(folder);
+                indexFolder(folder);
+                changedFolderIds.add(folder.getId());
+            }
+            Folder rootFolder = getRootFolder();
+            for (Note note : newNotes) {
+                LocalDateTime updatedAt = note.getUpdatedAt();
+                note.setId(generateNewNoteId());
+                List<Tag> resolvedTags = new ArrayList<>();
+                for (Tag tag : note.getTags()) {
+                    Tag managed = tagNames.get(tag.getName());
+                    if (managed == null) {
+                        managed = new Tag(tag.getName());
+                        managed.setId(generateNewTagId());
+                        listChanging(managed);
+                        tags.add(managed);
+                        indexTag(managed);
+                        changedTagIds.add(managed.getId());
+                    }
+                    if (!resolvedTags.contains(managed)) {
+                        resolvedTags.add(managed);
+                    }
+                }
+                note.setTags(resolvedTags);
+                Folder folder = note.getFolder() != null ? note.getFolder() : rootFolder;
+                folder.attachNote(note);
+                note.setFolder(folder);
+                note.setUpdatedAt(updatedAt);
+                listChanging(note);
+                notes.add(note);
+                indexNote(note);
+                changedNoteIds.add(note.getId());
+            }
+            System.out.println("[NoteManager importBatch] Đã thêm " + newNotes.size() + " notes và " + newFolders.size() + " folders, đang lưu...");
+            saveData();
+        } finally {
+            endWrite();
         }
+    }
 
-        List<Tag> resolvedTags = new ArrayList<>();
-        if (noteToUpdate.getTags() != null) {
-            for (Tag tag : noteToUpdate.getTags()) {
-                resolvedTags.add(getOrCreateTag(tag.getName()));
+    public void updateNote(Note noteToUpdate) {
+        beginWrite();
+        try {
+            if (noteToUpdate == null || noteToUpdate.getId() == 0) {
+                throw new IllegalArgumentException("Note to update must not be null and must have a valid ID.");
+            }
+            if (noteToUpdate.getAlarm() != null && noteToUpdate.getAlarm().getId() == 0) {
+                noteToUpdate.getAlarm().setId(generateNewAlarmId());
             }
-        }
-        noteToUpdate.setTags(resolvedTags);
 
-        Folder parentFolder = noteToUpdate.getFolder();
-        if (parentFolder == null || parentFolder.getId() == 0) {
-            parentFolder = getRootFolder();
-            noteToUpdate.setFolder(parentFolder);
-        } else {
-            Folder managedParentFolder = getFolderById(parentFolder.getId());
-            if (managedParentFolder != null) {
-                parentFolder = managedParentFolder;
-                noteToUpdate.setFolder(parentFolder);
-            } else {
-                System.err.println("Cảnh báo: Folder ID " + parentFolder.getId() + " cho note update '" + noteToUpdate.getTitle() + "' không tìm thấy. Gán vào Root.");
+            List<Tag> resolvedTags = new ArrayList<>();
+            if (noteToUpdate.getTags() != null) {
+                for (Tag tag : noteToUpdate.getTags()) {
+                    resolvedTags.add(getOrCreateTag(tag.getName()));
+                }
+            }
+            noteToUpdate.setTags(resolvedTags);
+
+            Folder parentFolder = noteToUpdate.getFolder();
+            if (parentFolder == null || parentFolder.getId() == 0) {
                 parentFolder = getRootFolder();
                 noteToUpdate.setFolder(parentFolder);
+            } else {
+                Folder managedParentFolder = getFolderById(parentFolder.getId());
+                if (managedParentFolder != null) {
+                    parentFolder = managedParentFolder;
+                    noteToUpdate.setFolder(parentFolder);
+                } else {
+                    System.err.println("Cảnh báo: Folder ID " + parentFolder.getId() + " cho note update '" + noteToUpdate.getTitle() + "' không tìm thấy. Gán vào Root.");
+                    parentFolder = getRootFolder();
+                    noteToUpdate.setFolder(parentFolder);
+                }
             }
-        }
-        noteToUpdate.setFolderId(parentFolder.getId());
+            noteToUpdate.setFolderId(parentFolder.getId());
 
 
-        int index = -1;
-        for (int i = 0; i < notes.size(); i++) {
-            if (notes.get(i).getId() == noteToUpdate.getId()) {
-                index = i;
-                break;
-            }
-        }
-        if (index != -1) {
-            Note oldNoteVersion = notes.get(index);
-            if (oldNoteVersion.getFolder() != null && oldNoteVersion.getFolder().getId() != noteToUpdate.getFolderId()) {
-                Folder oldActualFolder = getFolderById(oldNoteVersion.getFolder().getId());
-                if(oldActualFolder != null) oldActualFolder.removeNote(oldNoteVersion);
-            }
-            notes.set(index, noteToUpdate);
-            if (parentFolder != null && !parentFolder.getNotes().contains(noteToUpdate)) {
-                parentFolder.addNote(noteToUpdate);
-            }
-            System.out.println("[NoteManager updateNote] Đã cập nhật note: " + noteToUpdate.getTitle() + " với ID: " + noteToUpdate.getId());
-        } else {
-            System.err.println("[NoteManager updateNote] Cảnh báo: updateNote được gọi cho note không có trong danh sách. ID: " + noteToUpdate.getId() + ". Thêm như note mới.");
-            notes.add(noteToUpdate);
-            if (parentFolder != null && !parentFolder.getNotes().contains(noteToUpdate)) {
-                parentFolder.addNote(noteToUpdate);
+            Note oldNoteVersion = notesById.get(noteToUpdate.getId());
+            if (oldNoteVersion != null) {
+                if (oldNoteVersion.getFolder() != null && oldNoteVersion.getFolder().getId() != noteToUpdate.getFolderId()) {
+                    Folder oldActualFolder = getFolderById(oldNoteVersion.getFolder().getId());
+                    if(oldActualFolder != null) oldActualFolder.removeNote(oldNoteVersion);
+                }
+                if (oldNoteVersion != noteToUpdate) { // Nơi gọi thường sửa thẳng instance được quản lý, khi đó không cần thay
+                    listChanging(oldNoteVersion);
+                    listChanging(noteToUpdate);
+                    notes.set(indexOfInstance(notes, oldNoteVersion), noteToUpdate);
+                    unindexNote(oldNoteVersion);
+                }
+                indexNote(noteToUpdate); // Alarm có thể vừa được gán
+                parentFolder.attachNote(noteToUpdate); // Instance mới thay instance cũ ở đúng vị trí trong folder
+                System.out.println("[NoteManager updateNote] Đã cập nhật note: " + noteToUpdate.getTitle() + " với ID: " + noteToUpdate.getId());
+            } else {
+                System.err.println("[NoteManager updateNote] Cảnh báo: updateNote được gọi cho note không có trong danh sách. ID: " + noteToUpdate.getId() + ". Thêm như note mới.");
+                listChanging(noteToUpdate);
+                notes.add(noteToUpdate);
+                indexNote(noteToUpdate);
+                parentFolder.attachNote(noteToUpdate);
             }
+            persistNoteChange(noteToUpdate);
+        } finally {
+            endWrite();
         }
-        saveData();
     }
 
     public void deleteNote(long noteId) {
-        Note noteToRemove = getNoteById(noteId);
-        if (noteToRemove != null) {
-            if (noteToRemove.getFolder() != null) {
-                Folder parent = getFolderById(noteToRemove.getFolder().getId()); // Lấy instance được quản lý
-                if(parent != null) parent.removeNote(noteToRemove);
-            }
-            notes.remove(noteToRemove);
-            System.out.println("[NoteManager deleteNote] Đã xóa note với ID: " + noteId);
-            saveData();
-        } else {
-            System.err.println("[NoteManager deleteNote] Note với ID " + noteId + " không tìm thấy để xóa.");
+        beginWrite();
+        try {
+            Note noteToRemove = getNoteById(noteId);
+            if (noteToRemove != null) {
+                if (noteToRemove.getFolder() != null) {
+                    Folder parent = getFolderById(noteToRemove.getFolder().getId()); // Lấy instance được quản lý
+                    if(parent != null) parent.removeNote(noteToRemove);
+                }
+                listChanging(noteToRemove);
+                notes.remove(noteToRemove);
+                unindexNote(noteToRemove);
+                System.out.println("[NoteManager deleteNote] Đã xóa note với ID: " + noteId);
+                persistNoteRemoval(noteToRemove);
+            } else {
+                System.err.println("[NoteManager deleteNote] Note với ID " + noteId + " không tìm thấy để xóa.");
+            }
+        } finally {
+            endWrite();
         }
     }
 
     public Note getNoteById(long noteId) {
-        return notes.stream().filter(note -> note.getId() == noteId).findFirst().orElse(null);
+        return read(() -> notesById.get(noteId), view -> view.notes.get(noteId));
+    }
+
+    /** Note đang giữ alarm có ID này, null nếu không có. */
+    public Note getNoteByAlarmId(long alarmId) {
+        return read(() -> {
+            Note note = notesByAlarmId.get(alarmId);
+            if (note == null || note.getAlarm() == null || note.getAlarm().getId() != alarmId || notesById.get(note.getId()) != note) {
+                return null; // Alarm đã bị gỡ/thay hoặc note đã bị xóa
+            }
+            return note;
+        }, view -> view.notesByAlarmId.get(alarmId));
     }
 
     public List<Note> getAllNotes() {
-        return new ArrayList<>(notes);
+        return queryNotes(ArrayList::new);
     }
 
     public List<Note> getNotesInFolder(Folder folder) {
@@ -411,80 +697,105 @@ public class NoteManager {
             System.err.println("[NoteManager getNotesInFolder] Nhận folder null hoặc ID 0. Trả về danh sách rỗng.");
             return new ArrayList<>();
         }
-        Folder managedFolder = getFolderById(folder.getId());
-        if (managedFolder == null) {
-            System.err.println("[NoteManager getNotesInFolder] Không tìm thấy folder được quản lý với ID: " + folder.getId() + ". Trả về danh sách rỗng.");
-            return new ArrayList<>();
-        }
-        // Trả về một bản sao của danh sách notes của folder đó
-        return new ArrayList<>(managedFolder.getNotes());
+        return read(() -> {
+            Folder managedFolder = getFolderById(folder.getId());
+            if (managedFolder == null) {
+                System.err.println("[NoteManager getNotesInFolder] Không tìm thấy folder được quản lý với ID: " + folder.getId() + ". Trả về danh sách rỗng.");
+                return new ArrayList<>();
+            }
+            // Trả về một bản sao của danh sách notes của folder đó
+            return new ArrayList<>(managedFolder.getNotes());
+        }, view -> new ArrayList<>(view.notesInFolder(folder.getId())));
     }
 
     public void updateFolder(Folder folderToUpdate) {
-        if (folderToUpdate == null || folderToUpdate.getId() == 0) {
-            throw new IllegalArgumentException("Folder to update must not be null and must have a valid ID.");
-        }
-        if ("Root".equalsIgnoreCase(folderToUpdate.getName()) && getRootFolder().getId() != folderToUpdate.getId()) {
-            throw new IllegalArgumentException("Cannot rename another folder to 'Root'.");
-        }
-
-        int index = -1;
-        for (int i = 0; i < folders.size(); i++) {
-            if (folders.get(i).getId() == folderToUpdate.getId()) {
-                index = i;
-                break;
+        beginWrite();
+        try {
+            if (folderToUpdate == null || folderToUpdate.getId() == 0) {
+                throw new IllegalArgumentException("Folder to update must not be null and must have a valid ID.");
+            }
+            if ("Root".equalsIgnoreCase(folderToUpdate.getName()) && getRootFolder().getId() != folderToUpdate.getId()) {
+                throw new IllegalArgumentException("Cannot rename another folder to 'Root'.");
             }
-        }
-        if (index != -1) {
-            final long currentId = folderToUpdate.getId();
-            Optional<Folder> conflictingFolder = folders.stream()
-                    .filter(f -> f.getName().equalsIgnoreCase(folderToUpdate.getName()) && f.getId() != currentId)
-                    .findFirst();
 
-            if (conflictingFolder.isPresent()) {
-                throw new IllegalArgumentException("Another folder with the name '" + folderToUpdate.getName() + "' already exists.");
+            Folder existing = foldersById.get(folderToUpdate.getId());
+            if (existing != null) {
+                if (folderNames.findOther(folderToUpdate.getName(), folderToUpdate.getId()) != null) {
+                    throw new IllegalArgumentException("Another folder with the name '" + folderToUpdate.getName() + "' already exists.");
+                }
+                if (existing != folderToUpdate) {
+                    listChanging(existing);
+                    listChanging(folderToUpdate);
+                    folders.set(indexOfInstance(folders, existing), folderToUpdate); // Cập nhật folder trong danh sách
+                }
+                unindexFolder(existing); // Tên có thể đã đổi
+                indexFolder(folderToUpdate);
+                System.out.println("[NoteManager updateFolder] Đã cập nhật folder: " + folderToUpdate.getName() + " với ID: " + folderToUpdate.getId());
+                persistFolderChange(folderToUpdate);
+            } else {
+                throw new IllegalArgumentException("Folder with ID " + folderToUpdate.getId() + " not found for update.");
             }
-            folders.set(index, folderToUpdate); // Cập nhật folder trong danh sách
-            System.out.println("[NoteManager updateFolder] Đã cập nhật folder: " + folderToUpdate.getName() + " với ID: " + folderToUpdate.getId());
-            saveData();
-        } else {
-            throw new IllegalArgumentException("Folder with ID " + folderToUpdate.getId() + " not found for update.");
+        } finally {
+            endWrite();
         }
     }
 
     public void deleteFolder(long folderId, boolean deleteAssociatedNotes) {
-        Folder folderToRemove = getFolderById(folderId);
-        if (folderToRemove == null) {
-            System.err.println("[NoteManager deleteFolder] Folder với ID " + folderId + " không tìm thấy để xóa.");
-            return;
-        }
-        if ("Root".equalsIgnoreCase(folderToRemove.getName())) {
-            throw new IllegalStateException("Cannot delete the Root folder.");
-        }
-
-        if (deleteAssociatedNotes) {
-            List<Note> notesInFolderCopy = new ArrayList<>(folderToRemove.getNotes());
-            for (Note note : notesInFolderCopy) {
-                deleteNote(note.getId());
+        beginWrite();
+        try {
+            Folder folderToRemove = getFolderById(folderId);
+            if (folderToRemove == null) {
+                System.err.println("[NoteManager deleteFolder] Folder với ID " + folderId + " không tìm thấy để xóa.");
+                return;
             }
-        } else {
-            Folder root = getRootFolder();
-            if (root == null) throw new IllegalStateException("Root folder not found, cannot move notes.");
-            List<Note> notesToMoveCopy = new ArrayList<>(folderToRemove.getNotes());
-            for (Note note : notesToMoveCopy) {
-                // folderToRemove.removeNote(note); // Sẽ được xử lý trong note.setFolder và updateNote
-                note.setFolder(root);
-                note.setFolderId(root.getId());
-                // root.addNote(note); // updateNote sẽ xử lý việc thêm vào danh sách của folder mới
-                updateNote(note);
+            if ("Root".equalsIgnoreCase(folderToRemove.getName())) {
+                throw new IllegalStateException("Cannot delete the Root folder.");
             }
+
+            // Một batch: xóa/chuyển từng note rồi xóa folder được ghi bằng một lần ghi, lỗi giữa chừng thì hoàn tác cả
+            runInBatch(() -> {
+                if (deleteAssociatedNotes) {
+                    List<Note> notesInFolderCopy = new ArrayList<>(folderToRemove.getNotes());
+                    for (Note note : notesInFolderCopy) {
+                        deleteNote(note.getId());
+                    }
+                } else {
+                    Folder root = getRootFolder();
+                    if (root == null) throw new IllegalStateException("Root folder not found, cannot move notes.");
+                    List<Note> notesToMoveCopy = new ArrayList<>(folderToRemove.getNotes());
+                    for (Note note : notesToMoveCopy) {
+                        // folderToRemove.removeNote(note); // Sẽ được xử lý trong note.setFolder và updateNote
+                        note.setFolder(root);
+                        note.setFolderId(root.getId());
+                        // root.addNote(note); // updateNote sẽ xử lý việc thêm vào danh sách của folder mới
+                        updateNote(note);
+                    }
+                }
+                listChanging(folderToRemove);
+                folders.remove(folderToRemove);
+                unindexFolder(folderToRemove);
+                System.out.println("[NoteManager deleteFolder] Đã xóa folder: " + folderToRemove.getName() + " với ID: " + folderId);
+                persistFolderRemoval(folderToRemove);
+            });
+        } finally {
+            endWrite();
         }
-        folders.remove(folderToRemove);
-        System.out.println("[NoteManager deleteFolder] Đã xóa folder: " + folderToRemove.getName() + " với ID: " + folderId);
-        saveData();
     }
 
     public Folder getRootFolder() {
+        if (!readsLive()) {
+            List<Folder> view = readView().folders.items;
+            return view.isEmpty() ? null : view.get(0); // Root luôn đứng đầu, xem ensureRootFolderExists()
+        }
+        beginWrite();
+        try {
+            return ensureValidRootFolder();
+        } finally {
+            endWrite();
+        }
+    }
+
+    private Folder ensureValidRootFolder() {
         if (folders.isEmpty() || !"Root".equalsIgnoreCase(folders.get(0).getName()) || folders.get(0).getId() == 0) {
             System.err.println("[NoteManager getRootFolder] Root folder không hợp lệ hoặc không ở vị trí đầu. Đang thử đảm bảo lại...");
             ensureRootFolderExists(); // Thử đảm bảo lại Root
@@ -494,7 +805,10 @@ public class NoteManager {
                 if (folders.isEmpty()) {
                     Folder tempRoot = new Folder("Root (Fallback Cấp Cứu)");
                     tempRoot.setId(generateNewFolderId()); // Gán ID
+                    listChanging(tempRoot);
                     folders.add(0, tempRoot);
+                    indexFolder(tempRoot);
+                    viewRebuildNeeded = true;
                     saveData();
                     return tempRoot;
                 }
@@ -505,126 +819,158 @@ public class NoteManager {
     }
 
     public List<Folder> getAllFolders() {
-        return new ArrayList<>(folders);
+        return read(() -> new ArrayList<>(folders), view -> new ArrayList<>(view.folders.items));
     }
 
     public Folder getFolderById(long folderId) {
         if (folderId == 0) return null; // ID 0 không phải là ID hợp lệ cho folder được quản lý
-        return folders.stream().filter(folder -> folder.getId() == folderId).findFirst().orElse(null);
+        return read(() -> foldersById.get(folderId), view -> view.folders.get(folderId));
     }
 
     public Optional<Folder> getFolderByName(String name) {
         if (name == null || name.trim().isEmpty()) return Optional.empty();
-        return folders.stream().filter(f -> f.getName().equalsIgnoreCase(name.trim())).findFirst();
+        String trimmedName = name.trim();
+        return Optional.ofNullable(read(() -> folderNames.get(trimmedName), view -> view.folders.getByName(trimmedName)));
     }
 
     public Tag getOrCreateTag(String tagName) {
-        if (tagName == null || tagName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Tag name cannot be null or empty.");
-        }
-        String trimmedName = tagName.trim();
-        Optional<Tag> existingTag = tags.stream()
-                .filter(t -> t.getName().equalsIgnoreCase(trimmedName))
-                .findFirst();
-        if (existingTag.isPresent()) {
-            return existingTag.get();
-        } else {
-            Tag newTag = new Tag(trimmedName);
-            newTag.setId(generateNewTagId());
-            tags.add(newTag);
-            System.out.println("[NoteManager getOrCreateTag] Đã tạo tag mới: " + newTag.getName() + " với ID: " + newTag.getId());
-            saveData();
-            return newTag;
+        beginWrite();
+        try {
+            if (tagName == null || tagName.trim().isEmpty()) {
+                throw new IllegalArgumentException("Tag name cannot be null or empty.");
+            }
+            String trimmedName = tagName.trim();
+            Tag existingTag = tagNames.get(trimmedName);
+            if (existingTag != null) {
+                return existingTag;
+            } else {
+                Tag newTag = new Tag(trimmedName);
+                newTag.setId(generateNewTagId());
+                listChanging(newTag);
+                tags.add(newTag);
+                indexTag(newTag);
+                System.out.println("[NoteManager getOrCreateTag] Đã tạo tag mới: " + newTag.getName() + " với ID: " + newTag.getId());
+                persistTagChange(newTag);
+                return newTag;
+            }
+        } finally {
+            endWrite();
         }
     }
 
     public void addTagToNote(Note note, String tagName) {
-        if (note == null || note.getId() == 0) throw new IllegalArgumentException("Note cannot be null or unsaved.");
-        Note managedNote = getNoteById(note.getId()); // Lấy instance được quản lý
-        if(managedNote == null) throw new IllegalArgumentException("Note not found in manager.");
+        beginWrite();
+        try {
+            if (note == null || note.getId() == 0) throw new IllegalArgumentException("Note cannot be null or unsaved.");
+            Note managedNote = getNoteById(note.getId()); // Lấy instance được quản lý
+            if(managedNote == null) throw new IllegalArgumentException("Note not found in manager.");
 
-        Tag tag = getOrCreateTag(tagName);
+            Tag tag = getOrCreateTag(tagName);
 
-        boolean alreadyHasTag = managedNote.getTags().stream().anyMatch(t -> t.getId() == tag.getId());
-        if (!alreadyHasTag) {
-            managedNote.addTag(tag);
-            updateNote(managedNote);
-            System.out.println("[NoteManager addTagToNote] Đã thêm tag '" + tag.getName() + "' vào note '" + managedNote.getTitle() + "'");
-        } else {
-            System.out.println("[NoteManager addTagToNote] Note '" + managedNote.getTitle() + "' đã có tag '" + tag.getName() + "'");
+            boolean alreadyHasTag = managedNote.getTags().stream().anyMatch(t -> t.getId() == tag.getId());
+            if (!alreadyHasTag) {
+                managedNote.addTag(tag);
+                updateNote(managedNote);
+                System.out.println("[NoteManager addTagToNote] Đã thêm tag '" + tag.getName() + "' vào note '" + managedNote.getTitle() + "'");
+            } else {
+                System.out.println("[NoteManager addTagToNote] Note '" + managedNote.getTitle() + "' đã có tag '" + tag.getName() + "'");
+            }
+        } finally {
+            endWrite();
         }
     }
 
     public void removeTagFromNote(Note note, Tag tagToRemove) {
-        if (note == null || note.getId() == 0 || tagToRemove == null || tagToRemove.getId() == 0) {
-            throw new IllegalArgumentException("Note or Tag to remove cannot be null or unsaved");
-        }
-        Note managedNote = getNoteById(note.getId());
-        if(managedNote == null) throw new IllegalArgumentException("Note not found in manager.");
+        beginWrite();
+        try {
+            if (note == null || note.getId() == 0 || tagToRemove == null || tagToRemove.getId() == 0) {
+                throw new IllegalArgumentException("Note or Tag to remove cannot be null or unsaved");
+            }
+            Note managedNote = getNoteById(note.getId());
+            if(managedNote == null) throw new IllegalArgumentException("Note not found in manager.");
 
-        boolean removed = managedNote.getTags().removeIf(t -> t.getId() == tagToRemove.getId());
-        if (removed) {
-            updateNote(managedNote);
-            System.out.println("[NoteManager removeTagFromNote] Đã xóa tag '" + tagToRemove.getName() + "' khỏi note '" + managedNote.getTitle() + "'");
+            boolean removed = managedNote.removeTagById(tagToRemove.getId());
+            if (removed) {
+                updateNote(managedNote);
+                System.out.println("[NoteManager removeTagFromNote] Đã xóa tag '" + tagToRemove.getName() + "' khỏi note '" + managedNote.getTitle() + "'");
+            }
+        } finally {
+            endWrite();
         }
     }
 
     public List<Tag> getAllTags() {
-        return new ArrayList<>(tags);
+        return read(() -> new ArrayList<>(tags), view -> new ArrayList<>(view.tags.items));
     }
 
     public Tag getTagById(long tagId) {
         if (tagId == 0) return null;
-        return tags.stream().filter(tag -> tag.getId() == tagId).findFirst().orElse(null);
+        return read(() -> tagsById.get(tagId), view -> view.tags.get(tagId));
     }
 
     public Tag getTagByName(String name) {
         if (name == null || name.trim().isEmpty()) return null;
-        return tags.stream().filter(t -> t.getName().equalsIgnoreCase(name.trim())).findFirst().orElse(null);
+        String trimmedName = name.trim();
+        return read(() -> tagNames.get(trimmedName), view -> view.tags.getByName(trimmedName));
     }
 
     public void updateTag(Tag tagToUpdate) {
-        if (tagToUpdate == null || tagToUpdate.getId() == 0) {
-            throw new IllegalArgumentException("Tag to update must not be null and must have a valid ID.");
-        }
-        int index = -1;
-        for (int i = 0; i < tags.size(); i++) {
-            if (tags.get(i).getId() == tagToUpdate.getId()) {
-                index = i;
-                break;
-            }
-        }
-        if (index != -1) {
-            final long currentId = tagToUpdate.getId();
-            Optional<Tag> conflictingTag = tags.stream()
-                    .filter(t -> t.getName().equalsIgnoreCase(tagToUpdate.getName()) && t.getId() != currentId)
-                    .findFirst();
-            if (conflictingTag.isPresent()) {
-                throw new IllegalArgumentException("Another tag with the name '" + tagToUpdate.getName() + "' already exists.");
-            }
-            tags.set(index, tagToUpdate);
-            System.out.println("[NoteManager updateTag] Đã cập nhật tag: " + tagToUpdate.getName() + " với ID: " + tagToUpdate.getId());
-            saveData();
-        } else {
-            throw new IllegalArgumentException("Tag with ID " + tagToUpdate.getId() + " not found for update.");
+        beginWrite();
+        try {
+            if (tagToUpdate == null || tagToUpdate.getId() == 0) {
+                throw new IllegalArgumentException("Tag to update must not be null and must have a valid ID.");
+            }
+            Tag existing = tagsById.get(tagToUpdate.getId());
+            if (existing != null) {
+                if (tagNames.findOther(tagToUpdate.getName(), tagToUpdate.getId()) != null) {
+                    throw new IllegalArgumentException("Another tag with the name '" + tagToUpdate.getName() + "' already exists.");
+                }
+                if (existing != tagToUpdate) {
+                    listChanging(existing);
+                    listChanging(tagToUpdate);
+                    tags.set(indexOfInstance(tags, existing), tagToUpdate);
+                }
+                unindexTag(existing); // Tên có thể đã đổi
+                indexTag(tagToUpdate);
+                for (Note note : notes) { // Note trong ảnh chụp mang bản sao tag, kể cả tên
+                    if (note.getTags().stream().anyMatch(tag -> tag.getId() == tagToUpdate.getId())) {
+                        changedNoteIds.add(note.getId());
+                    }
+                }
+                System.out.println("[NoteManager updateTag] Đã cập nhật tag: " + tagToUpdate.getName() + " với ID: " + tagToUpdate.getId());
+                persistTagChange(tagToUpdate);
+            } else {
+                throw new IllegalArgumentException("Tag with ID " + tagToUpdate.getId() + " not found for update.");
+            }
+        } finally {
+            endWrite();
         }
     }
 
     public void deleteTag(long tagId) {
-        Tag tagToDelete = getTagById(tagId);
-        if (tagToDelete == null) {
-            System.err.println("[NoteManager deleteTag] Tag với ID " + tagId + " không tìm thấy để xóa.");
-            return;
-        }
-        for (Note note : notes) {
-            boolean modified = note.getTags().removeIf(t -> t.getId() == tagId);
-            if (modified) {
-                // Không gọi updateNote(note) ở đây để tránh save nhiều lần, saveData() cuối cùng sẽ xử lý
+        beginWrite();
+        try {
+            Tag tagToDelete = getTagById(tagId);
+            if (tagToDelete == null) {
+                System.err.println("[NoteManager deleteTag] Tag với ID " + tagId + " không tìm thấy để xóa.");
+                return;
             }
+            for (Note note : notes) {
+                boolean modified = note.removeTagById(tagId);
+                if (modified) {
+                    // Không gọi updateNote(note) ở đây để tránh save nhiều lần, persistTagRemoval() cuối cùng sẽ xử lý
+                    markShardDirty(note.getFolderId());
+                    changedNoteIds.add(note.getId());
+                }
+            }
+            listChanging(tagToDelete);
+            tags.remove(tagToDelete);
+            unindexTag(tagToDelete);
+            System.out.println("[NoteManager deleteTag] Đã xóa tag: " + tagToDelete.getName() + " với ID: " + tagId + " và xóa khỏi tất cả các notes.");
+            persistTagRemoval(tagToDelete);
+        } finally {
+            endWrite();
         }
-        tags.remove(tagToDelete);
-        System.out.println("[NoteManager deleteTag] Đã xóa tag: " + tagToDelete.getName() + " với ID: " + tagId + " và xóa khỏi tất cả các notes.");
-        saveData();
     }
 
     public List<Note> searchNotes(String query) {
@@ -632,72 +978,1297 @@ public class NoteManager {
             return getAllNotes();
         }
         String lowerQuery = query.trim().toLowerCase();
-        return notes.stream()
+        return queryNotes(notes -> notes.stream()
                 .filter(note -> (note.getTitle() != null && note.getTitle().toLowerCase().contains(lowerQuery)) ||
                         (note.getContent() != null && note.getContent().toLowerCase().contains(lowerQuery)) ||
                         (note.getTags().stream().anyMatch(tag -> tag.getName().toLowerCase().contains(lowerQuery)))
                 )
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
     }
 
     public List<Note> searchNotesByTag(Tag tag) {
         if (tag == null || tag.getId() == 0) {
             return new ArrayList<>();
         }
-        return notes.stream()
+        return queryNotes(notes -> notes.stream()
                 .filter(note -> note.getTags().stream().anyMatch(t -> t.getId() == tag.getId()))
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
     }
 
     public void moveNoteToFolder(Note note, Folder newFolder) {
-        if (note == null || newFolder == null || note.getId() == 0 || newFolder.getId() == 0) {
-            throw new IllegalArgumentException("Note or new Folder cannot be null or unsaved.");
-        }
-        Note noteInManager = getNoteById(note.getId());
-        Folder folderInManager = getFolderById(newFolder.getId());
+        beginWrite();
+        try {
+            if (note == null || newFolder == null || note.getId() == 0 || newFolder.getId() == 0) {
+                throw new IllegalArgumentException("Note or new Folder cannot be null or unsaved.");
+            }
+            Note noteInManager = getNoteById(note.getId());
+            Folder folderInManager = getFolderById(newFolder.getId());
 
-        if (noteInManager == null || folderInManager == null) {
-            throw new IllegalArgumentException("Note or Folder not found in manager for move operation.");
-        }
+            if (noteInManager == null || folderInManager == null) {
+                throw new IllegalArgumentException("Note or Folder not found in manager for move operation.");
+            }
 
-        Folder oldFolder = noteInManager.getFolder(); // Đây là instance được quản lý
+            Folder oldFolder = noteInManager.getFolder(); // Đây là instance được quản lý
 
-        if (oldFolder != null && oldFolder.getId() == folderInManager.getId()) {
-            System.out.println("[NoteManager moveNoteToFolder] Note đã ở trong thư mục đích.");
-            return; // Không cần làm gì thêm
-        }
+            if (oldFolder != null && oldFolder.getId() == folderInManager.getId()) {
+                System.out.println("[NoteManager moveNoteToFolder] Note đã ở trong thư mục đích.");
+                return; // Không cần làm gì thêm
+            }
 
-        if (oldFolder != null) {
-            oldFolder.removeNote(noteInManager); // Xóa khỏi danh sách note của folder cũ
-        }
+            if (oldFolder != null) {
+                oldFolder.removeNote(noteInManager); // Xóa khỏi danh sách note của folder cũ
+            }
 
-        noteInManager.setFolder(folderInManager); // Cập nhật tham chiếu folder trên note
-        noteInManager.setFolderId(folderInManager.getId()); // Cập nhật folderId
-        if (!folderInManager.getNotes().contains(noteInManager)) { // Thêm vào danh sách note của folder mới
-            folderInManager.addNote(noteInManager);
+            noteInManager.setFolder(folderInManager); // Cập nhật tham chiếu folder trên note
+            noteInManager.setFolderId(folderInManager.getId()); // Cập nhật folderId
+            folderInManager.attachNote(noteInManager); // Thêm vào danh sách note của folder mới
+            // Không cần gọi updateNote() ở đây vì noteInManager là tham chiếu trực tiếp, thay đổi đã ảnh hưởng
+            System.out.println("[NoteManager moveNoteToFolder] Đã chuyển note '" + noteInManager.getTitle() + "' sang thư mục '" + folderInManager.getName() + "'.");
+            persistNoteChange(noteInManager);
+        } finally {
+            endWrite();
         }
-        // Không cần gọi updateNote() ở đây vì noteInManager là tham chiếu trực tiếp, thay đổi đã ảnh hưởng
-        System.out.println("[NoteManager moveNoteToFolder] Đã chuyển note '" + noteInManager.getTitle() + "' sang thư mục '" + folderInManager.getName() + "'.");
-        saveData();
+    }
+
+    /** Chuyển nhiều note sang một folder trong một batch: một lần ghi, và không note nào bị chuyển nếu có lỗi. */
+    public void moveNotesToFolder(Collection<Note> notesToMove, Folder newFolder) {
+        runInBatch(() -> {
+            for (Note note : notesToMove) {
+                moveNoteToFolder(note, newFolder);
+            }
+        });
     }
 
     public List<Note> getSortedNotes() {
-        return notes.stream()
+        return queryNotes(notes -> notes.stream()
                 .sorted(Comparator.comparing(Note::isFavorite, Comparator.reverseOrder())
                         .thenComparing(note -> !note.isMission() || note.isMissionCompleted())
                         .thenComparing(Note::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder())))
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
     }
 
+    /**
+     * Ghi snapshot đầy đủ của toàn bộ dữ liệu (ở chế độ journal, đây cũng là điểm checkpoint).
+     * Khi bật PersistenceService, việc ghi diễn ra trên luồng nền; dùng {@link #flush()} để chờ.
+     */
     void saveData() {
+        beginWrite();
         try {
-            dataStorage.save(this);
-        } catch (Exception e) {
-            System.err.println("Nghiêm trọng: Không thể lưu dữ liệu vào " + "notes.json" + ": " + e.getMessage());
-            e.printStackTrace();
+            if (activeBatch != null) {
+                activeBatch.fullSaveRequested = true; // Ghi một snapshot duy nhất khi batch commit
+                return;
+            }
+            if (rejectWriteIfReadOnly()) {
+                return;
+            }
+            idMarksPending = false; // Snapshot đầy đủ luôn chứa mốc ID hiện tại
+            if (storage.isSharded()) {
+                dirtyShards.clear(); // Snapshot đầy đủ đã bao gồm mọi shard
+                manifestDirty = false;
+                persistedShardOfNote.clear();
+                notes.forEach(note -> persistedShardOfNote.put(note.getId(), note.getFolderId()));
+            }
+            try {
+                if (persistenceService != null) {
+                    persistenceService.submitSnapshot(storage.captureSnapshot(this));
+                } else {
+                    storage.writeSnapshot(storage.captureSnapshot(this));
+                    syncSaveFailure = null;
+                }
+            } catch (Exception e) {
+                System.err.println("Nghiêm trọng: Không thể lưu dữ liệu vào " + "notes.json" + ": " + e.getMessage());
+                e.printStackTrace();
+                syncSaveFailed(e);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Chờ cho tới khi mọi thay đổi đã thực hiện trước lời gọi này đã được ghi xuống đĩa.
+     * @throws IOException nếu chưa ghi được; thay đổi vẫn được giữ trong bộ nhớ và được ghi lại ở lần sau.
+     */
+    public void flush() throws IOException {
+        if (persistenceService != null) {
+            persistenceService.flush();
+        } else if (syncSaveFailure != null) {
+            saveData(); // Thử ghi lại toàn bộ
+            IOException failure = syncSaveFailure;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Ghi nốt các thay đổi đang chờ rồi đóng backend (nhả khóa dữ liệu để phiên bản khác của ứng dụng có thể ghi).
+     * @throws IOException nếu lần ghi cuối thất bại; khi đó NoteManager chưa đóng để nơi gọi có thể thử lại.
+     */
+    public void close() throws IOException {
+        flush();
+        if (persistenceService != null) {
+            persistenceService.shutdown();
+        }
+        storage.close();
+    }
+
+    /**
+     * Được gọi (trên luồng bất kỳ) khi việc ghi bắt đầu thất bại, ví dụ để báo cho người dùng.
+     * Thay đổi chưa ghi vẫn được giữ và thử ghi lại; {@link #flush()} cho biết khi nào chúng đã nằm trên đĩa.
+     */
+    public void setSaveFailureListener(Consumer<IOException> listener) {
+        this.saveFailureListener = listener;
+    }
+
+    private void syncSaveFailed(Exception e) {
+        boolean first = syncSaveFailure == null;
+        syncSaveFailure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        if (first) {
+            reportSaveFailure(syncSaveFailure);
+        }
+    }
+
+    private void reportSaveFailure(IOException failure) {
+        Consumer<IOException> listener = saveFailureListener;
+        if (listener != null) {
+            listener.accept(failure);
+        }
+    }
+
+    /** Dữ liệu đang được một phiên bản khác của ứng dụng ghi: các thay đổi ở đây chỉ nằm trong bộ nhớ. */
+    public boolean isReadOnly() {
+        return storage.isReadOnly();
+    }
+
+    /** Xem {@link StorageBackend#getReadOnlyReason()}. */
+    public String getReadOnlyReason() {
+        return storage.getReadOnlyReason();
+    }
+
+    private boolean rejectWriteIfReadOnly() {
+        if (!storage.isReadOnly()) {
+            return false;
+        }
+        if (!readOnlyWarned) {
+            readOnlyWarned = true;
+            System.err.println("[NoteManager] Cảnh báo: Dữ liệu đang được một phiên bản khác của ứng dụng sử dụng, thay đổi sẽ không được lưu.");
+        }
+        return true;
+    }
+
+    // --- Thay đổi từ phiên bản khác của ứng dụng ---
+
+    /**
+     * Theo dõi dữ liệu đã lưu và gộp thay đổi của phiên bản khác: {@link #applyExternalChanges} chạy qua
+     * {@code executor} (EDT với giao diện), sau đó {@code onApplied} được gọi để làm mới hiển thị.
+     * @return false nếu backend không hỗ trợ theo dõi.
+     */
+    public boolean watchExternalChanges(java.util.concurrent.Executor executor, Runnable onApplied) {
+        return storage.startWatching(changes -> executor.execute(() -> {
+            applyExternalChanges(changes);
+            onApplied.run();
+        }));
+    }
+
+    /**
+     * Gộp các bản ghi do tiến trình khác ghi vào dữ liệu trong bộ nhớ, không ghi lại gì (chúng đã nằm trên đĩa).
+     * Note chỉ bị thay nếu bản trên đĩa mới hơn (updatedAt) bản trong bộ nhớ, nên gộp lại cùng một thay đổi
+     * không có tác dụng gì thêm; folder và tag nhận tên/thuộc tính mới. Khi batch đang mở, thay đổi được gộp ngay sau
+     * khi batch commit hoặc rollback, nên rollback không xóa mất chúng.
+     */
+    void applyExternalChanges(ExternalChanges changes) {
+        beginWrite();
+        try {
+            if (activeBatch != null) {
+                // Thay đổi đã nằm trên đĩa, không được bị hoàn tác cùng batch: gộp sau khi batch commit/rollback
+                activeBatch.externalChanges.add(changes);
+                return;
+            }
+            viewRebuildNeeded = true;
+            for (Tag external : changes.tags) {
+                Tag local = tagsById.get(external.getId());
+                if (local != null) {
+                    unindexTag(local);
+                    local.setName(external.getName());
+                    indexTag(local);
+                } else {
+                    tags.add(external);
+                    indexTag(external);
+                }
+            }
+            if (!changes.deletedTagIds.isEmpty()) {
+                tags.removeIf(tag -> changes.deletedTagIds.contains(tag.getId()));
+                for (Note note : notes) {
+                    for (long tagId : changes.deletedTagIds) {
+                        note.removeTagById(tagId);
+                    }
+                }
+                for (long tagId : changes.deletedTagIds) {
+                    Tag removed = tagsById.get(tagId);
+                    if (removed != null) {
+                        unindexTag(removed);
+                    }
+                }
+            }
+
+            for (Folder external : changes.folders) {
+                Folder local = foldersById.get(external.getId());
+                if (local != null) {
+                    unindexFolder(local);
+                    local.setName(external.getName());
+                    local.setFavorite(external.isFavorite());
+                    local.setSubFolderNames(new ArrayList<>(external.getSubFolderNames()));
+                    indexFolder(local);
+                } else {
+                    folders.add(external);
+                    indexFolder(external);
+                }
+            }
+            Folder root = getRootFolder();
+            for (long folderId : changes.deletedFolderIds) {
+                Folder removed = foldersById.get(folderId);
+                if (removed == null || removed == root) {
+                    continue;
+                }
+                unindexFolder(removed);
+                // Tiến trình kia đã chuyển các note sang Root trước khi xóa folder; giữ đúng như vậy nếu bản ghi note chưa tới
+                for (Note note : new ArrayList<>(removed.getNotes())) {
+                    LocalDateTime updatedAt = note.getUpdatedAt();
+                    root.addNote(note);
+                    note.setUpdatedAt(updatedAt);
+                }
+                folders.remove(removed);
+                folders.forEach(folder -> folder.getSubFolders().remove(removed));
+            }
+            relinkSubFolders();
+
+            Map<Long, Integer> noteIndex = new HashMap<>();
+            for (int i = 0; i < notes.size(); i++) {
+                noteIndex.put(notes.get(i).getId(), i);
+            }
+            int applied = 0;
+            for (Note external : changes.notes) {
+                Integer index = noteIndex.get(external.getId());
+                Note local = index != null ? notes.get(index) : null;
+                LocalDateTime updatedAt = external.getUpdatedAt();
+                if (local != null && local.getUpdatedAt() != null && updatedAt != null && !local.getUpdatedAt().isBefore(updatedAt)) {
+                    continue; // Bản trong bộ nhớ đã mới bằng hoặc hơn
+                }
+                List<Tag> resolvedTags = new ArrayList<>();
+                for (Tag stub : external.getTags()) {
+                    Tag tag = tagsById.get(stub.getId());
+                    if (tag == null && stub.getName() != null) {
+                        tag = getTagByName(stub.getName());
+                    }
+                    if (tag != null) {
+                        resolvedTags.add(tag);
+                    }
+                }
+                external.setTags(resolvedTags);
+                Folder folder = foldersById.get(external.getFolderId());
+                if (folder == null) {
+                    folder = root;
+                }
+                if (local != null) {
+                    if (local.getFolder() != null) {
+                        local.getFolder().detachNote(local);
+                    }
+                    notes.set(index, external);
+                    unindexNote(local);
+                } else {
+                    noteIndex.put(external.getId(), notes.size());
+                    notes.add(external);
+                }
+                indexNote(external);
+                folder.attachNote(external);
+                external.setFolder(folder);
+                external.setUpdatedAt(updatedAt); // Liên kết lại không phải một lần sửa note
+                if (storage.isSharded()) {
+                    persistedShardChanging(external.getId());
+                    persistedShardOfNote.put(external.getId(), external.getFolderId());
+                }
+                applied++;
+            }
+            if (!changes.deletedNoteIds.isEmpty()) {
+                for (Note note : notes) {
+                    if (changes.deletedNoteIds.contains(note.getId())) {
+                        if (note.getFolder() != null) {
+                            note.getFolder().detachNote(note);
+                        }
+                        unindexNote(note);
+                    }
+                }
+                notes.removeIf(note -> changes.deletedNoteIds.contains(note.getId()));
+                for (long noteId : changes.deletedNoteIds) {
+                    persistedShardChanging(noteId);
+                    persistedShardOfNote.remove(noteId);
+                }
+            }
+
+            // ID do tiến trình kia cấp không được cấp lại ở đây
+            IdMarks seen = changes.idMarks;
+            changes.notes.forEach(note -> nextNoteId.accumulateAndGet(note.getId() + 1, Math::max));
+            changes.folders.forEach(folder -> nextFolderId.accumulateAndGet(folder.getId() + 1, Math::max));
+            changes.tags.forEach(tag -> nextTagId.accumulateAndGet(tag.getId() + 1, Math::max));
+            nextNoteId.accumulateAndGet(seen.get(IdMarks.Kind.NOTE), Math::max);
+            nextFolderId.accumulateAndGet(seen.get(IdMarks.Kind.FOLDER), Math::max);
+            nextTagId.accumulateAndGet(seen.get(IdMarks.Kind.TAG), Math::max);
+            nextAlarmId.accumulateAndGet(seen.get(IdMarks.Kind.ALARM), Math::max);
+            System.out.println("[NoteManager applyExternalChanges] Đã gộp thay đổi từ bên ngoài (" + changes + "), thay " +
+                    applied + " notes.");
+        } finally {
+            endWrite();
+        }
+    }
+
+    // --- Batch (unit of work) ---
+
+    /**
+     * Mở một batch: mọi thay đổi qua NoteManager cho tới {@link Batch#commit()} chỉ nằm trong bộ nhớ, rồi được ghi
+     * bằng đúng một lần ghi; {@link Batch#rollback()} (hoặc close() khi chưa commit) đặt lại dữ liệu trong bộ nhớ
+     * về lúc mở batch. Dùng với try-with-resources:
+     * <pre>
+     * try (NoteManager.Batch batch = noteManager.beginBatch()) {
+     *     ...
+     *     batch.commit();
+     * }
+     * </pre>
+     * Batch giữ khóa ghi tới khi commit/rollback: thao tác sửa từ luồng khác chờ tới lúc đó, luồng đọc vẫn thấy
+     * dữ liệu trước batch.
+     * @throws IllegalStateException Nếu luồng này đã có batch đang mở (dùng {@link #runInBatch} để tham gia batch đó).
+     */
+    public Batch beginBatch() {
+        beginWrite();
+        if (activeBatch != null) {
+            endWrite();
+            throw new IllegalStateException("Đã có một batch đang mở trên NoteManager này.");
+        }
+        activeBatch = new Batch();
+        return activeBatch;
+    }
+
+    /**
+     * Chạy {@code work} trong một batch: commit nếu chạy xong, rollback rồi ném lại ngoại lệ nếu thất bại.
+     * Khi đã có batch đang mở, {@code work} chỉ tham gia batch đó (batch ngoài quyết định commit/rollback).
+     */
+    public void runInBatch(Runnable work) {
+        beginWrite();
+        try {
+            if (activeBatch != null) {
+                work.run();
+                return;
+            }
+            try (Batch batch = beginBatch()) {
+                work.run();
+                batch.commit();
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    /** Luồng này có batch đang mở hay không. */
+    public boolean isInBatch() {
+        return writeLock.isHeldByCurrentThread() && activeBatch != null;
+    }
+
+    // Trước khi thêm/bỏ/thay một đối tượng trong notes/folders/tags: batch đang mở chép danh sách (lần đầu).
+    // Bản thân đối tượng được đánh dấu bởi persist*, rollback đặt lại nó theo ảnh chụp lúc mở batch
+    private void listChanging(Note note) {
+        if (activeBatch != null) {
+            activeBatch.savedNotes = activeBatch.savedNotes != null ? activeBatch.savedNotes : new ArrayList<>(notes);
+        }
+    }
+
+    private void listChanging(Folder folder) {
+        if (activeBatch != null) {
+            activeBatch.savedFolders = activeBatch.savedFolders != null ? activeBatch.savedFolders : new ArrayList<>(folders);
+        }
+    }
+
+    private void listChanging(Tag tag) {
+        if (activeBatch != null) {
+            activeBatch.savedTags = activeBatch.savedTags != null ? activeBatch.savedTags : new ArrayList<>(tags);
+        }
+    }
+
+    // Trước khi sửa persistedShardOfNote: batch đang mở nhớ giá trị lúc mở batch của note này
+    private void persistedShardChanging(long noteId) {
+        if (activeBatch != null && !activeBatch.savedPersistedShards.containsKey(noteId)) {
+            activeBatch.savedPersistedShards.put(noteId, persistedShardOfNote.get(noteId));
+        }
+    }
+
+    /**
+     * Một nhóm thay đổi được ghi hoặc hoàn tác cùng nhau, xem {@link #beginBatch()}.
+     * Mở batch không chép gì: trong batch không có lần công bố nào, nên ảnh chụp của luồng đọc chính là dữ liệu lúc
+     * mở batch. Mọi thay đổi qua NoteManager (trên luồng nào cũng phải giữ khóa ghi) đã đánh dấu đối tượng bị sửa
+     * để công bố; rollback đặt lại đúng các đối tượng đó từ ảnh chụp, còn danh sách notes/folders/tags chỉ được chép
+     * ở lần thêm/bỏ đầu tiên. Instance cũ được giữ nguyên nên UI đang giữ tham chiếu vẫn thấy đúng dữ liệu.
+     * Sửa thẳng qua setter mà không gọi NoteManager không được theo dõi: chỉ những đối tượng được đưa lại cho
+     * NoteManager (ví dụ qua {@link #updateNote}) trong batch mới được hoàn tác.
+     * Phải commit/rollback trên chính luồng đã mở batch, và nên đóng trong cùng một lượt xử lý vì batch giữ khóa ghi.
+     */
+    public final class Batch implements AutoCloseable {
+        // Thay đổi chưa công bố lúc mở (batch lồng trong một lần ghi đang dở): ảnh chụp chưa phản ánh chúng, nên chép
+        // dữ liệu lúc mở làm mốc hoàn tác. Thường là null và rollback dùng ảnh chụp đã công bố
+        private final ModelView atOpen = hasUnpublishedChanges() ? ModelView.copyOf(notes, folders, tags) : null;
+        private List<Note> savedNotes; // null: danh sách chưa bị thêm/bỏ trong batch
+        private List<Folder> savedFolders;
+        private List<Tag> savedTags;
+        private final Set<Long> savedDirtyShards = new HashSet<>(dirtyShards);
+        private final boolean savedManifestDirty = manifestDirty;
+        private final Map<Long, Long> savedPersistedShards = new HashMap<>(); // ID note -> shard lúc mở batch (null: chưa ghi)
+        private boolean indexRebuildNeeded; // Chỉ mục bị dựng lại trong batch: rollback dựng lại toàn bộ
+        // Bản ghi journal đang hoãn theo đối tượng, giữ thứ tự lần đầu đối tượng được ghi (mốc ID đi trước đối tượng mang ID mới)
+        private final Map<String, Supplier<String>> pendingRecords = new LinkedHashMap<>();
+        private boolean fullSaveRequested;
+        private boolean idMarksAdvanced; // Đã dành khối ID mới trong batch
+        private final List<ExternalChanges> externalChanges = new ArrayList<>(); // Thay đổi bên ngoài nhận được trong batch
+        private boolean open = true;
+
+        private Batch() {
+        }
+
+        /** Ghi mọi thay đổi của batch bằng một lần ghi: một nhóm bản ghi journal, một lần ghi shard hoặc một snapshot. */
+        public void commit() {
+            ensureOpen();
+            open = false;
+            activeBatch = null;
+            try {
+                writePending();
+                applyDeferredExternalChanges();
+            } finally {
+                endWrite(); // Nhả khóa giữ từ beginBatch() và công bố dữ liệu đã commit cho luồng đọc
+            }
+        }
+
+        private void writePending() {
+            long startTime = System.nanoTime();
+            if (fullSaveRequested) {
+                saveData(); // Snapshot đầy đủ đã bao gồm mọi bản ghi đang hoãn
+            } else if (storage.isSharded()) {
+                saveDirtyShards();
+            } else if (!pendingRecords.isEmpty()) {
+                List<String> records = new ArrayList<>(pendingRecords.size());
+                for (Supplier<String> encoder : pendingRecords.values()) {
+                    String record = encoder.get();
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+                persistJournalRecords(records);
+            }
+            System.out.println("[NoteManager Batch commit] Đã gửi ghi " + (fullSaveRequested ? "snapshot đầy đủ" : pendingRecords.size() + " bản ghi")
+                    + " trong " + (System.nanoTime() - startTime) / 1_000_000 + " ms.");
+        }
+
+        /** Đặt lại notes/folders/tags trong bộ nhớ về lúc mở batch; không có gì được ghi xuống đĩa. */
+        public void rollback() {
+            ensureOpen();
+            open = false;
+            activeBatch = null;
+            try {
+                restoreSaved();
+                applyDeferredExternalChanges();
+            } finally {
+                endWrite();
+            }
+        }
+
+        private void restoreSaved() {
+            ModelView view = atOpen != null ? atOpen : readView();
+            boolean all = viewRebuildNeeded; // Dữ liệu được dựng lại trong batch: đối tượng nào cũng có thể đã đổi
+            Set<Long> noteIds = touchedIds(changedNoteIds, all, view.notes.items, notes, Note::getId);
+            Set<Long> folderIds = touchedIds(changedFolderIds, all, view.folders.items, folders, Folder::getId);
+            Set<Long> tagIds = touchedIds(changedTagIds, all, view.tags.items, tags, Tag::getId);
+            // Instance hiện tại của đối tượng bị đụng tới rời chỉ mục trước khi danh sách về lại lúc mở batch
+            Map<Long, Note> currentNotes = unindexAll(noteIds, notesById, NoteManager.this::unindexNote);
+            Map<Long, Folder> currentFolders = unindexAll(folderIds, foldersById, NoteManager.this::unindexFolder);
+            Map<Long, Tag> currentTags = unindexAll(tagIds, tagsById, NoteManager.this::unindexTag);
+            restoreList(notes, savedNotes);
+            restoreList(folders, savedFolders);
+            restoreList(tags, savedTags);
+
+            instancesAtOpen(tagIds, tags, savedTags, currentTags, Tag::getId).forEach((id, tag) -> {
+                Tag published = view.tags.get(id);
+                if (published != null) {
+                    tag.setName(published.getName());
+                }
+                indexTag(tag);
+            });
+            instancesAtOpen(folderIds, folders, savedFolders, currentFolders, Folder::getId).forEach((id, folder) -> {
+                Folder published = view.folders.get(id);
+                if (published != null) {
+                    folder.setName(published.getName());
+                    folder.setFavorite(published.isFavorite());
+                    folder.setSubFolderNames(new ArrayList<>(published.getSubFolderNames()));
+                    folder.getSubFolders().clear();
+                }
+                indexFolder(folder);
+            });
+            if (!folderIds.isEmpty()) {
+                relinkSubFolders();
+            }
+            Map<Long, Note> notesAtOpen = instancesAtOpen(noteIds, notes, savedNotes, currentNotes, Note::getId);
+            notesAtOpen.forEach((id, note) -> {
+                Note published = view.notes.get(id);
+                if (published != null) {
+                    List<Tag> noteTags = new ArrayList<>(published.getTags().size());
+                    for (Tag tag : published.getTags()) {
+                        Tag managed = tagsById.get(tag.getId());
+                        if (managed != null) {
+                            noteTags.add(managed);
+                        }
+                    }
+                    note.restoreFrom(published, foldersById.get(published.getFolderId()), noteTags);
+                }
+            });
+            // Instance thêm vào hoặc thay thế trong batch rời folder đang giữ nó; nếu instance lúc mở batch về lại
+            // đúng folder đó thì nó thế chỗ tại vị trí cũ
+            for (Note note : currentNotes.values()) {
+                Note restored = notesAtOpen.get(note.getId());
+                if (restored == note || note.listedIn == null) {
+                    continue;
+                }
+                if (restored != null && note.listedIn == restored.getFolder()) {
+                    note.listedIn = null;
+                } else {
+                    note.listedIn.detachNote(note);
+                }
+            }
+            for (Note note : notesAtOpen.values()) {
+                if (note.getFolder() != null) {
+                    note.getFolder().attachNote(note);
+                }
+                indexNote(note);
+            }
+            dirtyShards.clear();
+            dirtyShards.addAll(savedDirtyShards);
+            manifestDirty = savedManifestDirty;
+            savedPersistedShards.forEach((noteId, shard) -> {
+                if (shard != null) {
+                    persistedShardOfNote.put(noteId, shard);
+                } else {
+                    persistedShardOfNote.remove(noteId);
+                }
+            });
+            if (indexRebuildNeeded) {
+                rebuildIndexes();
+            }
+            if (idMarksAdvanced) {
+                persistIdMarks(); // Khối ID đã dành vẫn được dùng tiếp, mốc phải nằm trên đĩa trước các ID đó
+            }
+            System.out.println("[NoteManager Batch rollback] Đã hoàn tác batch (" + noteIds.size() + " notes, "
+                    + folderIds.size() + " folders, " + tagIds.size() + " tags), bỏ " + pendingRecords.size() + " bản ghi đang hoãn.");
+        }
+
+        // Gộp thay đổi bên ngoài đã hoãn theo thứ tự nhận; note trong bộ nhớ mới hơn (sửa trong batch đã commit) vẫn được giữ
+        private void applyDeferredExternalChanges() {
+            externalChanges.forEach(NoteManager.this::applyExternalChanges);
+        }
+
+        // ID bị đánh dấu trong batch (các dấu vẫn được giữ để lần công bố sau chép lại đối tượng đã đặt lại);
+        // {@code all}: mọi ID lúc mở batch và hiện tại
+        private <T> Set<Long> touchedIds(Set<Long> changed, boolean all, List<T> atOpen, List<T> current, ToLongFunction<T> idOf) {
+            Set<Long> ids = new HashSet<>(changed);
+            if (all) {
+                atOpen.forEach(item -> ids.add(idOf.applyAsLong(item)));
+                current.forEach(item -> ids.add(idOf.applyAsLong(item)));
+            }
+            return ids;
+        }
+
+        private <T> Map<Long, T> unindexAll(Set<Long> ids, LongObjectMap<T> index, Consumer<T> unindex) {
+            Map<Long, T> current = new HashMap<>();
+            for (long id : ids) {
+                T item = index.get(id);
+                if (item != null) {
+                    current.put(id, item);
+                    unindex.accept(item);
+                }
+            }
+            return current;
+        }
+
+        // Instance lúc mở batch của các ID: danh sách chưa bị thêm/bỏ thì chính là instance hiện tại,
+        // ngược lại là mục đầu tiên mang ID đó trong danh sách đã đặt lại (như chỉ mục)
+        private <T> Map<Long, T> instancesAtOpen(Set<Long> ids, List<T> list, List<T> saved, Map<Long, T> current, ToLongFunction<T> idOf) {
+            if (saved == null) {
+                return current;
+            }
+            Map<Long, T> atOpen = new HashMap<>();
+            if (ids.isEmpty()) {
+                return atOpen;
+            }
+            for (T item : list) {
+                long id = idOf.applyAsLong(item);
+                if (ids.contains(id)) {
+                    atOpen.putIfAbsent(id, item);
+                }
+            }
+            return atOpen;
+        }
+
+        private <T> void restoreList(List<T> list, List<T> saved) {
+            if (saved != null) {
+                list.clear();
+                list.addAll(saved);
+            }
+        }
+
+        /** Hoàn tác nếu batch chưa commit/rollback. */
+        @Override
+        public void close() {
+            if (open) {
+                rollback();
+            }
+        }
+
+        private void ensureOpen() {
+            if (!open) {
+                throw new IllegalStateException("Batch đã được commit hoặc rollback.");
+            }
+            if (!writeLock.isHeldByCurrentThread()) {
+                throw new IllegalStateException("Batch phải được commit/rollback trên luồng đã mở nó.");
+            }
+        }
+    }
+
+    // --- Lưu từng thay đổi ---
+    // Chế độ shard: chỉ ghi lại shard của các folder bị ảnh hưởng (và manifest nếu cần).
+    // Backend ghi từng thay đổi (journal, SQL): chỉ ghi một bản ghi nhỏ. Ngược lại: ghi lại toàn bộ.
+    // Đối tượng được ghi cũng được đánh dấu để lần công bố kế tiếp chép nó vào ảnh chụp của luồng đọc.
+    private void persistNoteChange(Note note) {
+        changedNoteIds.add(note.getId());
+        if (storage.isSharded()) {
+            persistedShardChanging(note.getId());
+            Long previousShard = persistedShardOfNote.put(note.getId(), note.getFolderId());
+            if (previousShard != null) {
+                markShardDirty(previousShard);
+            }
+            markShardDirty(note.getFolderId());
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("note:" + note.getId(), () -> storage.encodeNoteUpsert(note));
+        } else {
+            saveData();
+        }
+    }
+
+    private void persistNoteRemoval(Note note) {
+        changedNoteIds.add(note.getId());
+        if (storage.isSharded()) {
+            persistedShardChanging(note.getId());
+            Long previousShard = persistedShardOfNote.remove(note.getId());
+            if (previousShard != null) {
+                markShardDirty(previousShard);
+            }
+            markShardDirty(note.getFolderId());
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("note:" + note.getId(), () -> storage.encodeNoteDelete(note.getId()));
+        } else {
+            saveData();
+        }
+    }
+
+    private void persistFolderChange(Folder folder) {
+        changedFolderIds.add(folder.getId());
+        if (storage.isSharded()) {
+            manifestDirty = true;
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("folder:" + folder.getId(), () -> storage.encodeFolderUpsert(folder));
+        } else {
+            saveData();
+        }
+    }
+
+    private void persistFolderRemoval(Folder folder) {
+        changedFolderIds.add(folder.getId());
+        if (storage.isSharded()) {
+            manifestDirty = true;
+            markShardDirty(folder.getId()); // Folder không còn: file shard sẽ bị xóa
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("folder:" + folder.getId(), () -> storage.encodeFolderDelete(folder.getId()));
+        } else {
+            saveData();
+        }
+    }
+
+    private void persistTagChange(Tag tag) {
+        changedTagIds.add(tag.getId());
+        if (storage.isSharded()) {
+            manifestDirty = true;
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("tag:" + tag.getId(), () -> storage.encodeTagUpsert(tag));
+        } else {
+            saveData();
+        }
+    }
+
+    private void persistTagRemoval(Tag tag) {
+        changedTagIds.add(tag.getId());
+        if (storage.isSharded()) {
+            manifestDirty = true; // Shard của các note bị gỡ tag đã được đánh dấu trong deleteTag
+            saveDirtyShards();
+        } else if (storage.isIncremental()) {
+            persistRecord("tag:" + tag.getId(), () -> storage.encodeTagDelete(tag.getId()));
+        } else {
+            saveData();
+        }
+    }
+
+    private void markShardDirty(long folderId) {
+        if (storage.isSharded() && folderId != 0) {
+            dirtyShards.add(folderId);
+        }
+    }
+
+    private void saveDirtyShards() {
+        if (activeBatch != null) {
+            return; // Các shard bẩn được ghi một lần khi batch commit
+        }
+        if (dirtyShards.isEmpty() && !manifestDirty || rejectWriteIfReadOnly()) {
+            return;
+        }
+        if (storage.isFullSaveRequired() || syncSaveFailure != null) {
+            saveData(); // Dữ liệu trên đĩa bị hỏng hoặc lần ghi trước lỗi: ghi lại toàn bộ thay vì chỉ các shard đã đổi
+            return;
+        }
+        StorageSnapshot snapshot = storage.captureShardSnapshot(this, new HashSet<>(dirtyShards), manifestDirty);
+        dirtyShards.clear();
+        manifestDirty = false;
+        try {
+            if (persistenceService != null) {
+                persistenceService.submitSnapshot(snapshot);
+            } else {
+                storage.writeSnapshot(snapshot);
+            }
+        } catch (Exception e) {
+            System.err.println("Nghiêm trọng: Không thể lưu các shard đã thay đổi: " + e.getMessage());
+            e.printStackTrace();
+            syncSaveFailed(e);
+        }
+    }
+
+    /**
+     * Ghi bản ghi của một đối tượng ({@code key}, ví dụ "note:42"). Trong batch, bản ghi chỉ được mã hóa lúc commit
+     * và bản ghi sau cùng của cùng đối tượng thay thế bản trước đó.
+     */
+    private void persistRecord(String key, Supplier<String> encoder) {
+        if (activeBatch != null) {
+            activeBatch.pendingRecords.put(key, encoder);
+            return;
+        }
+        String record = encoder.get();
+        if (record != null) {
+            persistJournalRecords(Collections.singletonList(record));
+        }
+    }
+
+    private void persistJournalRecords(List<String> records) {
+        if (rejectWriteIfReadOnly()) {
+            return;
+        }
+        if (storage.isFullSaveRequired() || syncSaveFailure != null) {
+            saveData(); // Snapshot đầy đủ đã bao gồm thay đổi này (và thay đổi của lần ghi lỗi trước), thay thế dữ liệu hỏng trên đĩa
+            return;
+        }
+        if (persistenceService != null) {
+            persistenceService.submitJournalRecords(records);
+            return;
+        }
+        try {
+            storage.applyChanges(records);
+        } catch (IOException e) {
+            System.err.println("Nghiêm trọng: Không thể ghi journal cho " + "notes.json" + ": " + e.getMessage());
+            e.printStackTrace();
+            syncSaveFailed(e);
+        }
+    }
+
+    // --- Đồng bộ giữa các luồng ---
+
+    // Luồng ghi tự gộp khi số bản sao chưa gộp vượt quá mức này hoặc một phần tư số note: chi phí gộp O(số note)
+    // được chia cho nhiều lần ghi, còn bộ nhớ giữ các bản sao chưa gộp vẫn có giới hạn
+    private static final int MIN_UNFOLDED_COPIES = 1024;
+
+    private void beginWrite() {
+        writeLock.lock();
+    }
+
+    /** Nhả khóa ghi; lần nhả ngoài cùng (không còn batch mở) công bố các thay đổi cho luồng đọc. */
+    private void endWrite() {
+        try {
+            if (writeLock.getHoldCount() == 1 && activeBatch == null && initialized) {
+                publishChanges();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Luồng sở hữu (luồng đã tạo NoteManager) và luồng đang giữ khóa đọc instance được quản lý; luồng khác đọc ảnh chụp. */
+    private boolean readsLive() {
+        return Thread.currentThread() == ownerThread || writeLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Đọc dữ liệu sống dưới khóa (chỉ phải chờ khi một luồng khác đang ghi) hoặc đọc ảnh chụp đã công bố mà không
+     * lấy khóa, xem {@link #readsLive()}.
+     */
+    private <T> T read(Supplier<T> fromLive, Function<ModelView, T> fromView) {
+        if (!readsLive()) {
+            return fromView.apply(readView());
+        }
+        writeLock.lock();
+        try {
+            return fromLive.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private <T> T queryNotes(Function<List<Note>, T> query) {
+        return read(() -> query.apply(notes), view -> query.apply(view.notes.items));
+    }
+
+    /**
+     * Ảnh chụp mới nhất, không bao giờ lấy khóa ghi. Các lần công bố chưa gộp được gộp ở đây (O(số note), một lần
+     * cho mọi lần đọc sau đó); nếu luồng ghi vừa công bố thêm thì ảnh chụp vừa gộp vẫn được trả về, lần đọc sau gộp tiếp.
+     */
+    private ModelView readView() {
+        PublishedView current = published.get();
+        if (current.changes == null) {
+            return current.view;
+        }
+        ModelView folded = current.view.apply(current.changes);
+        published.compareAndSet(current, new PublishedView(folded, null, 0));
+        return folded;
+    }
+
+    // Có đối tượng đã đổi mà ảnh chụp của luồng đọc chưa có
+    private boolean hasUnpublishedChanges() {
+        return viewRebuildNeeded || !changedNoteIds.isEmpty() || !changedFolderIds.isEmpty() || !changedTagIds.isEmpty();
+    }
+
+    /**
+     * Chép các đối tượng đã đổi kể từ lần trước sang bản sao giá trị và công bố chúng, tốn O(số đối tượng đã đổi).
+     * Sau thay đổi hàng loạt thì chụp lại toàn bộ. Gọi khi giữ khóa ghi.
+     */
+    private void publishChanges() {
+        if (viewRebuildNeeded) {
+            viewRebuildNeeded = false;
+            changedNoteIds.clear();
+            changedFolderIds.clear();
+            changedTagIds.clear();
+            published.set(new PublishedView(ModelView.copyOf(notes, folders, tags), null, 0));
+            return;
+        }
+        if (changedNoteIds.isEmpty() && changedFolderIds.isEmpty() && changedTagIds.isEmpty()) {
+            return;
+        }
+        ViewChanges changes = new ViewChanges();
+        collectChanges(changedNoteIds, notesById, Note::snapshotCopy, changes.notes, changes.removedNoteIds);
+        collectChanges(changedFolderIds, foldersById, Folder::snapshotCopy, changes.folders, changes.removedFolderIds);
+        collectChanges(changedTagIds, tagsById, ModelView::copyTag, changes.tags, changes.removedTagIds);
+        PublishedView current;
+        PublishedView next;
+        do { // Chỉ tranh chấp với luồng đọc vừa gộp xong
+            current = published.get();
+            next = new PublishedView(current.view, changes.after(current.changes), current.unfolded + changes.size());
+        } while (!published.compareAndSet(current, next));
+        if (next.unfolded > Math.max(MIN_UNFOLDED_COPIES, notes.size() / 4)) {
+            readView(); // Không có luồng đọc nào gộp: tự gộp để chuỗi thay đổi (và các bản sao cũ) không dài mãi
+        }
+    }
+
+    private static <T> void collectChanges(Set<Long> changedIds, LongObjectMap<T> live, Function<T, T> copy,
+                                           List<T> copies, List<Long> removedIds) {
+        for (long id : changedIds) {
+            T item = live.get(id);
+            if (item != null) {
+                copies.add(copy.apply(item));
+            } else {
+                removedIds.add(id);
+            }
+        }
+        changedIds.clear();
+    }
+
+    /** Ảnh chụp đã gộp cùng các lần công bố sau nó (mới nhất trước), được thay nguyên khối qua {@code published}. */
+    private static final class PublishedView {
+        static final PublishedView EMPTY = new PublishedView(ModelView.EMPTY, null, 0);
+
+        final ModelView view;
+        final ViewChanges changes; // null nếu view đã mới nhất
+        final int unfolded; // Số bản sao và ID đã xóa trong changes
+
+        PublishedView(ModelView view, ViewChanges changes, int unfolded) {
+            this.view = view;
+            this.changes = changes;
+            this.unfolded = unfolded;
+        }
+    }
+
+    /** Một lần công bố: bản sao các đối tượng đã đổi và ID đã xóa. Không đổi sau khi được công bố. */
+    private static final class ViewChanges {
+        final ViewChanges previous;
+        final List<Note> notes;
+        final List<Long> removedNoteIds;
+        final List<Folder> folders;
+        final List<Long> removedFolderIds;
+        final List<Tag> tags;
+        final List<Long> removedTagIds;
+
+        ViewChanges() {
+            this(null, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+
+        private ViewChanges(ViewChanges previous, List<Note> notes, List<Long> removedNoteIds, List<Folder> folders,
+                            List<Long> removedFolderIds, List<Tag> tags, List<Long> removedTagIds) {
+            this.previous = previous;
+            this.notes = notes;
+            this.removedNoteIds = removedNoteIds;
+            this.folders = folders;
+            this.removedFolderIds = removedFolderIds;
+            this.tags = tags;
+            this.removedTagIds = removedTagIds;
+        }
+
+        ViewChanges after(ViewChanges previous) {
+            return new ViewChanges(previous, notes, removedNoteIds, folders, removedFolderIds, tags, removedTagIds);
+        }
+
+        int size() {
+            return notes.size() + removedNoteIds.size() + folders.size() + removedFolderIds.size() + tags.size() + removedTagIds.size();
+        }
+    }
+
+    /** Ảnh chụp bất biến cho luồng đọc: bản sao giá trị cùng chỉ mục riêng, xem {@link #readView()}. */
+    private static final class ModelView {
+        static final ModelView EMPTY = copyOf(Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+
+        final ViewTable<Note> notes;
+        final ViewTable<Folder> folders;
+        final ViewTable<Tag> tags;
+        final LongObjectMap<Note> notesByAlarmId;
+        private final LongObjectMap<List<Note>> notesByFolderId;
+
+        private ModelView(ViewTable<Note> notes, ViewTable<Folder> folders, ViewTable<Tag> tags, ModelView previous) {
+            this.notes = notes;
+            this.folders = folders;
+            this.tags = tags;
+            if (previous != null && previous.notes == notes) {
+                notesByAlarmId = previous.notesByAlarmId;
+                notesByFolderId = previous.notesByFolderId;
+                return;
+            }
+            notesByAlarmId = new LongObjectMap<>();
+            notesByFolderId = new LongObjectMap<>();
+            for (Note note : notes.items) {
+                if (note.getAlarm() != null && notesByAlarmId.get(note.getAlarm().getId()) == null) {
+                    notesByAlarmId.put(note.getAlarm().getId(), note);
+                }
+                List<Note> inFolder = notesByFolderId.get(note.getFolderId());
+                if (inFolder == null) {
+                    inFolder = new ArrayList<>();
+                    notesByFolderId.put(note.getFolderId(), inFolder);
+                }
+                inFolder.add(note);
+            }
+        }
+
+        static ModelView copyOf(List<Note> notes, List<Folder> folders, List<Tag> tags) {
+            return new ModelView(ViewTable.copyOf(notes, Note::snapshotCopy, Note::getId, null),
+                    ViewTable.copyOf(folders, Folder::snapshotCopy, Folder::getId, Folder::getName),
+                    ViewTable.copyOf(tags, ModelView::copyTag, Tag::getId, Tag::getName), null);
+        }
+
+        static Tag copyTag(Tag tag) {
+            return new Tag(tag.getId(), tag.getName());
+        }
+
+        List<Note> notesInFolder(long folderId) {
+            List<Note> inFolder = notesByFolderId.get(folderId);
+            return inFolder != null ? inFolder : Collections.emptyList();
+        }
+
+        /** Ảnh chụp sau khi áp dụng {@code newest} và các lần công bố trước nó; bảng không đổi được dùng lại. */
+        ModelView apply(ViewChanges newest) {
+            List<ViewChanges> chain = new ArrayList<>();
+            for (ViewChanges changes = newest; changes != null; changes = changes.previous) {
+                chain.add(changes);
+            }
+            Collections.reverse(chain); // Cũ trước: bản sao mới hơn của cùng đối tượng thay bản cũ
+            return new ModelView(notes.apply(chain, changes -> changes.notes, changes -> changes.removedNoteIds),
+                    folders.apply(chain, changes -> changes.folders, changes -> changes.removedFolderIds),
+                    tags.apply(chain, changes -> changes.tags, changes -> changes.removedTagIds), this);
+        }
+    }
+
+    /** Một danh sách trong ảnh chụp, theo thứ tự của danh sách sống, cùng chỉ mục ID và tên (nếu có) riêng. */
+    private static final class ViewTable<T> {
+        private static final Object REMOVED = new Object();
+
+        final List<T> items;
+        private final ToLongFunction<T> idOf;
+        private final Function<T, String> nameOf; // null: không tra theo tên
+        private final LongObjectMap<T> byId;
+        private final Map<String, T> byName = new HashMap<>();
+
+        private ViewTable(List<T> items, ToLongFunction<T> idOf, Function<T, String> nameOf) {
+            this.items = Collections.unmodifiableList(items);
+            this.idOf = idOf;
+            this.nameOf = nameOf;
+            byId = new LongObjectMap<>(items.size());
+            for (T item : items) { // ID hoặc tên trùng: giữ mục đứng trước, như chỉ mục của dữ liệu sống
+                long id = idOf.applyAsLong(item);
+                if (byId.get(id) == null) {
+                    byId.put(id, item);
+                }
+                String name = nameOf != null ? nameOf.apply(item) : null;
+                if (name != null) {
+                    byName.putIfAbsent(NameIndex.key(name), item);
+                }
+            }
+        }
+
+        static <T> ViewTable<T> copyOf(List<T> live, Function<T, T> copy, ToLongFunction<T> idOf, Function<T, String> nameOf) {
+            List<T> copies = new ArrayList<>(live.size());
+            for (T item : live) {
+                copies.add(copy.apply(item));
+            }
+            return new ViewTable<>(copies, idOf, nameOf);
+        }
+
+        T get(long id) {
+            return byId.get(id);
+        }
+
+        T getByName(String name) {
+            return byName.get(NameIndex.key(name));
+        }
+
+        /**
+         * Bảng sau các lần công bố (cũ trước): mục đã có được thay tại chỗ hoặc bỏ, mục mới nối vào cuối theo thứ tự
+         * được thêm, giống danh sách sống (thao tác đổi thứ tự khác thì công bố lại toàn bộ).
+         */
+        @SuppressWarnings("unchecked")
+        ViewTable<T> apply(List<ViewChanges> chain, Function<ViewChanges, List<T>> copiesOf, Function<ViewChanges, List<Long>> removedOf) {
+            LongObjectMap<Object> latest = new LongObjectMap<>(); // ID -> bản sao mới nhất hoặc REMOVED
+            List<Long> addedIds = new ArrayList<>();
+            for (ViewChanges changes : chain) {
+                for (T copy : copiesOf.apply(changes)) {
+                    long id = idOf.applyAsLong(copy);
+                    if (latest.put(id, copy) == null && byId.get(id) == null) {
+                        addedIds.add(id);
+                    }
+                }
+                for (long id : removedOf.apply(changes)) {
+                    latest.put(id, REMOVED);
+                }
+            }
+            if (latest.size() == 0) {
+                return this;
+            }
+            List<T> result = new ArrayList<>(items.size() + addedIds.size());
+            for (T item : items) {
+                Object change = latest.get(idOf.applyAsLong(item));
+                if (change == null) {
+                    result.add(item);
+                } else if (change != REMOVED) {
+                    result.add((T) change);
+                }
+            }
+            for (long id : addedIds) {
+                Object change = latest.get(id);
+                if (change != REMOVED) {
+                    result.add((T) change);
+                }
+            }
+            return new ViewTable<>(result, idOf, nameOf);
+        }
+    }
+
+    // --- Chỉ mục tra cứu ---
+
+    /**
+     * Dựng lại mọi chỉ mục (và ảnh chụp cho luồng đọc) từ notes/folders/tags. Gọi sau khi danh sách bị sửa trực tiếp
+     * qua getModifiable...List() (backend điền dữ liệu khi tải). ID hoặc tên trùng: giữ đối tượng đứng trước
+     * trong danh sách, như khi tìm tuần tự.
+     */
+    void rebuildIndexes() {
+        if (activeBatch != null) {
+            activeBatch.indexRebuildNeeded = true; // Rollback không thể chỉ sửa chỉ mục của đối tượng bị đụng tới
+        }
+        notesById.clear();
+        notesByAlarmId.clear();
+        for (Note note : notes) {
+            if (notesById.get(note.getId()) == null) {
+                indexNote(note);
+            }
+        }
+        foldersById.clear();
+        for (Folder folder : folders) {
+            if (foldersById.get(folder.getId()) == null) {
+                foldersById.put(folder.getId(), folder);
+            }
+        }
+        tagsById.clear();
+        for (Tag tag : tags) {
+            if (tagsById.get(tag.getId()) == null) {
+                tagsById.put(tag.getId(), tag);
+            }
+        }
+        folderNames.rebuild();
+        tagNames.rebuild();
+        viewRebuildNeeded = true;
+    }
+
+    private void indexNote(Note note) {
+        notesById.put(note.getId(), note);
+        if (note.getAlarm() != null) {
+            notesByAlarmId.put(note.getAlarm().getId(), note);
+        }
+    }
+
+    private void unindexNote(Note note) {
+        if (notesById.get(note.getId()) == note) {
+            notesById.remove(note.getId());
+        }
+        if (note.getAlarm() != null && notesByAlarmId.get(note.getAlarm().getId()) == note) {
+            notesByAlarmId.remove(note.getAlarm().getId());
+        }
+    }
+
+    private void indexFolder(Folder folder) {
+        foldersById.put(folder.getId(), folder);
+        folderNames.add(folder);
+    }
+
+    private void unindexFolder(Folder folder) {
+        if (foldersById.get(folder.getId()) == folder) {
+            foldersById.remove(folder.getId());
+        }
+        folderNames.remove(folder);
+    }
+
+    private void indexTag(Tag tag) {
+        tagsById.put(tag.getId(), tag);
+        tagNames.add(tag);
+    }
+
+    private void unindexTag(Tag tag) {
+        if (tagsById.get(tag.getId()) == tag) {
+            tagsById.remove(tag.getId());
+        }
+        tagNames.remove(tag);
+    }
+
+    /** Vị trí của đúng instance này (không dùng equals, vốn so theo ID hoặc tên). */
+    private static int indexOfInstance(List<?> list, Object item) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Chỉ mục tên không phân biệt hoa thường (cùng quy tắc với String.equalsIgnoreCase) cho folder hoặc tag.
+     * Ghi nhớ khóa đã dùng cho từng ID, nên đổi tên ngay trên instance rồi mới gọi update vẫn gỡ được khóa cũ.
+     */
+    private static final class NameIndex<T> {
+        private final List<T> items;
+        private final Function<T, String> nameOf;
+        private final ToLongFunction<T> idOf;
+        private final Map<String, T> byKey = new HashMap<>();
+        private final LongObjectMap<String> keyOfId = new LongObjectMap<>();
+        private boolean duplicates; // Dữ liệu cũ có hai mục cùng tên: khi gỡ mục đứng trước phải tìm mục kế tiếp
+
+        NameIndex(List<T> items, Function<T, String> nameOf, ToLongFunction<T> idOf) {
+            this.items = items;
+            this.nameOf = nameOf;
+            this.idOf = idOf;
+        }
+
+        T get(String name) {
+            if (name == null) {
+                return null;
+            }
+            String key = key(name);
+            T item = byKey.get(key);
+            if (item != null && !key.equals(keyOf(item))) {
+                // Đã bị đổi tên trên instance nhưng chưa qua update: tra như trước khi có chỉ mục
+                return items.stream().filter(other -> key.equals(keyOf(other))).findFirst().orElse(null);
+            }
+            return item;
+        }
+
+        /** Mục khác ID {@code exceptId} mang tên này, dùng để kiểm tra trùng tên khi đổi tên. */
+        T findOther(String name, long exceptId) {
+            T item = get(name);
+            if (item == null || idOf.applyAsLong(item) != exceptId) {
+                return item;
+            }
+            if (!duplicates) {
+                return null;
+            }
+            String key = key(name);
+            return items.stream().filter(other -> idOf.applyAsLong(other) != exceptId && key.equals(keyOf(other))).findFirst().orElse(null);
+        }
+
+        void add(T item) {
+            String key = keyOf(item);
+            if (key == null) {
+                return;
+            }
+            keyOfId.put(idOf.applyAsLong(item), key);
+            T existing = byKey.putIfAbsent(key, item);
+            if (existing != null && existing != item) {
+                duplicates = true;
+            }
+        }
+
+        void remove(T item) {
+            String key = keyOfId.remove(idOf.applyAsLong(item));
+            if (key == null || byKey.get(key) != item) {
+                return;
+            }
+            byKey.remove(key);
+            if (duplicates) {
+                items.stream().filter(other -> other != item && key.equals(keyOf(other))).findFirst()
+                        .ifPresent(other -> byKey.put(key, other));
+            }
+        }
+
+        void rebuild() {
+            byKey.clear();
+            keyOfId.clear();
+            duplicates = false;
+            items.forEach(this::add);
+        }
+
+        private String keyOf(T item) {
+            String name = nameOf.apply(item);
+            return name != null ? key(name) : null;
+        }
+
+        private static String key(String name) {
+            StringBuilder key = new StringBuilder(name.length());
+            name.codePoints().forEach(c -> key.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c))));
+            return key.toString();
         }
     }
 
+    // Backend điền dữ liệu qua các danh sách này khi tải; sửa trực tiếp sau đó phải gọi rebuildIndexes() (chỉ mục và ảnh chụp)
     List<Note> getModifiableNotesList() { return notes; }
     List<Folder> getModifiableFoldersList() { return folders; }
     List<Tag> getModifiableTagsList() { return tags; }
@@ -40,7 +40,7 @@ public class NoteService {
     }
 
     /**
-     * Retrieves an Alarm by its ID by searching through all notes.
+     * Retrieves an Alarm by its ID via the alarm index kept by NoteManager.
      * @param alarmId The ID of the alarm to find.
      * @return The Alarm object if found, otherwise null.
      */
@@ -48,17 +48,13 @@ public class NoteService {
         if (alarmId <= 0) {
             return null;
         }
-        for (Note note : noteManager.getAllNotes()) {
-            if (note.getAlarm() != null && note.getAlarm().getId() == alarmId) {
-                return note.getAlarm();
-            }
-        }
-        return null;
+        Note note = noteManager.getNoteByAlarmId(alarmId);
+        return note != null ? note.getAlarm() : null;
     }
 
     /**
-     * Deletes an alarm by its ID. This involves finding all notes associated with this alarmId,
-     * setting their alarm reference to null, and then updating these notes.
+     * Deletes an alarm by its ID. Alarm IDs are unique, so the note holding it is looked up in the alarm index,
+     * its alarm reference is set to null and the note is updated.
      * The NoteManager does not store alarms independently.
      * @param alarmId The ID of the alarm to delete.
      */
@@ -67,17 +63,12 @@ public class NoteService {
             System.out.println("Warning: Attempted to delete alarm with invalid ID: " + alarmId);
             return;
         }
-        boolean alarmRemovedFromAnyNote = false;
-        List<Note> allNotes = noteManager.getAllNotes(); // Get a mutable copy if necessary
-        for (Note note : allNotes) {
-            if (note.getAlarm() != null && note.getAlarm().getId() == alarmId) {
-                note.setAlarm(null); // This also sets alarmId to null in Note's setter
-                noteManager.updateNote(note); // Persist change to the note
-                alarmRemovedFromAnyNote = true;
-                System.out.println("Removed alarm (ID: " + alarmId + ") from note: " + note.getTitle());
-            }
-        }
-        if (!alarmRemovedFromAnyNote) {
+        Note note = noteManager.getNoteByAlarmId(alarmId);
+        if (note != null) {
+            note.setAlarm(null); // This also sets alarmId to null in Note's setter
+            noteManager.updateNote(note); // Persist change to the note
+            System.out.println("Removed alarm (ID: " + alarmId + ") from note: " + note.getTitle());
+        } else {
             System.out.println("No note found associated with alarm ID: " + alarmId + ". Alarm might have already been removed or never existed.");
         }
         // No direct alarm list in NoteManager to delete from, changes are saved via note updates.
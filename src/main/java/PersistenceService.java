@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Luồng nền ghi dữ liệu xuống đĩa theo kiểu group commit.
+ * Các thay đổi gửi tới trong cùng một "cửa sổ" thời gian (ví dụ xóa tag hàng loạt, gõ phím liên tục)
+ * được gom lại thành một lần ghi duy nhất, nhờ vậy EDT không bị treo trong lúc lưu.
+ * <p>
+ * Mỗi lần gửi trả về một {@link CompletableFuture} hoàn tất khi thay đổi đã thực sự nằm trên đĩa.
+ * Nhóm ghi thất bại không bị bỏ: nó được đưa lại vào đầu hàng đợi và thử lại sau một khoảng chờ tăng dần,
+ * lỗi đầu tiên của mỗi đợt được báo qua {@link #setFailureListener}, còn {@link #flush()} ném lỗi cho nơi gọi.
+ */
+public class PersistenceService {
+    private static final long FLUSH_TIMEOUT_SECONDS = 30;
+    private static final long FIRST_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+
+    private final StorageBackend storage;
+    private final long commitWindowMillis;
+    private final Thread writerThread;
+    private final Thread shutdownHook;
+
+    private final Object lock = new Object();
+    // Các phần dưới đây được bảo vệ bởi lock
+    private StorageSnapshot pendingSnapshot; // Chỉ giữ snapshot mới nhất
+    private List<String> pendingRecords = new ArrayList<>(); // Bản ghi journal sau snapshot đang chờ
+    private List<CompletableFuture<Void>> pendingWaiters = new ArrayList<>();
+    private boolean flushRequested;
+    private boolean writing; // Luồng nền đang ghi một nhóm đã lấy ra khỏi hàng đợi
+    private boolean running = true;
+    private long retryAtMillis; // Sau lỗi ghi: chưa thử lại trước thời điểm này (trừ khi flush)
+    private long retryDelayMillis;
+    private IOException lastFailure; // Lỗi của đợt thất bại hiện tại, null nếu lần ghi gần nhất thành công
+    private volatile Consumer<IOException> failureListener;
+
+    public PersistenceService(StorageBackend storage, long commitWindowMillis) {
+        this.storage = storage;
+        this.commitWindowMillis = Math.max(0, commitWindowMillis);
+        this.writerThread = new Thread(this::runWriter, "xinoclo-persistence");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        this.shutdownHook = new Thread(this::shutdown, "xinoclo-persistence-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Gửi một snapshot. Các bản ghi journal đang chờ được bỏ đi vì snapshot đã bao gồm chúng.
+     * Snapshot chỉ gồm một phần shard được gộp với snapshot đang chờ thay vì thay thế nó.
+     */
+    public CompletableFuture<Void> submitSnapshot(StorageSnapshot snapshot) {
+        synchronized (lock) {
+            pendingSnapshot = StorageSnapshot.merge(pendingSnapshot, snapshot);
+            pendingRecords = new ArrayList<>();
+            return enqueueWaiter();
+        }
+    }
+
+    public CompletableFuture<Void> submitJournalRecord(String record) {
+        synchronized (lock) {
+            pendingRecords.add(record);
+            return enqueueWaiter();
+        }
+    }
+
+    /** Gửi nhiều bản ghi cùng lúc (ví dụ một batch của NoteManager): chúng luôn nằm chung một lần ghi. */
+    public CompletableFuture<Void> submitJournalRecords(List<String> records) {
+        synchronized (lock) {
+            pendingRecords.addAll(records);
+            return enqueueWaiter();
+        }
+    }
+
+    /** Được gọi trên luồng ghi với lỗi đầu tiên mỗi khi việc ghi bắt đầu thất bại (không gọi lại ở các lần thử lại). */
+    public void setFailureListener(Consumer<IOException> listener) {
+        this.failureListener = listener;
+    }
+
+    private CompletableFuture<Void> enqueueWaiter() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("PersistenceService đã dừng."));
+            return future;
+        }
+        pendingWaiters.add(future);
+        lock.notifyAll();
+        return future;
+    }
+
+    /**
+     * Ghi ngay mọi thay đổi đang chờ (bỏ qua cửa sổ gom nhóm và khoảng chờ thử lại) và chờ cho tới khi chúng đã nằm trên đĩa.
+     * @throws IOException nếu lần ghi thất bại (dữ liệu vẫn được giữ để thử lại) hoặc quá thời gian chờ.
+     */
+    public void flush() throws IOException {
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        synchronized (lock) {
+            if (pendingSnapshot == null && pendingRecords.isEmpty() && pendingWaiters.isEmpty() && !writing) {
+                return;
+            }
+            pendingWaiters.add(barrier);
+            flushRequested = true;
+            lock.notifyAll();
+        }
+        await(barrier);
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Bị ngắt khi chờ ghi dữ liệu xuống đĩa.");
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Quá " + FLUSH_TIMEOUT_SECONDS + " giây chờ ghi dữ liệu xuống đĩa.");
+        }
+    }
+
+    private static IOException asIOException(Throwable e) {
+        return e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+
+    /**
+     * Ghi nốt dữ liệu đang chờ rồi dừng luồng nền. Được gọi tự động khi JVM thoát.
+     * Nơi gọi muốn biết lần ghi cuối có thành công không thì gọi {@link #flush()} trước.
+     */
+    public void shutdown() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("[PersistenceService shutdown] Nghiêm trọng: Dữ liệu chưa được ghi xuống đĩa: " + e.getMessage());
+        }
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // JVM đang tắt, hook đã chạy
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            StorageSnapshot snapshot;
+            List<String> records;
+            List<CompletableFuture<Void>> waiters;
+            synchronized (lock) {
+                try {
+                    while (running && !hasPendingWork()) {
+                        lock.wait();
+                    }
+                    if (!running && pendingWaiters.isEmpty()) {
+                        return; // Đã dừng: không ai còn chờ nhóm thất bại còn lại (shutdown đã thử ghi lần cuối)
+                    }
+                    // Chờ hết cửa sổ gom nhóm để các thay đổi liên tiếp được ghi chung một lần,
+                    // và sau một lần ghi lỗi thì chờ tới lượt thử lại
+                    long deadline = Math.max(System.currentTimeMillis() + commitWindowMillis, retryAtMillis);
+                    long remaining;
+                    while (running && !flushRequested && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                snapshot = pendingSnapshot;
+                records = pendingRecords;
+                waiters = pendingWaiters;
+                pendingSnapshot = null;
+                pendingRecords = new ArrayList<>();
+                pendingWaiters = new ArrayList<>();
+                flushRequested = false;
+                writing = true;
+            }
+            try {
+                if (snapshot != null) {
+                    storage.writeSnapshot(snapshot);
+                    snapshot = null; // Đã nằm trên đĩa, không ghi lại nếu phần bản ghi bên dưới lỗi
+                }
+                if (!records.isEmpty()) {
+                    storage.applyChanges(records);
+                }
+                recovered();
+                waiters.forEach(w -> w.complete(null));
+            } catch (Exception e) {
+                IOException failure = asIOException(e);
+                System.err.println("[PersistenceService] Lỗi nghiêm trọng khi ghi dữ liệu, sẽ thử lại: " + e.getMessage());
+                e.printStackTrace();
+                boolean firstFailure = requeue(snapshot, records, failure);
+                waiters.forEach(w -> w.completeExceptionally(failure));
+                Consumer<IOException> listener = failureListener;
+                if (firstFailure && listener != null) {
+                    listener.accept(failure);
+                }
+            } finally {
+                synchronized (lock) {
+                    writing = false;
+                }
+            }
+        }
+    }
+
+    private boolean hasPendingWork() {
+        return pendingSnapshot != null || !pendingRecords.isEmpty() || !pendingWaiters.isEmpty();
+    }
+
+    /**
+     * Đưa nhóm vừa ghi lỗi trở lại trước các thay đổi gửi tới sau đó. Snapshot đầy đủ gửi tới sau đã bao gồm
+     * các bản ghi lỗi nên chúng được bỏ, giống như {@link #submitSnapshot}.
+     * @return true nếu đây là lỗi đầu tiên sau một lần ghi thành công.
+     */
+    private boolean requeue(StorageSnapshot snapshot, List<String> records, IOException failure) {
+        synchronized (lock) {
+            if (pendingSnapshot != null) {
+                if (snapshot != null) {
+                    pendingSnapshot = StorageSnapshot.merge(snapshot, pendingSnapshot);
+                }
+            } else {
+                pendingSnapshot = snapshot;
+                List<String> merged = new ArrayList<>(records);
+                merged.addAll(pendingRecords);
+                pendingRecords = merged;
+            }
+            boolean first = lastFailure == null;
+            lastFailure = failure;
+            retryDelayMillis = first ? FIRST_RETRY_DELAY_MILLIS : Math.min(MAX_RETRY_DELAY_MILLIS, 2 * retryDelayMillis);
+            retryAtMillis = System.currentTimeMillis() + retryDelayMillis;
+            return first;
+        }
+    }
+
+    private void recovered() {
+        synchronized (lock) {
+            if (lastFailure != null) {
+                System.out.println("[PersistenceService] Đã ghi được dữ liệu sau lỗi trước đó.");
+            }
+            lastFailure = null;
+            retryAtMillis = 0;
+            retryDelayMillis = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum CRC32C cho từng bản ghi JSON (dòng journal, bản ghi trong snapshot/shard).
+ * Checksum là trường cuối cùng của bản ghi và được tính trên các byte UTF-8 đứng trước nó:
+ * <pre>{"id":7,"title":"..."<b>,"crc":"1a2b3c4d"</b>}</pre>
+ * Bản ghi vẫn là JSON hợp lệ, bộ đọc không biết tới checksum chỉ việc bỏ qua trường "crc".
+ */
+final class RecordChecksum {
+    private static final byte[] FIELD_PREFIX = ",\"crc\":\"".getBytes(StandardCharsets.US_ASCII);
+    /** Độ dài phần đuôi {@code ,"crc":"xxxxxxxx"}}. */
+    static final int SUFFIX_LENGTH = FIELD_PREFIX.length + 8 + 2;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    enum Status {
+        VALID,
+        MISSING, // Không có trường checksum (bản ghi từ phiên bản cũ, hoặc dòng bị cắt cụt)
+        MISMATCH
+    }
+
+    private RecordChecksum() {
+    }
+
+    static int of(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /** Thêm checksum vào một bản ghi JSON (một object, không rỗng) đã mã hóa. */
+    static String seal(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = bodyLength(bytes, bytes.length);
+        return json.substring(0, json.length() - 1) + suffix(of(bytes, 0, bodyLength));
+    }
+
+    /**
+     * Ghi {@code json[0, length)} kèm checksum, không tạo chuỗi trung gian.
+     * @return Checksum đã ghi.
+     */
+    static int writeSealed(OutputStream out, byte[] json, int length) throws IOException {
+        int bodyLength = bodyLength(json, length);
+        int crc = of(json, 0, bodyLength);
+        out.write(json, 0, bodyLength);
+        out.write(suffix(crc).getBytes(StandardCharsets.US_ASCII));
+        return crc;
+    }
+
+    private static int bodyLength(byte[] json, int length) {
+        if (length < 3 || json[0] != '{' || json[length - 1] != '}') {
+            throw new IllegalArgumentException("Bản ghi phải là một JSON object không rỗng");
+        }
+        return length - 1;
+    }
+
+    private static String suffix(int crc) {
+        byte[] hex = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            hex[i] = HEX[crc & 0xF];
+            crc >>>= 4;
+        }
+        return ",\"crc\":\"" + new String(hex, StandardCharsets.US_ASCII) + "\"}";
+    }
+
+    /** Kiểm tra bản ghi {@code line[0, length)} (không kể dấu phẩy hay xuống dòng phía sau). */
+    static Status check(byte[] line, int length) {
+        int suffixStart = length - SUFFIX_LENGTH;
+        if (suffixStart < 1 || line[length - 1] != '}' || line[length - 2] != '"') {
+            return Status.MISSING;
+        }
+        for (int i = 0; i < FIELD_PREFIX.length; i++) {
+            if (line[suffixStart + i] != FIELD_PREFIX[i]) {
+                return Status.MISSING;
+            }
+        }
+        Integer stored = stored(line, length);
+        if (stored == null) {
+            return Status.MISMATCH;
+        }
+        return of(line, 0, suffixStart) == stored ? Status.VALID : Status.MISMATCH;
+    }
+
+    /** Checksum ghi trong phần đuôi của bản ghi đã niêm phong, null nếu phần đuôi không phải 8 chữ số hex. */
+    static Integer stored(byte[] line, int length) {
+        int suffixStart = length - SUFFIX_LENGTH;
+        if (suffixStart < 1) {
+            return null;
+        }
+        int stored = 0;
+        for (int i = suffixStart + FIELD_PREFIX.length; i < length - 2; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (digit < 0) {
+                return null;
+            }
+            stored = (stored << 4) | digit;
+        }
+        return stored;
+    }
+
+    static Status check(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return check(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,477 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Mã hóa dữ liệu lưu trên đĩa bằng AES-GCM (256 bit), khóa dẫn xuất từ mật khẩu bằng PBKDF2-HMAC-SHA256.
+ * Muối và số vòng lặp nằm trong file khóa cạnh notes.json (notes.json.key), kèm giá trị kiểm tra để nhận ra
+ * mật khẩu sai trước khi đọc bất cứ thứ gì; bản thân khóa không bao giờ được ghi ra đĩa.
+ * <p>
+ * Mỗi bản ghi (note, folder, tag trong snapshot, shard và journal) được mã hóa riêng thành một "phong bì"
+ * thay cho object gốc, giữ lại ID để layout mỗi bản ghi một dòng, checksum và việc cứu dữ liệu vẫn hoạt động:
+ * <pre>{"id":7,"enc":"&lt;Base64 của nonce + bản mã + tag&gt;"}</pre>
+ * Phần và ID là dữ liệu xác thực kèm theo (AAD), nên không thể đổi chỗ phong bì giữa các bản ghi.
+ * Nonce được dẫn xuất bằng HMAC từ chính bản ghi (kiểu SIV): bản ghi không đổi cho đúng bản mã cũ, nên dấu vân tay
+ * của {@link ExternalChangeTracker} và chunk sao lưu không đổi theo mỗi lần ghi lại; hai bản ghi khác nhau không bao
+ * giờ dùng chung nonce. Một lần sửa chỉ mã hóa lại bản ghi (journal) hoặc shard liên quan.
+ * <p>
+ * Nội dung note, bản vẽ và chunk sao lưu được mã hóa nguyên khối bằng {@link #encrypt}, nonce ngẫu nhiên.
+ * Mỗi tiến trình dùng một khóa ({@link #current()}), như một thư mục dữ liệu ({@link StorageConfig#DATA_FILE}).
+ */
+final class RecordCipher {
+    static final int KEY_FILE_VERSION = 1;
+    private static final String KDF = "PBKDF2WithHmacSHA256";
+    private static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BYTES = 16;
+    private static final byte[] MAGIC = {'X', 'N', 'E', '1'}; // Đầu của dữ liệu mã hóa nguyên khối
+    /** Số byte {@link #encrypt} thêm vào dữ liệu gốc. */
+    static final int OVERHEAD = MAGIC.length + NONCE_BYTES + TAG_BYTES;
+    private static final byte[] ID_PREFIX = "{\"id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ENVELOPE_NAME = "\"enc\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ENVELOPE_FIELD = ",\"enc\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static volatile RecordCipher current;
+    // Số bản ghi chưa mã hóa đã đọc trên mỗi luồng trong khi có khóa (dữ liệu ghi trước khi bật mã hóa)
+    private static final ThreadLocal<int[]> PLAINTEXT_READ = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final File keyFile;
+    private final SecretKeySpec aesKey;
+    private final SecretKeySpec nonceKey;
+    // Cipher và Mac không an toàn khi dùng chung giữa các luồng
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(RecordCipher::newCipher);
+    private final ThreadLocal<Mac> nonceMac;
+
+    /** Dữ liệu đã mã hóa nhưng tiến trình chưa có khóa (chưa nhập mật khẩu, hoặc mất file khóa). */
+    static final class LockedException extends RuntimeException {
+        LockedException(String message) {
+            super(message);
+        }
+    }
+
+    private RecordCipher(File keyFile, byte[] masterKey) {
+        this.keyFile = keyFile;
+        this.aesKey = new SecretKeySpec(derive(masterKey, "xinoclo-aes-gcm"), "AES");
+        this.nonceKey = new SecretKeySpec(derive(masterKey, "xinoclo-nonce"), "HmacSHA256");
+        this.nonceMac = ThreadLocal.withInitial(() -> newMac(nonceKey));
+    }
+
+    // --- Khóa của tiến trình ---
+
+    /** File khóa của thư mục dữ liệu có snapshot {@code dataPath}: notes.json -> notes.json.key. */
+    static File keyFileFor(String dataPath) {
+        return new File(dataPath + ".key");
+    }
+
+    /** Khóa đang dùng cho mọi lần đọc/ghi của tiến trình; null nếu không mã hóa. */
+    static RecordCipher current() {
+        return current;
+    }
+
+    /** Như {@link #current()}, nhưng dữ liệu vừa gặp là dữ liệu đã mã hóa nên phải có khóa. */
+    static RecordCipher require() {
+        RecordCipher cipher = current;
+        if (cipher == null) {
+            throw new LockedException("Dữ liệu đã được mã hóa nhưng chưa mở khóa (cần mật khẩu, xem xinoclo.storage.passphrase)");
+        }
+        return cipher;
+    }
+
+    File getKeyFile() {
+        return keyFile;
+    }
+
+    /**
+     * Mở khóa bằng mật khẩu và dùng khóa này cho cả tiến trình. Chưa có file khóa thì tạo mới (muối ngẫu nhiên).
+     * @throws IOException Nếu mật khẩu sai, file khóa hỏng, hoặc tiến trình đã dùng khóa của file khóa khác.
+     */
+    static synchronized RecordCipher unlock(File keyFile, char[] passphrase) throws IOException {
+        if (current != null) {
+            if (!current.keyFile.getAbsoluteFile().equals(keyFile.getAbsoluteFile())) {
+                throw new IOException("Tiến trình đã dùng khóa " + current.keyFile + ", không thể mở thêm " + keyFile);
+            }
+            return current; // Cùng file khóa (mở lại DataStorage trên cùng dữ liệu)
+        }
+        if (passphrase == null || passphrase.length == 0) {
+            throw new IOException("Mật khẩu không được để trống");
+        }
+        long startNanos = System.nanoTime();
+        KeyParameters parameters = keyFile.exists() ? readKeyFile(keyFile) : null;
+        boolean created = parameters == null;
+        if (created) {
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            parameters = new KeyParameters(salt, DEFAULT_ITERATIONS, null);
+        }
+        byte[] masterKey = deriveMasterKey(passphrase, parameters.salt, parameters.iterations);
+        byte[] check = derive(masterKey, "xinoclo-key-check");
+        if (created) {
+            writeKeyFile(keyFile, new KeyParameters(parameters.salt, parameters.iterations, check));
+        } else if (!MessageDigest.isEqual(check, parameters.check)) {
+            throw new IOException("Mật khẩu không đúng");
+        }
+        current = new RecordCipher(keyFile, masterKey);
+        Arrays.fill(masterKey, (byte) 0);
+        System.out.println("[RecordCipher] " + (created ? "Đã tạo khóa mới " : "Đã mở khóa ") + keyFile.getName() + " (" +
+                parameters.iterations + " vòng PBKDF2, " + (System.nanoTime() - startNanos) / 1_000_000 + " ms).");
+        return current;
+    }
+
+    /**
+     * Mở khóa không cần người dùng, bằng mật khẩu trong cấu hình ({@link StorageConfig#getPassphrase()}).
+     * @return Khóa đang dùng, hoặc null nếu không có mật khẩu trong cấu hình.
+     */
+    static RecordCipher unlockFromConfig(File keyFile) throws IOException {
+        if (current != null) {
+            return unlock(keyFile, null);
+        }
+        String passphrase = StorageConfig.getPassphrase();
+        return passphrase == null ? null : unlock(keyFile, passphrase.toCharArray());
+    }
+
+    /**
+     * Cho các công cụ dòng lệnh (khôi phục bản sao lưu, chuyển định dạng): nếu dữ liệu cạnh notes.json được mã hóa,
+     * mở khóa bằng mật khẩu trong cấu hình.
+     */
+    static void unlockDefaultFromConfig() throws IOException {
+        File keyFile = keyFileFor(StorageConfig.DATA_FILE);
+        if (keyFile.exists() && unlockFromConfig(keyFile) == null) {
+            throw new IOException("Dữ liệu được mã hóa: đặt biến môi trường XINOCLO_PASSPHRASE để mở khóa " + keyFile.getName());
+        }
+    }
+
+    /** Số bản ghi chưa mã hóa đã đọc trên luồng hiện tại khi có khóa; DataStorage so trước/sau khi tải để ghi lại dữ liệu. */
+    static int plaintextReadOnCurrentThread() {
+        return PLAINTEXT_READ.get()[0];
+    }
+
+    /** Ghi nhận {@code count} bản ghi vừa đọc không được mã hóa (không làm gì nếu dữ liệu không mã hóa). */
+    static void notePlaintextRead(int count) {
+        if (current != null) {
+            PLAINTEXT_READ.get()[0] += count;
+        }
+    }
+
+    // --- Phong bì cho từng bản ghi ---
+
+    /**
+     * Mã hóa bản ghi JSON {@code json[0, length)} (object có trường "id" đứng đầu, chưa có checksum)
+     * thành phong bì {@code {"id":N,"enc":"..."}}.
+     * @param section Phần chứa bản ghi (notes, folders, tags), là một phần của AAD.
+     */
+    byte[] sealRecord(String section, byte[] json, int length) {
+        Long id = JsonRecordLines.leadingId(json, length);
+        byte[] aad = recordAad(section, id);
+        byte[] nonce = syntheticNonce(aad, json, length);
+        byte[] sealed = gcm(Cipher.ENCRYPT_MODE, nonce, aad, json, 0, length);
+        byte[] payload = new byte[NONCE_BYTES + sealed.length];
+        System.arraycopy(nonce, 0, payload, 0, NONCE_BYTES);
+        System.arraycopy(sealed, 0, payload, NONCE_BYTES, sealed.length);
+        String envelope = (id != null ? "{\"id\":" + id + ",\"enc\":\"" : "{\"enc\":\"") + Base64.getEncoder().encodeToString(payload) + "\"}";
+        return envelope.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    String sealRecord(String section, String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return new String(sealRecord(section, bytes, bytes.length), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Bản ghi {@code line[0, length)} (có thể kèm đuôi checksum) có phải phong bì không:
+     * {@code {"id":N,"enc":"} hoặc {@code {"enc":"} ở đầu.
+     */
+    static boolean isEnvelope(byte[] line, int length) {
+        if (length < 2 || line[0] != '{') {
+            return false;
+        }
+        if (startsWith(line, length, 1, ENVELOPE_NAME)) {
+            return true;
+        }
+        if (!startsWith(line, length, 0, ID_PREFIX)) {
+            return false;
+        }
+        int position = ID_PREFIX.length;
+        if (position < length && line[position] == '-') {
+            position++;
+        }
+        int digits = position;
+        while (position < length && line[position] >= '0' && line[position] <= '9') {
+            position++;
+        }
+        return position > digits && startsWith(line, length, position, ENVELOPE_FIELD);
+    }
+
+    /**
+     * Giải mã phong bì {@code line[0, length)} thành bản ghi JSON gốc.
+     * @throws IOException Nếu phong bì bị sửa, bị đổi chỗ sang phần/ID khác, hoặc không đúng dạng.
+     */
+    byte[] openRecord(String section, byte[] line, int length) throws IOException {
+        Long id = JsonRecordLines.leadingId(line, length);
+        int start = indexOf(line, length, ENVELOPE_NAME);
+        if (start < 0) {
+            throw new IOException("Phong bì mã hóa không hợp lệ");
+        }
+        start += ENVELOPE_NAME.length;
+        int end = start;
+        while (end < length && line[end] != '"') {
+            end++;
+        }
+        byte[] payload;
+        try {
+            payload = Base64.getDecoder().decode(Arrays.copyOfRange(line, start, end));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Phong bì mã hóa không phải Base64 hợp lệ", e);
+        }
+        if (end == length || payload.length < NONCE_BYTES + TAG_BYTES) {
+            throw new IOException("Phong bì mã hóa bị cắt cụt");
+        }
+        byte[] nonce = Arrays.copyOf(payload, NONCE_BYTES);
+        return gcmChecked(Cipher.DECRYPT_MODE, nonce, recordAad(section, id), payload, NONCE_BYTES, payload.length - NONCE_BYTES);
+    }
+
+    String openRecord(String section, String envelope) throws IOException {
+        byte[] bytes = envelope.getBytes(StandardCharsets.UTF_8);
+        return new String(openRecord(section, bytes, bytes.length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] recordAad(String section, Long id) {
+        return (section + ":" + (id != null ? id : "")).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Nonce = HMAC(AAD, bản ghi) rút gọn: cùng bản ghi cho cùng bản mã, bản ghi khác cho nonce khác. */
+    private byte[] syntheticNonce(byte[] aad, byte[] json, int length) {
+        Mac mac = nonceMac.get();
+        mac.update(aad);
+        mac.update((byte) 0);
+        mac.update(json, 0, length);
+        return Arrays.copyOf(mac.doFinal(), NONCE_BYTES);
+    }
+
+    // --- Dữ liệu nguyên khối (nội dung note, bản vẽ, chunk sao lưu) ---
+
+    /** Dữ liệu có được ghi bởi {@link #encrypt} không (theo 4 byte đầu). */
+    static boolean isEncrypted(byte[] data) {
+        return data.length >= OVERHEAD && startsWith(data, data.length, 0, MAGIC);
+    }
+
+    /**
+     * Mã hóa nguyên khối với nonce ngẫu nhiên: MAGIC + nonce + bản mã + tag.
+     * @param context Gắn dữ liệu với chỗ của nó (ví dụ "body:12" hay hash của blob), phải giống khi giải mã.
+     */
+    byte[] encrypt(byte[] plain, String context) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        byte[] sealed = gcm(Cipher.ENCRYPT_MODE, nonce, context.getBytes(StandardCharsets.UTF_8), plain, 0, plain.length);
+        byte[] out = new byte[MAGIC.length + NONCE_BYTES + sealed.length];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        System.arraycopy(nonce, 0, out, MAGIC.length, NONCE_BYTES);
+        System.arraycopy(sealed, 0, out, MAGIC.length + NONCE_BYTES, sealed.length);
+        return out;
+    }
+
+    /** @throws IOException Nếu dữ liệu bị sửa, bị cắt hoặc thuộc chỗ khác ({@code context} không khớp). */
+    byte[] decrypt(byte[] data, String context) throws IOException {
+        if (!isEncrypted(data)) {
+            throw new IOException("Dữ liệu không được mã hóa bởi XiNoClo");
+        }
+        byte[] nonce = Arrays.copyOfRange(data, MAGIC.length, MAGIC.length + NONCE_BYTES);
+        int offset = MAGIC.length + NONCE_BYTES;
+        return gcmChecked(Cipher.DECRYPT_MODE, nonce, context.getBytes(StandardCharsets.UTF_8), data, offset, data.length - offset);
+    }
+
+    // --- AES-GCM ---
+
+    private byte[] gcm(int mode, byte[] nonce, byte[] aad, byte[] input, int offset, int length) {
+        try {
+            return gcmChecked(mode, nonce, aad, input, offset, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Chỉ xảy ra khi giải mã
+        }
+    }
+
+    private byte[] gcmChecked(int mode, byte[] nonce, byte[] aad, byte[] input, int offset, int length) throws IOException {
+        Cipher gcm = cipher.get();
+        try {
+            try {
+                gcm.init(mode, aesKey, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            } catch (java.security.InvalidAlgorithmParameterException e) {
+                // JCE từ chối dùng lại cặp khóa/nonce vừa mã hóa trên cùng đối tượng; nonce tổng hợp trùng
+                // nghĩa là đúng bản ghi vừa mã hóa, nên dùng một Cipher mới là an toàn
+                gcm = newCipher();
+                cipher.set(gcm);
+                gcm.init(mode, aesKey, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            }
+            gcm.updateAAD(aad);
+            return gcm.doFinal(input, offset, length);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Dữ liệu mã hóa bị sửa đổi hoặc hỏng (sai tag xác thực)", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Lỗi AES-GCM: " + e.getMessage(), e);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("JVM không hỗ trợ AES-GCM", e); // Không xảy ra: AES-GCM là bắt buộc từ Java 8
+        }
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("JVM không hỗ trợ HmacSHA256", e);
+        }
+    }
+
+    /** Khóa con cho từng mục đích: HMAC-SHA256(khóa chính, nhãn). */
+    private static byte[] derive(byte[] masterKey, String label) {
+        Mac mac = newMac(new SecretKeySpec(masterKey, "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] deriveMasterKey(char[] passphrase, byte[] salt, int iterations) throws IOException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        try {
+            return SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Không thể dẫn xuất khóa: " + e.getMessage(), e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // --- File khóa ---
+
+    private static final class KeyParameters {
+        final byte[] salt;
+        final int iterations;
+        final byte[] check;
+
+        KeyParameters(byte[] salt, int iterations, byte[] check) {
+            this.salt = salt;
+            this.iterations = iterations;
+            this.check = check;
+        }
+    }
+
+    /** {@code {"version":1,"kdf":"PBKDF2WithHmacSHA256","iterations":600000,"salt":"...","check":"..."}} */
+    private static KeyParameters readKeyFile(File keyFile) throws IOException {
+        byte[] salt = null;
+        byte[] check = null;
+        int iterations = 0;
+        try (Reader in = new FileReader(keyFile, StandardCharsets.UTF_8); JsonReader reader = new JsonReader(in)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "version":
+                        int version = reader.nextInt();
+                        if (version != KEY_FILE_VERSION) {
+                            throw new IOException("Phiên bản " + version + " của " + keyFile.getName() + " không được hỗ trợ");
+                        }
+                        break;
+                    case "kdf":
+                        String kdf = reader.nextString();
+                        if (!KDF.equals(kdf)) {
+                            throw new IOException("Thuật toán dẫn xuất khóa " + kdf + " không được hỗ trợ");
+                        }
+                        break;
+                    case "iterations":
+                        iterations = reader.nextInt();
+                        break;
+                    case "salt":
+                        salt = Base64.getDecoder().decode(reader.nextString());
+                        break;
+                    case "check":
+                        check = Base64.getDecoder().decode(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("File khóa " + keyFile.getName() + " bị hỏng: " + e.getMessage(), e);
+        }
+        if (salt == null || check == null || iterations <= 0) {
+            throw new IOException("File khóa " + keyFile.getName() + " bị hỏng: thiếu muối, số vòng lặp hoặc giá trị kiểm tra");
+        }
+        return new KeyParameters(salt, iterations, check);
+    }
+
+    private static void writeKeyFile(File keyFile, KeyParameters parameters) throws IOException {
+        File temp = new File(keyFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer chars = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            JsonWriter writer = new JsonWriter(chars);
+            writer.beginObject();
+            writer.name("version").value(KEY_FILE_VERSION);
+            writer.name("kdf").value(KDF);
+            writer.name("iterations").value(parameters.iterations);
+            writer.name("salt").value(Base64.getEncoder().encodeToString(parameters.salt));
+            writer.name("check").value(Base64.getEncoder().encodeToString(parameters.check));
+            writer.endObject();
+            writer.flush();
+            chars.write('\n');
+            chars.flush();
+            out.getFD().sync(); // File khóa phải nằm trên đĩa trước bản ghi mã hóa đầu tiên
+        }
+        try {
+            Files.move(temp.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), keyFile.toPath());
+        }
+    }
+
+    // --- Tiện ích ---
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix) {
+        if (offset + prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= length; i++) {
+            if (startsWith(data, length, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
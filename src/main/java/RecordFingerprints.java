@@ -0,0 +1,80 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dấu vân tay (checksum) của từng bản ghi trong một file dữ liệu, theo phần ("notes", "folders", "tags") và ID.
+ * Với file theo {@link JsonRecordLines} đây chính là CRC32C đã lưu trong bản ghi nên lấy được mà không cần giải mã;
+ * với snapshot nhị phân là checksum của bản ghi nhị phân. Hai dấu vân tay bằng nhau nghĩa là bản ghi không đổi,
+ * khác nhau nghĩa là bản ghi có thể đã đổi và cần được đọc lại (xem {@link ExternalChangeTracker}).
+ */
+final class RecordFingerprints {
+    static final String NOTES = "notes";
+    static final String FOLDERS = "folders";
+    static final String TAGS = "tags";
+
+    private final Map<String, Map<Long, Integer>> sections = new HashMap<>();
+
+    void put(String section, long id, int crc) {
+        sections.computeIfAbsent(section, name -> new HashMap<>()).put(id, crc);
+    }
+
+    /** Bản ghi của một phần; map rỗng nếu phần đó không có bản ghi nào. */
+    Map<Long, Integer> section(String section) {
+        return sections.getOrDefault(section, Map.of());
+    }
+
+    int size() {
+        int size = 0;
+        for (Map<Long, Integer> records : sections.values()) {
+            size += records.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        sections.clear();
+    }
+
+    /** Bộ lọc ghi lại dấu vân tay của mọi bản ghi; {@code decode} quyết định bản ghi có được giải mã tiếp hay không. */
+    JsonRecordLines.Filter recorder(boolean decode) {
+        return (section, id, crc) -> {
+            if (id != null) {
+                put(section, id, crc);
+            }
+            return decode;
+        };
+    }
+
+    /**
+     * Dấu vân tay của một note/folder/tag đã giải mã, cho các file không lưu checksum theo bản ghi
+     * (snapshot JSON kiểu cũ, shard phiên bản 1): CRC32C của bản ghi mã hóa lại, bằng đúng checksum
+     * mà {@link JsonRecordLines} sẽ lưu cho bản ghi đó.
+     */
+    static int of(Object entity) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            OutputStreamWriter out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            JsonWriter writer = new JsonWriter(out);
+            writer.setSerializeNulls(false);
+            if (entity instanceof Note) {
+                NoteJsonCodec.writeNote(writer, (Note) entity);
+            } else if (entity instanceof Folder) {
+                NoteJsonCodec.writeFolder(writer, (Folder) entity);
+            } else {
+                NoteJsonCodec.writeTag(writer, (Tag) entity);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream không ném IOException
+        }
+        byte[] json = bytes.toByteArray();
+        return RecordChecksum.of(json, 0, json.length - 1); // Như khi niêm phong: không tính dấu } cuối
+    }
+}
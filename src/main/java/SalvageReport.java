@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ghi nhận những gì bị mất khi đọc file dữ liệu hỏng ở chế độ cứu dữ liệu (salvage), hoặc khi
+ * bộ kiểm tra nền ({@link StorageVerifier}) phát hiện bản ghi hỏng. Mỗi mục ghi rõ file, phần (notes/folders/...),
+ * vị trí và ID nếu còn đọc được, để người dùng biết chính xác note nào cần khôi phục từ bản sao lưu.
+ */
+final class SalvageReport {
+    private final List<String> problems = new ArrayList<>();
+    private int lostRecords;
+
+    /** Một bản ghi hỏng đã bị bỏ qua; {@code id} là null nếu không đọc được. */
+    synchronized void recordLost(File source, String section, String position, Long id, String reason) {
+        lostRecords++;
+        problems.add(source.getName() + ": bỏ " + (section != null ? section + " " : "") + "bản ghi " + position +
+                (id != null ? " (id " + id + ")" : "") + " - " + reason);
+    }
+
+    /** Phần còn lại của file kể từ {@code position} không đọc được (file bị cắt cụt hoặc hỏng cấu trúc). */
+    synchronized void recordTruncated(File source, String section, String position, String reason) {
+        problems.add(source.getName() + ": mất phần còn lại " + (section != null ? "của " + section + " " : "") +
+                "từ " + position + " - " + reason);
+    }
+
+    void merge(SalvageReport other) {
+        List<String> otherProblems = other.getProblems();
+        int otherLost = other.getLostRecordCount();
+        synchronized (this) {
+            problems.addAll(otherProblems);
+            lostRecords += otherLost;
+        }
+    }
+
+    synchronized boolean isClean() {
+        return problems.isEmpty();
+    }
+
+    synchronized int getLostRecordCount() {
+        return lostRecords;
+    }
+
+    synchronized List<String> getProblems() {
+        return new ArrayList<>(problems);
+    }
+
+    synchronized String summary() {
+        return problems.size() + " vấn đề, " + lostRecords + " bản ghi hỏng bị bỏ";
+    }
+
+    /** In báo cáo ra stderr và ghi thêm vào file nhật ký (ví dụ notes.json.integrity.log) để tra cứu sau. */
+    void publish(String title, File logFile) {
+        List<String> lines = getProblems();
+        System.err.println("[SalvageReport] " + title + ": " + summary() + ".");
+        for (String line : lines) {
+            System.err.println("  " + line);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8)) {
+            writer.write(LocalDateTime.now() + " " + title + ": " + summary() + "\n");
+            for (String line : lines) {
+                writer.write("  " + line + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("[SalvageReport] Không thể ghi nhật ký " + logFile.getName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Phiên bản lược đồ của các bản ghi JSON (note/folder/tag) và danh sách các bước nâng cấp bản ghi cũ.
+ * <p>
+ * Mỗi bản ghi được ghi kèm {@code "v"} ngay sau {@code "id"}: {@code {"id":5,"v":2,...}}. {@link NoteJsonCodec}
+ * chỉ giải mã trực tiếp phiên bản {@link #CURRENT}, với mọi trường bắt buộc phải có và không null.
+ * Bản ghi thiếu {@code "v"} (mọi dữ liệu ghi trước khi có lược đồ, coi là phiên bản 1) hoặc cũ hơn được dựng thành
+ * cây JsonObject, đi lần lượt qua các bước trong {@link #STEPS} rồi mới được giải mã như bản ghi hiện tại.
+ * DataStorage và SqlStorageBackend thấy có bản ghi được nâng cấp khi tải thì yêu cầu ghi lại toàn bộ,
+ * nên mỗi bản ghi cũ chỉ bị nâng cấp một lần.
+ * <p>
+ * Muốn đổi lược đồ: tăng {@link #CURRENT}, thêm một bước vào cuối {@link #STEPS} và sửa NoteJsonCodec.
+ */
+final class SchemaMigrations {
+    static final int CURRENT = 2;
+
+    enum Kind { NOTE, FOLDER, TAG }
+
+    /** Nâng một bản ghi từ phiên bản N lên N + 1, sửa trực tiếp trên {@code record}. */
+    interface Migration {
+        void apply(Kind kind, JsonObject record) throws IOException;
+    }
+
+    /** {@code STEPS.get(N - 1)} nâng phiên bản N lên N + 1. */
+    private static final List<Migration> STEPS = List.of(
+            SchemaMigrations::fromVersion1
+    );
+
+    // Đếm theo luồng: luồng tải biết chính xác nó có nâng cấp bản ghi nào không,
+    // không bị lẫn với luồng sao lưu hay luồng kiểm tra nền đang đọc dữ liệu cũ cùng lúc
+    private static final ThreadLocal<int[]> MIGRATED = ThreadLocal.withInitial(() -> new int[1]);
+
+    private SchemaMigrations() {
+    }
+
+    /** Số bản ghi luồng hiện tại đã nâng cấp từ trước tới giờ; so sánh trước và sau khi tải. */
+    static int migratedOnCurrentThread() {
+        return MIGRATED.get()[0];
+    }
+
+    /**
+     * Nâng {@code record} (đang ở phiên bản {@code version}) lên {@link #CURRENT}.
+     * @return Bản ghi mới với {@code "id"} và {@code "v"} đứng đầu, để NoteJsonCodec giải mã như bản ghi vừa ghi.
+     * @throws IOException nếu bản ghi đến từ phiên bản mới hơn của ứng dụng.
+     */
+    static JsonObject upgrade(Kind kind, JsonObject record, int version) throws IOException {
+        if (version > CURRENT) {
+            throw new IOException("Bản ghi có phiên bản lược đồ " + version + ", mới hơn phiên bản được hỗ trợ (" + CURRENT + ")");
+        }
+        if (version < 1) {
+            throw new IOException("Phiên bản lược đồ không hợp lệ: " + version);
+        }
+        for (int step = version; step < CURRENT; step++) {
+            STEPS.get(step - 1).apply(kind, record);
+        }
+        JsonObject upgraded = new JsonObject();
+        upgraded.add("id", record.remove("id"));
+        upgraded.addProperty("v", CURRENT);
+        record.remove("v");
+        for (Map.Entry<String, JsonElement> field : record.entrySet()) {
+            upgraded.add(field.getKey(), field.getValue());
+        }
+        MIGRATED.get()[0]++;
+        return upgraded;
+    }
+
+    /**
+     * Phiên bản 1 -> 2: mọi giá trị mặc định mà NoteAdapter/FolderAdapter cũ ngầm áp dụng khi đọc được ghi rõ vào bản ghi.
+     * Trường null coi như thiếu; TEXT note chỉ giữ content (hoặc contentStored), DRAWING note chỉ giữ drawingHash hoặc drawingData.
+     */
+    private static void fromVersion1(Kind kind, JsonObject record) throws IOException {
+        removeNulls(record);
+        defaultNumber(record, "id", 0);
+        switch (kind) {
+            case NOTE:
+                upgradeNoteFromVersion1(record);
+                break;
+            case FOLDER:
+                defaultString(record, "name", "Unnamed Folder");
+                defaultBoolean(record, "isFavorite", false);
+                break;
+            case TAG:
+                upgradeTagFromVersion1(record);
+                break;
+        }
+    }
+
+    private static void upgradeNoteFromVersion1(JsonObject record) throws IOException {
+        defaultString(record, "title", "Untitled");
+        if (!record.has("createdAt")) {
+            record.addProperty("createdAt", LocalDateTime.now().toString());
+        }
+        if (!record.has("updatedAt")) {
+            record.add("updatedAt", record.get("createdAt"));
+        }
+        defaultBoolean(record, "isFavorite", false);
+        defaultBoolean(record, "isMission", false);
+        defaultBoolean(record, "isMissionCompleted", false);
+        defaultString(record, "missionContent", "");
+        defaultNumber(record, "folderId", 0);
+
+        JsonArray tags = new JsonArray();
+        if (record.has("tags")) {
+            for (JsonElement tag : asArray(record.get("tags"), "tags")) {
+                JsonObject tagRecord = asObject(tag, "tags[]");
+                upgradeTagFromVersion1(tagRecord);
+                tags.add(tagRecord);
+            }
+        }
+        record.add("tags", tags);
+
+        if (record.has("alarm")) {
+            JsonObject alarm = asObject(record.get("alarm"), "alarm");
+            removeNulls(alarm);
+            if (!alarm.has("alarmTime")) {
+                System.err.println("Cảnh báo: Bỏ qua alarm (ID: " + alarm.get("id") + ") không có alarmTime.");
+                record.remove("alarm");
+            } else {
+                defaultNumber(alarm, "id", 0);
+                defaultBoolean(alarm, "recurring", false);
+            }
+        }
+
+        String noteType = Note.NoteType.TEXT.name();
+        if (record.has("noteType")) {
+            String stored = record.get("noteType").getAsString();
+            try {
+                noteType = Note.NoteType.valueOf(stored).name();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Cảnh báo: Giá trị noteType không hợp lệ trong JSON: " + stored + ". Sử dụng TEXT mặc định.");
+            }
+        }
+        record.addProperty("noteType", noteType);
+        if (noteType.equals(Note.NoteType.TEXT.name())) {
+            record.remove("drawingData");
+            record.remove("drawingHash");
+            if (record.has("contentStored") && record.get("contentStored").getAsBoolean()) {
+                record.remove("content");
+            } else {
+                record.remove("contentStored");
+                defaultString(record, "content", "");
+            }
+        } else {
+            record.remove("content");
+            record.remove("contentStored");
+            if (record.has("drawingHash")) {
+                record.remove("drawingData");
+            }
+        }
+    }
+
+    private static void upgradeTagFromVersion1(JsonObject record) {
+        removeNulls(record);
+        defaultNumber(record, "id", 0);
+        defaultString(record, "name", "Unnamed Tag");
+    }
+
+    private static void removeNulls(JsonObject record) {
+        List<String> nullFields = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> field : record.entrySet()) {
+            if (field.getValue().isJsonNull()) {
+                nullFields.add(field.getKey());
+            }
+        }
+        for (String name : nullFields) {
+            record.remove(name);
+        }
+    }
+
+    private static void defaultString(JsonObject record, String name, String value) {
+        if (!record.has(name)) {
+            record.addProperty(name, value);
+        }
+    }
+
+    private static void defaultBoolean(JsonObject record, String name, boolean value) {
+        if (!record.has(name)) {
+            record.addProperty(name, value);
+        }
+    }
+
+    private static void defaultNumber(JsonObject record, String name, long value) {
+        if (!record.has(name)) {
+            record.addProperty(name, value);
+        }
+    }
+
+    private static JsonArray asArray(JsonElement element, String field) throws IOException {
+        if (!element.isJsonArray()) {
+            throw new IOException("Trường " + field + " phải là mảng");
+        }
+        return element.getAsJsonArray();
+    }
+
+    private static JsonObject asObject(JsonElement element, String field) throws IOException {
+        if (!element.isJsonObject()) {
+            throw new IOException("Trường " + field + " phải là object");
+        }
+        return element.getAsJsonObject();
+    }
+}
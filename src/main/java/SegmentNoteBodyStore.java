@@ -0,0 +1,476 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Lưu nội dung note trong các file segment chỉ ghi thêm (append-only), đọc qua MappedByteBuffer.
+ * <pre>
+ * segments/segment-000001.dat   [noteId (long)][length (int)][nội dung UTF-8] ...
+ * </pre>
+ * length = -1 là bản ghi xóa (tombstone). Một chỉ mục trong bộ nhớ ánh xạ
+ * noteId -> (segment, offset, length), nên Note chỉ cần giữ id làm "handle" cho nội dung.
+ * <p>
+ * Mỗi lần sửa note ghi thêm một phiên bản mới; phiên bản cũ thành rác và được một luồng nền
+ * dọn (compaction) bằng cách chép các bản ghi còn sống sang segment đang ghi rồi xóa segment cũ.
+ * <p>
+ * Ở chế độ chỉ đọc (một phiên bản khác của ứng dụng đang ghi), store không ghi, không cắt đuôi và không dọn segment;
+ * phần tiến trình kia ghi thêm được đọc vào chỉ mục qua {@link #refresh}.
+ */
+public class SegmentNoteBodyStore implements NoteBodyStore, Closeable {
+    private static final int HEADER_BYTES = 12; // noteId (8) + length (4)
+    private static final int TOMBSTONE = -1;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final double compactionGarbageRatio;
+    private final boolean readOnly;
+
+    // Các phần dưới đây được bảo vệ bởi this
+    private final Map<Long, Location> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active; // null ở chế độ chỉ đọc khi chưa có segment nào
+    private boolean unsynced;
+    private boolean closed;
+
+    private final Thread compactor;
+    private final Object compactionSignal = new Object();
+    private boolean compactionRequested;
+
+    public SegmentNoteBodyStore(File directory) throws IOException {
+        this(directory, false);
+    }
+
+    public SegmentNoteBodyStore(File directory, boolean readOnly) throws IOException {
+        this(directory, 64L * 1024 * 1024, 0.5, readOnly);
+    }
+
+    SegmentNoteBodyStore(File directory, long maxSegmentBytes, double compactionGarbageRatio) throws IOException {
+        this(directory, maxSegmentBytes, compactionGarbageRatio, false);
+    }
+
+    private SegmentNoteBodyStore(File directory, long maxSegmentBytes, double compactionGarbageRatio, boolean readOnly) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        this.readOnly = readOnly;
+        if (!readOnly && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục segment: " + directory);
+        }
+        openSegments();
+        if (readOnly) {
+            this.compactor = null;
+            return;
+        }
+        this.compactor = new Thread(this::runCompactor, "xinoclo-segment-compactor");
+        this.compactor.setDaemon(true);
+        this.compactor.start();
+        requestCompactionIfNeeded();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    // --- Đọc/ghi ---
+
+    @Override
+    public String read(long noteId) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = index.get(noteId);
+        }
+        if (location == null) {
+            return null;
+        }
+        // Segment không bao giờ bị sửa tại chỗ nên có thể đọc ngoài khóa;
+        // vùng map vẫn hợp lệ kể cả khi compaction vừa xóa file.
+        byte[] bytes = location.segment.read(location.offset + HEADER_BYTES, location.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void write(long noteId, String body) throws IOException {
+        ensureWritable();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Location location = append(noteId, bytes, bytes.length);
+        replace(noteId, location);
+    }
+
+    @Override
+    public synchronized void delete(long noteId) throws IOException {
+        ensureWritable();
+        if (index.containsKey(noteId)) {
+            append(noteId, null, TOMBSTONE);
+            replace(noteId, null);
+        }
+    }
+
+    /** Ép các bản ghi đã ghi thêm xuống đĩa (gọi một lần cho cả nhóm, trước khi ghi bản ghi tham chiếu tới chúng). */
+    @Override
+    public synchronized void sync() throws IOException {
+        if (unsynced && active != null) {
+            active.channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Đọc vào chỉ mục phần tiến trình khác vừa ghi thêm: đuôi mới của các segment đã mở và các segment mới.
+     * Chỉ đọc header như khi khởi động.
+     */
+    @Override
+    public synchronized void refresh(Set<Long> noteIds) throws IOException {
+        ensureOpen();
+        int before = index.size();
+        for (Segment segment : segments.values()) {
+            if (segment.channel.size() > segment.size) {
+                scan(segment, segment.size);
+            }
+        }
+        int lastId = segments.isEmpty() ? 0 : segments.lastKey();
+        for (int id : listSegmentIds()) {
+            if (id > lastId) {
+                Segment segment = new Segment(id, segmentFile(id), readOnly);
+                segments.put(id, segment);
+                scan(segment, 0);
+            }
+        }
+        System.out.println("[SegmentNoteBodyStore refresh] Đã đọc phần ghi thêm của " + noteIds.size() + " note thay đổi, chỉ mục " +
+                before + " -> " + index.size() + " nội dung.");
+    }
+
+    @Override
+    public synchronized void retainOnly(Set<Long> liveNoteIds, long writtenBeforeMillis) throws IOException {
+        ensureWritable();
+        List<Long> unused = new ArrayList<>();
+        for (Map.Entry<Long, Location> entry : index.entrySet()) {
+            if (!liveNoteIds.contains(entry.getKey()) && entry.getValue().writtenAtMillis < writtenBeforeMillis) {
+                unused.add(entry.getKey());
+            }
+        }
+        for (long noteId : unused) {
+            delete(noteId);
+        }
+        sync();
+        if (!unused.isEmpty()) {
+            System.out.println("[SegmentNoteBodyStore] Đã xóa nội dung của " + unused.size() + " note không còn tồn tại.");
+        }
+    }
+
+    /** Số byte còn sống / tổng số byte trên đĩa, phục vụ log và đo đạc. */
+    public synchronized long[] getUsage() {
+        long live = 0;
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.liveBytes;
+            total += segment.size;
+        }
+        return new long[]{live, total};
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private Location append(long noteId, byte[] bytes, int length) throws IOException {
+        int recordBytes = HEADER_BYTES + Math.max(0, length);
+        if (active.size > 0 && active.size + recordBytes > maxSegmentBytes) {
+            active.channel.force(false);
+            active = createSegment(active.id + 1);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(recordBytes);
+        buffer.putLong(noteId).putInt(length);
+        if (bytes != null) {
+            buffer.put(bytes, 0, length);
+        }
+        buffer.flip();
+        long offset = active.size;
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, offset + buffer.position());
+        }
+        active.size += recordBytes;
+        unsynced = true;
+        return length == TOMBSTONE ? null : new Location(active, offset, length, System.currentTimeMillis());
+    }
+
+    /** Cập nhật chỉ mục và số byte còn sống của các segment liên quan. */
+    private void replace(long noteId, Location location) {
+        Location previous = location != null ? index.put(noteId, location) : index.remove(noteId);
+        if (previous != null) {
+            previous.segment.liveBytes -= HEADER_BYTES + previous.length;
+        }
+        if (location != null) {
+            location.segment.liveBytes += HEADER_BYTES + location.length;
+        }
+        requestCompactionIfNeeded();
+    }
+
+    // --- Mở segment khi khởi động ---
+
+    private void openSegments() throws IOException {
+        for (int id : listSegmentIds()) {
+            Segment segment = new Segment(id, segmentFile(id), readOnly);
+            segments.put(id, segment);
+            scan(segment, 0);
+        }
+        active = !segments.isEmpty() ? segments.lastEntry().getValue() : readOnly ? null : createSegment(1);
+        long[] usage = getUsage();
+        System.out.println("[SegmentNoteBodyStore] Đã mở " + segments.size() + " segment, " + index.size() +
+                " nội dung note (" + usage[0] / 1024 + " KB còn dùng / " + usage[1] / 1024 + " KB).");
+    }
+
+    private List<Integer> listSegmentIds() {
+        String[] names = directory.list();
+        List<Integer> ids = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // Không phải file segment
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Dựng lại chỉ mục từ một segment, bắt đầu ở {@code from}: chỉ đọc phần header, bỏ qua nội dung.
+     * Phần đuôi ghi dở (crash) bị cắt bỏ; ở chế độ chỉ đọc thì được để lại cho lần {@link #refresh} sau,
+     * vì có thể tiến trình kia đang ghi dở.
+     */
+    private void scan(Segment segment, long from) throws IOException {
+        long end = segment.channel.size();
+        MappedByteBuffer buffer = segment.mapping(end);
+        long position = from;
+        while (position + HEADER_BYTES <= end) {
+            long noteId = buffer.getLong((int) position);
+            int length = buffer.getInt((int) position + 8);
+            if (length == TOMBSTONE) {
+                replace(noteId, null);
+                position += HEADER_BYTES;
+                continue;
+            }
+            if (length < 0 || position + HEADER_BYTES + length > end) {
+                break;
+            }
+            replace(noteId, new Location(segment, position, length, segment.file.lastModified()));
+            position += HEADER_BYTES + length;
+        }
+        if (position != end && !readOnly) {
+            System.err.println("[SegmentNoteBodyStore] Cảnh báo: Cắt bỏ " + (end - position) + " byte ghi dở ở cuối " + segment.file.getName() + ".");
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id), false);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%s%06d%s", PREFIX, id, SUFFIX));
+    }
+
+    // --- Compaction ---
+
+    private void requestCompactionIfNeeded() {
+        if (compactor == null || pickSegmentToCompact() == null) {
+            return;
+        }
+        synchronized (compactionSignal) {
+            compactionRequested = true;
+            compactionSignal.notifyAll();
+        }
+    }
+
+    /** Segment đã đóng (không phải segment đang ghi) có tỉ lệ rác cao nhất vượt ngưỡng, hoặc null. */
+    private Segment pickSegmentToCompact() {
+        Segment best = null;
+        double bestRatio = compactionGarbageRatio;
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.size == 0) {
+                continue;
+            }
+            double garbageRatio = 1.0 - (double) segment.liveBytes / segment.size;
+            if (garbageRatio >= bestRatio) {
+                best = segment;
+                bestRatio = garbageRatio;
+            }
+        }
+        return best;
+    }
+
+    private void runCompactor() {
+        while (true) {
+            synchronized (compactionSignal) {
+                try {
+                    while (!compactionRequested) {
+                        compactionSignal.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                compactionRequested = false;
+            }
+            try {
+                Segment segment;
+                while ((segment = nextSegmentToCompact()) != null) {
+                    compact(segment);
+                }
+            } catch (IOException e) {
+                System.err.println("[SegmentNoteBodyStore] Lỗi khi dọn segment: " + e.getMessage());
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized Segment nextSegmentToCompact() {
+        return closed ? null : pickSegmentToCompact();
+    }
+
+    /**
+     * Chép các bản ghi còn sống của segment sang segment đang ghi rồi xóa nó.
+     * Tombstone chỉ được bỏ khi segment là segment cũ nhất (không còn phiên bản cũ nào phía trước cần che đi).
+     * Mỗi bản ghi được xử lý trong một lần giữ khóa ngắn để không chặn luồng đọc/ghi.
+     */
+    private void compact(Segment segment) throws IOException {
+        long before = segment.size;
+        long position = 0;
+        int copied = 0;
+        long copiedBytes = 0;
+        while (position + HEADER_BYTES <= segment.size) {
+            byte[] header = segment.read(position, HEADER_BYTES);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            long noteId = headerBuffer.getLong();
+            int length = headerBuffer.getInt();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (length == TOMBSTONE) {
+                    if (!index.containsKey(noteId) && segments.firstKey() != segment.id) {
+                        append(noteId, null, TOMBSTONE);
+                    }
+                } else {
+                    Location location = index.get(noteId);
+                    if (location != null && location.segment == segment && location.offset == position) {
+                        byte[] body = segment.read(position + HEADER_BYTES, length);
+                        Location moved = append(noteId, body, length);
+                        moved.writtenAtMillis = location.writtenAtMillis;
+                        replace(noteId, moved);
+                        copied++;
+                        copiedBytes += HEADER_BYTES + length;
+                    }
+                }
+            }
+            position += HEADER_BYTES + Math.max(0, length);
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            sync(); // Bản sao phải nằm trên đĩa trước khi xóa bản gốc
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                System.err.println("[SegmentNoteBodyStore] Không thể xóa " + segment.file.getName() + ", sẽ được dọn lại ở lần khởi động sau.");
+            }
+        }
+        System.out.println("[SegmentNoteBodyStore] Đã dọn " + segment.file.getName() + ": chép " + copied +
+                " bản ghi, thu hồi " + (before - copiedBytes) / 1024 + " KB.");
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("SegmentNoteBodyStore đã đóng.");
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        ensureOpen();
+        if (readOnly) {
+            throw new IOException("SegmentNoteBodyStore đang ở chế độ chỉ đọc.");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            sync();
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+        if (compactor != null) {
+            compactor.interrupt();
+        }
+    }
+
+    /** Vị trí một phiên bản nội dung: segment, offset của header và độ dài nội dung. */
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        long writtenAtMillis;
+
+        Location(Segment segment, long offset, int length, long writtenAtMillis) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.writtenAtMillis = writtenAtMillis;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size; // Được bảo vệ bởi khóa của store
+        long liveBytes;
+        private MappedByteBuffer mapped; // Map lại (lớn hơn) khi cần đọc phần mới ghi thêm
+
+        Segment(int id, File file, boolean readOnly) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, readOnly ? "r" : "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        synchronized MappedByteBuffer mapping(long requiredBytes) throws IOException {
+            if (mapped == null || mapped.capacity() < requiredBytes) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            return mapped;
+        }
+
+        byte[] read(long offset, int length) throws IOException {
+            ByteBuffer view = mapping(offset + length).duplicate();
+            view.position((int) offset);
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return bytes;
+        }
+    }
+}
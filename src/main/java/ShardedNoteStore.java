@@ -0,0 +1,422 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Lưu dữ liệu theo từng phân mảnh (shard): mỗi Folder một file chứa các note của nó,
+ * cộng với một manifest nhỏ chứa danh sách folders và tags.
+ * <pre>
+ * notes.shards/manifest.json     {"version":2,"ids":{...},"folders":[...],"tags":[...]}
+ * notes.shards/folder-1.json     {"version":2,"folderId":1,"notes":[...]}
+ * notes.shards/folder-42.json    ...
+ * </pre>
+ * Mỗi file ghi theo layout mỗi bản ghi một dòng kèm checksum ({@link JsonRecordLines});
+ * file phiên bản 1 (một khối JSON, không có checksum) vẫn đọc được.
+ * Nhờ vậy sửa một note trong folder 50 note chỉ ghi lại file của folder đó,
+ * không đụng tới hàng chục nghìn note trong Root.
+ * Mốc ID ({@link IdMarks}) nằm ở dòng đầu manifest. Manifest được đổi tên sau cùng nên nếu crash giữa chừng,
+ * shard có thể chứa ID vượt mốc cũ; NoteManager phát hiện điều đó khi tải và tìm lại ID lớn nhất.
+ */
+public class ShardedNoteStore {
+    static final int VERSION = JsonRecordLines.VERSION;
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String SHARD_PREFIX = "folder-";
+    private static final String SHARD_SUFFIX = ".json";
+
+    private final File directory;
+    private boolean orphanShardsFound;
+
+    public ShardedNoteStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean exists() {
+        return manifestFile().exists();
+    }
+
+    /** Lần tải gần nhất gặp file shard của folder không còn trong manifest (ví dụ do crash giữa chừng). */
+    public boolean hasOrphanShards() {
+        return orphanShardsFound;
+    }
+
+    /**
+     * Ghi các shard thay đổi và (nếu có) manifest.
+     * Mọi file được ghi ra file tạm và fsync trước, sau đó mới lần lượt đổi tên,
+     * để khoảng thời gian các shard không nhất quán với nhau là nhỏ nhất.
+     * @param shards    folderId -> notes của folder; giá trị null nghĩa là folder đã bị xóa, file shard bị xóa theo.
+     * @param folders   null nếu manifest không thay đổi.
+     * @param complete  true nếu {@code shards} chứa toàn bộ folder: các file shard khác sẽ bị xóa.
+     * @param written   Nhận dấu vân tay bản ghi của từng file đã ghi, file đã xóa ứng với null (null nếu không cần).
+     */
+    public synchronized void write(Map<Long, List<Note>> shards, List<Folder> folders, List<Tag> tags, IdMarks idMarks, boolean complete,
+                                   Map<File, RecordFingerprints> written) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Không thể tạo thư mục shard: " + directory);
+        }
+        List<File[]> pendingMoves = new ArrayList<>(); // {tạm, đích}
+        try {
+            for (Map.Entry<Long, List<Note>> entry : shards.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                File target = shardFile(entry.getKey());
+                File temp = new File(directory, target.getName() + ".tmp");
+                RecordFingerprints fingerprints = new RecordFingerprints();
+                writeFile(temp, out -> writeShard(out, entry.getKey(), entry.getValue(), fingerprints));
+                pendingMoves.add(new File[]{temp, target});
+                if (written != null) {
+                    written.put(target, fingerprints);
+                }
+            }
+            if (folders != null) {
+                File temp = new File(directory, MANIFEST_FILE + ".tmp");
+                RecordFingerprints fingerprints = new RecordFingerprints();
+                writeFile(temp, out -> writeManifest(out, folders, tags, idMarks, fingerprints));
+                pendingMoves.add(new File[]{temp, manifestFile()}); // Manifest được đổi tên sau cùng
+                if (written != null) {
+                    written.put(manifestFile(), fingerprints);
+                }
+            }
+        } catch (IOException e) {
+            for (File[] move : pendingMoves) {
+                move[0].delete();
+            }
+            throw e;
+        }
+
+        for (File[] move : pendingMoves) {
+            moveAtomically(move[0], move[1]);
+        }
+        for (Map.Entry<Long, List<Note>> entry : shards.entrySet()) {
+            if (entry.getValue() == null) {
+                deleteShard(entry.getKey(), written);
+            }
+        }
+        if (complete) {
+            for (long folderId : listShardIds()) {
+                if (!shards.containsKey(folderId)) {
+                    deleteShard(folderId, written);
+                }
+            }
+        }
+        System.out.println("[ShardedNoteStore write] Đã ghi " + (pendingMoves.size() - (folders != null ? 1 : 0)) +
+                " shard" + (folders != null ? " và manifest" : "") + " vào " + directory.getName() + ".");
+    }
+
+    private void deleteShard(long folderId, Map<File, RecordFingerprints> written) throws IOException {
+        Files.deleteIfExists(shardFile(folderId).toPath());
+        if (written != null) {
+            written.put(shardFile(folderId), null);
+        }
+    }
+
+    /**
+     * Tải manifest rồi toàn bộ các file shard trong thư mục (kể cả shard của folder không còn trong manifest,
+     * để không mất note nếu crash xảy ra giữa lúc ghi shard và manifest).
+     * Note trùng ID (note vừa được chuyển folder khi crash) chỉ giữ bản có updatedAt mới nhất.
+     * @param report null để đọc nghiêm ngặt. Khác null: bản ghi hỏng (và shard không đọc được) bị bỏ qua và ghi vào báo cáo;
+     *               riêng manifest không đọc được thì vẫn ném IOException.
+     * @param fingerprints Nhận dấu vân tay bản ghi của từng file đã đọc (null nếu không cần).
+     * @return Mốc ID trong manifest; rỗng nếu manifest được ghi trước khi có mốc.
+     */
+    public IdMarks load(List<Note> notes, List<Folder> folders, List<Tag> tags, SalvageReport report,
+                        Map<File, RecordFingerprints> fingerprints) throws IOException {
+        orphanShardsFound = false;
+        IdMarks idMarks = readManifest(manifestFile(), folders, tags, recorderFor(manifestFile(), fingerprints), report);
+
+        Set<Long> knownFolderIds = new HashSet<>();
+        for (Folder folder : folders) {
+            knownFolderIds.add(folder.getId());
+        }
+        Map<Long, Note> notesById = new LinkedHashMap<>();
+        List<Long> shardIds = listShardIds();
+        for (long folderId : shardIds) {
+            if (!knownFolderIds.contains(folderId)) {
+                orphanShardsFound = true;
+                System.err.println("[ShardedNoteStore load] Cảnh báo: Shard " + shardFile(folderId).getName() + " không có folder tương ứng trong manifest. Các note sẽ được gán vào Root.");
+            }
+            readShard(shardFile(folderId), notesById, recorderFor(shardFile(folderId), fingerprints), report);
+        }
+        notes.addAll(notesById.values());
+        System.out.println("[ShardedNoteStore load] Đã tải " + notes.size() + " notes từ " + shardIds.size() +
+                " shard, " + folders.size() + " folders, " + tags.size() + " tags.");
+        return idMarks;
+    }
+
+    private static JsonRecordLines.Filter recorderFor(File source, Map<File, RecordFingerprints> fingerprints) {
+        if (fingerprints == null) {
+            return null;
+        }
+        RecordFingerprints recorded = new RecordFingerprints();
+        fingerprints.put(source, recorded);
+        return recorded.recorder(true);
+    }
+
+    /** Manifest (nếu có) và mọi file shard đang có trong thư mục. */
+    List<File> listFiles() {
+        List<File> files = new ArrayList<>();
+        if (manifestFile().exists()) {
+            files.add(manifestFile());
+        }
+        for (long folderId : listShardIds()) {
+            files.add(shardFile(folderId));
+        }
+        return files;
+    }
+
+    /**
+     * Đọc nghiêm ngặt một file của kho (manifest hoặc shard), chỉ giải mã các bản ghi được {@code filter} chấp nhận.
+     * @return Mốc ID nếu {@code file} là manifest, ngược lại rỗng.
+     */
+    IdMarks readFile(File file, JsonRecordLines.Filter filter, List<Note> notes, List<Folder> folders, List<Tag> tags) throws IOException {
+        if (file.equals(manifestFile())) {
+            return readManifest(file, folders, tags, filter, null);
+        }
+        Map<Long, Note> notesById = new LinkedHashMap<>();
+        readShard(file, notesById, filter, null);
+        notes.addAll(notesById.values());
+        return new IdMarks();
+    }
+
+    /**
+     * Đọc lại manifest và mọi shard để kiểm tra checksum (dùng bởi {@link StorageVerifier}).
+     * Mỗi file được đọc trong khóa của kho để không trùng lúc nó đang bị thay bởi {@link #write}.
+     * @return Số file đã kiểm tra.
+     */
+    int verify(SalvageReport report) {
+        int checked = 0;
+        synchronized (this) {
+            if (!manifestFile().exists()) {
+                return 0;
+            }
+            try {
+                readManifest(manifestFile(), new ArrayList<>(), new ArrayList<>(), null, report);
+            } catch (IOException e) {
+                report.recordTruncated(manifestFile(), null, "đầu file", e.getMessage());
+            }
+            checked++;
+        }
+        for (long folderId : listShardIds()) {
+            synchronized (this) {
+                File shard = shardFile(folderId);
+                if (shard.exists()) {
+                    try {
+                        readShard(shard, new HashMap<>(), null, report);
+                    } catch (IOException e) {
+                        report.recordTruncated(shard, null, "đầu file", e.getMessage()); // Không xảy ra: report khác null
+                    }
+                    checked++;
+                }
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * @param filter Chỉ giải mã các bản ghi được chấp nhận (null: mọi bản ghi). Manifest phiên bản 1 không có checksum
+     *               nên được giải mã hết, filter nhận dấu vân tay tính lại theo {@link RecordFingerprints#of}.
+     */
+    private static IdMarks readManifest(File manifest, List<Folder> folders, List<Tag> tags, JsonRecordLines.Filter filter, SalvageReport report) throws IOException {
+        IdMarks idMarks = new IdMarks();
+        if (JsonRecordLines.isRecordLines(manifest)) {
+            JsonRecordLines.read(manifest, (field, reader) -> {
+                if (field.equals("ids")) {
+                    idMarks.raise(NoteJsonCodec.readIdMarks(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }, filter, (section, reader) -> {
+                if ("folders".equals(section)) {
+                    folders.add(NoteJsonCodec.readFolder(reader));
+                } else if ("tags".equals(section)) {
+                    tags.add(NoteJsonCodec.readTag(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }, report);
+            return idMarks;
+        }
+        try (JsonReader reader = newReader(manifest)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "version":
+                        int version = reader.nextInt();
+                        if (version != 1) {
+                            throw new IOException("Phiên bản manifest không được hỗ trợ: " + version);
+                        }
+                        break;
+                    case "folders":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Folder folder = NoteJsonCodec.readFolder(reader);
+                            if (filter == null || filter.accept(RecordFingerprints.FOLDERS, folder.getId(), RecordFingerprints.of(folder))) {
+                                folders.add(folder);
+                            }
+                        }
+                        reader.endArray();
+                        break;
+                    case "tags":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Tag tag = NoteJsonCodec.readTag(reader);
+                            if (filter == null || filter.accept(RecordFingerprints.TAGS, tag.getId(), RecordFingerprints.of(tag))) {
+                                tags.add(tag);
+                            }
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        return idMarks;
+    }
+
+    /**
+     * Đọc một shard vào {@code notesById}; ở chế độ cứu dữ liệu, mọi note đọc được trước chỗ hỏng đều được giữ.
+     * @param filter Như ở {@link #readManifest}.
+     */
+    private static void readShard(File shard, Map<Long, Note> notesById, JsonRecordLines.Filter filter, SalvageReport report) throws IOException {
+        try {
+            if (JsonRecordLines.isRecordLines(shard)) {
+                JsonRecordLines.read(shard, null, filter, (section, reader) -> {
+                    if ("notes".equals(section)) {
+                        putNewest(notesById, NoteJsonCodec.readNote(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }, report);
+            } else {
+                try (JsonReader reader = newReader(shard)) {
+                    readLegacyShard(reader, notesById, filter);
+                }
+            }
+        } catch (RecordCipher.LockedException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            if (report == null) {
+                throw e;
+            }
+            report.recordTruncated(shard, "notes", "chỗ hỏng", e.getMessage());
+        }
+    }
+
+    private static void putNewest(Map<Long, Note> notesById, Note note) {
+        Note existing = notesById.get(note.getId());
+        if (existing == null || existing.getUpdatedAt().isBefore(note.getUpdatedAt())) {
+            notesById.put(note.getId(), note);
+        }
+    }
+
+    private static void readLegacyShard(JsonReader reader, Map<Long, Note> notesById, JsonRecordLines.Filter filter) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!"notes".equals(name) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Note note = NoteJsonCodec.readNote(reader);
+                if (filter == null || filter.accept(RecordFingerprints.NOTES, note.getId(), RecordFingerprints.of(note))) {
+                    putNewest(notesById, note);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void writeShard(OutputStream out, long folderId, List<Note> notes, RecordFingerprints fingerprints) throws IOException {
+        JsonRecordLines.Writer writer = new JsonRecordLines.Writer(out, "\"folderId\":" + folderId, "notes");
+        for (Note note : notes) {
+            fingerprints.put(RecordFingerprints.NOTES, note.getId(), writer.record(json -> NoteJsonCodec.writeNote(json, note)));
+        }
+        writer.finish();
+    }
+
+    private static void writeManifest(OutputStream out, List<Folder> folders, List<Tag> tags, IdMarks idMarks, RecordFingerprints fingerprints) throws IOException {
+        String headerFields = idMarks != null ? NoteJsonCodec.idMarksHeaderField(idMarks) : "";
+        JsonRecordLines.Writer writer = new JsonRecordLines.Writer(out, headerFields, "folders");
+        for (Folder folder : folders) {
+            fingerprints.put(RecordFingerprints.FOLDERS, folder.getId(), writer.record(json -> NoteJsonCodec.writeFolder(json, folder)));
+        }
+        writer.section("tags");
+        for (Tag tag : tags) {
+            fingerprints.put(RecordFingerprints.TAGS, tag.getId(), writer.record(json -> NoteJsonCodec.writeTag(json, tag)));
+        }
+        writer.finish();
+    }
+
+    private interface FileBody {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeFile(File target, FileBody body) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+            body.write(buffered);
+            buffered.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static JsonReader newReader(File source) throws IOException {
+        return new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 64 * 1024));
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private List<Long> listShardIds() {
+        List<Long> ids = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (name.startsWith(SHARD_PREFIX) && name.endsWith(SHARD_SUFFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(SHARD_PREFIX.length(), name.length() - SHARD_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // Không phải file shard
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File shardFile(long folderId) {
+        return new File(directory, SHARD_PREFIX + folderId + SHARD_SUFFIX);
+    }
+
+    private File manifestFile() {
+        return new File(directory, MANIFEST_FILE);
+    }
+}
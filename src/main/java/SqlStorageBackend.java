@@ -0,0 +1,412 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Backend lưu vào một cơ sở dữ liệu nhúng trên đĩa qua JDBC (mặc định SQLite, file notes.db; H2 ở chế độ file cũng dùng được).
+ * Mỗi note/folder/tag là một dòng, cột {@code data} chứa JSON của đối tượng (cùng định dạng với notes.json):
+ * <pre>
+ * notes(id, folder_id, data)   folders(id, data)   tags(id, data)   meta(name, value)
+ * </pre>
+ * Bảng {@code meta} giữ mốc ID ({@link IdMarks}) ở dòng {@code ids}, cập nhật cùng transaction với thay đổi dùng ID mới.
+ * Một thay đổi chỉ cập nhật đúng dòng liên quan; mỗi nhóm bản ghi từ {@link #applyChanges(List)} nằm trong một transaction.
+ * <p>
+ * Nội dung note và bản vẽ luôn được lưu ngay trong dòng (không dùng kho blob/kho nội dung của DataStorage).
+ * Lần đầu mở khi cơ sở dữ liệu còn trống, dữ liệu hiện có của DataStorage (notes.json, shard...) được chuyển sang.
+ * Nếu tải thất bại (thiếu driver, cơ sở dữ liệu đang bị khóa, một dòng hỏng...), backend chuyển sang chỉ đọc
+ * cho tới hết phiên: dữ liệu trong bộ nhớ khi đó không đầy đủ và không được phép ghi đè các dòng đang có.
+ */
+public class SqlStorageBackend implements StorageBackend {
+    private static final char SEPARATOR = '\t';
+
+    private final String url;
+    private final Connection connection;
+    private boolean fullSaveRequired;
+    private IdMarks loadedIdMarks;
+    private volatile String loadFailure; // Lỗi khi tải, khác null thì chỉ đọc
+
+    /**
+     * @throws IllegalStateException nếu không mở được cơ sở dữ liệu (ví dụ thiếu JDBC driver trên classpath).
+     */
+    public SqlStorageBackend(String jdbcUrl) {
+        this.url = jdbcUrl;
+        try {
+            connection = DriverManager.getConnection(jdbcUrl);
+            connection.setAutoCommit(false);
+            createSchema();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Không thể mở cơ sở dữ liệu " + jdbcUrl + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void createSchema() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS notes (id BIGINT PRIMARY KEY, folder_id BIGINT NOT NULL, data TEXT NOT NULL)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS notes_folder_id ON notes (folder_id)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS folders (id BIGINT PRIMARY KEY, data TEXT NOT NULL)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS tags (id BIGINT PRIMARY KEY, data TEXT NOT NULL)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS meta (name VARCHAR(64) PRIMARY KEY, value TEXT NOT NULL)");
+        }
+        connection.commit();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public synchronized void load(NoteManager noteManager) {
+        List<Note> notes = noteManager.getModifiableNotesList();
+        List<Folder> folders = noteManager.getModifiableFoldersList();
+        List<Tag> tags = noteManager.getModifiableTagsList();
+        int migratedBefore = SchemaMigrations.migratedOnCurrentThread();
+        try {
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet rows = statement.executeQuery("SELECT data FROM folders ORDER BY id")) {
+                    while (rows.next()) {
+                        folders.add(NoteJsonCodec.readFolder(newReader(rows.getString(1))));
+                    }
+                }
+                Set<Long> tagIds = new HashSet<>();
+                try (ResultSet rows = statement.executeQuery("SELECT data FROM tags ORDER BY id")) {
+                    while (rows.next()) {
+                        Tag tag = NoteJsonCodec.readTag(newReader(rows.getString(1)));
+                        tags.add(tag);
+                        tagIds.add(tag.getId());
+                    }
+                }
+                try (ResultSet rows = statement.executeQuery("SELECT data FROM notes ORDER BY id")) {
+                    while (rows.next()) {
+                        Note note = NoteJsonCodec.readNote(newReader(rows.getString(1)));
+                        // Xóa tag chỉ xóa dòng của tag, tham chiếu trong các note được dọn khi tải
+                        note.getTags().removeIf(t -> !tagIds.contains(t.getId()));
+                        notes.add(note);
+                    }
+                }
+                try (ResultSet rows = statement.executeQuery("SELECT value FROM meta WHERE name = 'ids'")) {
+                    loadedIdMarks = rows.next() ? NoteJsonCodec.readIdMarks(newReader(rows.getString(1))) : null;
+                }
+            }
+            connection.commit();
+        } catch (SQLException | IOException | RuntimeException e) {
+            System.err.println("[SqlStorageBackend load] Lỗi khi tải dữ liệu từ " + url + ": " + e.getMessage() +
+                    ". Mở ở chế độ chỉ đọc, dữ liệu đã lưu được giữ nguyên.");
+            e.printStackTrace();
+            rollbackQuietly();
+            notes.clear();
+            folders.clear();
+            tags.clear();
+            loadedIdMarks = null;
+            fullSaveRequired = false;
+            loadFailure = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return;
+        }
+        if (notes.isEmpty() && folders.isEmpty() && tags.isEmpty()) {
+            importFromDataStorage(noteManager);
+            return;
+        }
+        int migrated = SchemaMigrations.migratedOnCurrentThread() - migratedBefore;
+        if (migrated > 0) {
+            System.out.println("[SqlStorageBackend load] Đã nâng cấp " + migrated + " dòng lên lược đồ phiên bản " +
+                    SchemaMigrations.CURRENT + ", dữ liệu sẽ được ghi lại toàn bộ.");
+            fullSaveRequired = true;
+        }
+        System.out.println("[SqlStorageBackend load] Đã tải " + notes.size() + " notes, " +
+                folders.size() + " folders, " + tags.size() + " tags từ " + url + ".");
+    }
+
+    /**
+     * Cơ sở dữ liệu còn trống: tải dữ liệu của DataStorage theo cấu hình hiện tại (nếu có) để chuyển sang.
+     * Nội dung và bản vẽ đang nằm trong kho riêng được đưa vào note, NoteManager sẽ ghi lại toàn bộ sau khi tải.
+     */
+    private void importFromDataStorage(NoteManager noteManager) {
+        File dataFile = new File(StorageConfig.DATA_FILE);
+        DataStorage source = new DataStorage(StorageConfig.DATA_FILE, StorageConfig.isJournalEnabled());
+        source.load(noteManager);
+        loadedIdMarks = source.getLoadedIdMarks();
+        List<Note> notes = noteManager.getModifiableNotesList();
+        if (notes.isEmpty() && noteManager.getModifiableFoldersList().isEmpty()) {
+            source.close();
+            return;
+        }
+        for (Note note : notes) {
+            LocalDateTime updatedAt = note.getUpdatedAt();
+            if (note.isContentStored()) {
+                note.setContent(note.getContent());
+            }
+            if (note.getDrawingHash() != null) {
+                note.setDrawingData(note.getDrawingData());
+            }
+            note.setUpdatedAt(updatedAt); // Chỉ đổi nơi lưu, không phải một lần sửa note
+        }
+        source.close(); // Nhả khóa thư mục dữ liệu cũ
+        fullSaveRequired = true;
+        System.out.println("[SqlStorageBackend] Đã chuyển " + notes.size() + " notes từ " + dataFile.getName() + " sang " + url + ".");
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    @Override
+    public boolean isFullSaveRequired() {
+        return fullSaveRequired;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return loadFailure != null;
+    }
+
+    @Override
+    public String getReadOnlyReason() {
+        return loadFailure != null ? "Không thể tải dữ liệu từ " + url + ": " + loadFailure : null;
+    }
+
+    private void ensureWritable() throws IOException {
+        if (loadFailure != null) {
+            throw new IOException("Dữ liệu chưa được tải đầy đủ từ " + url + " (" + loadFailure + "), chỉ đọc.");
+        }
+    }
+
+    @Override
+    public IdMarks getLoadedIdMarks() {
+        return loadedIdMarks;
+    }
+
+    @Override
+    public String encodeIdReservation(IdMarks idMarks) {
+        return NoteJournal.Op.RESERVE_IDS.name() + SEPARATOR + 0 + SEPARATOR + 0 + SEPARATOR + toJson(idMarks);
+    }
+
+    // Bản ghi: "OP<tab>id[<tab>folderId<tab>json]", được áp dụng thẳng thành câu lệnh trên dòng tương ứng
+    @Override
+    public String encodeNoteUpsert(Note note) {
+        return NoteJournal.Op.UPSERT_NOTE.name() + SEPARATOR + note.getId() + SEPARATOR + note.getFolderId() + SEPARATOR + toJson(note);
+    }
+
+    @Override
+    public String encodeNoteDelete(long noteId) {
+        return NoteJournal.Op.DELETE_NOTE.name() + SEPARATOR + noteId;
+    }
+
+    @Override
+    public String encodeFolderUpsert(Folder folder) {
+        return NoteJournal.Op.UPSERT_FOLDER.name() + SEPARATOR + folder.getId() + SEPARATOR + 0 + SEPARATOR + toJson(folder);
+    }
+
+    @Override
+    public String encodeFolderDelete(long folderId) {
+        return NoteJournal.Op.DELETE_FOLDER.name() + SEPARATOR + folderId;
+    }
+
+    @Override
+    public String encodeTagUpsert(Tag tag) {
+        return NoteJournal.Op.UPSERT_TAG.name() + SEPARATOR + tag.getId() + SEPARATOR + 0 + SEPARATOR + toJson(tag);
+    }
+
+    @Override
+    public String encodeTagDelete(long tagId) {
+        return NoteJournal.Op.DELETE_TAG.name() + SEPARATOR + tagId;
+    }
+
+    @Override
+    public synchronized void applyChanges(List<String> records) throws IOException {
+        ensureWritable();
+        if (records.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement updateNote = connection.prepareStatement("UPDATE notes SET folder_id = ?, data = ? WHERE id = ?");
+             PreparedStatement insertNote = connection.prepareStatement("INSERT INTO notes (folder_id, data, id) VALUES (?, ?, ?)");
+             PreparedStatement updateFolder = connection.prepareStatement("UPDATE folders SET data = ? WHERE id = ?");
+             PreparedStatement insertFolder = connection.prepareStatement("INSERT INTO folders (data, id) VALUES (?, ?)");
+             PreparedStatement updateTag = connection.prepareStatement("UPDATE tags SET data = ? WHERE id = ?");
+             PreparedStatement insertTag = connection.prepareStatement("INSERT INTO tags (data, id) VALUES (?, ?)");
+             PreparedStatement updateMeta = connection.prepareStatement("UPDATE meta SET value = ? WHERE name = ?");
+             PreparedStatement insertMeta = connection.prepareStatement("INSERT INTO meta (value, name) VALUES (?, ?)")) {
+            for (String record : records) {
+                String[] fields = record.split(String.valueOf(SEPARATOR), 4);
+                NoteJournal.Op op = NoteJournal.Op.valueOf(fields[0]);
+                long id = Long.parseLong(fields[1]);
+                switch (op) {
+                    case UPSERT_NOTE:
+                        updateNote.setLong(1, Long.parseLong(fields[2]));
+                        updateNote.setString(2, fields[3]);
+                        updateNote.setLong(3, id);
+                        if (updateNote.executeUpdate() == 0) {
+                            insertNote.setLong(1, Long.parseLong(fields[2]));
+                            insertNote.setString(2, fields[3]);
+                            insertNote.setLong(3, id);
+                            insertNote.executeUpdate();
+                        }
+                        break;
+                    case UPSERT_FOLDER:
+                        upsert(updateFolder, insertFolder, id, fields[3]);
+                        break;
+                    case UPSERT_TAG:
+                        upsert(updateTag, insertTag, id, fields[3]);
+                        break;
+                    case RESERVE_IDS:
+                        upsertMeta(updateMeta, insertMeta, "ids", fields[3]);
+                        break;
+                    default:
+                        delete(tableOf(op), id);
+                        break;
+                }
+            }
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            rollbackQuietly();
+            throw new IOException("Không thể ghi " + records.size() + " thay đổi vào " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void upsert(PreparedStatement update, PreparedStatement insert, long id, String json) throws SQLException {
+        update.setString(1, json);
+        update.setLong(2, id);
+        if (update.executeUpdate() == 0) {
+            insert.setString(1, json);
+            insert.setLong(2, id);
+            insert.executeUpdate();
+        }
+    }
+
+    private static void upsertMeta(PreparedStatement update, PreparedStatement insert, String name, String value) throws SQLException {
+        update.setString(1, value);
+        update.setString(2, name);
+        if (update.executeUpdate() == 0) {
+            insert.setString(1, value);
+            insert.setString(2, name);
+            insert.executeUpdate();
+        }
+    }
+
+    private void delete(String table, long id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table + " WHERE id = ?")) {
+            statement.setLong(1, id);
+            statement.executeUpdate();
+        }
+    }
+
+    private static String tableOf(NoteJournal.Op op) {
+        switch (op) {
+            case UPSERT_NOTE:
+            case DELETE_NOTE:
+                return "notes";
+            case UPSERT_FOLDER:
+            case DELETE_FOLDER:
+                return "folders";
+            default:
+                return "tags";
+        }
+    }
+
+    @Override
+    public StorageSnapshot captureSnapshot(NoteManager noteManager) {
+        StorageSnapshot snapshot = new StorageSnapshot(StorageSnapshot.copyNotes(noteManager.getAllNotes()),
+                StorageSnapshot.copyFolders(noteManager.getAllFolders()),
+                StorageSnapshot.copyTags(noteManager.getAllTags()));
+        snapshot.idMarks = noteManager.getIdMarks();
+        return snapshot;
+    }
+
+    /** Thay toàn bộ các bảng bằng nội dung snapshot trong một transaction. */
+    @Override
+    public synchronized void writeSnapshot(StorageSnapshot snapshot) throws IOException {
+        ensureWritable(); // Snapshot sau một lần tải lỗi sẽ xóa sạch các dòng đang có
+        try (Statement statement = connection.createStatement();
+             PreparedStatement insertNote = connection.prepareStatement("INSERT INTO notes (id, folder_id, data) VALUES (?, ?, ?)");
+             PreparedStatement insertFolder = connection.prepareStatement("INSERT INTO folders (id, data) VALUES (?, ?)");
+             PreparedStatement insertTag = connection.prepareStatement("INSERT INTO tags (id, data) VALUES (?, ?)");
+             PreparedStatement insertMeta = connection.prepareStatement("INSERT INTO meta (name, value) VALUES (?, ?)")) {
+            statement.executeUpdate("DELETE FROM notes");
+            statement.executeUpdate("DELETE FROM folders");
+            statement.executeUpdate("DELETE FROM tags");
+            statement.executeUpdate("DELETE FROM meta WHERE name = 'ids'");
+            if (snapshot.idMarks != null) {
+                insertMeta.setString(1, "ids");
+                insertMeta.setString(2, toJson(snapshot.idMarks));
+                insertMeta.executeUpdate();
+            }
+            for (Note note : snapshot.notes) {
+                insertNote.setLong(1, note.getId());
+                insertNote.setLong(2, note.getFolderId());
+                insertNote.setString(3, toJson(note));
+                insertNote.addBatch();
+            }
+            insertNote.executeBatch();
+            for (Folder folder : snapshot.folders) {
+                insertFolder.setLong(1, folder.getId());
+                insertFolder.setString(2, toJson(folder));
+                insertFolder.addBatch();
+            }
+            insertFolder.executeBatch();
+            for (Tag tag : snapshot.tags) {
+                insertTag.setLong(1, tag.getId());
+                insertTag.setString(2, toJson(tag));
+                insertTag.addBatch();
+            }
+            insertTag.executeBatch();
+            connection.commit();
+            System.out.println("[SqlStorageBackend writeSnapshot] Đã ghi " + snapshot.notes.size() + " notes, " +
+                    snapshot.folders.size() + " folders, " + snapshot.tags.size() + " tags vào " + url + ".");
+        } catch (SQLException | RuntimeException e) {
+            rollbackQuietly();
+            throw new IOException("Không thể ghi snapshot vào " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("[SqlStorageBackend] Lỗi khi đóng kết nối " + url + ": " + e.getMessage());
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+            // Kết nối đã hỏng, lỗi gốc đã được báo
+        }
+    }
+
+    private static String toJson(Object entity) {
+        StringWriter out = new StringWriter(256);
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.setSerializeNulls(false);
+            if (entity instanceof Note) {
+                NoteJsonCodec.writeNote(writer, (Note) entity);
+            } else if (entity instanceof Folder) {
+                NoteJsonCodec.writeFolder(writer, (Folder) entity);
+            } else if (entity instanceof IdMarks) {
+                NoteJsonCodec.writeIdMarks(writer, (IdMarks) entity);
+            } else {
+                NoteJsonCodec.writeTag(writer, (Tag) entity);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter không ném IOException
+        }
+        return out.toString();
+    }
+
+    private static JsonReader newReader(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+}
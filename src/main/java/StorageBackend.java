@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Tầng lưu trữ mà NoteManager dùng để tải và ghi dữ liệu.
+ * <p>
+ * Mỗi thay đổi nhỏ được mã hóa thành một bản ghi (chuỗi) ngay trên luồng đang sửa dữ liệu bằng các hàm
+ * {@code encode*}, rồi được {@link #applyChanges(List)} ghi theo nhóm (thường trên luồng của PersistenceService).
+ * Bản ghi chỉ có ý nghĩa với chính backend đã tạo ra nó. Backend không hỗ trợ ghi từng thay đổi
+ * ({@link #isIncremental()} là false) thì mọi thay đổi đều đi qua snapshot đầy đủ.
+ * <p>
+ * Các cài đặt: {@link DataStorage} (notes.json/notes.bin + journal, hoặc shard), {@link SqlStorageBackend}
+ * (cơ sở dữ liệu nhúng qua JDBC, cập nhật từng dòng) và {@link InMemoryStorageBackend} (chỉ trong bộ nhớ, dùng để kiểm thử).
+ */
+public interface StorageBackend {
+
+    /** Điền dữ liệu thô vào các danh sách của NoteManager (chưa tái liên kết đối tượng). */
+    void load(NoteManager noteManager);
+
+    boolean isIncremental();
+
+    String encodeNoteUpsert(Note note);
+
+    String encodeNoteDelete(long noteId);
+
+    String encodeFolderUpsert(Folder folder);
+
+    String encodeFolderDelete(long folderId);
+
+    String encodeTagUpsert(Tag tag);
+
+    String encodeTagDelete(long tagId);
+
+    /** Ghi một nhóm bản ghi đã mã hóa; khi hàm trả về, các thay đổi đã bền vững. */
+    void applyChanges(List<String> records) throws IOException;
+
+    /** Chụp lại bản sao giá trị của dữ liệu hiện tại (trên luồng đang sửa dữ liệu) để ghi sau đó, có thể trên luồng khác. */
+    StorageSnapshot captureSnapshot(NoteManager noteManager);
+
+    /** Thay toàn bộ dữ liệu đã lưu bằng snapshot (hoặc chỉ các shard trong snapshot, ở chế độ shard). */
+    void writeSnapshot(StorageSnapshot snapshot) throws IOException;
+
+    /** Lưu theo shard: NoteManager theo dõi folder thay đổi và ghi bằng {@link #captureShardSnapshot}. */
+    default boolean isSharded() {
+        return false;
+    }
+
+    default StorageSnapshot captureShardSnapshot(NoteManager noteManager, Set<Long> dirtyFolderIds, boolean includeManifest) {
+        throw new UnsupportedOperationException("Backend không lưu theo shard");
+    }
+
+    /**
+     * Mốc ID đã lưu cùng dữ liệu vừa tải (xem {@link IdMarks}); null hoặc rỗng nếu backend không lưu mốc
+     * hay dữ liệu được ghi trước khi có mốc, khi đó NoteManager tìm ID lớn nhất trong dữ liệu như trước.
+     */
+    default IdMarks getLoadedIdMarks() {
+        return null;
+    }
+
+    /**
+     * Bản ghi lưu mốc ID mới khi NoteManager dành trước một khối ID, ghi cùng luồng bản ghi với {@code encode*}
+     * nên luôn bền vững trước thay đổi đầu tiên dùng ID trong khối. Null nếu backend không lưu mốc theo cách này.
+     */
+    default String encodeIdReservation(IdMarks idMarks) {
+        return null;
+    }
+
+    /** Dữ liệu vừa tải cần được ghi lại toàn bộ sau khi NoteManager đã tái liên kết đối tượng. */
+    default boolean isFullSaveRequired() {
+        return false;
+    }
+
+    /** Dữ liệu đang được một phiên bản khác của ứng dụng ghi: mọi lần ghi của backend này đều thất bại. */
+    default boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Lý do chỉ đọc để báo cho người dùng, khi không phải do phiên bản khác đang giữ dữ liệu (ví dụ tải thất bại);
+     * null trong các trường hợp còn lại.
+     */
+    default String getReadOnlyReason() {
+        return null;
+    }
+
+    /**
+     * Các bản ghi do tiến trình khác thay đổi kể từ lần tải hoặc lần gọi trước; null nếu không có
+     * hoặc backend không theo dõi được (xem {@link ExternalChangeTracker}).
+     */
+    default ExternalChanges pollExternalChanges() throws IOException {
+        return null;
+    }
+
+    /**
+     * Theo dõi dữ liệu đã lưu và gọi {@code listener} (trên luồng nền) với mỗi nhóm thay đổi từ bên ngoài.
+     * @return false nếu backend không hỗ trợ.
+     */
+    default boolean startWatching(Consumer<ExternalChanges> listener) {
+        return false;
+    }
+
+    /** Giải phóng tài nguyên (file, kết nối). Gọi sau khi mọi thay đổi đã được ghi. */
+    default void close() {
+    }
+
+    /** Tạo backend theo cấu hình {@code xinoclo.storage.backend}, xem {@link StorageConfig#getBackendType()}. */
+    static StorageBackend fromConfig() {
+        switch (StorageConfig.getBackendType()) {
+            case SQL:
+                if (StorageConfig.isEncryptionEnabled()) {
+                    System.err.println("[StorageBackend fromConfig] Cảnh báo: Mã hóa chỉ áp dụng cho dữ liệu dạng file, cơ sở dữ liệu SQL không được mã hóa.");
+                }
+                return new SqlStorageBackend(StorageConfig.getJdbcUrl());
+            case MEMORY:
+                return new InMemoryStorageBackend();
+            default:
+                return new DataStorage(StorageConfig.DATA_FILE, StorageConfig.isJournalEnabled());
+        }
+    }
+}
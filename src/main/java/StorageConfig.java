@@ -0,0 +1,238 @@
+/**
+ * Cấu hình cho tầng lưu trữ (DataStorage và các thành phần liên quan).
+ * Các giá trị được đọc từ System properties để có thể bật/tắt khi chạy, ví dụ:
+ * <pre>java -Dxinoclo.storage.journal=false -jar XiNoClo.jar</pre>
+ */
+public final class StorageConfig {
+    public static final String DATA_FILE = "notes.json";
+
+    /** Định dạng của file snapshot. Journal luôn là JSON theo dòng. */
+    public enum SnapshotFormat {
+        JSON, BINARY
+    }
+
+    /** Backend lưu trữ, xem {@link StorageBackend}. */
+    public enum BackendType {
+        JSON, SQL, MEMORY
+    }
+
+    /** Kiểu kho nội dung note ở chế độ tải lười. */
+    public enum BodyStoreType {
+        SEGMENTS, FILES
+    }
+
+    private StorageConfig() {
+    }
+
+    /**
+     * Backend lưu trữ: "json" (mặc định, DataStorage với notes.json/notes.bin), "sql" (cơ sở dữ liệu nhúng
+     * qua JDBC, xem {@link #getJdbcUrl()}) hoặc "memory" (không ghi xuống đĩa, chỉ dùng khi kiểm thử).
+     */
+    public static BackendType getBackendType() {
+        return getEnum("xinoclo.storage.backend", BackendType.class, BackendType.JSON);
+    }
+
+    /**
+     * Chuỗi kết nối JDBC cho backend "sql". Mặc định là file SQLite notes.db cạnh notes.json;
+     * cũng có thể dùng H2 ở chế độ file, ví dụ {@code jdbc:h2:./notes}, nếu driver có trên classpath.
+     */
+    public static String getJdbcUrl() {
+        String value = System.getProperty("xinoclo.storage.jdbcUrl");
+        return value == null || value.trim().isEmpty() ? "jdbc:sqlite:notes.db" : value.trim();
+    }
+
+    /**
+     * Định dạng snapshot khi ghi: "json" (mặc định, notes.json) hoặc "binary" (notes.bin, xem BinarySnapshotFormat).
+     * Khi tải, định dạng được nhận diện theo nội dung file nên đổi qua lại giữa hai chế độ không mất dữ liệu.
+     */
+    public static SnapshotFormat getSnapshotFormat() {
+        return getEnum("xinoclo.storage.format", SnapshotFormat.class, SnapshotFormat.JSON);
+    }
+
+    /**
+     * Kho nội dung note khi bật tải lười: "segments" (mặc định, các file segment chỉ ghi thêm đọc qua mmap,
+     * xem SegmentNoteBodyStore) hoặc "files" (mỗi note một file, xem FileNoteBodyStore).
+     */
+    public static BodyStoreType getBodyStoreType() {
+        return getEnum("xinoclo.storage.bodyStore", BodyStoreType.class, BodyStoreType.SEGMENTS);
+    }
+
+    /**
+     * Chế độ journal: mỗi thay đổi được ghi thêm (append) thành một bản ghi nhỏ vào file journal
+     * thay vì ghi lại toàn bộ notes.json. Mặc định bật.
+     */
+    public static boolean isJournalEnabled() {
+        return getBoolean("xinoclo.storage.journal", true);
+    }
+
+    /**
+     * Lưu mỗi folder một file (notes.shards/folder-{id}.json) cộng một manifest cho folders và tags,
+     * nên một thay đổi chỉ ghi lại shard của folder liên quan. Khi bật, journal không được dùng. Mặc định tắt.
+     */
+    public static boolean isShardedStorageEnabled() {
+        return getBoolean("xinoclo.storage.sharded", false);
+    }
+
+    /**
+     * Chế độ tải lười: nội dung TEXT note được lưu riêng (thư mục bodies), snapshot chỉ chứa metadata,
+     * và Note.getContent() đọc nội dung khi cần qua bộ đệm có giới hạn. Mặc định tắt.
+     */
+    public static boolean isLazyBodiesEnabled() {
+        return getBoolean("xinoclo.storage.lazyBodies", false);
+    }
+
+    /**
+     * Giới hạn (số ký tự) của mỗi bộ đệm nội dung note / bản vẽ được tải lười.
+     */
+    public static long getBodyCacheChars() {
+        return Math.max(0, getLong("xinoclo.storage.bodyCacheChars", 8L * 1024 * 1024));
+    }
+
+    /**
+     * Checkpoint nền ở chế độ journal: khi file journal vượt quá số bản ghi này, một snapshot mới được dựng
+     * từ snapshot cũ cộng journal trên luồng nền và phần journal đã nằm trong snapshot bị xóa.
+     */
+    public static int getCheckpointRecords() {
+        return Math.max(1, getInt("xinoclo.storage.checkpointRecords", 50_000));
+    }
+
+    /** Như {@link #getCheckpointRecords()} nhưng theo kích thước file journal (byte). */
+    public static long getCheckpointBytes() {
+        return Math.max(1, getLong("xinoclo.storage.checkpointBytes", 32L * 1024 * 1024));
+    }
+
+    /**
+     * Giới hạn (ms) thời gian phát lại journal khi khởi động. Ngưỡng checkpoint theo kích thước được hạ xuống
+     * theo tốc độ phát lại đo được, để phần journal còn lại (kể cả đoạn đang chờ checkpoint) phát lại kịp trong giới hạn này.
+     */
+    public static long getMaxReplayMillis() {
+        return Math.max(1, getLong("xinoclo.storage.maxReplayMs", 1000));
+    }
+
+    /**
+     * Chu kỳ (ms) của bộ kiểm tra nền {@link StorageVerifier}: đọc lại snapshot, journal, shard và blob
+     * để kiểm tra checksum, phát hiện hỏng hóc trước lần khởi động sau. 0 để tắt.
+     */
+    public static long getVerifyIntervalMillis() {
+        return Math.max(0, getLong("xinoclo.storage.verifyIntervalMs", 15 * 60 * 1000));
+    }
+
+    /**
+     * Theo dõi thư mục dữ liệu và gộp các thay đổi do phiên bản khác của ứng dụng (hoặc công cụ đồng bộ file) ghi,
+     * chỉ đọc lại những bản ghi đã đổi (xem {@link ExternalChangeTracker}). Mặc định bật.
+     */
+    public static boolean isWatchEnabled() {
+        return getBoolean("xinoclo.storage.watch", true);
+    }
+
+    /**
+     * Chu kỳ (ms) {@link StorageWatcher} quét lại dù không nhận được sự kiện nào,
+     * cho các hệ thống file không báo sự kiện thay đổi (ổ mạng).
+     */
+    public static long getWatchPollMillis() {
+        return Math.max(1000, getLong("xinoclo.storage.watchPollMs", 10_000));
+    }
+
+    /**
+     * Mã hóa dữ liệu trên đĩa (snapshot, journal, shard, nội dung note, bản vẽ, bản sao lưu) bằng AES-GCM với khóa
+     * dẫn xuất từ mật khẩu, xem {@link RecordCipher}. Chỉ áp dụng cho backend "json"; snapshot luôn ở định dạng JSON.
+     * Khi file khóa (notes.json.key) đã tồn tại, dữ liệu luôn được coi là đã mã hóa dù không bật cờ này. Mặc định tắt.
+     */
+    public static boolean isEncryptionEnabled() {
+        return getBoolean("xinoclo.storage.encrypt", false);
+    }
+
+    /**
+     * Mật khẩu mở khóa dữ liệu đã mã hóa khi chạy không có giao diện (khôi phục bản sao lưu, chuyển định dạng...):
+     * biến môi trường XINOCLO_PASSPHRASE, hoặc {@code xinoclo.storage.passphrase}. Null nếu không có;
+     * ứng dụng khi đó hỏi mật khẩu lúc khởi động.
+     */
+    static String getPassphrase() {
+        String value = System.getenv("XINOCLO_PASSPHRASE");
+        if (value == null || value.isEmpty()) {
+            value = System.getProperty("xinoclo.storage.passphrase");
+        }
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Chu kỳ (phút) sao lưu tự động vào thư mục backups (xem {@link BackupStore}). Note, folder và bản vẽ không đổi
+     * không tốn thêm dung lượng ở các bản sao lưu sau. 0 để tắt.
+     */
+    public static long getBackupIntervalMinutes() {
+        return Math.max(0, getLong("xinoclo.backup.intervalMinutes", 60));
+    }
+
+    /** Số bản sao lưu gần nhất được giữ lại; các chunk chỉ còn được bản cũ hơn tham chiếu sẽ bị xóa. */
+    public static int getBackupKeep() {
+        return Math.max(1, getInt("xinoclo.backup.keep", 48));
+    }
+
+    /**
+     * Số thế hệ snapshot cũ được giữ lại (notes.json.1 ... notes.json.N) để khôi phục khi file chính bị hỏng.
+     */
+    public static int getSnapshotGenerations() {
+        return Math.max(0, getInt("xinoclo.storage.generations", 3));
+    }
+
+    /**
+     * Ghi dữ liệu trên luồng nền (PersistenceService) thay vì trên luồng gọi (thường là EDT). Mặc định bật.
+     */
+    public static boolean isAsyncPersistenceEnabled() {
+        return getBoolean("xinoclo.storage.async", true);
+    }
+
+    /**
+     * Cửa sổ gom nhóm (ms): các thay đổi đến trong khoảng này được ghi chung một lần.
+     */
+    public static long getCommitWindowMillis() {
+        return Math.max(0, getLong("xinoclo.storage.commitWindowMs", 200));
+    }
+
+    static <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[StorageConfig] Giá trị không hợp lệ cho " + key + ": '" + value + "'. Dùng mặc định " + defaultValue.name().toLowerCase(java.util.Locale.ROOT) + ".");
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("[StorageConfig] Giá trị không hợp lệ cho " + key + ": '" + value + "'. Dùng mặc định " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("[StorageConfig] Giá trị không hợp lệ cho " + key + ": '" + value + "'. Dùng mặc định " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+}
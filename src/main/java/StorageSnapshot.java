@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ảnh chụp dữ liệu đã sẵn sàng để ghi, xem {@link StorageBackend#captureSnapshot(NoteManager)}.
+ * Ảnh chụp giữ bản sao giá trị của từng note/folder/tag (xem {@link #copyNotes}) được tạo trên luồng đang sửa dữ liệu,
+ * nên việc serialize sau đó trên luồng nền không đọc phải đối tượng mà EDT vẫn đang sửa.
+ * Ở chế độ shard, ảnh chụp có thể chỉ gồm một phần các shard (complete = false).
+ * Mốc ID ({@link IdMarks}) đi cùng folders/tags: ảnh chụp không có manifest thì cũng không có mốc.
+ */
+public final class StorageSnapshot {
+    final List<Note> notes; // null nếu ảnh chụp chỉ gồm một phần shard
+    final List<Folder> folders; // null nếu folders/tags không đổi (ảnh chụp một phần)
+    final List<Tag> tags;
+    final Map<Long, List<Note>> shards; // null nếu không dùng shard
+    final boolean complete;
+    final long capturedAtMillis;
+    IdMarks idMarks; // null nếu không ghi mốc ID (dữ liệu cũ, hoặc ảnh chụp một phần không kèm manifest)
+
+    StorageSnapshot(List<Note> notes, List<Folder> folders, List<Tag> tags) {
+        this(notes, folders, tags, null, true);
+    }
+
+    StorageSnapshot(List<Note> notes, List<Folder> folders, List<Tag> tags, Map<Long, List<Note>> shards, boolean complete) {
+        this(notes, folders, tags, shards, complete, System.currentTimeMillis());
+    }
+
+    private StorageSnapshot(List<Note> notes, List<Folder> folders, List<Tag> tags,
+                            Map<Long, List<Note>> shards, boolean complete, long capturedAtMillis) {
+        this.notes = notes;
+        this.folders = folders;
+        this.tags = tags;
+        this.shards = shards;
+        this.complete = complete;
+        this.capturedAtMillis = capturedAtMillis;
+    }
+
+    /** Bản sao giá trị của các note (xem {@link Note#snapshotCopy()}), theo đúng thứ tự. */
+    static List<Note> copyNotes(Collection<Note> notes) {
+        List<Note> copies = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            copies.add(note.snapshotCopy());
+        }
+        return copies;
+    }
+
+    static List<Folder> copyFolders(Collection<Folder> folders) {
+        List<Folder> copies = new ArrayList<>(folders.size());
+        for (Folder folder : folders) {
+            copies.add(folder.snapshotCopy());
+        }
+        return copies;
+    }
+
+    /** Bản sao các tag, bỏ tag trùng (cùng ID, hoặc cùng tên nếu chưa có ID). */
+    static List<Tag> copyTags(Collection<Tag> tags) {
+        List<Tag> copies = new ArrayList<>(tags.size());
+        for (Tag tag : new LinkedHashSet<>(tags)) {
+            copies.add(new Tag(tag.getId(), tag.getName()));
+        }
+        return copies;
+    }
+
+    /**
+     * Gộp hai ảnh chụp đang chờ ghi: ảnh chụp mới thay thế ảnh cũ, trừ khi nó chỉ chứa một phần shard,
+     * khi đó các shard (và manifest) của ảnh cũ mà ảnh mới không có vẫn được giữ lại.
+     */
+    static StorageSnapshot merge(StorageSnapshot older, StorageSnapshot newer) {
+        if (older == null || newer.complete || newer.shards == null || older.shards == null) {
+            return newer;
+        }
+        Map<Long, List<Note>> shards = new LinkedHashMap<>(older.shards);
+        shards.putAll(newer.shards);
+        StorageSnapshot merged = new StorageSnapshot(older.notes,
+                newer.folders != null ? newer.folders : older.folders,
+                newer.tags != null ? newer.tags : older.tags,
+                shards, older.complete, older.capturedAtMillis);
+        merged.idMarks = newer.folders != null ? newer.idMarks : older.idMarks;
+        return merged;
+    }
+}
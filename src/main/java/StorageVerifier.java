@@ -0,0 +1,65 @@
+/**
+ * Bộ kiểm tra nền: định kỳ đọc lại dữ liệu đã lưu của một {@link DataStorage} (snapshot, journal, shard, blob)
+ * ở độ ưu tiên thấp nhất và kiểm tra checksum, để phát hiện hỏng hóc trên đĩa trong lúc dữ liệu đúng
+ * vẫn còn trong bộ nhớ, thay vì chỉ phát hiện ở lần khởi động sau.
+ * Khi có bản ghi hỏng, báo cáo được ghi vào nhật ký và DataStorage được yêu cầu ghi lại toàn bộ ở lần lưu kế tiếp.
+ */
+public class StorageVerifier {
+    private final DataStorage storage;
+    private final long intervalMillis;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    StorageVerifier(DataStorage storage, long intervalMillis) {
+        this.storage = storage;
+        this.intervalMillis = intervalMillis;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "xinoclo-verifier");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); // Nhường CPU cho EDT và luồng ghi
+        thread.start();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(intervalMillis); // Lượt đầu chờ một chu kỳ: dữ liệu vừa được kiểm tra khi tải
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                verifyNow();
+            } catch (RuntimeException e) {
+                System.err.println("[StorageVerifier] Lỗi khi kiểm tra dữ liệu: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Chạy một lượt kiểm tra ngay trên luồng hiện tại. */
+    SalvageReport verifyNow() {
+        long startNanos = System.nanoTime();
+        SalvageReport report = new SalvageReport();
+        storage.verifyStoredData(report);
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        if (report.isClean()) {
+            System.out.println("[StorageVerifier] Dữ liệu đã lưu nguyên vẹn (kiểm tra trong " + elapsedMillis + " ms).");
+        } else {
+            report.publish("Kiểm tra nền phát hiện dữ liệu hỏng", storage.getIntegrityLogFile());
+            storage.requestRepair();
+        }
+        return report;
+    }
+}
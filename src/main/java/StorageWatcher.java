@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Luồng nền theo dõi thư mục dữ liệu của một {@link DataStorage} và gọi {@link DataStorage#pollExternalChanges()}
+ * khi file dữ liệu đổi, để phiên bản này thấy thay đổi của phiên bản khác mà không phải khởi động lại.
+ * Các sự kiện dồn dập (một lần lưu của tiến trình kia chạm nhiều file) được gom trong một khoảng ngắn;
+ * ngoài ra vẫn quét định kỳ cho các hệ thống file không báo sự kiện. Lần quét gặp file đang ghi dở được thử lại sau.
+ */
+public class StorageWatcher {
+    private static final long DEBOUNCE_MILLIS = 250;
+
+    private final DataStorage storage;
+    private final Consumer<ExternalChanges> listener;
+    private final long pollMillis;
+    private volatile boolean stopped;
+    private Thread thread;
+    private WatchService watchService;
+
+    StorageWatcher(DataStorage storage, Consumer<ExternalChanges> listener, long pollMillis) {
+        this.storage = storage;
+        this.listener = listener;
+        this.pollMillis = pollMillis;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("[StorageWatcher] Không thể nhận sự kiện từ hệ thống file, chỉ quét định kỳ: " + e.getMessage());
+        }
+        thread = new Thread(this::run, "xinoclo-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("[StorageWatcher] Không thể đóng WatchService: " + e.getMessage());
+            }
+        }
+    }
+
+    private void run() {
+        Set<Path> registered = new HashSet<>();
+        long delayMillis = pollMillis;
+        while (!stopped) {
+            register(registered); // Thư mục shard có thể chỉ xuất hiện sau lần lưu đầu tiên
+            try {
+                if (!awaitChange(delayMillis)) {
+                    continue;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            // File đang ghi dở: thử lại sớm, không chờ hết chu kỳ quét định kỳ
+            delayMillis = pollNow() ? pollMillis : DEBOUNCE_MILLIS * 4;
+        }
+    }
+
+    /**
+     * Chờ sự kiện về một file dữ liệu rồi chờ thêm tới khi các sự kiện ngớt.
+     * @return false nếu chỉ có sự kiện của file không liên quan (file tạm, file khóa...).
+     */
+    private boolean awaitChange(long timeoutMillis) throws InterruptedException {
+        if (watchService == null) {
+            Thread.sleep(timeoutMillis);
+            return true;
+        }
+        WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (key == null) {
+            return true; // Quét định kỳ
+        }
+        boolean relevant = false;
+        while (key != null) {
+            relevant |= drain(key);
+            key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return relevant;
+    }
+
+    private boolean drain(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+            } else if (event.context() instanceof Path && storage.isWatchedFile(((Path) event.context()).getFileName().toString())) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private void register(Set<Path> registered) {
+        if (watchService == null) {
+            return;
+        }
+        for (File directory : storage.watchedDirectories()) {
+            Path path = directory.toPath();
+            if (registered.contains(path) || !directory.isDirectory()) {
+                continue;
+            }
+            try {
+                path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                registered.add(path);
+            } catch (IOException | ClosedWatchServiceException e) {
+                System.err.println("[StorageWatcher] Không thể theo dõi " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Quét một lần trên luồng hiện tại và báo cho listener nếu có thay đổi.
+     * @return false nếu gặp file đang ghi dở và cần quét lại.
+     */
+    boolean pollNow() {
+        try {
+            ExternalChanges changes = storage.pollExternalChanges();
+            if (changes != null) {
+                listener.accept(changes);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("[StorageWatcher] Dữ liệu đang được ghi, sẽ đọc lại sau: " + e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            System.err.println("[StorageWatcher] Lỗi khi đọc thay đổi từ bên ngoài: " + e.getMessage());
+            e.printStackTrace();
+            return true;
+        }
+    }
+}
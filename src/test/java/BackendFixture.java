@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * Một backend đang được kiểm thử, trên dữ liệu riêng trong một thư mục tạm.
+ * Mỗi lần {@link #open()} trả về backend mới trên cùng dữ liệu, như khi khởi động lại ứng dụng;
+ * InMemoryStorageBackend không có gì trên đĩa nên lần mở sau dùng lại chính instance đó.
+ */
+final class BackendFixture {
+    /** Các backend mà bộ kiểm thử chung chạy qua. */
+    enum Kind { JSON_JOURNAL, JSON_SHARDED, MEMORY, SQL }
+
+    private final Kind kind;
+    private final Path directory;
+    private InMemoryStorageBackend memory;
+    private boolean sqlSeeded;
+
+    BackendFixture(Kind kind, Path directory) {
+        this.kind = kind;
+        this.directory = directory;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    StorageBackend open() {
+        String dataFile = directory.resolve(StorageConfig.DATA_FILE).toString();
+        switch (kind) {
+            case JSON_JOURNAL:
+                return new DataStorage(dataFile, true, StorageConfig.SnapshotFormat.JSON, false);
+            case JSON_SHARDED:
+                return new DataStorage(dataFile, false, StorageConfig.SnapshotFormat.JSON, true);
+            case MEMORY:
+                if (memory == null) {
+                    memory = new InMemoryStorageBackend();
+                }
+                return memory;
+            default:
+                return openSql();
+        }
+    }
+
+    NoteManager openManager() {
+        return new NoteManager(open());
+    }
+
+    /** Đóng rồi mở lại: chỉ những gì đã được ghi xuống mới còn. */
+    NoteManager reopen(NoteManager noteManager) throws IOException {
+        noteManager.close();
+        return openManager();
+    }
+
+    private StorageBackend openSql() {
+        String url = "jdbc:sqlite:" + directory.resolve("notes.db");
+        try {
+            DriverManager.getDriver(url);
+        } catch (SQLException e) {
+            Assumptions.assumeTrue(false, "Không có JDBC driver cho " + url);
+        }
+        SqlStorageBackend backend = new SqlStorageBackend(url);
+        if (!sqlSeeded) {
+            // Cơ sở dữ liệu trống sẽ chuyển dữ liệu từ notes.json trong thư mục làm việc sang; ghi sẵn Root để tránh
+            try {
+                backend.writeSnapshot(new StorageSnapshot(Collections.emptyList(),
+                        Collections.singletonList(new Folder(1, "Root")), Collections.emptyList()));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            sqlSeeded = true;
+        }
+        return backend;
+    }
+}
@@ -0,0 +1,407 @@
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * NoteManager dùng từ nhiều luồng: luồng ghi được tuần tự hóa, luồng đọc (không phải luồng đã tạo NoteManager)
+ * đọc ảnh chụp đã công bố mà không chờ khóa và luôn thấy dữ liệu nhất quán, khớp với dữ liệu sống sau mỗi lần sửa.
+ */
+class NoteManagerConcurrencyTest {
+    // Thời gian chạy song song của luồng đọc và luồng ghi. Chạy lâu hơn: -Dxinoclo.test.stressMillis=60000
+    private static final int STRESS_MILLIS = StorageConfig.getInt("xinoclo.test.stressMillis", 2000);
+    private static final int WRITER_COUNT = 2;
+    private static final int READER_COUNT = 4;
+    private static final long READ_TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void stopOtherThread() {
+        otherThread.shutdownNow();
+    }
+
+    @Test
+    void readersAndWritersRunConcurrently() throws Exception {
+        BackendFixture backend = new BackendFixture(BackendFixture.Kind.JSON_JOURNAL, directory);
+        NoteManager noteManager = backend.openManager();
+        TestModels.populate(noteManager, 5, 300);
+
+        Queue<String> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            Random random = new Random(i);
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    try {
+                        writeRandomly(noteManager, random);
+                        writes.incrementAndGet();
+                    } catch (IllegalArgumentException | RolledBack e) {
+                        // Note/folder vừa bị luồng ghi kia xóa, hoặc batch cố ý bị hoàn tác
+                    } catch (Throwable e) {
+                        errors.add(Thread.currentThread().getName() + ": " + e);
+                    }
+                }
+            }, "writer-" + i));
+        }
+        for (int i = 0; i < READER_COUNT; i++) {
+            Random random = new Random(100 + i);
+            threads.add(new Thread(() -> {
+                while (!stop.get()) {
+                    try {
+                        readAndCheck(noteManager, random, errors);
+                        reads.incrementAndGet();
+                    } catch (Throwable e) {
+                        errors.add(Thread.currentThread().getName() + ": " + e);
+                    }
+                }
+            }, "reader-" + i));
+        }
+        threads.forEach(Thread::start);
+        Thread.sleep(STRESS_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SECONDS));
+            assertFalse(thread.isAlive(), thread.getName() + " không dừng");
+        }
+        System.out.println("[NoteManagerConcurrencyTest] " + reads + " lần đọc, " + writes + " lần ghi trong " + STRESS_MILLIS + " ms.");
+        assertEquals(new ArrayList<>(), new ArrayList<>(errors));
+        assertTrue(reads.get() > 0 && writes.get() > 0);
+
+        for (Note note : noteManager.getAllNotes()) {
+            assertSame(noteManager.getFolderById(note.getFolderId()), note.getFolder());
+            assertTrue(note.getFolder().containsNote(note));
+        }
+        assertEquals(noteManager.getAllNotes().size(), noteManager.getAllFolders().stream()
+                .mapToInt(folder -> noteManager.getNotesInFolder(folder).size()).sum());
+        assertEquals(describe(noteManager), fromOtherThread(noteManager));
+
+        noteManager.flush();
+        String saved = TestModels.fingerprint(noteManager);
+        NoteManager reloaded = backend.reopen(noteManager);
+        try {
+            assertEquals(saved, TestModels.fingerprint(reloaded));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    void otherThreadsSeeEveryChange() throws Exception {
+        NoteManager noteManager = new NoteManager(new InMemoryStorageBackend());
+        try {
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "lúc mới mở");
+            TestModels.populate(noteManager, 2, 40);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "thêm note");
+
+            Note note = noteManager.getAllNotes().get(3);
+            note.setContent("đã sửa");
+            note.setFavorite(true);
+            noteManager.updateNote(note);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "sửa note");
+
+            Note copy = noteManager.getAllNotes().get(5).snapshotCopy();
+            copy.setTitle("instance khác");
+            noteManager.updateNote(copy);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "thay instance");
+
+            noteManager.deleteNote(noteManager.getAllNotes().get(6).getId());
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "xóa note");
+
+            Folder second = noteManager.getFolderByName("Folder 1").orElseThrow(IllegalStateException::new);
+            noteManager.moveNoteToFolder(noteManager.getAllNotes().get(7), second);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "chuyển folder");
+
+            noteManager.addTagToNote(noteManager.getAllNotes().get(8), "mới");
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "thêm tag");
+
+            Tag tag = noteManager.getTagByName("tag1");
+            tag.setName("tag1-đổi");
+            noteManager.updateTag(tag);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "đổi tên tag");
+
+            noteManager.deleteTag(noteManager.getTagByName("tag2").getId());
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "xóa tag");
+
+            second.setName("Folder 1 đổi");
+            noteManager.updateFolder(second);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "đổi tên folder");
+
+            Note withAlarm = noteManager.getAllNotes().stream().filter(n -> n.getAlarm() != null)
+                    .findFirst().orElseThrow(IllegalStateException::new);
+            withAlarm.setAlarm(null);
+            noteManager.updateNote(withAlarm);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "bỏ alarm");
+
+            for (int i = 0; i < 200; i++) {
+                Note edited = noteManager.getAllNotes().get(i % 10);
+                edited.setTitle("Lần sửa " + i);
+                noteManager.updateNote(edited);
+            }
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "nhiều lần sửa liên tiếp");
+
+            Folder imported = new Folder("Nhập");
+            List<Note> importedNotes = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Note importedNote = new Note("Nhập " + i, "n", false);
+                importedNote.setFolder(imported);
+                importedNote.setTags(new ArrayList<>(Arrays.asList(new Tag("nhập" + i % 2))));
+                importedNotes.add(importedNote);
+            }
+            noteManager.importBatch(Arrays.asList(imported), importedNotes);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "nhập hàng loạt");
+
+            noteManager.deleteFolder(second.getId(), false);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "xóa folder, chuyển note về Root");
+            noteManager.deleteFolder(noteManager.getFolderByName("Nhập").orElseThrow(IllegalStateException::new).getId(), true);
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "xóa folder cùng note");
+        } finally {
+            noteManager.close();
+        }
+    }
+
+    @Test
+    void readersDoNotWaitForOpenBatch() throws Exception {
+        NoteManager noteManager = new NoteManager(new InMemoryStorageBackend());
+        try {
+            TestModels.populate(noteManager, 2, 20);
+            String before = describe(noteManager);
+
+            try (NoteManager.Batch batch = noteManager.beginBatch()) {
+                noteManager.deleteNote(noteManager.getAllNotes().get(0).getId());
+                noteManager.addNote(new Note("Trong batch", "x", false));
+                // Batch giữ khóa ghi: luồng đọc chờ khóa sẽ quá thời gian ở đây
+                assertEquals(before, fromOtherThread(noteManager), "luồng khác không thấy batch chưa commit");
+            }
+            assertEquals(before, describe(noteManager));
+            assertEquals(before, fromOtherThread(noteManager), "sau rollback");
+
+            try (NoteManager.Batch batch = noteManager.beginBatch()) {
+                noteManager.deleteNote(noteManager.getAllNotes().get(0).getId());
+                noteManager.addNote(new Note("Trong batch", "x", false));
+                assertEquals(before, fromOtherThread(noteManager));
+                batch.commit();
+            }
+            assertNotEquals(before, describe(noteManager));
+            assertEquals(describe(noteManager), fromOtherThread(noteManager), "sau commit");
+        } finally {
+            noteManager.close();
+        }
+    }
+
+    @Test
+    void rollbackUndoesChangesMadeOnAnotherThread() throws Exception {
+        NoteManager noteManager = new NoteManager(new InMemoryStorageBackend());
+        try {
+            TestModels.populate(noteManager, 2, 20);
+            String before = describe(noteManager);
+            Note held = noteManager.getAllNotes().get(0);
+
+            try (NoteManager.Batch batch = noteManager.beginBatch()) {
+                // Instance được quản lý bị sửa trên luồng khác rồi được đưa lại cho NoteManager trong batch
+                otherThread.submit(() -> held.setTitle("sửa trên luồng khác")).get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                noteManager.updateNote(held);
+            }
+            assertEquals(before, describe(noteManager), "rollback phải đặt lại cả thay đổi làm trên luồng khác");
+            assertEquals(before, fromOtherThread(noteManager));
+        } finally {
+            noteManager.close();
+        }
+    }
+
+    @Test
+    void firingAlarmDoesNotChangeWhatOtherThreadsSee() throws Exception {
+        NoteManager noteManager = new NoteManager(new InMemoryStorageBackend());
+        CountDownLatch edtHeld = new CountDownLatch(1);
+        CountDownLatch releaseEdt = new CountDownLatch(1);
+        AlarmController alarmController = null;
+        try {
+            TestModels.populate(noteManager, 1, 10);
+            Note due = new Note("Tới giờ", "a", false);
+            due.setAlarm(new Alarm(0, LocalDateTime.now().minusMinutes(1).withSecond(0).withNano(0), false, null));
+            noteManager.addNote(due);
+            String before = describe(noteManager);
+
+            // Giữ EDT: phần xử lý trên EDT chỉ chạy sau khi note bị xóa, nên không mở hộp thoại báo thức
+            SwingUtilities.invokeLater(() -> {
+                edtHeld.countDown();
+                try {
+                    releaseEdt.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(edtHeld.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            alarmController = new AlarmController(new NoteController(null, new NoteService(noteManager)), null);
+            // Luồng kiểm tra alarm chạy mỗi giây, lần đầu ngay lập tức
+            long end = System.currentTimeMillis() + 2500;
+            while (System.currentTimeMillis() < end) {
+                assertEquals(before, fromOtherThread(noteManager), "kích hoạt alarm không được sửa ảnh chụp");
+            }
+            assertEquals(before, describe(noteManager));
+            noteManager.deleteNote(due.getId());
+        } finally {
+            if (alarmController != null) {
+                alarmController.stopSoundAndScheduler();
+            }
+            releaseEdt.countDown();
+            SwingUtilities.invokeAndWait(() -> { });
+            noteManager.close();
+        }
+    }
+
+    /** Một thao tác sửa ngẫu nhiên; tra note/folder qua ảnh chụp của luồng này như luồng nền thật vẫn làm. */
+    private static void writeRandomly(NoteManager noteManager, Random random) {
+        List<Note> notes = noteManager.getAllNotes();
+        List<Folder> folders = noteManager.getAllFolders();
+        int op = random.nextInt(10);
+        if (op < 3 || notes.size() < 50) {
+            Note note = new Note("Note " + random.nextInt(1000), "Nội dung", random.nextBoolean());
+            note.setFolder(folders.get(random.nextInt(folders.size())));
+            note.setTags(new ArrayList<>(Arrays.asList(new Tag("tag" + random.nextInt(20)))));
+            if (random.nextInt(4) == 0) {
+                note.setAlarm(new Alarm(0, LocalDateTime.of(2033, 1, 1, 0, 0), false, null));
+            }
+            noteManager.addNote(note);
+        } else if (op < 5) {
+            noteManager.deleteNote(notes.get(random.nextInt(notes.size())).getId());
+        } else if (op < 7) {
+            Note note = noteManager.getNoteById(notes.get(random.nextInt(notes.size())).getId());
+            if (note != null) {
+                noteManager.moveNoteToFolder(note, folders.get(random.nextInt(folders.size())));
+            }
+        } else if (op < 8) {
+            noteManager.addTagToNote(notes.get(random.nextInt(notes.size())), "tag" + random.nextInt(20));
+        } else if (op < 9) {
+            boolean rollback = random.nextInt(3) == 0;
+            noteManager.runInBatch(() -> {
+                for (int i = 0; i < 5; i++) {
+                    noteManager.addNote(new Note("Batch " + i, "b", false));
+                }
+                if (rollback) {
+                    throw new RolledBack();
+                }
+            });
+        } else {
+            Folder folder = new Folder(Thread.currentThread().getName() + "-" + random.nextInt(3));
+            noteManager.addFolder(folder);
+            Folder managed = noteManager.getFolderByName(folder.getName()).orElse(null);
+            if (managed != null && random.nextBoolean()) {
+                noteManager.deleteFolder(managed.getId(), random.nextBoolean());
+            }
+        }
+    }
+
+    /** Các phép đọc mà luồng nền (kiểm tra alarm, tìm kiếm, xuất dữ liệu) dùng, kèm những gì mỗi kết quả phải thỏa. */
+    private static void readAndCheck(NoteManager noteManager, Random random, Queue<String> errors) {
+        List<Note> notes = noteManager.getAllNotes();
+        Set<Long> ids = new HashSet<>();
+        for (Note note : notes) {
+            if (note == null) {
+                errors.add("getAllNotes trả về null");
+            } else if (!ids.add(note.getId())) {
+                errors.add("getAllNotes trả về trùng note " + note.getId());
+            }
+        }
+        if (!notes.isEmpty()) {
+            Note note = notes.get(random.nextInt(notes.size()));
+            Note byId = noteManager.getNoteById(note.getId());
+            if (byId != null && byId.getId() != note.getId()) {
+                errors.add("getNoteById(" + note.getId() + ") trả về note " + byId.getId());
+            }
+            if (note.getAlarm() != null) {
+                Note byAlarm = noteManager.getNoteByAlarmId(note.getAlarm().getId());
+                if (byAlarm != null && (byAlarm.getAlarm() == null || byAlarm.getAlarm().getId() != note.getAlarm().getId())) {
+                    errors.add("getNoteByAlarmId(" + note.getAlarm().getId() + ") trả về note không có alarm đó");
+                }
+            }
+        }
+        if (noteManager.getRootFolder() == null || !noteManager.getFolderByName("Root").isPresent()) {
+            errors.add("không thấy Root");
+        }
+        for (Folder folder : noteManager.getAllFolders()) {
+            if (folder == null) {
+                errors.add("getAllFolders trả về null");
+            }
+        }
+        for (Note note : noteManager.getNotesInFolder(noteManager.getRootFolder())) {
+            if (note == null) {
+                errors.add("getNotesInFolder trả về null");
+            }
+        }
+        noteManager.searchNotes("Note 1");
+        noteManager.getSortedNotes();
+        noteManager.getTagByName("tag3");
+    }
+
+    /** {@link #describe} như một luồng nền thấy (qua ảnh chụp); luồng đọc chờ khóa sẽ làm lần gọi này quá thời gian. */
+    private String fromOtherThread(NoteManager noteManager) throws Exception {
+        return otherThread.submit(() -> describe(noteManager)).get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Mọi thứ đọc được qua API công khai, không dùng {@link Folder#getNotes()} hay {@link Note#getFolder()}
+     * (ảnh chụp không liên kết note với folder).
+     */
+    private static String describe(NoteManager noteManager) {
+        StringBuilder sb = new StringBuilder();
+        for (Note note : noteManager.getAllNotes()) {
+            sb.append(note.getId()).append('|').append(note.getTitle()).append('|').append(note.getContent()).append('|')
+                    .append(note.getFolderId()).append('|').append(note.isFavorite()).append('|').append(note.getUpdatedAt()).append('|')
+                    .append(note.getTags().stream().map(tag -> tag.getId() + tag.getName()).collect(Collectors.toList())).append('|')
+                    .append(note.getAlarm() == null ? "-" : note.getAlarm().getId() + "@" + note.getAlarm().getAlarmTime()).append('|')
+                    .append(noteManager.getNoteById(note.getId()).getTitle());
+            if (note.getAlarm() != null) {
+                sb.append('|').append(noteManager.getNoteByAlarmId(note.getAlarm().getId()).getId());
+            }
+            sb.append('\n');
+        }
+        for (Folder folder : noteManager.getAllFolders()) {
+            sb.append('F').append(folder.getId()).append('|').append(folder.getName()).append('|').append(folder.isFavorite()).append('|')
+                    .append(noteManager.getNotesInFolder(folder).stream().map(Note::getId).sorted().collect(Collectors.toList())).append('|')
+                    .append(noteManager.getFolderByName(folder.getName()).map(Folder::getId).orElse(-1L)).append('\n');
+        }
+        for (Tag tag : noteManager.getAllTags()) {
+            sb.append('T').append(tag.getId()).append('|').append(tag.getName()).append('|')
+                    .append(noteManager.getTagByName(tag.getName().toUpperCase()).getId()).append('|')
+                    .append(noteManager.getTagById(tag.getId()).getName()).append('\n');
+        }
+        sb.append("Root ").append(noteManager.getRootFolder().getId()).append('\n');
+        sb.append(noteManager.searchNotes("Note 1").stream().map(Note::getId).sorted(Comparator.naturalOrder())
+                .collect(Collectors.toList())).append('\n');
+        sb.append(noteManager.getSortedNotes().stream().map(Note::getId).collect(Collectors.toList()));
+        return sb.toString();
+    }
+
+    /** Ném trong batch để batch bị hoàn tác. */
+    private static final class RolledBack extends RuntimeException {
+    }
+}
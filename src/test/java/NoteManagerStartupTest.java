@@ -0,0 +1,148 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Khởi động NoteManager: tái liên kết note với folder/tag được quản lý qua chỉ mục (relinkObjects) phải tăng
+ * tuyến tính theo số note, và không được tính là một lần sửa note.
+ */
+class NoteManagerStartupTest {
+    // Số note của lần đo nhỏ; lần đo lớn gấp SCALE lần. Đo thật: -Dxinoclo.test.startupNotes=50000
+    private static final int NOTE_COUNT = StorageConfig.getInt("xinoclo.test.startupNotes", 5000);
+    private static final int SCALE = 8;
+    private static final int FOLDER_COUNT = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void relinkUsesManagedInstancesAndKeepsUpdatedAt() throws Exception {
+        BackendFixture backend = new BackendFixture(BackendFixture.Kind.JSON_JOURNAL, directory);
+        NoteManager noteManager = backend.openManager();
+        TestModels.populate(noteManager, 3, 30);
+        String saved = TestModels.fingerprint(noteManager); // Gồm cả updatedAt của từng note
+
+        noteManager = backend.reopen(noteManager);
+        try {
+            assertEquals(saved, TestModels.fingerprint(noteManager));
+            for (Note note : noteManager.getAllNotes()) {
+                Folder folder = noteManager.getFolderById(note.getFolderId());
+                assertSame(folder, note.getFolder());
+                assertTrue(folder.containsNote(note));
+                for (Tag tag : note.getTags()) {
+                    assertSame(noteManager.getTagById(tag.getId()), tag, "tag của note phải là instance được quản lý");
+                }
+            }
+        } finally {
+            noteManager.close();
+        }
+    }
+
+    @Test
+    void loadingAndSavingAgainLeavesSnapshotUnchanged() throws Exception {
+        Path dataFile = directory.resolve(StorageConfig.DATA_FILE);
+        NoteManager noteManager = new NoteManager(new DataStorage(dataFile.toString(), false, StorageConfig.SnapshotFormat.JSON, false));
+        TestModels.populate(noteManager, 3, 30);
+        noteManager.close();
+        byte[] saved = Files.readAllBytes(dataFile);
+
+        noteManager = new NoteManager(new DataStorage(dataFile.toString(), false, StorageConfig.SnapshotFormat.JSON, false));
+        noteManager.saveData();
+        noteManager.close();
+        assertTrue(Arrays.equals(saved, Files.readAllBytes(dataFile)), "tải rồi ghi lại không được đổi dữ liệu đã lưu");
+    }
+
+    @Test
+    void relinkScalesLinearlyWithNoteCount() throws Exception {
+        NoteManager small = new NoteManager(backendWith(NOTE_COUNT));
+        NoteManager large = new NoteManager(backendWith(NOTE_COUNT * SCALE));
+        try {
+            String smallBefore = TestModels.fingerprint(small);
+            long smallNanos = fastestRelink(small);
+            long largeNanos = fastestRelink(large);
+            assertEquals(smallBefore, TestModels.fingerprint(small), "liên kết lại không được đổi dữ liệu");
+            double ratio = (double) largeNanos / smallNanos;
+            System.out.println("[NoteManagerStartupTest] relinkObjects " + NOTE_COUNT + " notes: " + smallNanos / 1_000 + " µs, "
+                    + NOTE_COUNT * SCALE + " notes: " + largeNanos / 1_000 + " µs (gấp " + String.format("%.1f", ratio) + " lần).");
+            // Tuyến tính cho khoảng SCALE lần; quét danh sách tag hay note của folder cho mỗi note cho khoảng SCALE * SCALE lần
+            assertTrue(ratio < 2.5 * SCALE, "relinkObjects chậm đi " + String.format("%.1f", ratio) + " lần khi số note tăng " + SCALE + " lần");
+        } finally {
+            small.close();
+            large.close();
+        }
+    }
+
+    @Test
+    void startupLoadsEveryNote() throws Exception {
+        InMemoryStorageBackend backend = backendWith(NOTE_COUNT);
+        long start = System.nanoTime();
+        NoteManager noteManager = new NoteManager(backend);
+        long startupNanos = System.nanoTime() - start;
+        try {
+            assertEquals(NOTE_COUNT, noteManager.getAllNotes().size());
+            assertEquals(NOTE_COUNT, noteManager.getAllFolders().stream().mapToInt(Folder::getNoteCount).sum());
+            System.out.println("[NoteManagerStartupTest] Khởi động " + NOTE_COUNT + " notes trong " + startupNanos / 1_000_000 + " ms.");
+        } finally {
+            noteManager.close();
+        }
+    }
+
+    // Dữ liệu đã lưu với noteCount note, mỗi note 3 tag, một phần có alarm. Số folder cố định nên danh sách note
+    // của mỗi folder dài ra theo số note, số tag tăng theo số note (mỗi tag gắn với khoảng 30 note): việc quét
+    // danh sách note của folder hay danh sách tag cho mỗi note sẽ lộ ra
+    private static InMemoryStorageBackend backendWith(int noteCount) throws Exception {
+        InMemoryStorageBackend backend = new InMemoryStorageBackend();
+        NoteManager noteManager = new NoteManager(backend);
+        int tagCount = Math.max(1, noteCount / 10);
+        List<Folder> folders = new ArrayList<>();
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            folders.add(new Folder("Folder " + i));
+        }
+        List<Note> notes = new ArrayList<>(noteCount);
+        for (int i = 0; i < noteCount; i++) {
+            Note note = new Note("Note " + i, "Nội dung " + i, false);
+            note.setFolder(folders.get(i % folders.size()));
+            note.setTags(new ArrayList<>(Arrays.asList(new Tag("tag" + i % tagCount), new Tag("tag" + (i + 1) % tagCount),
+                    new Tag("tag" + (i + 7) % tagCount))));
+            if (i % 10 == 0) {
+                note.setAlarm(new Alarm(noteManager.generateNewAlarmId(), LocalDateTime.of(2031, 1, 1, 0, 0), false, null));
+            }
+            notes.add(note);
+        }
+        noteManager.importBatch(folders, notes);
+        noteManager.close();
+        return backend;
+    }
+
+    // Lần chạy đầu để JIT biên dịch, lấy lần nhanh nhất trong các lần sau. Trước mỗi lần, tag của note được
+    // thay bằng tag chỉ có tên (như tag trong dữ liệu cũ chưa có ID) để relink phải tìm tag theo tên
+    private static long fastestRelink(NoteManager noteManager) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 6; run++) {
+            for (Note note : noteManager.getAllNotes()) {
+                LocalDateTime updatedAt = note.getUpdatedAt();
+                List<Tag> stubs = new ArrayList<>();
+                for (Tag tag : note.getTags()) {
+                    stubs.add(new Tag(tag.getName()));
+                }
+                note.setTags(stubs);
+                note.setUpdatedAt(updatedAt);
+            }
+            long start = System.nanoTime();
+            noteManager.relinkObjects();
+            long elapsed = System.nanoTime() - start;
+            if (run > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+}
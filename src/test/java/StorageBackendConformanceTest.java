@@ -0,0 +1,178 @@
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hành vi mà mọi {@link StorageBackend} phải giống nhau: những gì NoteManager thấy trước khi đóng
+ * cũng là những gì nó tải lại được, với từng loại thay đổi.
+ */
+class StorageBackendConformanceTest {
+    @TempDir
+    Path directory;
+
+    private NoteManager noteManager;
+
+    @AfterEach
+    void closeManager() throws Exception {
+        if (noteManager != null) {
+            noteManager.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void emptyStoreStartsWithRootFolder(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        assertEquals("Root", noteManager.getRootFolder().getName());
+        assertTrue(noteManager.getAllNotes().isEmpty());
+
+        noteManager = backend.reopen(noteManager);
+        assertEquals(1, noteManager.getAllFolders().size());
+        assertEquals("Root", noteManager.getRootFolder().getName());
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void reloadKeepsNotesFoldersTagsAndAlarms(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        TestModels.populate(noteManager, 3, 30);
+        String saved = TestModels.fingerprint(noteManager);
+
+        noteManager = backend.reopen(noteManager);
+        assertEquals(saved, TestModels.fingerprint(noteManager));
+        Note drawing = noteManager.getAllNotes().stream().filter(note -> note.getNoteType() == Note.NoteType.DRAWING)
+                .findFirst().orElseThrow(AssertionError::new);
+        assertEquals(TestModels.PIXEL_PNG, drawing.getDrawingData());
+        for (Note note : noteManager.getAllNotes()) {
+            assertSame(noteManager.getFolderById(note.getFolderId()), note.getFolder(), "note phải trỏ tới folder được quản lý");
+            if (note.getAlarm() != null) {
+                assertSame(note, noteManager.getNoteByAlarmId(note.getAlarm().getId()));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void updatesAndDeletesSurviveReload(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        TestModels.populate(noteManager, 3, 30);
+
+        Note edited = noteManager.getAllNotes().get(3);
+        edited.setContent("đã sửa");
+        edited.setAlarm(new Alarm(LocalDateTime.of(2032, 5, 6, 7, 8), false, null));
+        noteManager.updateNote(edited);
+        noteManager.moveNoteToFolder(noteManager.getAllNotes().get(4), noteManager.getFolderByName("Folder 2").get());
+        noteManager.deleteNote(noteManager.getAllNotes().get(5).getId());
+        Tag renamed = noteManager.getTagByName("tag1");
+        renamed.setName("tag1-mới");
+        noteManager.updateTag(renamed);
+        long deletedTagId = noteManager.getTagByName("chung").getId();
+        noteManager.deleteTag(deletedTagId);
+        Folder folder = noteManager.getFolderByName("Folder 1").get();
+        folder.setName("Folder 1 mới");
+        folder.setFavorite(true);
+        noteManager.updateFolder(folder);
+        noteManager.deleteFolder(noteManager.getFolderByName("Folder 0").get().getId(), false);
+        noteManager.deleteFolder(noteManager.getFolderByName("Folder 2").get().getId(), true);
+        String saved = TestModels.fingerprint(noteManager);
+
+        noteManager = backend.reopen(noteManager);
+        assertEquals(saved, TestModels.fingerprint(noteManager));
+        assertNull(noteManager.getTagById(deletedTagId));
+        assertTrue(noteManager.getAllNotes().stream().allMatch(note -> note.getTags().stream().noneMatch(tag -> tag.getId() == deletedTagId)),
+                "tag đã xóa phải biến mất khỏi mọi note");
+        assertEquals("Folder 1 mới", noteManager.getFolderById(folder.getId()).getName());
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void idsAreNotReusedAfterReload(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        Note first = new Note("first", "x", false);
+        noteManager.addNote(first);
+        long firstId = first.getId();
+        noteManager.deleteNote(firstId);
+
+        noteManager = backend.reopen(noteManager);
+        Note second = new Note("second", "y", false);
+        noteManager.addNote(second);
+        assertTrue(second.getId() > firstId, "ID " + second.getId() + " không được cấp lại (đã cấp " + firstId + ")");
+
+        noteManager = backend.reopen(noteManager);
+        assertEquals("second", noteManager.getNoteById(second.getId()).getTitle());
+        assertNull(noteManager.getNoteById(firstId));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void committedBatchIsSavedAndRolledBackBatchIsNot(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        TestModels.populate(noteManager, 2, 10);
+        String beforeBatches = TestModels.fingerprint(noteManager);
+
+        try (NoteManager.Batch batch = noteManager.beginBatch()) {
+            noteManager.deleteNote(noteManager.getAllNotes().get(0).getId());
+            noteManager.addNote(new Note("bỏ đi", "x", false));
+            Note held = noteManager.getAllNotes().get(1);
+            held.setTitle("sửa thẳng trên instance");
+            held.setFavorite(!held.isFavorite());
+            noteManager.updateNote(held);
+            Folder folder0 = noteManager.getFolderByName("Folder 0").orElseThrow(IllegalStateException::new);
+            Folder folder1 = noteManager.getFolderByName("Folder 1").orElseThrow(IllegalStateException::new);
+            Note moved = noteManager.getAllNotes().get(2);
+            noteManager.moveNoteToFolder(moved, moved.getFolderId() == folder0.getId() ? folder1 : folder0);
+        }
+        assertEquals(beforeBatches, TestModels.fingerprint(noteManager), "rollback phải đặt lại dữ liệu trong bộ nhớ");
+
+        try (NoteManager.Batch batch = noteManager.beginBatch()) {
+            for (int i = 0; i < 5; i++) {
+                noteManager.addNote(new Note("batch " + i, "b" + i, false));
+            }
+            noteManager.deleteNote(noteManager.getAllNotes().get(2).getId());
+            batch.commit();
+        }
+        String committed = TestModels.fingerprint(noteManager);
+
+        noteManager = backend.reopen(noteManager);
+        assertEquals(committed, TestModels.fingerprint(noteManager));
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void externalChangesSurviveRolledBackBatch(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        TestModels.populate(noteManager, 2, 10);
+        String beforeBatch = TestModels.fingerprint(noteManager);
+        long externalId = 100_000L;
+        Note renamedLocally = noteManager.getAllNotes().get(0);
+
+        ExternalChanges changes = new ExternalChanges();
+        changes.notes.add(new Note(externalId, "từ phiên bản khác", "e", LocalDateTime.now(), LocalDateTime.now(),
+                noteManager.getRootFolder().getId(), false, false, false, "", null, null, Note.NoteType.TEXT, null));
+        try (NoteManager.Batch batch = noteManager.beginBatch()) {
+            renamedLocally.setTitle("bỏ đi");
+            noteManager.updateNote(renamedLocally);
+            noteManager.applyExternalChanges(changes);
+        }
+
+        Note external = noteManager.getNoteById(externalId);
+        assertNotNull(external, "rollback không được xóa thay đổi bên ngoài");
+        assertEquals("từ phiên bản khác", external.getTitle());
+        assertSame(noteManager.getRootFolder(), external.getFolder());
+        assertNotEquals("bỏ đi", renamedLocally.getTitle());
+        noteManager.deleteNote(externalId);
+        assertEquals(beforeBatch, TestModels.fingerprint(noteManager));
+    }
+}
@@ -0,0 +1,84 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Đo thông lượng thêm/sửa/xóa từng note và thời gian tải lại trên mỗi backend, in kết quả ra log để so sánh.
+ * Số note mặc định nhỏ để chạy cùng các kiểm thử khác; đo thật thì tăng qua {@code -Dxinoclo.test.benchNotes=50000}.
+ * Chỉ kiểm tra dữ liệu đúng, không đặt ngưỡng thời gian.
+ */
+class StorageBackendThroughputTest {
+    private static final int NOTE_COUNT = StorageConfig.getInt("xinoclo.test.benchNotes", 2000);
+
+    @TempDir
+    Path directory;
+
+    private NoteManager noteManager;
+
+    @AfterEach
+    void closeManager() throws Exception {
+        if (noteManager != null) {
+            noteManager.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(BackendFixture.Kind.class)
+    void addUpdateDeleteAndReload(BackendFixture.Kind kind) throws Exception {
+        BackendFixture backend = new BackendFixture(kind, directory);
+        noteManager = backend.openManager();
+        for (int i = 0; i < 10; i++) {
+            noteManager.addFolder(new Folder("Folder " + i));
+        }
+        List<Folder> folders = noteManager.getAllFolders();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            Note note = new Note("Note " + i, "Nội dung của note " + i, false);
+            note.setFolder(folders.get(i % folders.size()));
+            noteManager.addNote(note);
+        }
+        noteManager.flush();
+        long addNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<Note> notes = new ArrayList<>(noteManager.getAllNotes());
+        for (Note note : notes) {
+            note.setContent(note.getContent() + " (đã sửa)");
+            noteManager.updateNote(note);
+        }
+        noteManager.flush();
+        long updateNanos = System.nanoTime() - start;
+
+        int deleteCount = NOTE_COUNT / 10;
+        start = System.nanoTime();
+        for (int i = 0; i < deleteCount; i++) {
+            noteManager.deleteNote(notes.get(i).getId());
+        }
+        noteManager.flush();
+        long deleteNanos = System.nanoTime() - start;
+        String saved = TestModels.fingerprint(noteManager);
+
+        noteManager.close();
+        start = System.nanoTime();
+        noteManager = backend.openManager();
+        long reloadNanos = System.nanoTime() - start;
+
+        assertEquals(NOTE_COUNT - deleteCount, noteManager.getAllNotes().size());
+        assertEquals(saved, TestModels.fingerprint(noteManager));
+        System.out.println("[StorageBackendThroughputTest] " + kind + ": thêm " + rate(NOTE_COUNT, addNanos)
+                + ", sửa " + rate(NOTE_COUNT, updateNanos) + ", xóa " + rate(deleteCount, deleteNanos)
+                + ", tải lại " + NOTE_COUNT + " notes trong " + reloadNanos / 1_000_000 + " ms.");
+    }
+
+    private static String rate(int count, long nanos) {
+        return count + " notes trong " + nanos / 1_000_000 + " ms (" + Math.round(count * 1e9 / Math.max(1, nanos)) + " note/s)";
+    }
+}
@@ -0,0 +1,53 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+
+/** Dữ liệu mẫu và dấu vân tay của toàn bộ dữ liệu trong NoteManager, dùng chung cho các kiểm thử. */
+final class TestModels {
+    static final String PIXEL_PNG = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==";
+
+    private TestModels() {
+    }
+
+    /** Thêm {@code folderCount} folder và {@code noteCount} note có tag, một phần có alarm, một note là bản vẽ. */
+    static void populate(NoteManager noteManager, int folderCount, int noteCount) {
+        for (int i = 0; i < folderCount; i++) {
+            noteManager.addFolder(new Folder("Folder " + i));
+        }
+        for (int i = 0; i < noteCount; i++) {
+            Note note = new Note("Note " + i, "Nội dung " + i + " ünïcødé\ttab\nline", i % 3 == 0);
+            note.setFolder(noteManager.getFolderByName("Folder " + (i % folderCount)).orElseThrow(IllegalStateException::new));
+            note.setTags(new ArrayList<>(Arrays.asList(new Tag("tag" + (i % 4)), new Tag("chung"))));
+            if (i % 5 == 0) {
+                note.setAlarm(new Alarm(0, LocalDateTime.of(2031, 2, 3, 4, i % 60), i % 10 == 0, "WEEKLY"));
+            }
+            if (i == 7) {
+                note.setNoteType(Note.NoteType.DRAWING);
+                note.setContent(null);
+                note.setDrawingData(PIXEL_PNG);
+            }
+            noteManager.addNote(note);
+        }
+    }
+
+    /** Mọi trường được lưu của note, folder và tag, sắp theo ID. */
+    static String fingerprint(NoteManager noteManager) {
+        StringBuilder sb = new StringBuilder();
+        noteManager.getAllNotes().stream().sorted(Comparator.comparingLong(Note::getId)).forEach(note -> sb
+                .append(note.getId()).append('|').append(note.getTitle()).append('|').append(note.getNoteType()).append('|')
+                .append(note.getNoteType() == Note.NoteType.TEXT ? note.getContent() : note.getDrawingData()).append('|')
+                .append(note.getFolderId()).append('|').append(note.isFavorite()).append('|').append(note.getUpdatedAt()).append('|')
+                .append(note.getTags().stream().map(Tag::getId).sorted().collect(Collectors.toList())).append('|')
+                .append(note.getAlarm() == null ? "-" : note.getAlarm().getId() + "@" + note.getAlarm().getAlarmTime()
+                        + "/" + note.getAlarm().isRecurring() + "/" + note.getAlarm().getRecurrencePattern())
+                .append('\n'));
+        noteManager.getAllFolders().stream().sorted(Comparator.comparingLong(Folder::getId)).forEach(folder -> sb
+                .append('F').append(folder.getId()).append('|').append(folder.getName()).append('|').append(folder.isFavorite()).append('|')
+                .append(folder.getNotes().stream().map(Note::getId).sorted().collect(Collectors.toList())).append('\n'));
+        noteManager.getAllTags().stream().sorted(Comparator.comparingLong(Tag::getId)).forEach(tag -> sb
+                .append('T').append(tag.getId()).append('|').append(tag.getName()).append('\n'));
+        return sb.toString();
+    }
+}